@@ -0,0 +1,115 @@
+package org.jgroups;
+
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.*;
+
+/**
+ * A view which only contains the members which left and joined relative to a reference view, rather than the full
+ * membership. Used by GMS to multicast view changes in large clusters; a receiver creates the full view from its
+ * current view with {@link #createView(View)}, or fetches the full view from the coordinator if it doesn't have the
+ * reference view.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class DeltaView extends View {
+    /** The view ID of the view relative to which left_members and new_members were computed */
+    protected ViewId        ref_view_id;
+
+    protected List<Address> left_members;
+
+    protected List<Address> new_members;
+
+
+    /**
+     * Used by externalization
+     */
+    public DeltaView() {
+    }
+
+    public DeltaView(ViewId view_id, ViewId ref_view_id, List<Address> left_members, List<Address> new_members) {
+        super(view_id, Collections.<Address>emptyList());
+        this.ref_view_id=ref_view_id;
+        this.left_members=left_members;
+        this.new_members=new_members;
+    }
+
+    /**
+     * Computes the delta between two views. The members of the new view need to be the members of the current view,
+     * minus the left members, plus the new members (appended at the end), otherwise null will be returned
+     */
+    public static DeltaView create(View current_view, View new_view) {
+        if(current_view == null || new_view == null)
+            return null;
+        Set<Address> current_mbrs=new HashSet<Address>(current_view.getMembers()),
+          new_mbrs=new HashSet<Address>(new_view.getMembers());
+        List<Address> left=new ArrayList<Address>(), joined=new ArrayList<Address>();
+        for(Address mbr: current_view.getMembers())
+            if(!new_mbrs.contains(mbr))
+                left.add(mbr);
+        for(Address mbr: new_view.getMembers())
+            if(!current_mbrs.contains(mbr))
+                joined.add(mbr);
+        DeltaView delta=new DeltaView(new_view.getViewId(), current_view.getViewId(), left, joined);
+        View tmp=delta.createView(current_view);
+        return tmp != null && tmp.getMembers().equals(new_view.getMembers())? delta : null;
+    }
+
+    public ViewId        getRefViewId()    {return ref_view_id;}
+    public List<Address> getLeftMembers()  {return left_members;}
+    public List<Address> getNewMembers()   {return new_members;}
+
+    /**
+     * Creates the full view from the reference view. Returns null if base_view is not the reference view
+     */
+    public View createView(View base_view) {
+        if(base_view == null || !ref_view_id.equals(base_view.getViewId()))
+            return null;
+        Set<Address> left=left_members.isEmpty()? null : new HashSet<Address>(left_members);
+        List<Address> mbrs=new ArrayList<Address>(base_view.size() + new_members.size());
+        for(Address mbr: base_view.getMembers())
+            if(left == null || !left.contains(mbr))
+                mbrs.add(mbr);
+        mbrs.addAll(new_members);
+        return new View(vid, mbrs);
+    }
+
+    public View copy() {
+        return new DeltaView(vid.copy(), ref_view_id.copy(), new ArrayList<Address>(left_members),
+                             new ArrayList<Address>(new_members));
+    }
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder();
+        sb.append("DeltaView::").append(vid).append(" (ref=").append(ref_view_id).append(")");
+        if(!left_members.isEmpty())
+            sb.append(", left=").append(Util.printListWithDelimiter(left_members, ", ", Util.MAX_LIST_PRINT_SIZE));
+        if(!new_members.isEmpty())
+            sb.append(", joined=").append(Util.printListWithDelimiter(new_members, ", ", Util.MAX_LIST_PRINT_SIZE));
+        return sb.toString();
+    }
+
+    public void writeTo(DataOutput out) throws Exception {
+        vid.writeTo(out);
+        ref_view_id.writeTo(out);
+        Util.writeAddresses(left_members, out);
+        Util.writeAddresses(new_members, out);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void readFrom(DataInput in) throws Exception {
+        vid=new ViewId();
+        vid.readFrom(in);
+        ref_view_id=new ViewId();
+        ref_view_id.readFrom(in);
+        left_members=(List<Address>)Util.readAddresses(in, ArrayList.class);
+        new_members=(List<Address>)Util.readAddresses(in, ArrayList.class);
+        members=Collections.emptyList();
+    }
+
+    public int serializedSize() {
+        return (int)(vid.serializedSize() + ref_view_id.serializedSize() + Util.size(left_members) + Util.size(new_members));
+    }
+}
@@ -12,7 +12,7 @@ public class Event {
     public static final int DISCONNECT                         =  4;  // arg = member address (Address)
     public static final int VIEW_CHANGE                        =  6;  // arg = View (or MergeView in case of merge)
     public static final int SET_LOCAL_ADDRESS                  =  8;  // arg = Address
-    public static final int SUSPECT                            =  9;  // arg = Address of suspected member
+    public static final int SUSPECT                            =  9;  // arg = Address of suspected member, or Collection<Address> (only below GMS)
     public static final int BLOCK                              = 10;  // arg = null (used by FLUSH)
     public static final int FIND_INITIAL_MBRS                  = 12;  // arg = JoinPromise (or null (merge2))
     public static final int FIND_ALL_VIEWS                     = 13;  // arg = JoinPromise (or null (merge2))
@@ -58,6 +58,9 @@ public class Event {
     public static final int GET_PHYSICAL_ADDRESSES             = 102; // arg = null (returns all physical addresses)
     public static final int SITE_UNREACHABLE                   = 104; // arg = SiteMaster (RELAY2)
     public static final int FORWARD_TO_COORD                   = 105; // arg = Message
+    public static final int SEND_STREAM                        = 106; // arg = StreamingMessage, returns true if sent
+    public static final int XMIT_REQ_RECEIVED                  = 107; // arg = Tuple<Address,Integer> (requester, number of missing msgs)
+    public static final int GET_CACHED_VIEW                    = 108; // arg = null, returns the view persisted by PDC (or null)
 
 
     public static final int USER_DEFINED                       = 1000; // arg = <user def., e.g. evt type + data>
@@ -141,6 +144,9 @@ public class Event {
             case GET_PHYSICAL_ADDRESSES: return "GET_PHYSICAL_ADDRESSES";
             case SITE_UNREACHABLE:       return "SITE_UNREACHABLE";
             case FORWARD_TO_COORD:       return "FORWARD_TO_COORD";
+            case SEND_STREAM:            return "SEND_STREAM";
+            case XMIT_REQ_RECEIVED:      return "XMIT_REQ_RECEIVED";
+            case GET_CACHED_VIEW:        return "GET_CACHED_VIEW";
 
             case USER_DEFINED:           return "USER_DEFINED";
             default:                     return "UNDEFINED(" + t + ")";
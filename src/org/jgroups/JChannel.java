@@ -17,6 +17,8 @@ import java.io.*;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
@@ -428,6 +430,30 @@ public class JChannel extends Channel {
     }
 
 
+    /**
+     * Sends a message without blocking on flow control, if UFC or MFC are configured with non_blocking=true: when
+     * there are not enough credits, the message is queued and sent when credits are received.
+     * {@link #send(Message)} blocks in this case, or throws an exception if the message cannot be queued.
+     * @return A future which completes when the message has been passed down by flow control (it is already done if
+     *         there were enough credits), or completes with an exception if the message was rejected because too many
+     *         bytes are queued for its destination. Cancelling the future removes the message from the queue, unless
+     *         it is already being sent. Without non-blocking flow control, this method blocks like
+     *         {@link #send(Message)} and returns a completed future
+     */
+    @SuppressWarnings("unchecked")
+    public NotifyingFuture<Void> sendAsync(Message msg) throws Exception {
+        checkClosedOrNotConnected();
+        if(msg == null)
+            throw new NullPointerException("msg is null");
+        Object retval=down(new Event(Event.MSG, msg.setTransientFlag(Message.TransientFlag.DONT_BLOCK)));
+        if(retval instanceof NotifyingFuture)
+            return (NotifyingFuture<Void>)retval;
+        SettableFuture<Void> future=new SettableFuture<Void>();
+        future.set(null);
+        return future;
+    }
+
+
     public void send(Address dst, Object obj) throws Exception {
         send(new Message(dst, obj));
     }
@@ -440,6 +466,38 @@ public class JChannel extends Channel {
         send(new Message(dst, buf, offset, length));
     }
 
+    /**
+     * Sends the contents of an input stream to dst (null sends to all members) as a stream of fragments, without
+     * reading the entire stream into memory. Requires FRAG2. The call blocks until the stream has been read to the
+     * end and sent; flow control (UFC/MFC) blocks it when receivers don't consume the stream fast enough.<p/>
+     * Receivers get a {@link StreamingMessage} when the first fragment has been received, and read the payload from
+     * {@link StreamingMessage#getInputStream()} while the remaining fragments are received. The stream has to be read
+     * (or closed) by a thread other than the one delivering the message, as the delivery of the remaining fragments
+     * blocks until there is space in the stream's buffer.
+     * @param dst The destination, null for all members (including the sender)
+     * @param input The stream to be sent. Not closed by this method
+     * @param length The number of bytes to be read from the stream, or -1 if unknown. Passed to the receivers as
+     *               {@link StreamingMessage#getStreamLength()}; the stream is always read until EOF
+     */
+    public void sendStream(Address dst, InputStream input, int length) throws Exception {
+        checkClosedOrNotConnected();
+        if(input == null)
+            throw new NullPointerException("input stream is null");
+        Message msg=new Message(dst);
+        Object retval=down(new Event(Event.SEND_STREAM, new StreamingMessage(msg, input, length)));
+        if(!(retval instanceof Boolean && (Boolean)retval))
+            throw new IllegalStateException("sending of streams requires FRAG2");
+    }
+
+    /**
+     * Sends the contents of a file channel (from its current position to the end) as a stream of fragments
+     * @see #sendStream(Address,java.io.InputStream,int)
+     */
+    public void sendStream(Address dst, FileChannel file) throws Exception {
+        long length=file.size() - file.position();
+        sendStream(dst, Channels.newInputStream(file), length > Integer.MAX_VALUE? -1 : (int)length);
+    }
+
 
     public View getView() {
         return state == State.CONNECTED ? my_view : null;
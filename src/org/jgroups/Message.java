@@ -85,7 +85,8 @@ public class Message implements Streamable {
 
     // =========================== Transient flags ==============================
     public static enum TransientFlag {
-        OOB_DELIVERED((short)1);
+        OOB_DELIVERED((short)1),
+        DONT_BLOCK(   (short)(1 << 1)); // the sender gets a future instead of blocking on flow control (sendAsync())
 
         final short value;
         TransientFlag(short flag) {value=flag;}
@@ -1,26 +1,42 @@
 package org.jgroups.protocols;
 
-import org.jgroups.Event;
-import org.jgroups.Global;
-import org.jgroups.Header;
-import org.jgroups.Message;
+import org.jgroups.*;
 import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
-import org.jgroups.util.MessageBatch;
+import org.jgroups.util.*;
 
 import java.io.DataInput;
 import java.io.DataOutput;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.zip.DataFormatException;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Adler32;
 import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 /**
  * Compresses the payload of a message. Goal is to reduce the number of messages
  * sent across the wire. Should ideally be layered somewhere above a
  * fragmentation protocol (e.g. FRAG).
+ * <p/>
+ * The compression is done by a {@link Compressor}, selected with the codec property: "deflate" uses
+ * {@link java.util.zip.Deflater}, "lz" uses the (much faster) {@link LZCompressor}, or the fully qualified name of a
+ * class implementing {@link Compressor} can be given. The ID of the codec is sent in the header of every compressed
+ * message, so a receiver can uncompress messages from members using a different built-in codec.
+ * <p/>
+ * Small messages (e.g. RPCs) which share a lot of structure compress much better with a dictionary. A dictionary can
+ * either be configured (the same file on all members), or the coordinator creates one from a sample of the payloads
+ * it sends and receives, and sends it to all members. The ID of a dictionary is a hash (Adler-32) of its contents,
+ * so different dictionaries created by different coordinators (e.g. in a partition) never have the same ID. The ID
+ * is sent in the header of a message compressed with it. The coordinator sends the current dictionary to joining
+ * members; a member receiving a message compressed with an unknown dictionary fetches it from the sender, and queues
+ * that message and all subsequent (non-OOB) messages from the same sender until the dictionary has been received.
+ * Dictionaries are only used by codecs implementing {@link DictionaryCompressor} (deflate).
+ * <p/>
+ * Messages compressed with deflate and without a dictionary can be read by members running previous versions. Other
+ * codecs and dictionaries require all members to run a version which supports them.
  * 
  * @author Bela Ban
  */
@@ -38,35 +54,153 @@ public class COMPRESS extends Protocol {
     
     @Property(description="Number of inflaters/deflaters for concurrent processing. Default is 2 ")
     protected int pool_size=2;
+
+    @Property(description="The codec used to compress messages: \"deflate\" (java.util.zip.Deflater, uses " +
+      "compression_level), \"lz\" (fast LZ compression in pure Java, recommended for fast networks), or the fully " +
+      "qualified name of a class implementing org.jgroups.util.Compressor. All members should use the same codec")
+    protected String codec="deflate";
+
+    @Property(description="File (on the classpath or in the file system) with a dictionary to compress messages. " +
+      "All members need to use the same dictionary, or no dictionary")
+    protected String dictionary;
+
+    @Property(description="Number of message payloads sampled by the coordinator to create a dictionary, which is " +
+      "then sent to all members. 0 disables sampling")
+    protected int dictionary_samples=0;
+
+    @Property(description="Max size (in bytes) of a dictionary created from samples")
+    protected int dictionary_size=16 * 1024;
+
+    @Property(description="Minimal payload size of a message (in bytes) for compression to kick in when a " +
+      "dictionary is available. Replaces min_size in this case")
+    protected long dictionary_min_size=64;
+
+    @Property(description="Max time (in ms) to wait for an unknown dictionary from the sender of a message. Messages " +
+      "from that sender are queued meanwhile; the message is dropped when the dictionary hasn't been received by then")
+    protected long dictionary_fetch_timeout=5000;
+
+    @Property(description="Max number of messages queued per sender while waiting for an unknown dictionary. " +
+      "Further messages from that sender are dropped")
+    protected int max_pending_msgs=1000;
     
     
     /* --------------------------------------------- Fields ------------------------------------------------------ */
     
     
-    protected BlockingQueue<Deflater> deflater_pool=null;
-    protected BlockingQueue<Inflater> inflater_pool=null;
+    /** The codec used to compress messages */
+    protected Compressor              compressor;
+
+    /** All codecs, indexed by their ID. Used to uncompress messages */
+    protected final Compressor[]      codecs=new Compressor[256];
+
+    @ManagedAttribute(description="Number of messages compressed")
+    protected volatile long           num_compressed;
+
+    @ManagedAttribute(description="Number of bytes before compression")
+    protected volatile long           bytes_before_compression;
+
+    @ManagedAttribute(description="Number of bytes after compression")
+    protected volatile long           bytes_after_compression;
+
+    @ManagedAttribute(description="Number of messages compressed with a dictionary")
+    protected volatile long           num_compressed_with_dictionary;
+
+    /** The dictionary used to compress messages, null if none */
+    protected volatile Dictionary     current_dictionary;
+
+    /** Known dictionaries, keyed by ID. Used to uncompress messages */
+    protected final Map<Integer,byte[]> dictionaries=new BoundedHashMap<Integer,byte[]>(10);
+
+    /** The ID of the configured dictionary (known to all members), 0 if none */
+    protected int                     configured_dictionary_id;
+
+    /** Messages waiting for an unknown dictionary, and the messages received after them, per sender */
+    protected final Map<Address,PendingMessages> pending_msgs=new HashMap<Address,PendingMessages>();
+
+    @ManagedAttribute(description="Number of messages dropped because their dictionary could not be fetched, or too " +
+      "many messages were queued")
+    protected volatile long           num_dropped;
+
+    protected TimeScheduler           timer;
+
+    /** Payloads sampled by the coordinator to create a dictionary, null if not sampling */
+    protected List<byte[]>            samples;
+
+    protected Address                 local_addr;
+
+    protected volatile boolean        is_coord;
+
+    protected List<Address>           members=Collections.emptyList();
 
     
 
     public COMPRESS() {      
     }
 
+    @ManagedAttribute(description="The ratio between the compressed and uncompressed sizes of compressed messages")
+    public double getCompressionRatio() {
+        long before=bytes_before_compression;
+        return before > 0? bytes_after_compression / (double)before : 0;
+    }
+
+    public Compressor getCompressor() {return compressor;}
+
+    @ManagedAttribute(description="The ID of the dictionary used to compress messages (0 if none)")
+    public int getDictionaryId() {
+        Dictionary dict=current_dictionary;
+        return dict != null? dict.id : 0;
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_compressed=num_compressed_with_dictionary=bytes_before_compression=bytes_after_compression=num_dropped=0;
+    }
+
 
     public void init() throws Exception {
-        deflater_pool=new ArrayBlockingQueue<Deflater>(pool_size);
-        for(int i=0; i < pool_size; i++)
-            deflater_pool.add(new Deflater(compression_level));
-        inflater_pool=new ArrayBlockingQueue<Inflater>(pool_size);
-        for(int i=0; i < pool_size; i++)
-            inflater_pool.add(new Inflater());
+        addCodec(new DeflateCompressor(compression_level, pool_size));
+        addCodec(new LZCompressor());
+        if(codec.equalsIgnoreCase("deflate"))
+            compressor=codecs[Compressor.DEFLATE];
+        else if(codec.equalsIgnoreCase("lz"))
+            compressor=codecs[Compressor.LZ];
+        else {
+            compressor=(Compressor)Util.loadClass(codec, getClass()).newInstance();
+            if(codecs[compressor.getId() & 0xff] != null)
+                throw new IllegalArgumentException("codec " + codec + " has ID " + compressor.getId() +
+                                                     ", which is already used by " + codecs[compressor.getId() & 0xff]);
+            addCodec(compressor);
+        }
+        if(dictionary != null) {
+            byte[] dict=readDictionary(dictionary);
+            addDictionary(configured_dictionary_id=dictionaryId(dict), dict, true);
+        }
+        if(dictionary_samples > 0)
+            samples=new ArrayList<byte[]>(dictionary_samples);
+    }
+
+    public void start() throws Exception {
+        super.start();
+        timer=getTransport().getTimer();
+    }
+
+    public void stop() {
+        super.stop();
+        synchronized(pending_msgs) {
+            pending_msgs.clear();
+        }
     }
 
     public void destroy() {
-        for(Deflater deflater: deflater_pool)
-            deflater.end();
-        for(Inflater inflater: inflater_pool)
-            inflater.end();
-    }   
+        for(Compressor c: codecs)
+            if(c != null)
+                c.destroy();
+    }
+
+    protected void addCodec(Compressor c) throws Exception {
+        c.init();
+        codecs[c.getId() & 0xff]=c;
+    }
 
 
     /**
@@ -77,32 +211,48 @@ public class COMPRESS extends Protocol {
      * @param evt
      */
     public Object down(Event evt) {
+        switch(evt.getType()) {
+            case Event.VIEW_CHANGE:
+                handleView((View)evt.getArg());
+                break;
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=(Address)evt.getArg();
+                break;
+        }
         if(evt.getType() == Event.MSG) {
             Message msg=(Message)evt.getArg();
             int length=msg.getLength(); // takes offset/length (if set) into account
-            if(length >= min_size) {
+            if(samples != null)
+                sample(msg);
+            Dictionary dict=compressor instanceof DictionaryCompressor? current_dictionary : null;
+            if(length >= (dict != null? dictionary_min_size : min_size)) {
                 byte[] payload=msg.getRawBuffer(); // here we get the ref so we can avoid copying
                 byte[] compressed_payload=new byte[length];
-                Deflater deflater=null;
                 try {
-                    deflater=deflater_pool.take();
-                    deflater.reset();
-                    deflater.setInput(payload, msg.getOffset(), length);
-                    deflater.finish();
-                    deflater.deflate(compressed_payload);
-                    int compressed_size=deflater.getTotalOut();
-
-                    if(compressed_size < length ) { // JGRP-1000
+                    int compressed_size=dict != null?
+                      ((DictionaryCompressor)compressor).compress(payload, msg.getOffset(), length, compressed_payload, 0, length, dict.data)
+                      : compressor.compress(payload, msg.getOffset(), length, compressed_payload, 0, length);
+
+                    if(compressed_size >= 0 && compressed_size < length) { // JGRP-1000
                         byte[] new_payload=new byte[compressed_size];
                         System.arraycopy(compressed_payload,0,new_payload,0,compressed_size);
-                        Message copy=msg.copy(false).setBuffer(new_payload).putHeader(this.id,new CompressHeader(length));
+                        Message copy=msg.copy(false).setBuffer(new_payload)
+                          .putHeader(this.id,CompressHeader.create(compressor.getId(), dict != null? dict.id : 0, length));
                         if(log.isTraceEnabled())
                             log.trace("down(): compressed payload from " + length + " bytes to " + compressed_size + " bytes");
+                        if(stats) {
+                            num_compressed++;
+                            if(dict != null)
+                                num_compressed_with_dictionary++;
+                            bytes_before_compression+=length;
+                            bytes_after_compression+=compressed_size;
+                        }
                         return down_prot.down(new Event(Event.MSG, copy));
                     }
                     else {
                         if(log.isTraceEnabled())
-                            log.trace("down(): skipping compression since the compressed message (" + compressed_size +
+                            log.trace("down(): skipping compression since the compressed message (" +
+                                        (compressed_size < 0? "> " + length : compressed_size) +
                                         ") is not smaller than the original (" + length + ")");
                     }
                 }
@@ -110,9 +260,8 @@ public class COMPRESS extends Protocol {
                     Thread.currentThread().interrupt(); // set interrupt flag again
                     throw new RuntimeException(e);
                 }
-                finally {
-                    if(deflater != null)
-                        deflater_pool.offer(deflater);
+                catch(Exception e) {
+                    throw new RuntimeException(e);
                 }
             }
         }
@@ -126,11 +275,25 @@ public class COMPRESS extends Protocol {
      * @param evt
      */
     public Object up(Event evt) {
+        if(evt.getType() == Event.VIEW_CHANGE) // COMPRESS is usually placed above GMS
+            handleView((View)evt.getArg());
         if(evt.getType() == Event.MSG) {
             Message msg=(Message)evt.getArg();
             CompressHeader hdr=(CompressHeader)msg.getHeader(this.id);
+            if(hdr != null && hdr.type != CompressHeader.COMPRESSED) {
+                handleDictionaryMessage(msg, hdr);
+                return null;
+            }
+            if(hdr == null && samples != null)
+                sample(msg);
+            int missing_dict=queue(msg, hdr);
+            if(missing_dict != -1) { // queued
+                if(missing_dict != 0)
+                    fetchDictionary(msg.getSrc(), missing_dict);
+                return null;
+            }
             if(hdr != null) {
-                Message uncompressed_msg=uncompress(msg, hdr.original_size);
+                Message uncompressed_msg=uncompress(msg, hdr);
                 if(uncompressed_msg != null) {
                     if(log.isTraceEnabled())
                         log.trace("up(): uncompressed " + msg.getLength() + " bytes to " + uncompressed_msg.getLength() + " bytes");
@@ -142,10 +305,28 @@ public class COMPRESS extends Protocol {
     }
 
     public void up(MessageBatch batch) {
+        List<Tuple<Address,Integer>> fetch=null; // dictionaries are fetched after the batch has been passed up
         for(Message msg: batch) {
             CompressHeader hdr=(CompressHeader)msg.getHeader(this.id);
+            if(hdr != null && hdr.type != CompressHeader.COMPRESSED) {
+                batch.remove(msg);
+                handleDictionaryMessage(msg, hdr);
+                continue;
+            }
+            if(hdr == null && samples != null)
+                sample(msg);
+            int missing_dict=queue(msg, hdr);
+            if(missing_dict != -1) {
+                batch.remove(msg);
+                if(missing_dict != 0) {
+                    if(fetch == null)
+                        fetch=new ArrayList<Tuple<Address,Integer>>();
+                    fetch.add(new Tuple<Address,Integer>(msg.getSrc(), missing_dict));
+                }
+                continue;
+            }
             if(hdr != null) {
-                Message uncompressed_msg=uncompress(msg, hdr.original_size);
+                Message uncompressed_msg=uncompress(msg, hdr);
                 if(uncompressed_msg != null) {
                     if(log.isTraceEnabled())
                         log.trace("up(): uncompressed " + msg.getLength() + " bytes to " + uncompressed_msg.getLength() + " bytes");
@@ -156,33 +337,140 @@ public class COMPRESS extends Protocol {
 
         if(!batch.isEmpty())
             up_prot.up(batch);
+        if(fetch != null)
+            for(Tuple<Address,Integer> tuple: fetch)
+                fetchDictionary(tuple.getVal1(), tuple.getVal2());
+    }
+
+    /**
+     * Queues msg if it was compressed with an unknown dictionary, or if messages from the same sender are already
+     * queued (unless msg is OOB), so that messages are passed up in the order in which they were received
+     * @return -1 if msg was not queued, the ID of the dictionary to be fetched if msg is the first message queued for
+     * its sender, or 0 if msg was queued behind other messages
+     */
+    protected int queue(Message msg, CompressHeader hdr) {
+        Address sender=msg.getSrc();
+        int dict_id=hdr != null? hdr.dict : 0;
+        synchronized(pending_msgs) {
+            PendingMessages pending=pending_msgs.get(sender);
+            boolean missing=dict_id != 0 && !hasDictionary(dict_id);
+            if(pending == null && !missing)
+                return -1;
+            if(pending != null && !missing && msg.isFlagSet(Message.Flag.OOB))
+                return -1; // OOB messages don't need to be ordered
+            if(pending == null) {
+                pending_msgs.put(sender, pending=new PendingMessages(dict_id));
+                pending.msgs.add(msg);
+                return dict_id;
+            }
+            if(pending.msgs.size() >= max_pending_msgs) {
+                num_dropped++;
+                if(log.isWarnEnabled())
+                    log.warn(local_addr + ": dropped message from " + sender + " as " + pending.msgs.size() +
+                               " messages are waiting for dictionary " + pending.dict);
+                return 0;
+            }
+            pending.msgs.add(msg);
+            return 0;
+        }
+    }
+
+    /**
+     * Passes up the messages queued for sender in order, until a message needs a dictionary which is unknown. If
+     * expired_dict is not 0, the first message is dropped if it is still waiting for this dictionary
+     */
+    protected void deliverPending(Address sender, int expired_dict) {
+        PendingMessages pending;
+        synchronized(pending_msgs) {
+            if((pending=pending_msgs.get(sender)) == null || pending.delivering)
+                return;
+            pending.delivering=true;
+        }
+        int fetch=0;
+        try {
+            for(;;) {
+                Message msg;
+                CompressHeader hdr;
+                synchronized(pending_msgs) {
+                    if(pending.msgs.isEmpty()) {
+                        if(pending_msgs.get(sender) == pending)
+                            pending_msgs.remove(sender);
+                        return;
+                    }
+                    msg=pending.msgs.peek();
+                    hdr=(CompressHeader)msg.getHeader(this.id);
+                    if(hdr != null && hdr.dict != 0 && !hasDictionary(hdr.dict)) {
+                        if(hdr.dict != expired_dict || pending.dict != expired_dict) {
+                            if(pending.dict != hdr.dict)
+                                fetch=pending.dict=hdr.dict;
+                            return;
+                        }
+                        num_dropped++;
+                        log.error(local_addr + ": dictionary " + hdr.dict + " of message from " + sender +
+                                    " was not received within " + dictionary_fetch_timeout + " ms; dropping message");
+                        pending.msgs.poll();
+                        expired_dict=0;
+                        continue;
+                    }
+                    pending.msgs.poll();
+                }
+                Message uncompressed_msg=hdr != null? uncompress(msg, hdr) : msg;
+                if(uncompressed_msg != null)
+                    up_prot.up(new Event(Event.MSG, uncompressed_msg));
+            }
+        }
+        finally {
+            synchronized(pending_msgs) {
+                pending.delivering=false;
+            }
+            if(fetch != 0)
+                fetchDictionary(sender, fetch);
+        }
+    }
+
+    /** Drops the messages queued for members which left */
+    protected void removePending(List<Address> mbrs) {
+        synchronized(pending_msgs) {
+            pending_msgs.keySet().retainAll(mbrs);
+        }
     }
 
     /** Returns a new message as a result of uncompressing msg, or null if msg couldn't be uncompressed */
-    protected Message uncompress(Message msg, int original_size) {
+    protected Message uncompress(Message msg, CompressHeader hdr) {
         byte[] compressed_payload=msg.getRawBuffer();
         if(compressed_payload != null && compressed_payload.length > 0) {
-            byte[] uncompressed_payload=new byte[original_size];
-            Inflater inflater=null;
+            Compressor c=codecs[hdr.codec & 0xff];
+            if(c == null) {
+                if(log.isErrorEnabled())
+                    log.error("codec " + hdr.codec + " of message from " + msg.getSrc() + " not found; dropping message");
+                return null;
+            }
+            byte[] uncompressed_payload=new byte[hdr.original_size];
             try {
-                inflater=inflater_pool.take();
-                inflater.reset();
-                inflater.setInput(compressed_payload, msg.getOffset(), msg.getLength());
-                try {
-                    inflater.inflate(uncompressed_payload);
-                    // we need to copy: https://jira.jboss.org/jira/browse/JGRP-867
-                    return msg.copy(false).setBuffer(uncompressed_payload);
-                }
-                catch(DataFormatException e) {
-                    if(log.isErrorEnabled()) log.error("exception on uncompression", e);
+                if(hdr.dict != 0) {
+                    byte[] dict;
+                    synchronized(dictionaries) {
+                        dict=dictionaries.get(hdr.dict);
+                    }
+                    if(dict == null || !(c instanceof DictionaryCompressor)) {
+                        if(log.isErrorEnabled())
+                            log.error(local_addr + ": dictionary " + hdr.dict + " of message from " + msg.getSrc() +
+                                        " not found; dropping message");
+                        return null;
+                    }
+                    ((DictionaryCompressor)c).uncompress(compressed_payload, msg.getOffset(), msg.getLength(),
+                                                         uncompressed_payload, 0, hdr.original_size, dict);
                 }
+                else
+                    c.uncompress(compressed_payload, msg.getOffset(), msg.getLength(), uncompressed_payload, 0, hdr.original_size);
+                // we need to copy: https://jira.jboss.org/jira/browse/JGRP-867
+                return msg.copy(false).setBuffer(uncompressed_payload);
             }
             catch(InterruptedException e) {
                 Thread.currentThread().interrupt(); // set the interrupt bit again, so caller can handle it
             }
-            finally {
-                if(inflater != null)
-                    inflater_pool.offer(inflater);
+            catch(Exception e) {
+                if(log.isErrorEnabled()) log.error("exception on uncompression", e);
             }
         }
         return null;
@@ -190,8 +478,203 @@ public class COMPRESS extends Protocol {
 
 
 
+    protected void handleView(View view) {
+        List<Address> new_mbrs=Util.newMembers(members, view.getMembers());
+        members=view.getMembers();
+        is_coord=local_addr != null && local_addr.equals(view.getMembers().get(0));
+        removePending(members);
+        Dictionary dict=current_dictionary;
+        if(is_coord && dict != null && dict.id != configured_dictionary_id) { // a configured dictionary is known to everyone
+            for(Address mbr: new_mbrs)
+                sendDictionary(mbr, dict.id, dict.data);
+        }
+    }
+
+    protected void handleDictionaryMessage(Message msg, CompressHeader hdr) {
+        switch(hdr.type) {
+            case CompressHeader.DICT:
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": received dictionary " + hdr.dict + " (" + msg.getLength() + " bytes) from " + msg.getSrc());
+                byte[] data=msg.getBuffer();
+                if(data == null || dictionaryId(data) != hdr.dict) {
+                    log.warn(local_addr + ": dropping dictionary " + hdr.dict + " from " + msg.getSrc() +
+                               " as its contents don't match its ID");
+                    break;
+                }
+                List<Address> mbrs=members;
+                Dictionary current=current_dictionary;
+                List<Address> senders;
+                synchronized(pending_msgs) { // a concurrent deliverPending() sees either the dictionary or our call
+                    // the dictionary of the coordinator is used to compress messages
+                    addDictionary(hdr.dict, data, current == null || (!mbrs.isEmpty() && mbrs.get(0).equals(msg.getSrc())));
+                    senders=new ArrayList<Address>(pending_msgs.keySet());
+                }
+                for(Address sender: senders)
+                    deliverPending(sender, 0);
+                break;
+            case CompressHeader.GET_DICT:
+                byte[] dict;
+                synchronized(dictionaries) {
+                    dict=dictionaries.get(hdr.dict);
+                }
+                if(dict != null)
+                    sendDictionary(msg.getSrc(), hdr.dict, dict);
+                break;
+        }
+    }
+
+    /** The ID of a dictionary: the Adler-32 checksum of its contents (never 0, which means 'no dictionary') */
+    protected static int dictionaryId(byte[] dict) {
+        Adler32 checksum=new Adler32();
+        checksum.update(dict, 0, dict.length);
+        int id=(int)checksum.getValue();
+        return id != 0? id : 1;
+    }
+
+    /** Adds a dictionary; if use is true, it is used to compress messages from now on */
+    protected void addDictionary(int dict_id, byte[] data, boolean use) {
+        synchronized(dictionaries) {
+            dictionaries.put(dict_id, data);
+            if(use)
+                current_dictionary=new Dictionary(dict_id, data);
+        }
+    }
+
+    protected boolean hasDictionary(int dict_id) {
+        synchronized(dictionaries) {
+            return dictionaries.containsKey(dict_id);
+        }
+    }
+
+    /**
+     * Asks sender for an unknown dictionary. The messages waiting for it are passed up when it is received; when it
+     * hasn't been received within dictionary_fetch_timeout, the first waiting message is dropped
+     */
+    protected void fetchDictionary(final Address sender, final int dict_id) {
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": fetching dictionary " + dict_id + " from " + sender);
+        down_prot.down(new Event(Event.MSG, new Message(sender).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+          .putHeader(id, CompressHeader.createDictionaryHeader(CompressHeader.GET_DICT, dict_id))));
+        if(timer != null) {
+            timer.schedule(new Runnable() {
+                public void run() {deliverPending(sender, dict_id);}
+            }, dictionary_fetch_timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Sends a dictionary to a member, or all members if dest is null */
+    protected void sendDictionary(Address dest, int dict_id, byte[] dict) {
+        Message msg=new Message(dest, null, dict).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+          .putHeader(id, CompressHeader.createDictionaryHeader(CompressHeader.DICT, dict_id));
+        down_prot.down(new Event(Event.MSG, msg));
+    }
+
+    /** The coordinator samples payloads; when dictionary_samples payloads have been sampled, a dictionary is created */
+    protected void sample(Message msg) {
+        int length=msg.getLength();
+        if(!is_coord || length == 0)
+            return;
+        byte[] dict=null;
+        synchronized(this) {
+            if(samples == null)
+                return;
+            samples.add(Arrays.copyOfRange(msg.getRawBuffer(), msg.getOffset(), msg.getOffset() + Math.min(length, dictionary_size)));
+            if(samples.size() >= dictionary_samples) {
+                dict=createDictionary(samples, dictionary_size);
+                samples=null;
+            }
+        }
+        if(dict != null) {
+            int dict_id=dictionaryId(dict);
+            addDictionary(dict_id, dict, true);
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": created dictionary " + dict_id + " (" + dict.length + " bytes) from " +
+                            dictionary_samples + " samples");
+            sendDictionary(null, dict_id, dict);
+        }
+    }
+
+    /**
+     * Creates a dictionary from samples. Duplicate samples are skipped. As deflate finds closer matches more cheaply,
+     * the most recent samples are placed at the end
+     */
+    protected static byte[] createDictionary(List<byte[]> samples, int max_size) {
+        List<byte[]> selected=new ArrayList<byte[]>();
+        Set<String> seen=new HashSet<String>();
+        int size=0;
+        for(int i=samples.size() -1; i >= 0 && size < max_size; i--) {
+            byte[] sample=samples.get(i);
+            if(!seen.add(Arrays.toString(sample)))
+                continue;
+            int len=Math.min(sample.length, max_size - size);
+            selected.add(len == sample.length? sample : Arrays.copyOfRange(sample, sample.length - len, sample.length));
+            size+=len;
+        }
+        byte[] dict=new byte[size];
+        int pos=0;
+        for(int i=selected.size() -1; i >= 0; i--) {
+            byte[] sample=selected.get(i);
+            System.arraycopy(sample, 0, dict, pos, sample.length);
+            pos+=sample.length;
+        }
+        return dict;
+    }
+
+    /** Reads a dictionary from the classpath or the file system */
+    protected static byte[] readDictionary(String name) throws Exception {
+        InputStream input=Thread.currentThread().getContextClassLoader().getResourceAsStream(name);
+        if(input == null)
+            input=new FileInputStream(name);
+        try {
+            ExposedByteArrayOutputStream out=new ExposedByteArrayOutputStream(1024);
+            byte[] buf=new byte[1024];
+            int num;
+            while((num=input.read(buf)) != -1)
+                out.write(buf, 0, num);
+            return out.toByteArray();
+        }
+        finally {
+            Util.close(input);
+        }
+    }
+
+
+    protected static class Dictionary {
+        protected final int    id;
+        protected final byte[] data;
+
+        public Dictionary(int id, byte[] data) {
+            this.id=id;
+            this.data=data;
+        }
+    }
+
+
+    /** Messages from a sender waiting for a dictionary, and the messages received after them */
+    protected static class PendingMessages {
+        protected int                       dict; // the dictionary being fetched
+        protected final ArrayDeque<Message> msgs=new ArrayDeque<Message>();
+        protected boolean                   delivering;
+
+        protected PendingMessages(int dict) {
+            this.dict=dict;
+        }
+    }
+
+
+    /**
+     * Header of a message compressed with deflate and without a dictionary. Has the same wire format as in previous
+     * versions; {@link ExtendedCompressHeader} is used for other codecs, dictionaries and the dictionary messages
+     */
     public static class CompressHeader extends Header {
-        int original_size=0;
+        public static final byte COMPRESSED=1; // compressed payload
+        public static final byte DICT=2;       // payload is the dictionary with ID dict
+        public static final byte GET_DICT=3;   // request for the dictionary with ID dict
+
+        byte  type=COMPRESSED;
+        byte  codec=Compressor.DEFLATE;
+        int   dict=0; // ID of the dictionary used for compression, 0 if none
+        int   original_size=0;
 
         public CompressHeader() {
             super();
@@ -201,6 +684,18 @@ public class COMPRESS extends Protocol {
             original_size=s;
         }
 
+        /** Creates the header of a compressed message */
+        public static CompressHeader create(byte codec, int dict, int s) {
+            if(codec == Compressor.DEFLATE && dict == 0)
+                return new CompressHeader(s);
+            return new ExtendedCompressHeader(COMPRESSED, codec, dict, s);
+        }
+
+        /** Creates a DICT or GET_DICT header */
+        public static CompressHeader createDictionaryHeader(byte type, int dict) {
+            return new ExtendedCompressHeader(type, Compressor.DEFLATE, dict, 0);
+        }
+
         public int size() {
             return Global.INT_SIZE;
         }
@@ -212,5 +707,46 @@ public class COMPRESS extends Protocol {
         public void readFrom(DataInput in) throws Exception {
             original_size=in.readInt();
         }
+
+        public String toString() {
+            switch(type) {
+                case DICT:     return "DICT " + dict;
+                case GET_DICT: return "GET_DICT " + dict;
+                default:       return "codec=" + codec + ", dict=" + dict + ", original_size=" + original_size;
+            }
+        }
+    }
+
+    /** Header with type, codec and dictionary ID. Members running a previous version cannot read it */
+    public static class ExtendedCompressHeader extends CompressHeader {
+
+        public ExtendedCompressHeader() {
+            super();
+        }
+
+        public ExtendedCompressHeader(byte type, byte codec, int dict, int s) {
+            super(s);
+            this.type=type;
+            this.codec=codec;
+            this.dict=dict;
+        }
+
+        public int size() {
+            return Global.BYTE_SIZE *2 + Global.INT_SIZE *2;
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeByte(type);
+            out.writeByte(codec);
+            out.writeInt(dict);
+            out.writeInt(original_size);
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            type=in.readByte();
+            codec=in.readByte();
+            dict=in.readInt();
+            original_size=in.readInt();
+        }
     }
 }
@@ -66,6 +66,12 @@ public abstract class Discovery extends Protocol {
     @Property(description="When sending a discovery request, always send the physical address and logical name too")
     protected boolean always_send_physical_addr_with_discovery_request=false;
 
+    @Property(description="If use_disk_cache is true and PDC has the last view of the cluster, the discovery request " +
+      "is first sent to the coordinator of that view only. If it confirms that it is still the coordinator within " +
+      "cached_coord_timeout ms, the discovery phase returns right away, otherwise regular discovery is run for the " +
+      "rest of timeout. 0 disables this")
+    protected long    cached_coord_timeout=500;
+
 
     @ManagedOperation(description="Sets force_sending_discovery_rsps")
     public void setForceSendingDiscoveryRsps(boolean flag) {
@@ -78,6 +84,10 @@ public abstract class Discovery extends Protocol {
     @ManagedAttribute(description="Total number of discovery requests sent ")
     protected int num_discovery_requests=0;
 
+    @ManagedAttribute(description="Number of times the discovery phase returned early because the coordinator " +
+      "cached by PDC confirmed that it is still the coordinator")
+    protected int num_cached_coord_rsps=0;
+
     /** The largest cluster size found so far (gets reset on stop()) */
     @ManagedAttribute
     private int max_found_members=0;
@@ -110,6 +120,11 @@ public abstract class Discovery extends Protocol {
                         "); setting it to " + timeout + " ms");
             stagger_timeout=timeout;
         }
+        if(cached_coord_timeout >= timeout) {
+            log.debug("cached_coord_timeout (" + cached_coord_timeout + ") was greater than timeout (" + timeout +
+                        "); setting it to " + timeout / 2 + " ms");
+            cached_coord_timeout=timeout / 2;
+        }
     }
 
     /**
@@ -143,6 +158,7 @@ public abstract class Discovery extends Protocol {
     public int       getNumInitialMembers()             {return num_initial_members;}
     public void      setNumInitialMembers(int num)      {this.num_initial_members=num;}
     public int       getNumberOfDiscoveryRequestsSent() {return num_discovery_requests;}
+    public int       getNumCachedCoordResponses()       {return num_cached_coord_rsps;}
     public long      timeout()                          {return timeout;}
     public Discovery timeout(long timeout)              {this.timeout=timeout; return this;}
     public long      numInitialMembers()                {return num_initial_members;}
@@ -157,6 +173,8 @@ public abstract class Discovery extends Protocol {
     public Discovery forceDiscoveryResponses(boolean f) {force_sending_discovery_rsps=f; return this;}
     public boolean   useDiskCache()                     {return use_disk_cache;}
     public Discovery useDiskCache(boolean flag)         {use_disk_cache=flag; return this;}
+    public long      cachedCoordTimeout()               {return cached_coord_timeout;}
+    public Discovery cachedCoordTimeout(long timeout)   {cached_coord_timeout=timeout; return this;}
 
 
 
@@ -186,7 +204,7 @@ public abstract class Discovery extends Protocol {
 
     public void resetStats() {
         super.resetStats();
-        num_discovery_requests=0;
+        num_discovery_requests=num_cached_coord_rsps=0;
     }
 
     public void start() throws Exception {
@@ -217,12 +235,22 @@ public abstract class Discovery extends Protocol {
     protected List<PingData> findMembers(Promise<JoinRsp> promise, int num_expected_rsps,
                                          boolean break_on_coord, ViewId view_id) {
         num_discovery_requests++;
+        long start=System.currentTimeMillis();
 
         final Responses rsps=new Responses(num_expected_rsps, break_on_coord, promise);
         synchronized(ping_responses) {
             ping_responses.add(rsps);
         }
 
+        // on a restart, try the coordinator of the view persisted by PDC first
+        if(view_id == null && use_disk_cache && cached_coord_timeout > 0 && findCachedCoordinator(rsps)) {
+            num_cached_coord_rsps++;
+            synchronized(ping_responses) {
+                ping_responses.remove(rsps);
+            }
+            return rsps.get();
+        }
+
         try {
             sendDiscoveryRequest(group_addr, promise, view_id);
         }
@@ -238,7 +266,7 @@ public abstract class Discovery extends Protocol {
         }
 
         try {
-            return rsps.get(timeout);
+            return rsps.get(timeout - (System.currentTimeMillis() - start));
         }
         catch(Exception e) {
             return new LinkedList<PingData>();
@@ -317,6 +345,50 @@ public abstract class Discovery extends Protocol {
         down_prot.down(new Event(Event.MSG, discovery_request));
     }
 
+    /**
+     * Sends a discovery request to the coordinator of the view persisted by PDC (if present) and waits for up to
+     * cached_coord_timeout ms for it to confirm that it is still the coordinator
+     * @return True if the cached coordinator sent a coordinator response, false otherwise
+     */
+    protected boolean findCachedCoordinator(Responses rsps) {
+        View cached_view=(View)down_prot.down(new Event(Event.GET_CACHED_VIEW));
+        Address coord=cached_view != null && !cached_view.getMembers().isEmpty()? cached_view.getMembers().get(0) : null;
+        if(coord == null || coord.equals(local_addr))
+            return false;
+
+        PhysicalAddress physical_addr=(PhysicalAddress)down(new Event(Event.GET_PHYSICAL_ADDRESS, local_addr));
+        PhysicalAddress coord_physical_addr=(PhysicalAddress)down(new Event(Event.GET_PHYSICAL_ADDRESS, coord));
+        if(coord_physical_addr != null) {
+            if(coord_physical_addr.equals(physical_addr)) // the cached coordinator was a previous incarnation of us
+                return false;
+            // pass the cached mapping to the transport, so it doesn't have to run discovery to send the request
+            down(new Event(Event.SET_PHYSICAL_ADDRESS, new Tuple<Address,PhysicalAddress>(coord, coord_physical_addr)));
+        }
+
+        PingData data=new PingData(local_addr, null, false, UUID.get(local_addr), Arrays.asList(physical_addr));
+        PingHeader hdr=new PingHeader(PingHeader.GET_MBRS_REQ, data, group_addr);
+        Message msg=new Message(coord).setFlag(Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE).putHeader(this.id, hdr);
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": sending discovery request to cached coordinator " + coord);
+        try {
+            down_prot.down(new Event(Event.MSG, msg));
+            boolean confirmed=rsps.waitForCoordResponse(coord, cached_coord_timeout);
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": cached coordinator " + coord + (confirmed? " confirmed" : " did not confirm") +
+                            " that it is the coordinator");
+            return confirmed;
+        }
+        catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch(Throwable t) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": failed sending discovery request to cached coordinator " + coord + ": " + t);
+            return false;
+        }
+    }
+
 
 
     @ManagedOperation(description="Runs the discovery protocol to find initial members")
@@ -712,6 +784,35 @@ public abstract class Discovery extends Protocol {
             }
         }
 
+        public List<PingData> get() {
+            promise.getLock().lock();
+            try {
+                return new LinkedList<PingData>(ping_rsps);
+            }
+            finally {
+                promise.getLock().unlock();
+            }
+        }
+
+        /** Waits until a coordinator response from coord has been received, or the timeout has elapsed */
+        public boolean waitForCoordResponse(Address coord, long timeout) throws InterruptedException {
+            long start_time=System.currentTimeMillis(), time_to_wait=timeout;
+
+            promise.getLock().lock();
+            try {
+                while(!containsCoordinatorResponse(ping_rsps, coord)) {
+                    if(time_to_wait <= 0 || promise.hasResult())
+                        return false;
+                    promise.getCond().await(time_to_wait, TimeUnit.MILLISECONDS);
+                    time_to_wait=timeout - (System.currentTimeMillis() - start_time);
+                }
+                return true;
+            }
+            finally {
+                promise.getLock().unlock();
+            }
+        }
+
         public List<PingData> get(long timeout) throws InterruptedException{
             long start_time=System.currentTimeMillis(), time_to_wait=timeout;
 
@@ -745,5 +846,13 @@ public abstract class Discovery extends Protocol {
             return false;
         }
 
+        private static boolean containsCoordinatorResponse(Collection<PingData> rsps, Address coord) {
+            for(PingData rsp: rsps) {
+                if(rsp.isCoord() && coord.equals(rsp.getAddress()))
+                    return true;
+            }
+            return false;
+        }
+
     }
 }
\ No newline at end of file
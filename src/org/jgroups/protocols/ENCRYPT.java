@@ -2,8 +2,8 @@
 package org.jgroups.protocols;
 
 import org.jgroups.*;
-import org.jgroups.annotations.GuardedBy;
 import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.MessageBatch;
@@ -16,14 +16,10 @@ import java.io.*;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.spec.X509EncodedKeySpec;
-import java.util.List;
-import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ENCRYPT layer. Encrypt and decrypt communication in JGroups
@@ -96,6 +92,15 @@ import java.util.concurrent.locks.ReentrantLock;
  * requires a suitable authentication scheme as well to make this feature useful
  * as there is nothing to stop the peer rejoining and receiving the new key. A
  * future release will address this issue.
+ * <p>
+ * <p>
+ * Messages are encrypted and decrypted concurrently: every key has a pool of ciphers, and a thread takes a cipher from
+ * the pool (or creates a new one) and returns it when done. Large message batches are decrypted by multiple threads
+ * of the OOB thread pool (parallel_decryption_threshold).
+ * <p>
+ * When sym_algorithm uses GCM mode (e.g. "AES/GCM/NoPadding"), every message is encrypted with a new 12 byte IV, which
+ * is sent in front of the ciphertext. GCM authenticates the message, so a modified message is dropped.
+ * GCM mode requires Java 7 or higher.
  * 
  * @author Steve Woodcock
  * @author Bela Ban
@@ -115,6 +120,9 @@ public class ENCRYPT extends Protocol {
     }
 
     private static final String DEFAULT_SYM_ALGO="AES";
+    protected static final int  GCM_IV_LENGTH=12;
+    protected static final int  GCM_TAG_LENGTH=128; // in bits
+    protected static final int  MIN_CHUNK_SIZE=8;   // min number of messages decrypted by a thread
     // address info
     Address local_addr=null;
     // keyserver address
@@ -135,7 +143,8 @@ public class ENCRYPT extends Protocol {
     @Property(name="asym_algorithm", description="Cipher engine transformation for asymmetric algorithm. Default is RSA")
     String asymAlgorithm="RSA";
 
-    @Property(name="sym_algorithm", description="Cipher engine transformation for symmetric algorithm. Default is AES")
+    @Property(name="sym_algorithm", description="Cipher engine transformation for symmetric algorithm. Default is AES. " +
+      "A transformation with GCM mode (e.g. AES/GCM/NoPadding) also authenticates messages (requires Java 7)")
     String symAlgorithm=DEFAULT_SYM_ALGO;
 
     @Property(name="asym_init", description="Initial public/private key length. Default is 512")
@@ -166,15 +175,22 @@ public class ENCRYPT extends Protocol {
     //	 for client to store server's public Key
     PublicKey serverPubKey=null;
 
-    // needed because we do simultaneous encode/decode with these ciphers - which
-    // would be a threading issue
-    Cipher symEncodingCipher;
+    // ciphers can't be used concurrently, so every thread takes its own cipher from these pools
+    protected volatile CipherPool encoding_ciphers;
+    protected volatile CipherPool decoding_ciphers;
 
-    @GuardedBy("decrypt_lock")
-    Cipher symDecodingCipher;
+    /** True if symAlgorithm uses GCM mode: the IV is sent with every message */
+    protected boolean gcm;
+
+    /**
+     * The first 4 bytes of the GCM IV (random), the remaining 8 bytes are taken from iv_counter. As all members share
+     * the same key, the counter starts at a random value, too: two members picking the same salt then still don't
+     * use the same IVs, unless their counter ranges overlap
+     */
+    protected final byte[] iv_salt=new byte[4];
+    protected final AtomicLong iv_counter=new AtomicLong(0);
 
-    /** To synchronize access to symDecodingCipher */
-    protected final Lock decrypt_lock=new ReentrantLock();
+    protected int num_cpus=Runtime.getRuntime().availableProcessors();
 
     // version filed for secret key
     private String symVersion=null;
@@ -182,7 +198,7 @@ public class ENCRYPT extends Protocol {
     SecretKey secretKey=null;
 
     // map to hold previous keys so we can decrypt some earlier messages if we need to
-    final Map<String,Cipher> keyMap=new WeakHashMap<String,Cipher>();
+    final Map<String,CipherPool> keyMap=Collections.synchronizedMap(new WeakHashMap<String,CipherPool>());
 
     // queues to buffer data while we are swapping shared key
     // or obtsining key for first time
@@ -203,6 +219,13 @@ public class ENCRYPT extends Protocol {
     @Property
     private boolean encrypt_entire_message=false;
 
+    @Property(description="Min number of messages in a batch to decrypt them with multiple threads (from the OOB " +
+      "thread pool). 0 disables parallel decryption")
+    protected int parallel_decryption_threshold=32;
+
+    @ManagedAttribute(description="Number of message batches decrypted by multiple threads")
+    protected volatile int num_parallel_decryptions;
+
     public void setObserver(Observer o) {
         observer=o;
     }
@@ -233,6 +256,14 @@ public class ENCRYPT extends Protocol {
         else {
             initConfiguredKey();
         }
+        gcm=symAlgorithm.toUpperCase().contains("/GCM/");
+        if(gcm) {
+            if(!Util.isGCMSupported())
+                throw new IllegalStateException("sym_algorithm " + symAlgorithm + " requires Java 7 or higher");
+            SecureRandom random=new SecureRandom();
+            random.nextBytes(iv_salt);
+            iv_counter.set(random.nextLong());
+        }
         initSymCiphers(symAlgorithm, getSecretKey());
     }
 
@@ -344,17 +375,12 @@ public class ENCRYPT extends Protocol {
         if(log.isDebugEnabled())
             log.debug(" Initializing symmetric ciphers");
 
-        if(symProvider != null && !symProvider.trim().isEmpty()) {
-            symEncodingCipher=Cipher.getInstance(algorithm, symProvider);
-            symDecodingCipher=Cipher.getInstance(algorithm, symProvider);
-        }
-        else {
-            symEncodingCipher=Cipher.getInstance(algorithm);
-            symDecodingCipher=Cipher.getInstance(algorithm);
-        }
-
-        symEncodingCipher.init(Cipher.ENCRYPT_MODE, secret);
-        symDecodingCipher.init(Cipher.DECRYPT_MODE, secret);
+        CipherPool tmp_encoding=new CipherPool(algorithm, Cipher.ENCRYPT_MODE, secret),
+          tmp_decoding=new CipherPool(algorithm, Cipher.DECRYPT_MODE, secret);
+        tmp_decoding.release(tmp_decoding.create()); // fail early if the algorithm or key is invalid
+        tmp_encoding.release(tmp_encoding.create());
+        encoding_ciphers=tmp_encoding;
+        decoding_ciphers=tmp_decoding;
 
         //set the version
         MessageDigest digest=MessageDigest.getInstance("MD5");
@@ -450,6 +476,9 @@ public class ENCRYPT extends Protocol {
 
 
     public void up(MessageBatch batch) {
+        Message[] encrypted=null;
+        int num_encrypted=0;
+
         for(Message msg: batch) {
             if(msg.getLength() == 0 && !encrypt_entire_message)
                 continue;
@@ -473,6 +502,7 @@ public class ENCRYPT extends Protocol {
                     if(queue_up) {
                         if(log.isTraceEnabled())
                             log.trace("queueing up message as no session key established: " + msg);
+                        batch.remove(msg);
                         try {
                             upMessageQueue.put(msg);
                         }
@@ -491,18 +521,9 @@ public class ENCRYPT extends Protocol {
                             }
                         }
 
-                        // try and decrypt the message - we need to copy msg as we modify its
-                        // buffer (http://jira.jboss.com/jira/browse/JGRP-538)
-                        try {
-                            Message tmpMsg=decryptMessage(symDecodingCipher, msg.copy());
-                            if(tmpMsg != null)
-                                batch.replace(msg, tmpMsg);
-                            else
-                                log.warn("Unrecognised cipher discarding message");
-                        }
-                        catch(Exception e) {
-                            log.error("failed decrypting message", e);
-                        }
+                        if(encrypted == null)
+                            encrypted=new Message[batch.size()];
+                        encrypted[num_encrypted++]=msg;
                     }
                     break;
                 default:
@@ -512,10 +533,71 @@ public class ENCRYPT extends Protocol {
             }
         }
 
+        if(encrypted != null)
+            decryptBatch(batch, encrypted, num_encrypted);
+
         if(!batch.isEmpty())
             up_prot.up(batch);
     }
 
+
+    /**
+     * Decrypts the encrypted messages of a batch and replaces them with the decrypted messages. Messages that cannot
+     * be decrypted are removed. If there are at least parallel_decryption_threshold messages, the work is split into
+     * chunks which are submitted to the OOB thread pool. The calling thread decrypts the first chunk, then all
+     * chunks which haven't yet been picked up by a pool thread, so it never waits for a task which isn't running.
+     */
+    protected void decryptBatch(MessageBatch batch, Message[] encrypted, int num) {
+        Message[] decrypted=new Message[num];
+        int num_chunks=parallel_decryption_threshold > 0 && num >= parallel_decryption_threshold?
+          Math.min(num_cpus, num / MIN_CHUNK_SIZE) : 1;
+        Executor pool=num_chunks > 1 && getTransport() != null? getTransport().getOOBThreadPool() : null;
+
+        if(pool == null)
+            decrypt(encrypted, decrypted, 0, num);
+        else {
+            num_parallel_decryptions++;
+            Decrypter[] decrypters=new Decrypter[num_chunks];
+            int chunk_size=num / num_chunks;
+            for(int i=0; i < num_chunks; i++) {
+                int from=i * chunk_size, to=i == num_chunks-1? num : from + chunk_size;
+                decrypters[i]=new Decrypter(encrypted, decrypted, from, to);
+            }
+            for(int i=1; i < decrypters.length; i++) {
+                try {
+                    pool.execute(decrypters[i]);
+                }
+                catch(RejectedExecutionException ex) { // we'll run it ourselves below
+                }
+            }
+            for(Decrypter decrypter: decrypters)
+                decrypter.run(); // no-op if already run by a pool thread
+            for(Decrypter decrypter: decrypters)
+                decrypter.waitUntilDone();
+        }
+
+        for(int i=0; i < num; i++) {
+            if(decrypted[i] != null)
+                batch.replace(encrypted[i], decrypted[i]);
+            else {
+                batch.remove(encrypted[i]);
+                log.warn("Unrecognised cipher discarding message");
+            }
+        }
+    }
+
+    protected void decrypt(Message[] encrypted, Message[] decrypted, int from, int to) {
+        for(int i=from; i < to; i++) {
+            // we need to copy msg as we modify its buffer (http://jira.jboss.com/jira/browse/JGRP-538)
+            try {
+                decrypted[i]=decryptMessage(encrypted[i].copy());
+            }
+            catch(Exception e) {
+                log.error("failed decrypting message", e);
+            }
+        }
+    }
+
     public Object passItUp(Event evt) {
         if(observer != null)
             observer.passUp(evt);
@@ -639,7 +721,7 @@ public class ENCRYPT extends Protocol {
 
             // try and decrypt the message - we need to copy msg as we modify its
             // buffer (http://jira.jboss.com/jira/browse/JGRP-538)
-            Message tmpMsg=decryptMessage(symDecodingCipher, msg.copy());
+            Message tmpMsg=decryptMessage(msg.copy());
             if(tmpMsg != null) {
                 if(log.isTraceEnabled())
                     log.trace("decrypted message " + tmpMsg);
@@ -717,7 +799,7 @@ public class ENCRYPT extends Protocol {
         }
         Message tmp=null;
         while((tmp=upMessageQueue.poll(0L, TimeUnit.MILLISECONDS)) != null) {
-            Message msg=decryptMessage(symDecodingCipher, tmp.copy());
+            Message msg=decryptMessage(tmp.copy());
 
             if(msg != null)
                 passItUp(new Event(Event.MSG, msg));
@@ -741,10 +823,10 @@ public class ENCRYPT extends Protocol {
 
         // put the previous key into the map
         // if the keys are already there then they will overwrite
-        keyMap.put(getSymVersion(), getSymDecodingCipher());
+        keyMap.put(getSymVersion(), decoding_ciphers);
 
         setSecretKey(key);
-        initSymCiphers(key.getAlgorithm(), key);
+        initSymCiphers(symAlgorithm, key); // not key.getAlgorithm(), which drops mode and padding
         setSymVersion(version);
 
         // drain the up queue
@@ -760,44 +842,48 @@ public class ENCRYPT extends Protocol {
      * Does the actual work for decrypting - if version does not match current
      * cipher then tries to use previous cipher
      * 
-     * @param cipher
      * @param msg
      * @return
      * @throws Exception
      */
-    private Message decryptMessage(Cipher cipher, Message msg) throws Exception {
+    private Message decryptMessage(Message msg) throws Exception {
         EncryptHeader hdr=(EncryptHeader)msg.getHeader(this.id);
         if(!hdr.getVersion().equals(getSymVersion())) {
             log.warn("attempting to use stored cipher as message does not use current encryption version ");
-            cipher=keyMap.get(hdr.getVersion());
-            if(cipher == null) {
+            CipherPool pool=keyMap.get(hdr.getVersion());
+            if(pool == null) {
                 log.warn("Unable to find a matching cipher in previous key map");
                 return null;
             }
             else {
                 if(log.isTraceEnabled())
                     log.trace("decrypting using previous cipher version " + hdr.getVersion());
-                return _decrypt(cipher, msg, hdr.encrypt_entire_msg);
+                return _decrypt(pool, msg, hdr.encrypt_entire_msg);
             }
         }
 
         else {
 
             // reset buffer with decrypted message
-            return _decrypt(cipher, msg, hdr.encrypt_entire_msg);
+            return _decrypt(decoding_ciphers, msg, hdr.encrypt_entire_msg);
         }
     }
 
-    private Message _decrypt(Cipher cipher, Message msg, boolean decrypt_entire_msg) throws Exception {
+    private Message _decrypt(CipherPool pool, Message msg, boolean decrypt_entire_msg) throws Exception {
         byte[] decrypted_msg;
-
-        decrypt_lock.lock();
-        try {
-            decrypted_msg=cipher.doFinal(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
-        }
-        finally {
-            decrypt_lock.unlock();
+        byte[] buf=msg.getRawBuffer();
+        int offset=msg.getOffset(), length=msg.getLength();
+
+        Cipher cipher=pool.take();
+        if(gcm) {
+            if(length < GCM_IV_LENGTH)
+                throw new IllegalArgumentException("message (" + length + " bytes) is too short to contain an IV");
+            cipher.init(Cipher.DECRYPT_MODE, pool.key, Util.createGCMParameterSpec(GCM_TAG_LENGTH, buf, offset, GCM_IV_LENGTH));
+            decrypted_msg=cipher.doFinal(buf, offset + GCM_IV_LENGTH, length - GCM_IV_LENGTH);
         }
+        else
+            decrypted_msg=cipher.doFinal(buf, offset, length);
+        pool.release(cipher); // not released on an exception, the cipher might be in an undefined state
 
         if(!decrypt_entire_msg) {
             msg.setBuffer(decrypted_msg);
@@ -964,10 +1050,7 @@ public class ENCRYPT extends Protocol {
             if(msg.getSrc() == null)
                 msg.setSrc(local_addr);
             byte[] serialized_msg=Util.streamableToByteBuffer(msg);
-            byte[] encrypted_msg=encryptMessage(symEncodingCipher,
-                                                serialized_msg,
-                                                0,
-                                                serialized_msg.length);
+            byte[] encrypted_msg=encryptMessage(serialized_msg, 0, serialized_msg.length);
             // we need to exclude existing headers, they will be seen again when we decrypt and unmarshal the message
             // on the receiver
             Message tmp=msg.copy(false, false);
@@ -984,22 +1067,41 @@ public class ENCRYPT extends Protocol {
 
         // copy neeeded because same message (object) may be retransmitted -> no double encryption
         Message msgEncrypted=msg.copy(false);
-        msgEncrypted.setBuffer(encryptMessage(symEncodingCipher,
-                                              msg.getRawBuffer(),
-                                              msg.getOffset(),
-                                              msg.getLength()));
+        msgEncrypted.setBuffer(encryptMessage(msg.getRawBuffer(), msg.getOffset(), msg.getLength()));
         passItDown(new Event(Event.MSG, msgEncrypted));
     }
 
     /**
-     * 
-     * @param cipher
+     * Encrypts a buffer with a cipher from the pool. In GCM mode, the IV is prepended to the ciphertext
      * @param plain
      * @return
      * @throws Exception
      */
-    private synchronized byte[] encryptMessage(Cipher cipher, byte[] plain, int offset, int length) throws Exception {
-        return cipher.doFinal(plain,offset,length);
+    private byte[] encryptMessage(byte[] plain, int offset, int length) throws Exception {
+        CipherPool pool=encoding_ciphers;
+        Cipher cipher=pool.take();
+        byte[] retval;
+        if(gcm) {
+            byte[] iv=nextIV();
+            cipher.init(Cipher.ENCRYPT_MODE, pool.key, Util.createGCMParameterSpec(GCM_TAG_LENGTH, iv, 0, iv.length));
+            retval=new byte[GCM_IV_LENGTH + cipher.getOutputSize(length)];
+            System.arraycopy(iv, 0, retval, 0, GCM_IV_LENGTH);
+            cipher.doFinal(plain, offset, length, retval, GCM_IV_LENGTH);
+        }
+        else
+            retval=cipher.doFinal(plain,offset,length);
+        pool.release(cipher);
+        return retval;
+    }
+
+    /** Returns a new IV for GCM: an IV must never be used twice with the same key */
+    protected byte[] nextIV() {
+        byte[] iv=new byte[GCM_IV_LENGTH];
+        System.arraycopy(iv_salt, 0, iv, 0, iv_salt.length);
+        long counter=iv_counter.incrementAndGet();
+        for(int i=0; i < 8; i++)
+            iv[iv_salt.length + i]=(byte)(counter >>> (i * 8));
+        return iv;
     }
 
     private SecretKeySpec decodeKey(byte[] encodedKey) throws Exception {
@@ -1157,17 +1259,17 @@ public class ENCRYPT extends Protocol {
     }
 
     /**
-     * @return Returns the symDecodingCipher.
+     * @return Returns a new decoding cipher for the current key (not initialized in GCM mode, as the IV is needed)
      */
-    protected Cipher getSymDecodingCipher() {
-        return symDecodingCipher;
+    protected Cipher getSymDecodingCipher() throws Exception {
+        return decoding_ciphers.create();
     }
 
     /**
-     * @return Returns the symEncodingCipher.
+     * @return Returns a new encoding cipher for the current key (not initialized in GCM mode)
      */
-    protected Cipher getSymEncodingCipher() {
-        return symEncodingCipher;
+    protected Cipher getSymEncodingCipher() throws Exception {
+        return encoding_ciphers.create();
     }
 
     /**
@@ -1200,6 +1302,82 @@ public class ENCRYPT extends Protocol {
         this.keyServerAddr=keyServerAddr;
     }
 
+    /**
+     * Ciphers for one key and mode. A thread takes a cipher (creating one if none is available) and returns it after
+     * use, so the pool grows to the number of threads encrypting or decrypting concurrently
+     */
+    protected class CipherPool {
+        protected final String                 algorithm;
+        protected final int                    mode;
+        protected final SecretKey              key;
+        protected final ConcurrentLinkedQueue<Cipher> ciphers=new ConcurrentLinkedQueue<Cipher>();
+
+        public CipherPool(String algorithm, int mode, SecretKey key) {
+            this.algorithm=algorithm;
+            this.mode=mode;
+            this.key=key;
+        }
+
+        public Cipher take() throws Exception {
+            Cipher cipher=ciphers.poll();
+            return cipher != null? cipher : create();
+        }
+
+        public void release(Cipher cipher) {
+            ciphers.offer(cipher);
+        }
+
+        protected Cipher create() throws Exception {
+            Cipher cipher=symProvider != null && !symProvider.trim().isEmpty()?
+              Cipher.getInstance(algorithm, symProvider) : Cipher.getInstance(algorithm);
+            if(!gcm) // a GCM cipher is initialized with a new IV for every message
+                cipher.init(mode, key);
+            return cipher;
+        }
+    }
+
+    /** Decrypts a range of messages; run either by a thread from the OOB pool or by the caller, but only once */
+    protected class Decrypter implements Runnable {
+        protected final Message[]      encrypted, decrypted;
+        protected final int            from, to;
+        protected final AtomicBoolean  claimed=new AtomicBoolean(false);
+        protected final CountDownLatch done=new CountDownLatch(1);
+
+        public Decrypter(Message[] encrypted, Message[] decrypted, int from, int to) {
+            this.encrypted=encrypted;
+            this.decrypted=decrypted;
+            this.from=from;
+            this.to=to;
+        }
+
+        public void run() {
+            if(!claimed.compareAndSet(false, true))
+                return;
+            try {
+                decrypt(encrypted, decrypted, from, to);
+            }
+            finally {
+                done.countDown();
+            }
+        }
+
+        public void waitUntilDone() {
+            boolean interrupted=false;
+            for(;;) {
+                try {
+                    done.await();
+                    break;
+                }
+                catch(InterruptedException e) {
+                    interrupted=true;
+                }
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+
     public static class EncryptHeader extends org.jgroups.Header {
         short type;
         public static final short ENCRYPT     = 0;
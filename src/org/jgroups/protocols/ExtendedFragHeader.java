@@ -0,0 +1,45 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * Fragment header which also carries the length of the fragmented message, the offset of the fragment and the
+ * stream flags. Used by FRAG2 for zero-copy reassembly, streaming and streams sent with
+ * {@link org.jgroups.JChannel#sendStream}. Members running a previous version cannot read it
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class ExtendedFragHeader extends FragHeader {
+
+    public ExtendedFragHeader() {
+    } // used for externalization
+
+    public ExtendedFragHeader(long id, int frag_id, int num_frags, int original_length, int offset) {
+        super(id, frag_id, num_frags);
+        this.original_length=original_length;
+        this.offset=offset;
+    }
+
+    public boolean hasOffsets() {return true;}
+
+    public void writeTo(DataOutput out) throws Exception {
+        super.writeTo(out);
+        out.writeInt(original_length);
+        out.writeInt(offset);
+        out.writeByte(flags);
+    }
+
+    public int size() {
+        return super.size() + 2*Global.INT_SIZE + Global.BYTE_SIZE;
+    }
+
+    public void readFrom(DataInput in) throws Exception {
+        super.readFrom(in);
+        original_length=in.readInt();
+        offset=in.readInt();
+        flags=in.readByte();
+    }
+}
@@ -0,0 +1,462 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.annotations.*;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Failure detection based on simple heartbeat protocol, like {@link FD_ALL}, but with a cheaper hot path and expiry
+ * check.<p/>
+ * The timestamps of the members are kept in an array indexed by the position of a member in the view. Receiving a
+ * heartbeat (or any message if msg_counts_as_heartbeat is true) is a lookup of the index and an ordered write
+ * ({@link AtomicLongArray#lazySet(int,long)}) into the array. Regular messages write the time of the last tick of the
+ * timer instead of calling {@link System#currentTimeMillis()}, and skip the write if the timestamp is already
+ * current.<p/>
+ * Expiry is checked with a timing wheel: every member sits in the slot of the tick at which its timestamp would
+ * expire. Every timeout_check_interval ms, only the members in the current slot are checked: expired members are
+ * suspected, the others are moved to the slot of their new expiry time. Contrary to FD_ALL, the cost of a check is
+ * therefore proportional to the number of members expiring, not to the cluster size.
+ * @author Bela Ban
+ * @since  3.4
+ */
+@MBean(description="Failure detection based on heartbeats, with array-based timestamps and a timing wheel")
+public class FD_ALL2 extends Protocol {
+
+    /* -----------------------------------------    Properties     -------------------------------------------------- */
+
+    @Property(description="Interval at which a HEARTBEAT is sent to the cluster")
+    protected long    interval=8000;
+
+    @Property(description="Timeout after which a node P is suspected if neither a heartbeat nor data were received from P")
+    protected long    timeout=40000;
+
+    @Property(description="Duration of a tick of the timing wheel, ie. the interval at which expired members are checked")
+    protected long    timeout_check_interval=2000;
+
+    @Property(description="Treat messages received from members as heartbeats. This costs an array write per message")
+    protected boolean msg_counts_as_heartbeat=true;
+
+    /* ---------------------------------------------   JMX      ------------------------------------------------------ */
+    @ManagedAttribute(description="Number of heartbeats sent")
+    protected int num_heartbeats_sent;
+
+    @ManagedAttribute(description="Number of heartbeats received")
+    protected int num_heartbeats_received;
+
+    @ManagedAttribute(description="Number of suspected events received")
+    protected int num_suspect_events;
+
+    @ManagedAttribute(description="Number of timestamps checked by the timing wheel")
+    protected long num_checks;
+
+
+    /* --------------------------------------------- Fields ------------------------------------------------------ */
+
+    /** The members and their timestamps; replaced on a view change */
+    protected volatile Table                table=new Table(Collections.<Address>emptyList(), null, 0);
+
+    /** The time of the last tick, used as timestamp for regular messages */
+    protected volatile long                 clock=System.currentTimeMillis();
+
+    protected Address                       local_addr;
+
+    protected final Set<Address>            suspected_mbrs=new HashSet<Address>();
+
+    @ManagedAttribute(description="Shows whether there are currently any suspected members")
+    protected volatile boolean              has_suspected_mbrs;
+
+    protected TimeScheduler                 timer;
+
+    /** The slots of the timing wheel, each containing the indices of the members expiring in that tick */
+    @GuardedBy("this")
+    protected List<List<Integer>>           wheel;
+
+    /** The next tick to be processed */
+    @GuardedBy("this")
+    protected long                          current_tick;
+
+    @GuardedBy("this")
+    protected Future<?>                     heartbeat_sender_future, timeout_checker_future;
+
+    protected final BoundedList<Tuple<Address,Long>> suspect_history=new BoundedList<Tuple<Address,Long>>(20);
+
+
+    @ManagedAttribute(description="Member address")
+    public String  getLocalAddress()      {return local_addr != null? local_addr.toString() : "null";}
+    @ManagedAttribute(description="Lists members of a cluster")
+    public String  getMembers()           {return table.members.toString();}
+    @ManagedAttribute(description="Currently suspected members")
+    public synchronized String getSuspectedMembers() {return suspected_mbrs.toString();}
+    public int     getHeartbeatsSent()    {return num_heartbeats_sent;}
+    public int     getHeartbeatsReceived(){return num_heartbeats_received;}
+    public int     getSuspectEventsSent() {return num_suspect_events;}
+    public long    getNumChecks()         {return num_checks;}
+    public long    getTimeout()           {return timeout;}
+    public FD_ALL2 setTimeout(long t)     {this.timeout=t; return this;}
+    public long    getInterval()          {return interval;}
+    public FD_ALL2 setInterval(long i)    {this.interval=i; return this;}
+    public long    getTimeoutCheckInterval() {return timeout_check_interval;}
+    public FD_ALL2 setTimeoutCheckInterval(long i) {this.timeout_check_interval=i; return this;}
+
+    @ManagedAttribute(description="Number of slots of the timing wheel")
+    public synchronized int getWheelSize() {return wheel != null? wheel.size() : 0;}
+
+    @ManagedAttribute(description="Are heartbeat tasks running")
+    public synchronized boolean isRunning() {
+        return isRunning(timeout_checker_future) && isRunning(heartbeat_sender_future);
+    }
+
+    @ManagedOperation(description="Prints suspect history")
+    public String printSuspectHistory() {
+        StringBuilder sb=new StringBuilder();
+        for(Tuple<Address,Long> tmp: suspect_history)
+            sb.append(new Date(tmp.getVal2())).append(": ").append(tmp.getVal1()).append("\n");
+        return sb.toString();
+    }
+
+    @ManagedOperation(description="Prints timestamps")
+    public String printTimestamps() {
+        Table tmp=table;
+        StringBuilder sb=new StringBuilder();
+        long current_time=System.currentTimeMillis();
+        for(int i=0; i < tmp.members.size(); i++) {
+            Address mbr=tmp.members.get(i);
+            if(!mbr.equals(local_addr))
+                sb.append(mbr).append(": ").append(current_time - tmp.timestamps.get(i)).append(" ms old\n");
+        }
+        return sb.toString();
+    }
+
+    @ManagedOperation(description="Prints the number of members in each slot of the timing wheel")
+    public synchronized String printWheel() {
+        StringBuilder sb=new StringBuilder();
+        if(wheel != null)
+            for(int i=0; i < wheel.size(); i++)
+                if(!wheel.get(i).isEmpty())
+                    sb.append(i).append(": ").append(wheel.get(i).size()).append(" member(s)\n");
+        return sb.toString();
+    }
+
+    @ManagedOperation(description="Stops checking for crashed members")
+    public void stopFailureDetection() {stopTimeoutChecker();}
+
+    @ManagedOperation(description="Resumes checking for crashed members")
+    public void startFailureDetection() {startTimeoutChecker();}
+
+
+    public void resetStats() {
+        num_heartbeats_sent=num_heartbeats_received=num_suspect_events=0;
+        num_checks=0;
+        suspect_history.clear();
+    }
+
+    public void init() throws Exception {
+        timer=getTransport().getTimer();
+        if(timer == null)
+            throw new Exception("timer not set");
+        if(timeout_check_interval <= 0 || timeout_check_interval > timeout)
+            throw new IllegalArgumentException("timeout_check_interval (" + timeout_check_interval +
+                                                 ") has to be positive and not greater than timeout (" + timeout + ")");
+        synchronized(this) {
+            suspected_mbrs.clear();
+            has_suspected_mbrs=false;
+        }
+    }
+
+    public void stop() {
+        stopHeartbeatSender();
+        stopTimeoutChecker();
+        synchronized(this) {
+            suspected_mbrs.clear();
+            has_suspected_mbrs=false;
+            wheel=null;
+        }
+    }
+
+
+    public Object up(Event evt) {
+        if(evt.getType() == Event.MSG) {
+            Message msg=(Message)evt.getArg();
+            Address sender=msg.getSrc();
+            if(msg.getHeader(this.id) != null) {
+                update(sender, System.currentTimeMillis());
+                num_heartbeats_received++;
+                if(has_suspected_mbrs)
+                    unsuspect(sender);
+                return null; // consume heartbeat message, do not pass to the layer above
+            }
+            if(msg_counts_as_heartbeat) {
+                update(sender, clock);
+                if(has_suspected_mbrs)
+                    unsuspect(sender);
+            }
+        }
+        return up_prot.up(evt);
+    }
+
+    public void up(MessageBatch batch) {
+        Collection<Message> msgs=batch.getMatchingMessages(id, true);
+        boolean heartbeat=msgs != null && !msgs.isEmpty();
+        if(heartbeat || msg_counts_as_heartbeat) {
+            update(batch.sender(), heartbeat? System.currentTimeMillis() : clock);
+            if(heartbeat)
+                num_heartbeats_received++;
+            if(has_suspected_mbrs)
+                unsuspect(batch.sender());
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    public Object down(Event evt) {
+        switch(evt.getType()) {
+            case Event.VIEW_CHANGE:
+                down_prot.down(evt);
+                handleViewChange((View)evt.getArg());
+                return null;
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=(Address)evt.getArg();
+                break;
+            case Event.UNSUSPECT:
+                Address mbr=(Address)evt.getArg();
+                unsuspect(mbr);
+                update(mbr, System.currentTimeMillis());
+                break;
+        }
+        return down_prot.down(evt);
+    }
+
+
+    /** The hot path: an index lookup and an ordered write, skipped if the timestamp is already up to date */
+    protected void update(Address sender, long timestamp) {
+        if(sender == null)
+            return;
+        Table tmp=table;
+        Integer index=tmp.indices.get(sender);
+        if(index != null && tmp.timestamps.get(index) < timestamp)
+            tmp.timestamps.lazySet(index, timestamp);
+    }
+
+    protected void handleViewChange(View v) {
+        List<Address> mbrs=v.getMembers();
+        long now=System.currentTimeMillis();
+        synchronized(this) {
+            if(suspected_mbrs.retainAll(mbrs))
+                has_suspected_mbrs=!suspected_mbrs.isEmpty();
+            table=new Table(mbrs, table, now); // existing members keep their timestamps, new ones get 'now'
+            if(wheel != null)
+                populateWheel(now);
+        }
+
+        if(mbrs.size() > 1) {
+            startHeartbeatSender();
+            startTimeoutChecker();
+        }
+        else {
+            stopHeartbeatSender();
+            stopTimeoutChecker();
+        }
+    }
+
+    /** Creates a new wheel with one slot per tick of timeout, plus 2 to account for rounding */
+    @GuardedBy("this")
+    protected void createWheel(long now) {
+        int size=(int)(timeout / timeout_check_interval) + 2;
+        wheel=new ArrayList<List<Integer>>(size);
+        for(int i=0; i < size; i++)
+            wheel.add(new ArrayList<Integer>());
+        current_tick=now / timeout_check_interval;
+        populateWheel(now);
+    }
+
+    /** Places all members (except ourself) into the slots of their expiry times */
+    @GuardedBy("this")
+    protected void populateWheel(long now) {
+        for(List<Integer> slot: wheel)
+            slot.clear();
+        Table tmp=table;
+        for(int i=0; i < tmp.members.size(); i++)
+            if(!tmp.members.get(i).equals(local_addr))
+                schedule(i, tmp.timestamps.get(i) + timeout);
+    }
+
+    /** Adds the member at index to the slot of the first tick after expiry_time */
+    @GuardedBy("this")
+    protected void schedule(int index, long expiry_time) {
+        long tick=expiry_time / timeout_check_interval + 1;
+        tick=Math.max(current_tick, Math.min(tick, current_tick + wheel.size() - 1));
+        wheel.get((int)(tick % wheel.size())).add(index);
+    }
+
+    /** Processes all ticks up to now: returns the members which expired, reschedules the others */
+    protected synchronized List<Address> advance(long now) {
+        if(wheel == null)
+            return null;
+        List<Address> suspects=null;
+        Table tmp=table;
+        long last_tick=now / timeout_check_interval;
+        for(; current_tick <= last_tick; current_tick++) {
+            List<Integer> slot=wheel.get((int)(current_tick % wheel.size()));
+            if(slot.isEmpty())
+                continue;
+            List<Integer> indices=new ArrayList<Integer>(slot);
+            slot.clear();
+            for(int index: indices) {
+                num_checks++;
+                long timestamp=tmp.timestamps.get(index), diff=now - timestamp;
+                if(diff > timeout) {
+                    Address mbr=tmp.members.get(index);
+                    if(log.isDebugEnabled())
+                        log.debug("haven't received a heartbeat from " + mbr + " for " + diff +
+                                    " ms, adding it to suspect list");
+                    if(suspects == null)
+                        suspects=new ArrayList<Address>();
+                    suspects.add(mbr);
+                    schedule(index, now + timeout_check_interval); // suspect again on the next tick, like FD_ALL
+                }
+                else
+                    schedule(index, timestamp + timeout);
+            }
+        }
+        return suspects;
+    }
+
+    protected void suspect(List<Address> suspects) {
+        if(suspects == null || suspects.isEmpty())
+            return;
+
+        num_suspect_events+=suspects.size();
+
+        final List<Address> eligible_mbrs=new ArrayList<Address>();
+        synchronized(this) {
+            for(Address suspect: suspects) {
+                suspect_history.add(new Tuple<Address,Long>(suspect, System.currentTimeMillis()));
+                suspected_mbrs.add(suspect);
+            }
+            eligible_mbrs.addAll(table.members);
+            eligible_mbrs.removeAll(suspected_mbrs);
+            has_suspected_mbrs=!suspected_mbrs.isEmpty();
+        }
+
+        // Check if we're coord, then send up the stack
+        if(local_addr != null && !eligible_mbrs.isEmpty()) {
+            Address first=eligible_mbrs.get(0);
+            if(local_addr.equals(first)) {
+                if(log.isDebugEnabled())
+                    log.debug("suspecting " + suspects);
+                for(Address suspect: suspects) {
+                    up_prot.up(new Event(Event.SUSPECT, suspect));
+                    down_prot.down(new Event(Event.SUSPECT, suspect));
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes mbr from suspected_mbrs and sends a UNSUSPECT event up and down the stack
+     * @return true if the member was removed from suspected_mbrs, otherwise false
+     */
+    protected boolean unsuspect(Address mbr) {
+        if(mbr == null) return false;
+        boolean do_unsuspect;
+        synchronized(this) {
+            do_unsuspect=!suspected_mbrs.isEmpty() && suspected_mbrs.remove(mbr);
+            if(do_unsuspect)
+                has_suspected_mbrs=!suspected_mbrs.isEmpty();
+        }
+        if(do_unsuspect) {
+            up_prot.up(new Event(Event.UNSUSPECT, mbr));
+            down_prot.down(new Event(Event.UNSUSPECT, mbr));
+        }
+        return do_unsuspect;
+    }
+
+    protected synchronized void startTimeoutChecker() {
+        if(!isRunning(timeout_checker_future)) {
+            long now=System.currentTimeMillis();
+            clock=now;
+            createWheel(now);
+            timeout_checker_future=timer.scheduleWithFixedDelay(new TimeoutChecker(), timeout_check_interval,
+                                                                timeout_check_interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    protected synchronized void stopTimeoutChecker() {
+        if(timeout_checker_future != null) {
+            timeout_checker_future.cancel(true);
+            timeout_checker_future=null;
+        }
+        wheel=null;
+    }
+
+    protected synchronized void startHeartbeatSender() {
+        if(!isRunning(heartbeat_sender_future))
+            heartbeat_sender_future=timer.scheduleWithFixedDelay(new HeartbeatSender(), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    protected synchronized void stopHeartbeatSender() {
+        if(heartbeat_sender_future != null) {
+            heartbeat_sender_future.cancel(true);
+            heartbeat_sender_future=null;
+        }
+    }
+
+    protected static boolean isRunning(Future<?> future) {
+        return future != null && !future.isDone();
+    }
+
+
+    /** The members of a view and their timestamps, indexed by the position in the view. Immutable except for the timestamps */
+    protected static class Table {
+        protected final List<Address>         members;
+        protected final Map<Address,Integer>  indices;
+        protected final AtomicLongArray       timestamps;
+
+        /** Creates a table for mbrs, copying the timestamps from old_table, or setting them to now for new members */
+        protected Table(List<Address> mbrs, Table old_table, long now) {
+            members=mbrs;
+            indices=new HashMap<Address,Integer>(mbrs.size());
+            timestamps=new AtomicLongArray(mbrs.size());
+            for(int i=0; i < mbrs.size(); i++) {
+                Address mbr=mbrs.get(i);
+                indices.put(mbr, i);
+                Integer old_index=old_table != null? old_table.indices.get(mbr) : null;
+                timestamps.set(i, old_index != null? old_table.timestamps.get(old_index) : now);
+            }
+        }
+    }
+
+
+    /** Class which periodically multicasts a HEARTBEAT message to the cluster */
+    protected class HeartbeatSender implements Runnable {
+        public void run() {
+            Message heartbeat=new Message().setFlag(Message.Flag.INTERNAL).putHeader(id, new FD_ALL.HeartbeatHeader());
+            down_prot.down(new Event(Event.MSG, heartbeat));
+            num_heartbeats_sent++;
+        }
+
+        public String toString() {
+            return FD_ALL2.class.getSimpleName() + ": " + getClass().getSimpleName();
+        }
+    }
+
+    /** Advances the clock and the timing wheel by one tick */
+    protected class TimeoutChecker implements Runnable {
+        public void run() {
+            long now=System.currentTimeMillis();
+            clock=now;
+            suspect(advance(now));
+        }
+
+        public String toString() {
+            return FD_ALL2.class.getSimpleName() + ": " + getClass().getSimpleName() +
+              " (interval=" + timeout_check_interval + " ms)";
+        }
+    }
+}
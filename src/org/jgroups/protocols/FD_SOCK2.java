@@ -0,0 +1,458 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.annotations.*;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.Util;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NIO-based variant of {@link FD_SOCK}: a single thread, using a {@link Selector}, accepts connections on the server
+ * socket, watches all client connections (from members monitoring us) and the connection to the member we monitor
+ * (ping_dest). FD_SOCK uses an acceptor thread, one thread per client connection and a pinger thread blocking on
+ * the ping socket; with FD_SOCK2, the number of threads doesn't grow with the number of members watching a node.<p/>
+ * Everything that would block in FD_SOCK's pinger thread is done asynchronously: if the server socket address of
+ * ping_dest is not in the cache, a WHO_HAS_SOCK is sent and the connection is established when the I_HAVE_SOCK
+ * response is received (or re-requested by a timer task). Connects are non-blocking and time out after
+ * sock_conn_timeout ms.<p/>
+ * The protocol (headers, cache, suspect broadcasts) is the same as FD_SOCK's, but FD_SOCK and FD_SOCK2 cannot be
+ * mixed in the same cluster, as they use different protocol IDs.
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Experimental
+@MBean(description="Failure detection protocol based on sockets connecting members, using a single selector thread")
+public class FD_SOCK2 extends FD_SOCK {
+    protected static final long WHO_HAS_SOCK_INTERVAL=500;
+
+    /* --------------------------------------------- Fields ------------------------------------------------------ */
+    protected Selector                      selector;
+    protected ServerSocketChannel           srv_channel;
+    protected volatile Thread               monitor;
+    /** Tasks to be run by the monitor thread, e.g. on a view change */
+    protected final Queue<Runnable>         tasks=new ConcurrentLinkedQueue<Runnable>();
+    /** Whether we're monitoring a neighbor (more than 1 member) */
+    protected volatile boolean              pinging;
+
+    // accessed only by the monitor thread
+    protected SocketChannel                 ping_channel;
+    protected long                          connect_start; // time at which the connect to ping_dest was started
+    protected final ByteBuffer              read_buf=ByteBuffer.allocate(16);
+
+    @ManagedAttribute(description="Number of members currently connected to us (monitoring us)")
+    protected volatile int                  num_clients;
+
+    @ManagedAttribute(description="Number of connections established to the member we monitor")
+    protected int                           num_ping_connects;
+
+
+    @ManagedAttribute(description="Whether the monitor thread is running")
+    public boolean isMonitorRunning()       {Thread tmp=monitor; return tmp != null && tmp.isAlive();}
+    public int     getNumClients()          {return num_clients;}
+    public int     getNumPingConnects()     {return num_ping_connects;}
+
+    @ManagedAttribute(description="Whether the node crash detection monitor is running",writable=false)
+    public boolean isNodeCrashMonitorRunning() {return pinging && isMonitorRunning();}
+
+    @ManagedOperation(description="Starts node crash monitor if member count > 1 and monitor is not running")
+    public boolean startNodeCrashMonitor() {
+        if(members.size() > 1)
+            return startPingerThread();
+        return false;
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_ping_connects=0;
+    }
+
+    public void init() throws Exception {
+        timer=getTransport().getTimer();
+        if(timer == null)
+            throw new Exception("timer is null");
+    }
+
+
+    public Object up(Event evt) {
+        if(evt.getType() == Event.MSG) {
+            Message msg=(Message)evt.getArg();
+            FdHeader hdr=(FdHeader)msg.getHeader(this.id);
+            if(hdr != null && (hdr.type == FdHeader.I_HAVE_SOCK || hdr.type == FdHeader.GET_CACHE_RSP)) {
+                if(hdr.type == FdHeader.GET_CACHE_RSP && hdr.cachedAddrs != null)
+                    cache.putAll(hdr.cachedAddrs);
+                Object retval=super.up(evt);
+                if(pinging)
+                    submit(new Runnable() {public void run() {connectToPingDest();}});
+                return retval;
+            }
+        }
+        return super.up(evt);
+    }
+
+    public Object down(Event evt) {
+        Object retval=super.down(evt);
+        if(evt.getType() == Event.VIEW_CHANGE && pinging)
+            submit(new Runnable() {public void run() {updatePingDest();}});
+        return retval;
+    }
+
+
+    protected void startServerSocket() throws Exception {
+        if(isMonitorRunning())
+            return;
+        selector=Selector.open();
+        srv_channel=createServerSocketChannel(start_port, start_port + port_range);
+        srv_channel.register(selector, SelectionKey.OP_ACCEPT);
+        srv_sock_addr=new IpAddress(external_addr != null? external_addr : bind_addr,
+                                    external_port > 0? external_port : srv_channel.socket().getLocalPort());
+        monitor=getThreadFactory().newThread(new Monitor(), "FD_SOCK2 monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    /**
+     * Stops the monitor thread, then closes all connections. If graceful, the members monitoring us are told that we're
+     * leaving, so they won't suspect us
+     */
+    public void stopServerSocket(boolean graceful) {
+        Thread tmp=monitor;
+        monitor=null;
+        if(tmp != null) {
+            selector.wakeup();
+            try {
+                tmp.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(selector == null)
+            return;
+        for(SelectionKey key: selector.keys()) {
+            if(key.attachment() instanceof Client) {
+                if(graceful)
+                    sendSignal((SocketChannel)key.channel(), NORMAL_TERMINATION);
+                Util.close(key.channel());
+            }
+        }
+        num_clients=0;
+        closePingChannel(true);
+        Util.close(srv_channel);
+        Util.close(selector);
+        srv_channel=null;
+        selector=null;
+        tasks.clear();
+    }
+
+    protected synchronized boolean isPingerThreadRunning() {
+        return pinging;
+    }
+
+    /** Starts monitoring a neighbor: announces our server socket, fetches the cache from the coord and connects */
+    protected synchronized boolean startPingerThread() {
+        if(pinging)
+            return false;
+        pinging=true;
+        if(!srv_sock_sent && srv_sock_addr != null) {
+            sendIHaveSockMessage(null, local_addr, srv_sock_addr);
+            srv_sock_sent=true;
+        }
+        if(!got_cache_from_coord) {
+            Address coord=determineCoordinator();
+            if(coord != null && !coord.equals(local_addr)) {
+                Message msg=new Message(coord).setFlag(Message.Flag.INTERNAL).putHeader(this.id, new FdHeader(FdHeader.GET_CACHE));
+                down_prot.down(new Event(Event.MSG, msg)); // the response is handled in up()
+            }
+            got_cache_from_coord=true;
+        }
+        submit(new Runnable() {public void run() {updatePingDest();}});
+        return true;
+    }
+
+    protected void interruptPingerThread() {
+        submit(new Runnable() {public void run() {updatePingDest();}});
+    }
+
+    protected synchronized void stopPingerThread() {
+        pinging=false;
+        submit(new Runnable() {
+            public void run() {
+                closePingChannel(true);
+                ping_dest=null;
+            }
+        });
+    }
+
+    /** Runs a task on the monitor thread */
+    protected void submit(Runnable task) {
+        Selector tmp=selector;
+        if(tmp == null || !isMonitorRunning())
+            return;
+        tasks.add(task);
+        tmp.wakeup();
+    }
+
+
+    /* ---------------------------- Methods invoked by the monitor thread only ----------------------------------- */
+
+    /** Determines the member to be monitored and connects to it, if it is different from the current one */
+    protected void updatePingDest() {
+        Address dest=pinging? determinePingDest() : null;
+        if(dest != null && dest.equals(ping_dest))
+            return;
+        closePingChannel(false);
+        ping_dest=dest;
+        if(log.isDebugEnabled())
+            log.debug(local_addr + ": ping_dest is " + ping_dest + ", pingable_mbrs=" + pingable_mbrs);
+        connectToPingDest();
+    }
+
+    /** Connects to ping_dest if not yet connected. If the address of ping_dest is unknown, fetches it first */
+    protected void connectToPingDest() {
+        final Address dest=ping_dest;
+        if(!pinging || dest == null || ping_channel != null)
+            return;
+        IpAddress ping_addr=cache.get(dest);
+        if(ping_addr == null) {
+            fetchPingAddressAsync(dest, true);
+            return;
+        }
+        try {
+            ping_channel=createPingChannel();
+            connect_start=System.currentTimeMillis();
+            if(ping_channel.connect(new InetSocketAddress(ping_addr.getIpAddress(), ping_addr.getPort())))
+                ping_channel.register(selector, SelectionKey.OP_READ);
+            else
+                ping_channel.register(selector, SelectionKey.OP_CONNECT);
+        }
+        catch(IOException ex) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": could not create socket to " + dest + ": " + ex);
+            handlePingFailure(false);
+        }
+    }
+
+    /**
+     * Sends a WHO_HAS_SOCK to dest (first attempt) or all members and re-attempts the connect after a while; the
+     * I_HAVE_SOCK response also triggers a connect
+     */
+    protected void fetchPingAddressAsync(final Address dest, boolean unicast) {
+        Message req=new Message(unicast? dest : null).setFlag(Message.Flag.INTERNAL)
+          .putHeader(this.id, new FdHeader(FdHeader.WHO_HAS_SOCK, dest));
+        down_prot.down(new Event(Event.MSG, req));
+        timer.schedule(new Runnable() {
+            public void run() {
+                submit(new Runnable() {
+                    public void run() {
+                        if(pinging && dest.equals(ping_dest) && ping_channel == null) {
+                            if(cache.containsKey(dest))
+                                connectToPingDest();
+                            else
+                                fetchPingAddressAsync(dest, false);
+                        }
+                    }
+                });
+            }
+        }, WHO_HAS_SOCK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    protected SocketChannel createPingChannel() throws IOException {
+        SocketChannel ch=SocketChannel.open();
+        try {
+            ch.configureBlocking(false);
+            Socket sock=ch.socket();
+            int port=client_bind_port;
+            for(int num_bind_attempts=0;; port++) {
+                try {
+                    sock.bind(new InetSocketAddress(bind_addr, port));
+                    break;
+                }
+                catch(IOException e) {
+                    if(++num_bind_attempts > port_range)
+                        throw e;
+                }
+            }
+            sock.setSoLinger(true, 1);
+            sock.setKeepAlive(keep_alive);
+            return ch;
+        }
+        catch(IOException ex) {
+            Util.close(ch);
+            throw ex;
+        }
+    }
+
+    /**
+     * The connection to ping_dest could not be established or was closed. If it wasn't closed regularly, ping_dest
+     * is suspected. In any case, the next member is monitored
+     * @param graceful True if ping_dest closed the connection gracefully (left the cluster)
+     */
+    protected void handlePingFailure(boolean graceful) {
+        Address dest=ping_dest;
+        closePingChannel(false);
+        if(dest == null)
+            return;
+        if(graceful) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": peer " + dest + " closed socket gracefully");
+        }
+        else if(pinging)
+            broadcastSuspectMessage(dest);
+        pingable_mbrs.remove(dest);
+        updatePingDest();
+    }
+
+    protected void closePingChannel(boolean send_termination) {
+        SocketChannel ch=ping_channel;
+        if(ch == null)
+            return;
+        ping_channel=null;
+        if(send_termination && ch.isConnected())
+            sendSignal(ch, NORMAL_TERMINATION);
+        Util.close(ch); // also cancels the key
+    }
+
+    protected void handleAccept() throws IOException {
+        SocketChannel client=srv_channel.accept();
+        if(client == null)
+            return;
+        client.configureBlocking(false);
+        client.socket().setKeepAlive(keep_alive);
+        client.register(selector, SelectionKey.OP_READ, new Client());
+        num_clients++;
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": accepted connection from " + client.socket().getRemoteSocketAddress());
+    }
+
+    protected void handleConnect(SelectionKey key) {
+        try {
+            if(((SocketChannel)key.channel()).finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+                num_ping_connects++;
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": connected to " + ping_dest);
+            }
+        }
+        catch(IOException ex) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": could not connect to " + ping_dest + ": " + ex);
+            handlePingFailure(false);
+        }
+    }
+
+    /** Reads from a client connection or the ping connection; returns the termination signal, or 0 if none was read */
+    protected int read(SocketChannel ch) {
+        read_buf.clear();
+        try {
+            int num;
+            while((num=ch.read(read_buf)) > 0) {
+                read_buf.flip();
+                while(read_buf.hasRemaining())
+                    if(read_buf.get() == NORMAL_TERMINATION)
+                        return NORMAL_TERMINATION;
+                read_buf.clear();
+            }
+            return num < 0? ABNORMAL_TERMINATION : 0;
+        }
+        catch(IOException ex) {
+            return ABNORMAL_TERMINATION;
+        }
+    }
+
+    protected void handleRead(SelectionKey key) {
+        SocketChannel ch=(SocketChannel)key.channel();
+        int signal=read(ch);
+        if(signal == 0)
+            return;
+        if(key.attachment() instanceof Client) { // a member monitoring us closed the connection
+            Util.close(ch);
+            num_clients--;
+        }
+        else if(ch == ping_channel)
+            handlePingFailure(signal == NORMAL_TERMINATION);
+    }
+
+    /** Suspects ping_dest if the connect didn't complete within sock_conn_timeout ms */
+    protected void checkConnectTimeout() {
+        SocketChannel ch=ping_channel;
+        if(ch != null && ch.isConnectionPending() && System.currentTimeMillis() - connect_start >= sock_conn_timeout) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": connect to " + ping_dest + " timed out after " + sock_conn_timeout + " ms");
+            handlePingFailure(false);
+        }
+    }
+
+    protected static void sendSignal(SocketChannel ch, int signal) {
+        try {
+            ch.write(ByteBuffer.wrap(new byte[]{(byte)signal}));
+        }
+        catch(Throwable ignored) {
+        }
+    }
+
+    protected ServerSocketChannel createServerSocketChannel(int start_port, int end_port) throws Exception {
+        ServerSocketChannel ch=ServerSocketChannel.open();
+        ch.configureBlocking(false);
+        for(int port=start_port;; port++) {
+            try {
+                ch.socket().bind(new InetSocketAddress(bind_addr, port), 50);
+                return ch;
+            }
+            catch(SocketException bind_ex) {
+                if(port >= end_port) {
+                    Util.close(ch);
+                    throw new BindException("No available port to bind to in range [" + start_port + " .. " + end_port + "]");
+                }
+            }
+        }
+    }
+
+
+    /** Marks a connection accepted from a member which monitors us */
+    protected static class Client {}
+
+
+    /** The single thread handling the server socket, all client connections and the ping connection */
+    protected class Monitor implements Runnable {
+        public void run() {
+            Selector sel=selector;
+            while(monitor == Thread.currentThread()) {
+                try {
+                    sel.select(ping_channel != null && ping_channel.isConnectionPending()? sock_conn_timeout : 0);
+                    Runnable task;
+                    while((task=tasks.poll()) != null)
+                        task.run();
+                    for(Iterator<SelectionKey> it=sel.selectedKeys().iterator(); it.hasNext();) {
+                        SelectionKey key=it.next();
+                        it.remove();
+                        if(!key.isValid())
+                            continue;
+                        if(key.isAcceptable())
+                            handleAccept();
+                        else if(key.isConnectable())
+                            handleConnect(key);
+                        else if(key.isReadable())
+                            handleRead(key);
+                    }
+                    checkConnectTimeout();
+                }
+                catch(ClosedSelectorException ex) {
+                    break;
+                }
+                catch(Throwable t) {
+                    if(monitor == Thread.currentThread())
+                        log.error(local_addr + ": failure in monitor thread", t);
+                }
+            }
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": monitor thread terminated");
+        }
+    }
+}
@@ -0,0 +1,651 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.annotations.*;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Failure detection based on SWIM (Scalable Weakly-consistent Infection-style process group Membership protocol).
+ * Every protocol_period, a member probes a single other member with a PING; the target is picked round-robin from a
+ * shuffled list of the members, so every member is probed within N periods. If no ACK is received within ack_timeout,
+ * indirect_probes other members are asked to probe the target (PING_REQ) and forward its ACK. If there's still no
+ * ACK at the end of the period, the target is suspected.<p/>
+ * A suspicion is disseminated to the cluster, and a suspected member which learns about it refutes it by incrementing
+ * its incarnation number. If a suspicion isn't refuted within suspect_timeout, the member is declared dead, and the
+ * first member which is not dead passes a SUSPECT event up the stack. VERIFY_SUSPECT is therefore not needed.<p/>
+ * Membership updates (alive, suspect, dead) are piggybacked on PING, PING_REQ and ACK messages, and each update is
+ * piggybacked retransmit_multiplier * log2(N+1) times. The number of messages a member sends per period is therefore
+ * constant, regardless of the cluster size (contrary to {@link FD_ALL}).
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Experimental
+@MBean(description="SWIM-style failure detection: probes one member per period, directly or through other members")
+public class FD_SWIM extends Protocol {
+    protected static final byte ALIVE=1, SUSPECT=2, DEAD=3;
+
+    /* -----------------------------------------    Properties     -------------------------------------------------- */
+    @Property(description="Interval (ms) at which a member is probed")
+    protected long protocol_period=1000;
+
+    @Property(description="Time (ms) to wait for the ACK of a direct probe before other members are asked to probe " +
+      "the target. Needs to be less than protocol_period")
+    protected long ack_timeout=300;
+
+    @Property(description="Number of members which are asked to probe a target which didn't respond to a direct probe")
+    protected int  indirect_probes=3;
+
+    @Property(description="Time (ms) after which a suspected member which didn't refute the suspicion is declared dead")
+    protected long suspect_timeout=5000;
+
+    @Property(description="Max number of membership updates piggybacked on a message")
+    protected int  max_gossip=8;
+
+    @Property(description="An update is piggybacked retransmit_multiplier * log2(N+1) times (N = cluster size)")
+    protected int  retransmit_multiplier=3;
+
+
+    /* ---------------------------------------------   JMX      ------------------------------------------------------ */
+    @ManagedAttribute(description="Number of direct probes (PINGs) sent")
+    protected int num_probes_sent;
+
+    @ManagedAttribute(description="Number of indirect probe requests (PING_REQs) sent")
+    protected int num_probe_requests_sent;
+
+    @ManagedAttribute(description="Number of ACKs received for our probes (directly or forwarded by other members)")
+    protected int num_acks_received;
+
+    @ManagedAttribute(description="Number of probes which didn't get an ACK, neither directly nor indirectly")
+    protected int num_failed_probes;
+
+    @ManagedAttribute(description="Number of suspicions (raised by this member or learned from others)")
+    protected int num_suspicions;
+
+    @ManagedAttribute(description="Number of suspicions which were refuted by the suspected member (false positives)")
+    protected int num_refuted_suspicions;
+
+    @ManagedAttribute(description="Number of times this member refuted a suspicion about itself")
+    protected int num_refutations;
+
+    @ManagedAttribute(description="Number of members declared dead")
+    protected int num_declared_dead;
+
+    /** Time (ms) between the last time we heard from a member and declaring it dead */
+    protected final Percentiles detection_times=new Percentiles(100);
+
+
+    /* --------------------------------------------- Fields ------------------------------------------------------ */
+    protected Address                       local_addr;
+    protected TimeScheduler                 timer;
+    protected volatile List<Address>        members=Collections.emptyList();
+    /** The state of all members except ourself */
+    protected final Map<Address,MemberState> states=new HashMap<Address,MemberState>();
+    /** Updates to be piggybacked, at most one per member */
+    protected final Map<Address,Gossip>     gossip=new LinkedHashMap<Address,Gossip>();
+    protected int                           incarnation;
+    protected long                          seqno;
+    /** The probe of the current protocol period */
+    protected Probe                         current_probe;
+    /** Members to be probed in the current round, in random order */
+    protected final List<Address>           probe_list=new ArrayList<Address>();
+    protected int                           probe_index;
+    /** PING_REQs we're handling for other members, keyed by the seqno of the PING we sent to the target */
+    protected final ConcurrentMap<Long,Forward> forwards=new ConcurrentHashMap<Long,Forward>();
+    @GuardedBy("this")
+    protected Future<?>                     probe_task;
+
+
+    @ManagedAttribute(description="Percentiles of the time (ms) from when we last heard from a member to declaring it dead")
+    public String getDetectionTimes() {return detection_times.toString();}
+
+    @ManagedAttribute(description="Ratio of refuted suspicions to all suspicions")
+    public synchronized double getFalsePositiveRate() {
+        return num_suspicions == 0? 0 : num_refuted_suspicions / (double)num_suspicions;
+    }
+
+    @ManagedAttribute(description="The incarnation number of this member")
+    public synchronized int getIncarnation() {return incarnation;}
+
+    @ManagedAttribute(description="Whether the probe task is running")
+    public synchronized boolean isRunning() {return probe_task != null && !probe_task.isDone();}
+
+    public int getNumProbesSent()         {return num_probes_sent;}
+    public int getNumProbeRequestsSent()  {return num_probe_requests_sent;}
+    public int getNumAcksReceived()       {return num_acks_received;}
+    public int getNumFailedProbes()       {return num_failed_probes;}
+    public int getNumSuspicions()         {return num_suspicions;}
+    public int getNumRefutedSuspicions()  {return num_refuted_suspicions;}
+    public int getNumRefutations()        {return num_refutations;}
+    public int getNumDeclaredDead()       {return num_declared_dead;}
+
+    @ManagedOperation(description="Prints the state of all members")
+    public synchronized String printStates() {
+        StringBuilder sb=new StringBuilder();
+        long now=System.currentTimeMillis();
+        for(Map.Entry<Address,MemberState> entry: states.entrySet()) {
+            MemberState state=entry.getValue();
+            sb.append(entry.getKey()).append(": ").append(print(state.status)).append(" (incarnation=")
+              .append(state.incarnation).append(", last heard ").append(now - state.last_heard).append(" ms ago)\n");
+        }
+        return sb.toString();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        synchronized(this) {
+            num_probes_sent=num_probe_requests_sent=num_acks_received=num_failed_probes=num_suspicions=0;
+            num_refuted_suspicions=num_refutations=num_declared_dead=0;
+        }
+        detection_times.clear();
+    }
+
+    public void init() throws Exception {
+        super.init();
+        timer=getTransport().getTimer();
+        if(timer == null)
+            throw new Exception("timer not set");
+        if(ack_timeout >= protocol_period)
+            throw new IllegalArgumentException("ack_timeout (" + ack_timeout + ") has to be less than protocol_period (" +
+                                                 protocol_period + ")");
+        if(indirect_probes < 0 || max_gossip <= 0 || retransmit_multiplier <= 0)
+            throw new IllegalArgumentException("indirect_probes, max_gossip and retransmit_multiplier must not be negative");
+    }
+
+    public void stop() {
+        stopProbeTask();
+        synchronized(this) {
+            states.clear();
+            gossip.clear();
+            probe_list.clear();
+            current_probe=null;
+        }
+        forwards.clear();
+        super.stop();
+    }
+
+
+    public Object up(Event evt) {
+        if(evt.getType() == Event.MSG) {
+            Message msg=(Message)evt.getArg();
+            FdSwimHeader hdr=(FdSwimHeader)msg.getHeader(id);
+            if(hdr != null) {
+                handle(msg.getSrc(), hdr);
+                return null;
+            }
+        }
+        return up_prot.up(evt);
+    }
+
+    public void up(MessageBatch batch) {
+        Collection<Message> msgs=batch.getMatchingMessages(id, true);
+        if(msgs != null) {
+            for(Message msg: msgs)
+                handle(msg.getSrc(), (FdSwimHeader)msg.getHeader(id));
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    public Object down(Event evt) {
+        switch(evt.getType()) {
+            case Event.VIEW_CHANGE:
+                Object retval=down_prot.down(evt);
+                handleView((View)evt.getArg());
+                return retval;
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=(Address)evt.getArg();
+                break;
+        }
+        return down_prot.down(evt);
+    }
+
+
+    protected void handleView(View view) {
+        List<Address> mbrs=view.getMembers();
+        synchronized(this) {
+            members=mbrs;
+            states.keySet().retainAll(mbrs);
+            gossip.keySet().retainAll(mbrs);
+            for(Address mbr: mbrs)
+                if(!mbr.equals(local_addr) && !states.containsKey(mbr))
+                    states.put(mbr, new MemberState());
+            probe_list.clear(); // a new round is started with the new members
+        }
+        if(mbrs.size() > 1)
+            startProbeTask();
+        else
+            stopProbeTask();
+    }
+
+    protected void handle(Address sender, FdSwimHeader hdr) {
+        List<Address> dead=handleUpdates(sender, hdr.updates);
+        switch(hdr.type) {
+            case FdSwimHeader.PING:
+                send(sender, FdSwimHeader.ACK, hdr.seqno, null);
+                break;
+            case FdSwimHeader.PING_REQ: // probe the target on behalf of the sender
+                long ping_seqno;
+                synchronized(this) {
+                    ping_seqno=++seqno;
+                }
+                forwards.put(ping_seqno, new Forward(sender, hdr.seqno));
+                send(hdr.target, FdSwimHeader.PING, ping_seqno, null);
+                break;
+            case FdSwimHeader.ACK:
+                Forward forward=forwards.remove(hdr.seqno);
+                if(forward != null) { // the ACK for a PING_REQ we handled: forward it to the requester
+                    send(forward.requester, FdSwimHeader.ACK, forward.seqno, sender);
+                    break;
+                }
+                Address target=hdr.target != null? hdr.target : sender;
+                synchronized(this) {
+                    if(current_probe != null && current_probe.seqno == hdr.seqno && current_probe.target.equals(target)
+                      && !current_probe.acked) {
+                        current_probe.acked=true;
+                        num_acks_received++;
+                    }
+                    MemberState state=states.get(target);
+                    if(state != null)
+                        state.last_heard=System.currentTimeMillis();
+                }
+                break;
+        }
+        suspect(dead);
+    }
+
+    /** Applies the piggybacked updates, returns the members which were declared dead */
+    protected synchronized List<Address> handleUpdates(Address sender, List<Update> updates) {
+        MemberState sender_state=sender != null? states.get(sender) : null;
+        if(sender_state != null)
+            sender_state.last_heard=System.currentTimeMillis();
+        if(updates == null || updates.isEmpty())
+            return null;
+        List<Address> dead=null;
+        for(Update update: updates) {
+            if(handleUpdate(update)) {
+                if(dead == null)
+                    dead=new ArrayList<Address>();
+                dead.add(update.mbr);
+            }
+        }
+        return dead;
+    }
+
+    /**
+     * Applies an update (SWIM's precedence rules): an alive update overrides a suspicion with a lower incarnation, a
+     * suspicion overrides an alive state with the same or a lower incarnation, and dead overrides everything
+     * @return True if the member was declared dead
+     */
+    @GuardedBy("this")
+    protected boolean handleUpdate(Update update) {
+        if(update.mbr.equals(local_addr)) {
+            if(update.status != ALIVE && update.incarnation >= incarnation) { // refute the suspicion
+                incarnation=update.incarnation + 1;
+                num_refutations++;
+                addGossip(new Update(local_addr, ALIVE, incarnation));
+                if(log.isDebugEnabled())
+                    log.debug(local_addr + ": refuting suspicion, incarnation is now " + incarnation);
+            }
+            return false;
+        }
+        MemberState state=states.get(update.mbr);
+        if(state == null || state.status == DEAD) // not a member (yet), or already dead
+            return false;
+        switch(update.status) {
+            case ALIVE:
+                if(update.incarnation > state.incarnation) {
+                    if(state.status == SUSPECT)
+                        num_refuted_suspicions++;
+                    state.status=ALIVE;
+                    state.incarnation=update.incarnation;
+                    addGossip(update);
+                }
+                return false;
+            case SUSPECT:
+                if(update.incarnation > state.incarnation || (update.incarnation == state.incarnation && state.status == ALIVE)) {
+                    if(state.status == ALIVE) {
+                        num_suspicions++;
+                        state.suspect_time=System.currentTimeMillis();
+                    }
+                    state.status=SUSPECT;
+                    state.incarnation=update.incarnation;
+                    addGossip(update);
+                }
+                return false;
+            case DEAD:
+                declareDead(update.mbr, state);
+                return true;
+        }
+        return false;
+    }
+
+    @GuardedBy("this")
+    protected void declareDead(Address mbr, MemberState state) {
+        state.status=DEAD;
+        num_declared_dead++;
+        detection_times.add(System.currentTimeMillis() - state.last_heard);
+        addGossip(new Update(mbr, DEAD, state.incarnation));
+        if(log.isDebugEnabled())
+            log.debug(local_addr + ": declaring " + mbr + " dead");
+    }
+
+    /** Passes a SUSPECT event for the dead members up and down the stack if we're the first member which is not dead */
+    protected void suspect(List<Address> dead) {
+        if(dead == null || dead.isEmpty())
+            return;
+        Address first=null;
+        synchronized(this) {
+            for(Address mbr: members) {
+                MemberState state=states.get(mbr);
+                if(state == null || state.status != DEAD) { // we (no state) are never dead
+                    first=mbr;
+                    break;
+                }
+            }
+        }
+        if(local_addr == null || !local_addr.equals(first))
+            return;
+        for(Address mbr: dead) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": suspecting " + mbr);
+            up_prot.up(new Event(Event.SUSPECT, mbr));
+            down_prot.down(new Event(Event.SUSPECT, mbr));
+        }
+    }
+
+    @GuardedBy("this")
+    protected void addGossip(Update update) {
+        gossip.remove(update.mbr); // a new update about a member replaces the old one
+        gossip.put(update.mbr, new Gossip(update));
+    }
+
+    /** Returns the updates to be piggybacked, the least sent ones first. Updates sent often enough are removed */
+    protected synchronized List<Update> getGossip() {
+        if(gossip.isEmpty())
+            return null;
+        List<Gossip> list=new ArrayList<Gossip>(gossip.values());
+        Collections.sort(list);
+        int max_sends=retransmit_multiplier * (32 - Integer.numberOfLeadingZeros(members.size() + 1)); // log2(N+1)
+        List<Update> retval=new ArrayList<Update>(Math.min(list.size(), max_gossip));
+        for(Gossip g: list) {
+            if(retval.size() >= max_gossip)
+                break;
+            retval.add(g.update);
+            if(++g.num_sent >= max_sends)
+                gossip.remove(g.update.mbr);
+        }
+        return retval;
+    }
+
+    /** Returns the next member to be probed. When all members have been probed, a new round in random order starts */
+    @GuardedBy("this")
+    protected Address nextTarget() {
+        for(int i=0; i < 2; i++) {
+            while(probe_index < probe_list.size()) {
+                Address mbr=probe_list.get(probe_index++);
+                MemberState state=states.get(mbr);
+                if(state != null && state.status != DEAD)
+                    return mbr;
+            }
+            probe_list.clear();
+            for(Map.Entry<Address,MemberState> entry: states.entrySet())
+                if(entry.getValue().status != DEAD)
+                    probe_list.add(entry.getKey());
+            Collections.shuffle(probe_list);
+            probe_index=0;
+        }
+        return null;
+    }
+
+    /** Picks up to indirect_probes random members (except the target), which are not dead */
+    @GuardedBy("this")
+    protected List<Address> pickHelpers(Address target) {
+        List<Address> candidates=new ArrayList<Address>(states.size());
+        for(Map.Entry<Address,MemberState> entry: states.entrySet())
+            if(entry.getValue().status == ALIVE && !entry.getKey().equals(target))
+                candidates.add(entry.getKey());
+        Collections.shuffle(candidates);
+        return candidates.size() > indirect_probes? candidates.subList(0, indirect_probes) : candidates;
+    }
+
+    protected void send(Address dest, byte type, long seqno, Address target) {
+        FdSwimHeader hdr=new FdSwimHeader(type, seqno, target, getGossip());
+        Message msg=new Message(dest).setFlag(Message.Flag.INTERNAL).putHeader(id, hdr);
+        down_prot.down(new Event(Event.MSG, msg));
+    }
+
+    protected synchronized void startProbeTask() {
+        if(probe_task == null || probe_task.isDone())
+            probe_task=timer.scheduleWithFixedDelay(new ProbeTask(), protocol_period, protocol_period, TimeUnit.MILLISECONDS);
+    }
+
+    protected synchronized void stopProbeTask() {
+        if(probe_task != null) {
+            probe_task.cancel(false);
+            probe_task=null;
+        }
+    }
+
+    protected static String print(byte status) {
+        switch(status) {
+            case ALIVE:   return "alive";
+            case SUSPECT: return "suspect";
+            case DEAD:    return "dead";
+            default:      return "n/a";
+        }
+    }
+
+
+    /** Runs once per protocol period */
+    protected class ProbeTask implements Runnable {
+        public void run() {
+            List<Address> dead=null;
+            final Probe probe;
+            long now=System.currentTimeMillis();
+            synchronized(FD_SWIM.this) {
+                // the target of the last period's probe didn't send an ACK: suspect it
+                if(current_probe != null && !current_probe.acked) {
+                    num_failed_probes++;
+                    MemberState state=states.get(current_probe.target);
+                    if(state != null && state.status == ALIVE) {
+                        num_suspicions++;
+                        state.status=SUSPECT;
+                        state.suspect_time=now;
+                        addGossip(new Update(current_probe.target, SUSPECT, state.incarnation));
+                        if(log.isDebugEnabled())
+                            log.debug(local_addr + ": no ACK from " + current_probe.target + ", suspecting it");
+                    }
+                }
+
+                // suspicions which were not refuted in time
+                for(Map.Entry<Address,MemberState> entry: states.entrySet()) {
+                    MemberState state=entry.getValue();
+                    if(state.status == SUSPECT && now - state.suspect_time >= suspect_timeout) {
+                        declareDead(entry.getKey(), state);
+                        if(dead == null)
+                            dead=new ArrayList<Address>();
+                        dead.add(entry.getKey());
+                    }
+                }
+
+                Address target=nextTarget();
+                probe=current_probe=target != null? new Probe(target, ++seqno) : null;
+            }
+
+            // PING_REQs which didn't get an ACK from the target
+            for(Iterator<Forward> it=forwards.values().iterator(); it.hasNext();)
+                if(now - it.next().timestamp > protocol_period)
+                    it.remove();
+
+            suspect(dead);
+            if(probe == null)
+                return;
+            num_probes_sent++;
+            send(probe.target, FdSwimHeader.PING, probe.seqno, null);
+            if(indirect_probes > 0)
+                timer.schedule(new Runnable() {
+                    public void run() {
+                        sendProbeRequests(probe);
+                    }
+                }, ack_timeout, TimeUnit.MILLISECONDS);
+        }
+
+        protected void sendProbeRequests(Probe probe) {
+            List<Address> helpers;
+            synchronized(FD_SWIM.this) {
+                if(probe != current_probe || probe.acked)
+                    return;
+                helpers=new ArrayList<Address>(pickHelpers(probe.target));
+            }
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": no ACK from " + probe.target + ", asking " + helpers + " to probe it");
+            for(Address helper: helpers) {
+                num_probe_requests_sent++;
+                send(helper, FdSwimHeader.PING_REQ, probe.seqno, probe.target);
+            }
+        }
+
+        public String toString() {
+            return FD_SWIM.class.getSimpleName() + ": " + getClass().getSimpleName() + " (period=" + protocol_period + " ms)";
+        }
+    }
+
+
+    protected static class MemberState {
+        protected byte          status=ALIVE;
+        protected int           incarnation;
+        protected long          suspect_time;
+        protected volatile long last_heard=System.currentTimeMillis();
+    }
+
+    protected static class Probe {
+        protected final Address target;
+        protected final long    seqno;
+        protected boolean       acked;
+
+        public Probe(Address target, long seqno) {
+            this.target=target;
+            this.seqno=seqno;
+        }
+    }
+
+    protected static class Forward {
+        protected final Address requester;
+        protected final long    seqno; // the seqno of the requester's PING_REQ
+        protected final long    timestamp=System.currentTimeMillis();
+
+        public Forward(Address requester, long seqno) {
+            this.requester=requester;
+            this.seqno=seqno;
+        }
+    }
+
+    protected static class Gossip implements Comparable<Gossip> {
+        protected final Update update;
+        protected int          num_sent;
+
+        public Gossip(Update update) {this.update=update;}
+
+        public int compareTo(Gossip other) {
+            return num_sent < other.num_sent? -1 : num_sent > other.num_sent? 1 : 0;
+        }
+    }
+
+    /** A membership update: the status of a member with a given incarnation */
+    protected static class Update {
+        protected final Address mbr;
+        protected final byte    status;
+        protected final int     incarnation;
+
+        public Update(Address mbr, byte status, int incarnation) {
+            this.mbr=mbr;
+            this.status=status;
+            this.incarnation=incarnation;
+        }
+
+        public int size() {
+            return Util.size(mbr) + Global.BYTE_SIZE + Global.INT_SIZE;
+        }
+
+        public String toString() {
+            return mbr + ": " + print(status) + " (" + incarnation + ")";
+        }
+    }
+
+
+    public static class FdSwimHeader extends Header {
+        public static final byte PING=1, PING_REQ=2, ACK=3;
+
+        protected byte         type;
+        protected long         seqno;
+        protected Address      target;  // the member to probe (PING_REQ), or the probed member (forwarded ACK)
+        protected List<Update> updates; // piggybacked membership updates, may be null
+
+        public FdSwimHeader() {}
+
+        public FdSwimHeader(byte type, long seqno, Address target, List<Update> updates) {
+            this.type=type;
+            this.seqno=seqno;
+            this.target=target;
+            this.updates=updates;
+        }
+
+        public int size() {
+            int retval=Global.BYTE_SIZE + Global.LONG_SIZE + Util.size(target) + Global.SHORT_SIZE;
+            if(updates != null)
+                for(Update update: updates)
+                    retval+=update.size();
+            return retval;
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeByte(type);
+            out.writeLong(seqno);
+            Util.writeAddress(target, out);
+            out.writeShort(updates != null? updates.size() : 0);
+            if(updates != null) {
+                for(Update update: updates) {
+                    Util.writeAddress(update.mbr, out);
+                    out.writeByte(update.status);
+                    out.writeInt(update.incarnation);
+                }
+            }
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            type=in.readByte();
+            seqno=in.readLong();
+            target=Util.readAddress(in);
+            int num=in.readShort();
+            if(num > 0) {
+                updates=new ArrayList<Update>(num);
+                for(int i=0; i < num; i++)
+                    updates.add(new Update(Util.readAddress(in), in.readByte(), in.readInt()));
+            }
+        }
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder();
+            switch(type) {
+                case PING:     sb.append("PING"); break;
+                case PING_REQ: sb.append("PING_REQ"); break;
+                case ACK:      sb.append("ACK"); break;
+            }
+            sb.append(" #").append(seqno);
+            if(target != null)
+                sb.append(", target=").append(target);
+            if(updates != null && !updates.isEmpty())
+                sb.append(", updates=").append(updates);
+            return sb.toString();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.jgroups.protocols;
 
 import org.jgroups.Address;
 import org.jgroups.Event;
+import org.jgroups.Global;
 import org.jgroups.PhysicalAddress;
 import org.jgroups.View;
 import org.jgroups.annotations.Property;
@@ -9,7 +10,9 @@ import org.jgroups.util.UUID;
 import org.jgroups.util.Util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.util.*;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -19,11 +22,19 @@ import java.util.concurrent.TimeUnit;
  * Simple discovery protocol which uses a file on shared storage such as an SMB share, NFS mount or S3. The local
  * address information, e.g. UUID and physical addresses mappings are written to the file and the content is read and
  * added to our transport's UUID-PhysicalAddress cache.<p/>
+ * By default, every member writes its information to a separate file. With single_file=true, the information of all
+ * members is kept in fixed-size slots of a single file per cluster: a member updates its own slot in place and the
+ * file is read with one sequential read on discovery.<p/>
  * The design is at doc/design/FILE_PING.txt
  * @author Bela Ban
  */
 public class FILE_PING extends Discovery {
     protected static final String SUFFIX=".node";
+    protected static final String LIST_SUFFIX=".list";
+    protected static final byte   SLOT_FREE=0, SLOT_USED=1;
+    protected static final int    SLOT_HEADER=Global.BYTE_SIZE + Global.SHORT_SIZE; // status, length
+    /** Serializes slot claims of all members in this JVM (a FileLock is held per JVM, not per channel) */
+    protected static final Object slot_lock=new Object();
 
     /* -----------------------------------------    Properties     -------------------------------------------------- */
 
@@ -34,18 +45,37 @@ public class FILE_PING extends Discovery {
     @Property(description="Interval (in milliseconds) at which the own Address is written. 0 disables it.")
     protected long interval=60000;
 
+    @Property(description="Stores the information of all members of a cluster in fixed-size slots of a single file " +
+      "(<location>/<cluster>" + LIST_SUFFIX + "), rather than in one file per member. Only supported by FILE_PING " +
+      "itself, not by its subclasses")
+    protected boolean single_file=false;
+
+    @Property(description="Size (in bytes) of a member's slot in the single file. Needs to be large enough for " +
+      "the serialized discovery data (address, logical name and physical address) of a member")
+    protected int slot_size=256;
+
 
     /* --------------------------------------------- Fields ------------------------------------------------------ */
     protected File root_dir=null;
     protected FilenameFilter filter;
     private Future<?> writer_future;
+    /** The index of our slot in the single file, -1 if not yet known */
+    protected volatile int my_slot=-1;
 
 
     public void init() throws Exception {
         super.init();
+        if(single_file && getClass() != FILE_PING.class)
+            throw new IllegalArgumentException("single_file is not supported by " + getClass().getSimpleName());
+        if(single_file && slot_size <= SLOT_HEADER + 32)
+            throw new IllegalArgumentException("slot_size (" + slot_size + ") is too small");
         createRootDir();
     }
 
+    public void handleConnect() {
+        my_slot=-1;
+    }
+
     public void start() throws Exception {
         super.start();
         if(interval > 0)
@@ -127,17 +157,29 @@ public class FILE_PING extends Discovery {
     protected void handleView(View view) {
         Collection<Address> mbrs=view.getMembers();
         boolean is_coordinator=!mbrs.isEmpty() && mbrs.iterator().next().equals(local_addr);
+        if(is_coordinator && single_file) {
+            clearSlots(group_addr, mbrs);
+            return;
+        }
         if(is_coordinator) {
             List<PingData> data=readAll(group_addr);
+            List<Address> to_be_removed=new ArrayList<Address>();
             for(PingData entry: data) {
-                Address addr=entry.getAddress();
-                if(addr != null && !mbrs.contains(addr)) {
-                    remove(group_addr, addr);
-                }
+                Address addr=entry != null? entry.getAddress() : null;
+                if(addr != null && !mbrs.contains(addr))
+                    to_be_removed.add(addr);
             }
+            if(!to_be_removed.isEmpty())
+                removeAll(group_addr, to_be_removed);
         }
     }
 
+    /** Removes the information of all given members. Subclasses can override this, e.g. to remove them in a batch */
+    protected void removeAll(String clustername, Collection<Address> addrs) {
+        for(Address addr: addrs)
+            remove(clustername, addr);
+    }
+
     protected void remove(String clustername, Address addr) {
         if(clustername == null || addr == null)
             return;
@@ -156,10 +198,14 @@ public class FILE_PING extends Discovery {
     }
 
     /**
-     * Reads all information from the given directory under clustername
+     * Reads all information from the given directory under clustername, or from the single file
      * @return
      */
-    protected synchronized List<PingData> readAll(String clustername) {
+    protected List<PingData> readAll(String clustername) {
+        return single_file? readAllFromSlots(clustername) : readAllFromFiles(clustername);
+    }
+
+    protected synchronized List<PingData> readAllFromFiles(String clustername) {
         List<PingData> retval=new ArrayList<PingData>();
         File dir=new File(root_dir,clustername);
         if(!dir.exists())
@@ -214,6 +260,10 @@ public class FILE_PING extends Discovery {
     }
 
     protected synchronized void writeToFile(PingData data, String clustername) {
+        if(single_file) {
+            writeToSlot(data, clustername);
+            return;
+        }
         File dir=new File(root_dir,clustername);
         if(!dir.exists())
             dir.mkdir();
@@ -249,6 +299,176 @@ public class FILE_PING extends Discovery {
         }
     }
 
+    /**
+     * Reads the single file of a cluster with one sequential read. The file is opened (and closed) on every read, as
+     * NFS only guarantees close-to-open consistency. Slots which are being written concurrently and cannot be parsed
+     * are skipped; they'll be read correctly on the next discovery round
+     */
+    protected List<PingData> readAllFromSlots(String clustername) {
+        File file=new File(root_dir, clustername + LIST_SUFFIX);
+        if(!file.exists())
+            return new ArrayList<PingData>();
+        RandomAccessFile raf=null;
+        try {
+            raf=new RandomAccessFile(file, "r");
+            byte[] buf=new byte[(int)raf.length()];
+            raf.readFully(buf);
+            return readSlots(buf);
+        }
+        catch(Exception e) {
+            log.error("failed reading " + file.getAbsolutePath(), e);
+            return new ArrayList<PingData>();
+        }
+        finally {
+            Util.close(raf);
+        }
+    }
+
+    protected List<PingData> readSlots(byte[] buf) {
+        List<PingData> retval=new ArrayList<PingData>(buf.length / slot_size);
+        for(int offset=0; offset + slot_size <= buf.length; offset+=slot_size) {
+            PingData data=readSlot(buf, offset);
+            if(data != null)
+                retval.add(data);
+        }
+        return retval;
+    }
+
+    /** Returns the data of the slot at offset, or null if the slot is free or cannot be parsed */
+    protected PingData readSlot(byte[] buf, int offset) {
+        if(buf[offset] != SLOT_USED)
+            return null;
+        int length=((buf[offset+1] & 0xff) << 8) + (buf[offset+2] & 0xff);
+        if(length <= 0 || length > slot_size - SLOT_HEADER)
+            return null;
+        try {
+            return (PingData)Util.streamableFromByteBuffer(PingData.class, buf, offset + SLOT_HEADER, length);
+        }
+        catch(Exception e) {
+            if(log.isTraceEnabled())
+                log.trace("failed parsing slot " + offset / slot_size + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes our data to our slot in the single file. If we don't know our slot yet, or it was cleared and taken by a
+     * different member, a slot is claimed under a file lock: the slot which already has our address, or the first free
+     * slot, or a new slot appended to the file
+     */
+    protected void writeToSlot(PingData data, String clustername) {
+        if(data == null || data.getAddress() == null)
+            return;
+        ByteBuffer slot;
+        try {
+            byte[] buf=Util.streamableToByteBuffer(data);
+            if(buf.length > slot_size - SLOT_HEADER) {
+                log.error("size of discovery data (" + buf.length + " bytes) is greater than the slot_size (" +
+                            slot_size + ") minus " + SLOT_HEADER + " bytes; cannot write it to the file");
+                return;
+            }
+            slot=ByteBuffer.allocate(slot_size);
+            slot.put(SLOT_USED).putShort((short)buf.length).put(buf).rewind();
+        }
+        catch(Exception e) {
+            log.error("failed serializing " + data, e);
+            return;
+        }
+
+        File file=new File(root_dir, clustername + LIST_SUFFIX);
+        RandomAccessFile raf=null;
+        try {
+            raf=new RandomAccessFile(file, "rw");
+            FileChannel ch=raf.getChannel();
+            int index=my_slot;
+            if(index >= 0 && data.getAddress().equals(slotOwner(ch, index))) {
+                ch.write(slot, (long)index * slot_size);
+                return;
+            }
+            synchronized(slot_lock) {
+                FileLock lock=ch.lock();
+                try {
+                    byte[] buf=new byte[(int)ch.size()];
+                    ch.read(ByteBuffer.wrap(buf), 0);
+                    index=findSlot(buf, data.getAddress());
+                    ch.write(slot, (long)index * slot_size);
+                    my_slot=index;
+                    if(log.isTraceEnabled())
+                        log.trace(local_addr + ": claimed slot " + index + " in " + file.getName());
+                }
+                finally {
+                    lock.release();
+                }
+            }
+        }
+        catch(Exception e) {
+            log.error("failed writing to " + file.getAbsolutePath(), e);
+        }
+        finally {
+            Util.close(raf);
+        }
+    }
+
+    /** Returns the slot with the given address, or the first free slot, or the index of a new slot at the end */
+    protected int findSlot(byte[] buf, Address addr) {
+        int num_slots=buf.length / slot_size, first_free=-1;
+        for(int i=0; i < num_slots; i++) {
+            PingData data=readSlot(buf, i * slot_size);
+            if(data == null) {
+                if(first_free < 0)
+                    first_free=i;
+            }
+            else if(addr.equals(data.getAddress()))
+                return i;
+        }
+        return first_free >= 0? first_free : num_slots;
+    }
+
+    protected Address slotOwner(FileChannel ch, int index) throws IOException {
+        ByteBuffer buf=ByteBuffer.allocate(slot_size);
+        ch.read(buf, (long)index * slot_size);
+        if(buf.position() < slot_size)
+            return null;
+        PingData data=readSlot(buf.array(), 0);
+        return data != null? data.getAddress() : null;
+    }
+
+    /** Frees the slots of all members which are not in mbrs */
+    protected void clearSlots(String clustername, Collection<Address> mbrs) {
+        File file=new File(root_dir, clustername + LIST_SUFFIX);
+        if(!file.exists())
+            return;
+        RandomAccessFile raf=null;
+        try {
+            raf=new RandomAccessFile(file, "rw");
+            FileChannel ch=raf.getChannel();
+            synchronized(slot_lock) {
+                FileLock lock=ch.lock();
+                try {
+                    byte[] buf=new byte[(int)ch.size()];
+                    ch.read(ByteBuffer.wrap(buf), 0);
+                    for(int i=0; i < buf.length / slot_size; i++) {
+                        PingData data=readSlot(buf, i * slot_size);
+                        if(data != null && data.getAddress() != null && !mbrs.contains(data.getAddress())) {
+                            ch.write(ByteBuffer.wrap(new byte[]{SLOT_FREE}), (long)i * slot_size);
+                            if(log.isDebugEnabled())
+                                log.debug("removed " + data.getAddress() + " from slot " + i + " of " + file.getName());
+                        }
+                    }
+                }
+                finally {
+                    lock.release();
+                }
+            }
+        }
+        catch(Exception e) {
+            log.error("failed clearing slots in " + file.getAbsolutePath(), e);
+        }
+        finally {
+            Util.close(raf);
+        }
+    }
+
     protected class WriterTask implements Runnable {
         public void run() {
             PhysicalAddress physical_addr=(PhysicalAddress)down(new Event(Event.GET_PHYSICAL_ADDRESS, local_addr));
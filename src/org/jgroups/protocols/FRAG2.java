@@ -6,12 +6,18 @@ import org.jgroups.Message;
 import org.jgroups.View;
 import org.jgroups.annotations.*;
 import org.jgroups.stack.Protocol;
-import org.jgroups.util.MessageBatch;
-import org.jgroups.util.Range;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -35,6 +41,24 @@ import java.util.concurrent.locks.ReentrantLock;
  * byte[] array anyway. We assume that the size addition for headers and src and
  * dest address is minimal when the transport finally has to serialize the
  * message, so we add a constant (200 bytes).
+ * <p>
+ * With zero_copy_reassembly, the receiver allocates the buffer for the entire message when the first fragment is
+ * received (every fragment carries the length of the message and its offset) and copies each fragment into place
+ * when it is received, so fragments are not kept until the message is complete. With streaming_threshold, large
+ * messages are passed up as a {@link StreamingMessage} as soon as the first fragment has been received; its payload
+ * is read from an input stream which blocks until the data has been received. Protocols above FRAG2 must not access
+ * the payload of a streaming message.
+ * <p>
+ * A streaming message is passed up on a separate thread: the remaining fragments (and all other messages from the
+ * same sender) are delivered by the thread which delivered the first fragment, so if the application read the stream
+ * in receive() on that thread, it would wait forever. Therefore, streaming messages are <em>not</em> ordered with
+ * respect to other messages from the same sender.
+ * <p>
+ * Streams sent with {@link org.jgroups.JChannel#sendStream(Address,java.io.InputStream,int)} are read and sent
+ * fragment by fragment, and received into a bounded buffer (stream_buffer_size), so neither sender nor receivers
+ * hold the entire stream in memory. When the buffer is full, the delivery of further fragments blocks until the
+ * application has read from the stream; as flow control only sends credits when a message has been delivered, the
+ * sender is then blocked by UFC/MFC.
  * 
  * @author Bela Ban
  */
@@ -46,6 +70,33 @@ public class FRAG2 extends Protocol {
     
     @Property(description="The max number of bytes in a message. Larger messages will be fragmented")
     protected int                 frag_size=60000;
+
+    @Property(description="Allocates the buffer of a fragmented message when the first fragment is received and " +
+      "copies every fragment into it when received, rather than keeping all fragments and copying them into a new " +
+      "buffer when the last fragment has been received. Reduces memory and the copying on the delivery thread. " +
+      "Needs to be enabled in the sender too, which then sends fragment headers that previous versions cannot read")
+    protected boolean             zero_copy_reassembly=false;
+
+    @Property(description="Fragmented messages of at least this size (in bytes) are passed up as a StreamingMessage " +
+      "when the first fragment has been received. The payload is read from the message's input stream while the " +
+      "remaining fragments are received. Implies zero_copy_reassembly. Streaming messages are passed up on a separate " +
+      "thread, and are therefore not ordered with respect to other messages from the same sender. Needs to be set in the " +
+      "sender too, which then sends fragment headers that previous versions cannot read. 0 disables streaming")
+    protected int                 streaming_threshold=0;
+
+    @Property(description="Max length (in bytes) of a message reassembled with zero-copy reassembly or streaming. " +
+      "The buffer is allocated from the length in the header of the first fragment received, so larger messages " +
+      "are dropped")
+    protected int                 max_reassembled_size=100000000;
+
+    @Property(description="The size (in bytes) of the buffer of a stream received from sendStream(). When full, the " +
+      "delivery of further fragments of the stream (and messages from the same sender) blocks until the application " +
+      "has read from the stream, and flow control blocks the sender")
+    protected int                 stream_buffer_size=1000000;
+
+    @Property(description="Max number of threads passing up streaming messages. A thread is busy until the " +
+      "application returns from receive(). When all threads are busy, further streaming messages are dropped")
+    protected int                 max_streaming_threads=10;
   
     /* --------------------------------------------- Fields ------------------------------------------------------ */
     
@@ -55,17 +106,27 @@ public class FRAG2 extends Protocol {
      */
     protected final ConcurrentMap<Address,ConcurrentMap<Long,FragEntry>> fragment_list=Util.createConcurrentMap(11);
 
+    /** The streams (sent by sendStream()) which are currently being received, per sender and fragmentation ID */
+    protected final ConcurrentMap<Address,ConcurrentMap<Long,BlockingInputStream>> streams=Util.createConcurrentMap(11);
+
     /** Used to assign fragmentation-specific sequence IDs (monotonically increasing) */
-    protected int                 curr_id=1;
+    protected final AtomicInteger curr_id=new AtomicInteger(1);
 
     protected final List<Address> members=new ArrayList<Address>(11);
 
     protected Address             local_addr;
 
+    /** Passes up streaming messages, created in start() with the thread factory of the transport */
+    protected ExecutorService     stream_pool;
+
     @ManagedAttribute(description="Number of sent fragments")
     AtomicLong                    num_frags_sent=new AtomicLong(0);
     @ManagedAttribute(description="Number of received fragments")
     AtomicLong                    num_frags_received=new AtomicLong(0);
+    @ManagedAttribute(description="Number of messages passed up as StreamingMessage")
+    AtomicLong                    num_streaming_msgs=new AtomicLong(0);
+    @ManagedAttribute(description="Number of streams sent with sendStream()")
+    AtomicLong                    num_streams_sent=new AtomicLong(0);
 
     public int   getFragSize()                  {return frag_size;}
     public void  setFragSize(int s)             {frag_size=s;}
@@ -75,8 +136,8 @@ public class FRAG2 extends Protocol {
     public FRAG2 fragSize(int size)             {frag_size=size; return this;}
 
 
-    synchronized int getNextId() {
-        return curr_id++;
+    int getNextId() {
+        return curr_id.getAndIncrement();
     }  
 
     public void init() throws Exception {
@@ -101,10 +162,33 @@ public class FRAG2 extends Protocol {
     }
 
 
+    public void start() throws Exception {
+        super.start();
+        ThreadFactory tmp=getThreadFactory();
+        final ThreadFactory factory=tmp != null? tmp : new DefaultThreadFactory("FRAG2-stream", true, true);
+        ThreadPoolExecutor pool=new ThreadPoolExecutor(0, max_streaming_threads, 30000, TimeUnit.MILLISECONDS,
+                                                       new SynchronousQueue<Runnable>());
+        pool.setThreadFactory(new java.util.concurrent.ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return factory.newThread(r, "FRAG2-stream");
+            }
+        });
+        stream_pool=pool;
+    }
+
+    public void stop() {
+        super.stop();
+        if(stream_pool != null)
+            stream_pool.shutdown();
+    }
+
+
     public void resetStats() {
         super.resetStats();
         num_frags_sent.set(0);
         num_frags_received.set(0);
+        num_streaming_msgs.set(0);
+        num_streams_sent.set(0);
     }
 
 
@@ -119,16 +203,23 @@ public class FRAG2 extends Protocol {
             case Event.MSG:
                 Message msg=(Message)evt.getArg();
                 long size=msg.getLength();
-                if(size > frag_size) {
-                    fragment(msg);  // Fragment and pass down
-                    return null;
-                }
+                if(size > frag_size)
+                    return fragment(msg);  // Fragment and pass down
                 break;
 
             case Event.VIEW_CHANGE:
                 handleViewChange((View)evt.getArg());
                 break;
 
+            case Event.SEND_STREAM:
+                try {
+                    sendStream((StreamingMessage)evt.getArg());
+                    return true;
+                }
+                catch(IOException e) {
+                    throw new RuntimeException("failed reading the stream", e);
+                }
+
             case Event.SET_LOCAL_ADDRESS:
                 local_addr=(Address)evt.getArg();
                 break;
@@ -153,6 +244,10 @@ public class FRAG2 extends Protocol {
             case Event.MSG:
                 Message msg=(Message)evt.getArg();
                 FragHeader hdr=(FragHeader)msg.getHeader(this.id);
+                if(hdr != null && hdr.isStream()) {
+                    receiveStreamFragment(msg, hdr);
+                    return null;
+                }
                 if(hdr != null) { // needs to be defragmented
                     Message assembled_msg=unfragment(msg, hdr);
                     if(assembled_msg != null) {
@@ -179,8 +274,22 @@ public class FRAG2 extends Protocol {
     }
 
     public void up(MessageBatch batch) {
+        List<Message> remaining=null; // the first stream fragment and all messages following it
         for(Message msg: batch) {
+            if(remaining != null) {
+                remaining.add(msg);
+                batch.remove(msg);
+                continue;
+            }
             FragHeader hdr=(FragHeader)msg.getHeader(this.id);
+            if(hdr != null && hdr.isStream()) {
+                // the delivery of stream fragments may block until the stream has been passed up and read, so the
+                // messages from here on are passed up one by one, in order, after the ones processed so far
+                remaining=new ArrayList<Message>(batch.size());
+                remaining.add(msg);
+                batch.remove(msg);
+                continue;
+            }
             if(hdr != null) { // needs to be defragmented
                 Message assembled_msg=unfragment(msg,hdr);
                 if(assembled_msg != null)
@@ -193,6 +302,9 @@ public class FRAG2 extends Protocol {
         }
         if(!batch.isEmpty())
             up_prot.up(batch);
+        if(remaining != null)
+            for(Message msg: remaining)
+                up(new Event(Event.MSG, msg));
     }
 
     protected void handleViewChange(View view) {
@@ -203,7 +315,8 @@ public class FRAG2 extends Protocol {
 
         for(Address mbr: left_mbrs) {
             // the new view doesn't contain the sender, it must have left, hence we will clear its fragmentation tables
-            fragment_list.remove(mbr);
+            abortStreams(fragment_list.remove(mbr), mbr);
+            closeStreams(streams.remove(mbr), mbr);
             if(log.isTraceEnabled())
                 log.trace("[VIEW_CHANGE] removed " + mbr + " from fragmentation table");
         }
@@ -212,7 +325,8 @@ public class FRAG2 extends Protocol {
     @ManagedOperation(description="removes all fragments sent by mbr")
     public void clearFragmentsFor(Address mbr) {
         if(mbr == null) return;
-        fragment_list.remove(mbr);
+        abortStreams(fragment_list.remove(mbr), mbr);
+        closeStreams(streams.remove(mbr), mbr);
         if(log.isTraceEnabled())
             log.trace("removed " + mbr + " from fragmentation table");
     }
@@ -220,10 +334,149 @@ public class FRAG2 extends Protocol {
     @ManagedOperation(description="Removes all entries from the fragmentation table. " +
             "Dangerous: this might remove fragments that are still needed to assemble an entire message")
      public void clearAllFragments() {
+        for(Map.Entry<Address,ConcurrentMap<Long,FragEntry>> entry: fragment_list.entrySet())
+            abortStreams(entry.getValue(), entry.getKey());
         fragment_list.clear();
+        for(Map.Entry<Address,ConcurrentMap<Long,BlockingInputStream>> entry: streams.entrySet())
+            closeStreams(entry.getValue(), entry.getKey());
+        streams.clear();
+    }
+
+    /** Aborts the streams of messages from mbr which have been passed up, but not yet completely received */
+    protected static void abortStreams(Map<Long,FragEntry> frag_table, Address mbr) {
+        if(frag_table == null)
+            return;
+        for(FragEntry entry: frag_table.values())
+            if(entry.stream != null)
+                entry.stream.abort("fragments from " + mbr + " were removed");
+    }
+
+    /**
+     * Closes the streams (sent by sendStream()) from mbr which are still being received. Readers get an EOF; they can
+     * detect the truncation if the length of the stream is known
+     */
+    protected void closeStreams(Map<Long,BlockingInputStream> map, Address mbr) {
+        if(map == null)
+            return;
+        for(BlockingInputStream input: map.values()) {
+            log.warn(local_addr + ": closing stream from " + mbr + " before it has been completely received");
+            Util.close(input);
+        }
+    }
+
+    /**
+     * Reads the input stream of msg and sends it as a stream of fragments. Every fragment is a separate regular
+     * message (OOB is cleared, so fragments are delivered in order) and is therefore subject to flow control. One
+     * fragment is read ahead, so the last fragment can be marked as such.
+     */
+    protected void sendStream(StreamingMessage msg) throws IOException {
+        InputStream input=msg.getInputStream();
+        long frag_id=getNextId();
+        num_streams_sent.incrementAndGet();
+        byte[] buf=new byte[frag_size];
+        int len=readFully(input, buf);
+        for(int i=0;; i++) {
+            byte[] next=len == buf.length? new byte[frag_size] : null;
+            int next_len=next != null? readFully(input, next) : 0;
+            boolean last=next_len == 0;
+
+            Message frag_msg=msg.copy(false, i == 0).setBuffer(buf, 0, len);
+            frag_msg.clearFlag(Message.Flag.OOB);
+            frag_msg.putHeader(this.id, FragHeader.createStreamHeader(frag_id, i, msg.getStreamLength(), last));
+            num_frags_sent.incrementAndGet();
+            down_prot.down(new Event(Event.MSG, frag_msg));
+            if(last)
+                break;
+            buf=next;
+            len=next_len;
+        }
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": sent stream " + frag_id + " to " + (msg.getDest() != null? msg.getDest() : "all"));
+    }
+
+    /** Reads from input until buf is full or EOF is reached and returns the number of bytes read */
+    protected static int readFully(InputStream input, byte[] buf) throws IOException {
+        int index=0;
+        while(index < buf.length) {
+            int num=input.read(buf, index, buf.length - index);
+            if(num < 0)
+                break;
+            index+=num;
+        }
+        return index;
+    }
+
+    /**
+     * Writes a stream fragment to the stream's buffer, blocking while the buffer is full. The first fragment creates
+     * the stream and passes it up as a StreamingMessage
+     */
+    protected void receiveStreamFragment(Message msg, FragHeader hdr) {
+        Address sender=msg.getSrc();
+        num_frags_received.incrementAndGet();
+        ConcurrentMap<Long,BlockingInputStream> map=streams.get(sender);
+        if(map == null) {
+            map=Util.createConcurrentMap(11, .75f, 4);
+            ConcurrentMap<Long,BlockingInputStream> tmp=streams.putIfAbsent(sender, map);
+            if(tmp != null)
+                map=tmp;
+        }
+
+        try {
+            if(hdr.frag_id == 0) {
+                BlockingInputStream input=new BlockingInputStream(Math.max(stream_buffer_size, msg.getLength()));
+                input.write(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+                if(hdr.isLast())
+                    input.close();
+                if(passUpStream(new StreamingMessage(msg, input, hdr.original_length)) && !hdr.isLast())
+                    map.put(hdr.id, input); // else the other fragments of a dropped stream are dropped, too
+                return;
+            }
+
+            BlockingInputStream input=hdr.isLast()? map.remove(hdr.id) : map.get(hdr.id);
+            if(input == null) {
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": dropped fragment " + hdr + " from " + sender + " as the stream is closed");
+                return;
+            }
+            input.write(msg.getRawBuffer(), msg.getOffset(), msg.getLength()); // blocks while the buffer is full
+            if(hdr.isLast())
+                input.close();
+        }
+        catch(IOException e) {
+            log.error(local_addr + ": failed writing fragment " + hdr + " from " + sender + " to the stream", e);
+        }
     }
 
-    /** Send all fragments as separate messages (with same ID !).
+    /**
+     * Passes a streaming message up on a separate thread. The data of the stream is delivered by the thread which
+     * delivers the sender's messages (NAKACK2, UNICAST3), so reading the stream in receive() on that same thread would
+     * block forever. The threads are bounded by max_streaming_threads
+     * @return True if the message was passed up, false if it was dropped because all threads are busy
+     */
+    protected boolean passUpStream(final StreamingMessage msg) {
+        Runnable task=new Runnable() {
+            public void run() {
+                try {
+                    up_prot.up(new Event(Event.MSG, msg));
+                }
+                catch(Throwable t) {
+                    log.error(local_addr + ": failed passing up streaming message from " + msg.getSrc(), t);
+                }
+            }
+        };
+        try {
+            stream_pool.execute(task);
+            num_streaming_msgs.incrementAndGet();
+            return true;
+        }
+        catch(RejectedExecutionException ex) {
+            log.warn(local_addr + ": dropped streaming message from " + msg.getSrc() + " as all " +
+                       max_streaming_threads + " streaming threads are busy (or FRAG2 is stopped)");
+            return false;
+        }
+    }
+
+    /** Send all fragments as separate messages (with same ID !), passed down together in a MessageBatch.
      Example:
      <pre>
      Given the generated ID is 2344, number of fragments=3, message {dst,src,buf}
@@ -234,7 +487,8 @@ public class FRAG2 extends Protocol {
      [2344,3,2]{dst,src,buf3}
      </pre>
      */
-    protected void fragment(Message msg) {
+    protected Object fragment(Message msg) {
+        List<Message> frags;
         try {
             byte[] buffer=msg.getRawBuffer();
             final List<Range> fragments=Util.computeFragOffsets(msg.getOffset(), msg.getLength(), frag_size);
@@ -250,19 +504,30 @@ public class FRAG2 extends Protocol {
             }
 
             long frag_id=getNextId(); // used as a seqno
+            // the length and offsets are only sent if needed, so that the fragments can be read by previous versions
+            boolean offsets=zero_copy_reassembly || streaming_threshold > 0;
+            frags=new ArrayList<Message>(num_frags);
             for(int i=0; i < num_frags; i++) {
                 Range r=fragments.get(i);
                 // don't copy the buffer, only src, dest and headers. Only copy the headers one time !
                 Message frag_msg=msg.copy(false, i == 0);
                 frag_msg.setBuffer(buffer, (int)r.low, (int)r.high);
-                FragHeader hdr=new FragHeader(frag_id, i, num_frags);
+                if(msg.isTransientFlagSet(Message.TransientFlag.DONT_BLOCK)) // transient flags are not copied
+                    frag_msg.setTransientFlag(Message.TransientFlag.DONT_BLOCK);
+                FragHeader hdr=offsets? new ExtendedFragHeader(frag_id, i, num_frags, msg.getLength(), (int)r.low - msg.getOffset())
+                  : new FragHeader(frag_id, i, num_frags);
                 frag_msg.putHeader(this.id, hdr);
-                down_prot.down(new Event(Event.MSG, frag_msg));
+                frags.add(frag_msg);
             }
         }
         catch(Exception e) {
             if(log.isErrorEnabled()) log.error("fragmentation failure", e);
+            return null;
         }
+        // all fragments are passed down together, so protocols below can process them once rather than per fragment.
+        // Exceptions (e.g. flow control rejecting the fragments) are thrown to the sender
+        Address dest=msg.getDest();
+        return down_prot.down(new MessageBatch(dest, msg.getSrc(), null, dest == null, frags));
     }
 
 
@@ -288,20 +553,46 @@ public class FRAG2 extends Protocol {
 
         FragEntry entry=frag_table.get(hdr.id);
         if(entry == null) {
-            entry=new FragEntry(hdr.num_frags);
+            if(!isValid(hdr, msg.getLength())) { // checked before any buffer is allocated from the header
+                log.warn(local_addr + ": dropped invalid fragment " + hdr + " (length=" + msg.getLength() + ") from " +
+                           sender + " (frag_size=" + frag_size + ", max_reassembled_size=" + max_reassembled_size + ")");
+                return null;
+            }
+            boolean streaming=streaming_threshold > 0 && hdr.hasOffsets() && hdr.original_length >= streaming_threshold;
+            entry=hdr.hasOffsets() && (zero_copy_reassembly || streaming)? new FragEntry(hdr.num_frags, hdr.original_length, streaming)
+              : new FragEntry(hdr.num_frags);
             FragEntry tmp=frag_table.putIfAbsent(hdr.id, entry);
             if(tmp != null)
                 entry=tmp;
         }
 
+        if(!entry.fits(hdr, msg.getLength())) {
+            frag_table.remove(hdr.id, entry);
+            if(entry.stream != null)
+                entry.stream.abort("fragment " + hdr + " from " + sender + " doesn't match the message");
+            log.warn(local_addr + ": dropped message " + hdr.id + " from " + sender + " as fragment " + hdr +
+                       " (length=" + msg.getLength() + ") doesn't match it: " + entry);
+            return null;
+        }
+
+        if(entry.buffer != null) // fragments write to disjoint ranges, so the copy can be done without the lock
+            System.arraycopy(msg.getRawBuffer(), msg.getOffset(), entry.buffer, hdr.offset, msg.getLength());
+
+        StreamingMessage streaming_msg=null;
         entry.lock();
         try {
-            entry.set(hdr.frag_id, msg);
+            boolean added=entry.set(hdr.frag_id, msg);
+            if(added && entry.stream != null) {
+                entry.stream.add(hdr.offset, msg.getLength());
+                if(hdr.frag_id == 0)
+                    streaming_msg=new StreamingMessage(entry.first, entry.stream, entry.buffer.length);
+            }
             if(entry.isComplete()) {
-                assembled_msg=entry.assembleMessage();
+                if(entry.stream == null)
+                    assembled_msg=entry.assembleMessage();
                 frag_table.remove(hdr.id);
                 if(log.isTraceEnabled())
-                    log.trace(local_addr + ": unfragmented message to " + sender + " (size=" + assembled_msg.getLength() +
+                    log.trace(local_addr + ": unfragmented message from " + sender + " (size=" + entry.length() +
                                 ") from " + entry.number_of_frags_recvd + " fragments");
             }
         }
@@ -309,10 +600,28 @@ public class FRAG2 extends Protocol {
             entry.unlock();
         }
 
+        if(streaming_msg != null && !passUpStream(streaming_msg)) {
+            frag_table.remove(hdr.id, entry);
+            entry.stream.abort("streaming message " + hdr.id + " from " + sender + " was dropped");
+        }
         return assembled_msg;
     }
 
 
+    /**
+     * Checks the number of fragments and the length of the message in the header of a fragment (sent by a remote
+     * member), before an entry for the message is created. The length has to be at most num_frags times the size of
+     * a fragment (frag_size, or the length of this fragment if the sender uses a greater frag_size)
+     */
+    protected boolean isValid(FragHeader hdr, int frag_length) {
+        if(hdr.num_frags <= 0 || hdr.num_frags > max_reassembled_size)
+            return false;
+        if(!hdr.hasOffsets())
+            return true;
+        long max_length=(long)hdr.num_frags * Math.max(frag_size, frag_length);
+        return hdr.original_length >= 0 && hdr.original_length <= max_length && hdr.original_length <= max_reassembled_size;
+    }
+
     void handleConfigEvent(Map<String,Object> map) {
         if(map == null) return;
         if(map.containsKey("frag_size")) {
@@ -328,11 +637,21 @@ public class FRAG2 extends Protocol {
     /**
      * Class represents an entry for a message. Each entry holds an array of byte arrays sorted
      * once all the byte buffer entries have been filled the fragmentation is considered complete.<br/>
+     * With zero-copy reassembly, the entry holds the buffer of the entire message instead; fragments are copied into
+     * it by the caller, and only the first fragment (without payload) is kept for its headers.<br/>
      * All methods are unsynchronized, use getLock() to obtain a lock for concurrent access.
      */
     protected static class FragEntry {
-        // each fragment is a byte buffer
+        // each fragment is a byte buffer (null with zero-copy reassembly)
         final Message fragments[];
+        // the buffer of the entire message (null unless zero-copy reassembly is used)
+        final byte[] buffer;
+        // the fragments received so far (zero-copy reassembly)
+        final boolean[] received;
+        // the stream passed up with the StreamingMessage, null if the message is not streamed
+        final FragmentInputStream stream;
+        // the first fragment, without payload (zero-copy reassembly)
+        Message first;
         //the number of fragments we have received
         int number_of_frags_recvd=0;
 
@@ -345,6 +664,34 @@ public class FRAG2 extends Protocol {
          */
         protected FragEntry(int tot_frags) {
             fragments=new Message[tot_frags];
+            buffer=null;
+            received=null;
+            stream=null;
+        }
+
+        /**
+         * Creates a new entry for zero-copy reassembly
+         * @param tot_frags the number of fragments to expect for this message
+         * @param length the length of the entire message
+         * @param streaming creates a stream over the buffer, which is readable while fragments are received
+         */
+        protected FragEntry(int tot_frags, int length, boolean streaming) {
+            fragments=null;
+            buffer=new byte[length];
+            received=new boolean[tot_frags];
+            stream=streaming? new FragmentInputStream(buffer) : null;
+        }
+
+        public int length() {
+            return buffer != null? buffer.length : 0;
+        }
+
+        /** Returns true if the fragment with the given header and length belongs into this entry */
+        public boolean fits(FragHeader hdr, int frag_length) {
+            int num_frags=buffer != null? received.length : fragments.length;
+            if(hdr.frag_id < 0 || hdr.frag_id >= num_frags || hdr.num_frags != num_frags)
+                return false;
+            return buffer == null || (hdr.hasOffsets() && hdr.offset >= 0 && frag_length >= 0 && (long)hdr.offset + frag_length <= buffer.length);
         }
 
         /** Use to synchronize on FragEntry */
@@ -361,13 +708,24 @@ public class FRAG2 extends Protocol {
          * @param frag_id the number of the fragment being added 0..(tot_num_of_frags - 1)
          * @param frag the byte buffer containing the data for this fragmentation, should not be null
          */
-        public void set(int frag_id, Message frag) {
+        public boolean set(int frag_id, Message frag) {
             // don't count an already received fragment (should not happen though because the
             // reliable transmission protocol(s) below should weed out duplicates
+            if(buffer != null) {
+                if(received[frag_id])
+                    return false;
+                received[frag_id]=true;
+                if(frag_id == 0)
+                    first=frag.copy(false); // keeps the headers, but not the payload
+                number_of_frags_recvd++;
+                return true;
+            }
             if(fragments[frag_id] == null) {
                 fragments[frag_id]=frag;
                 number_of_frags_recvd++;
+                return true;
             }
+            return false;
         }
 
         /** returns true if this fragmentation is complete
@@ -375,6 +733,8 @@ public class FRAG2 extends Protocol {
          *
          */
         public boolean isComplete() {
+            if(buffer != null)
+                return number_of_frags_recvd == received.length;
             /*first make a simple check*/
             if(number_of_frags_recvd < fragments.length) {
                 return false;
@@ -397,6 +757,11 @@ public class FRAG2 extends Protocol {
          *
          */
         protected Message assembleMessage() {
+            if(buffer != null) {
+                Message retval=first;
+                first=null;
+                return retval.setBuffer(buffer);
+            }
             Message retval;
             byte[]  combined_buffer, tmp;
             int     combined_length=0, length, offset;
@@ -424,7 +789,7 @@ public class FRAG2 extends Protocol {
 
         public String toString() {
             StringBuilder ret=new StringBuilder();
-            ret.append("[tot_frags=").append(fragments.length).append(", number_of_frags_recvd=").append(number_of_frags_recvd).append(']');
+            ret.append("[tot_frags=").append(buffer != null? received.length : fragments.length).append(", number_of_frags_recvd=").append(number_of_frags_recvd).append(']');
             return ret.toString();
         }
 
@@ -9,10 +9,18 @@ import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.FutureListener;
 import org.jgroups.util.MessageBatch;
+import org.jgroups.util.SettableFuture;
 import org.jgroups.util.Util;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -82,6 +90,16 @@ public abstract class FlowControl extends Protocol {
     @Property(description="Does not block a down message if it is a result of handling an up message in the" +
             "same thread. Fixes JGRP-928",deprecatedMessage="not used any longer")
     protected boolean ignore_synchronous_response=false;
+
+    @Property(description="If true, a message sent with JChannel.sendAsync() for which there are not enough credits " +
+      "is queued instead of blocking the sender, and sent when credits are received. sendAsync() returns a future " +
+      "which completes when the message has been sent. Other senders (e.g. JChannel.send()) block until their " +
+      "message has been sent, or get an exception if it cannot be queued")
+    protected boolean non_blocking=false;
+
+    @Property(description="Max number of bytes queued per destination in non-blocking mode. A message which would " +
+      "exceed it is not sent: its future completes with an exception, or the exception is thrown to the sender")
+    protected long max_queue_size=10000000;
     
     
     
@@ -90,6 +108,12 @@ public abstract class FlowControl extends Protocol {
     protected int  num_credit_requests_received=0, num_credit_requests_sent=0;
     protected int  num_credit_responses_sent=0, num_credit_responses_received=0;
 
+    @ManagedAttribute(description="Number of messages queued in non-blocking mode because of insufficient credits")
+    protected final AtomicLong num_queued=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of messages rejected in non-blocking mode because the queue was full")
+    protected final AtomicLong num_rejected=new AtomicLong(0);
+
 
     /* --------------------------------------------- Fields ------------------------------------------------------ */
    
@@ -108,6 +132,15 @@ public abstract class FlowControl extends Protocol {
     
     protected int frag_size;
 
+    /** Messages queued in non-blocking mode for multicast destinations (MFC) */
+    protected final SendQueue mcast_queue=new SendQueue(null);
+
+    /** Messages queued in non-blocking mode, per unicast destination (UFC) */
+    protected final ConcurrentMap<Address,SendQueue> send_queues=Util.createConcurrentMap();
+
+    /** Retries sending of queued messages (and sends credit requests) in non-blocking mode */
+    protected Future<?> drain_task;
+
    
 
 
@@ -115,6 +148,37 @@ public abstract class FlowControl extends Protocol {
     public void resetStats() {
         super.resetStats();
         num_credit_responses_sent=num_credit_responses_received=num_credit_requests_received=num_credit_requests_sent=0;
+        num_queued.set(0);
+        num_rejected.set(0);
+    }
+
+    public boolean isNonBlocking()               {return non_blocking;}
+    public FlowControl setNonBlocking(boolean b) {non_blocking=b; return this;}
+
+    @ManagedAttribute(description="Number of bytes currently queued in non-blocking mode (all destinations)")
+    public long getQueuedBytes() {
+        long retval=mcast_queue.bytes();
+        for(SendQueue queue: send_queues.values())
+            retval+=queue.bytes();
+        return retval;
+    }
+
+    @ManagedAttribute(description="Number of messages currently queued in non-blocking mode (all destinations)")
+    public int getQueuedMessages() {
+        int retval=mcast_queue.size();
+        for(SendQueue queue: send_queues.values())
+            retval+=queue.size();
+        return retval;
+    }
+
+    @ManagedOperation(description="Prints the number of messages and bytes queued in non-blocking mode, per destination")
+    public String printQueues() {
+        StringBuilder sb=new StringBuilder();
+        if(!mcast_queue.isEmpty())
+            sb.append(mcast_queue).append("\n");
+        for(SendQueue queue: send_queues.values())
+            sb.append(queue).append("\n");
+        return sb.toString();
     }
 
     public long getMaxCredits() {
@@ -300,11 +364,22 @@ public abstract class FlowControl extends Protocol {
                        "(https://issues.jboss.org/browse/JGRP-1659)");
         }
         running=true;
+        if(non_blocking && max_block_time > 0) {
+            drain_task=getTransport().getTimer().scheduleWithFixedDelay(new Runnable() {
+                public void run() {drainQueues();}
+                public String toString() {return FlowControl.this.getClass().getSimpleName() + ": DrainTask";}
+            }, max_block_time, max_block_time, TimeUnit.MILLISECONDS);
+        }
     }
 
     public void stop() {
         super.stop();
         running=false;
+        if(drain_task != null) {
+            drain_task.cancel(false);
+            drain_task=null;
+        }
+        drainQueues(); // sends the queued messages without credits, as blocked senders do when not running
     }
 
 
@@ -313,9 +388,6 @@ public abstract class FlowControl extends Protocol {
         switch(evt.getType()) {
             case Event.MSG:
                 Message msg=(Message)evt.getArg();
-                if(msg.isFlagSet(Message.Flag.NO_FC))
-                    break;
-
                 Address dest=msg.getDest();
                 boolean multicast=dest == null;
                 boolean handle_multicasts=handleMulticastMessage();
@@ -323,7 +395,11 @@ public abstract class FlowControl extends Protocol {
                 if(!process)
                     break;
 
-                int length=msg.getLength();
+                int length=msg.isFlagSet(Message.Flag.NO_FC)? 0 : msg.getLength();
+                if(non_blocking) { // messages without credits are queued too, so they don't overtake queued messages
+                    Object retval=sendNonBlocking(dest, evt, length);
+                    return msg.isTransientFlagSet(Message.TransientFlag.DONT_BLOCK)? retval : waitUntilSent(retval);
+                }
                 if(length == 0)
                     break;
 
@@ -335,11 +411,115 @@ public abstract class FlowControl extends Protocol {
             
             case Event.VIEW_CHANGE:
                 handleViewChange(((View)evt.getArg()).getMembers());
+                if(non_blocking) {
+                    drainQueues();
+                    removeQueues(((View)evt.getArg()).getMembers());
+                }
                 break;
         }
         return down_prot.down(evt); // this could potentially use the lower protocol's thread which may block
     }
 
+    /**
+     * Acquires credits for all messages of the batch at once (e.g. for all fragments of a message), rather than per
+     * message. Credits are acquired for at most half of max_credits at a time, so a batch which is larger than
+     * max_credits doesn't block forever: the messages sent so far have to be received before more credits are granted.
+     * In non-blocking mode, the batch is queued or rejected as a whole (see {@link #sendNonBlocking(MessageBatch,List)})
+     */
+    public Object down(MessageBatch batch) {
+        Address dest=batch.dest();
+        boolean multicast=dest == null;
+        boolean handle_multicasts=handleMulticastMessage();
+        boolean process=(handle_multicasts && multicast) || (!handle_multicasts && !multicast);
+        if(!process)
+            return down_prot.down(batch);
+
+        long max_length=Math.max(1, max_credits / 2);
+        List<QueuedMessage> chunks=new ArrayList<QueuedMessage>();
+        List<Message> msgs=new ArrayList<Message>(batch.size());
+        int length=0;
+        for(Message msg: batch) {
+            int len=msg.isFlagSet(Message.Flag.NO_FC)? 0 : msg.getLength();
+            if(!msgs.isEmpty() && length + len > max_length) {
+                chunks.add(createChunk(batch, msgs, length));
+                msgs=new ArrayList<Message>(batch.size());
+                length=0;
+            }
+            msgs.add(msg);
+            length+=len;
+        }
+        if(!msgs.isEmpty())
+            chunks.add(createChunk(batch, msgs, length));
+
+        if(non_blocking) {
+            Object retval=sendNonBlocking(batch, chunks);
+            Message first=batch.first();
+            return first != null && first.isTransientFlagSet(Message.TransientFlag.DONT_BLOCK)? retval : waitUntilSent(retval);
+        }
+        Object retval=null;
+        for(QueuedMessage chunk: chunks) {
+            if(chunk.length > 0)
+                waitForCredits(dest, chunk.length);
+            retval=down_prot.down((MessageBatch)chunk.msg);
+        }
+        return retval;
+    }
+
+    protected static QueuedMessage createChunk(MessageBatch batch, List<Message> msgs, int length) {
+        MessageBatch tmp=new MessageBatch(batch.dest(), batch.sender(), batch.clusterName(), batch.multicast(), msgs);
+        return new QueuedMessage(tmp, length, new SettableFuture<Void>());
+    }
+
+    /**
+     * Queues all chunks of a batch, or rejects the entire batch if it doesn't fit into the queue, so receivers never
+     * get only some of the fragments of a message. The chunks are then sent in order as credits become available.
+     * @return A future which completes when all chunks have been sent, or fails when one of them could not be sent
+     */
+    protected Object sendNonBlocking(MessageBatch batch, List<QueuedMessage> chunks) {
+        Address dest=batch.dest();
+        final SendFuture future=new SendFuture(null); // the chunks are not removed when cancelled
+        SendQueue queue=getSendQueue(dest);
+        long total=0;
+        for(QueuedMessage chunk: chunks)
+            total+=chunk.length;
+
+        synchronized(queue) {
+            for(QueuedMessage chunk: chunks) {
+                if(chunk.length > max_credits || queue.bytes + total > max_queue_size) {
+                    num_rejected.incrementAndGet();
+                    future.setException(new IllegalStateException(
+                      String.format("%s: batch of %d bytes cannot be queued for %s (queued: %d bytes, max_queue_size: %d, " +
+                                      "max_credits: %d)", getClass().getSimpleName(), total,
+                                    dest != null? dest : "all", queue.bytes, max_queue_size, max_credits)));
+                    return future;
+                }
+            }
+            final AtomicInteger remaining=new AtomicInteger(chunks.size());
+            FutureListener<Void> listener=new FutureListener<Void>() {
+                public void futureDone(Future<Void> f) {
+                    try {
+                        f.get();
+                        if(remaining.decrementAndGet() == 0)
+                            future.set(null);
+                    }
+                    catch(ExecutionException ex) {
+                        future.setException(ex.getCause());
+                    }
+                    catch(Throwable t) {
+                        future.setException(t);
+                    }
+                }
+            };
+            for(QueuedMessage chunk: chunks) {
+                chunk.future.setListener(listener);
+                queue.add(chunk);
+            }
+            num_queued.incrementAndGet();
+        }
+        drain(queue);
+        return future;
+    }
+
 
     @SuppressWarnings("unchecked")
     public Object up(Event evt) {
@@ -376,6 +556,10 @@ public abstract class FlowControl extends Protocol {
 
             case Event.VIEW_CHANGE:
                 handleViewChange(((View)evt.getArg()).getMembers());
+                if(non_blocking) {
+                    drainQueues();
+                    removeQueues(((View)evt.getArg()).getMembers());
+                }
                 break;
 
             case Event.CONFIG:
@@ -392,6 +576,8 @@ public abstract class FlowControl extends Protocol {
             case FcHeader.REPLENISH:
                 num_credit_responses_received++;
                 handleCredit(msg.getSrc(), (Long)msg.getObject());
+                if(non_blocking)
+                    drain(handleMulticastMessage()? mcast_queue : send_queues.get(msg.getSrc()));
                 break;
             case FcHeader.CREDIT_REQUEST:
                 num_credit_requests_received++;
@@ -457,6 +643,142 @@ public abstract class FlowControl extends Protocol {
     
     protected abstract Object handleDownMessage(final Event evt, final Message msg, Address dest, int length);
 
+    /** Blocks until length credits have been acquired for dest (null for multicasts), or max_block_time has elapsed */
+    protected abstract void waitForCredits(Address dest, int length);
+
+    /**
+     * Acquires length credits for dest (null for multicasts) without blocking. If there are not enough credits, a
+     * credit request may be sent
+     * @return True if the credits were acquired, or if no credits are needed for dest (e.g. it is not a member)
+     */
+    protected abstract boolean tryAcquireCredits(Address dest, int length);
+
+
+    /**
+     * Sends a message (an Event) or a batch of messages if no messages are queued for dest and credits are available,
+     * or else queues it. Messages are sent in the order in which they were passed to this method.
+     * @return The result of passing the message down, or a future which completes when the queued message is sent
+     */
+    protected Object sendNonBlocking(Address dest, Object msg, int length) {
+        SendQueue queue=getSendQueue(dest);
+        synchronized(queue) {
+            if(queue.sending || !queue.isEmpty() || !(length == 0 || tryAcquireCredits(dest, length))) {
+                SendFuture future=new SendFuture(queue);
+                if(length > max_credits || queue.bytes + length > max_queue_size) {
+                    num_rejected.incrementAndGet();
+                    future.setException(new IllegalStateException(
+                      String.format("%s: message of %d bytes cannot be queued for %s (queued: %d bytes, max_queue_size: %d, " +
+                                      "max_credits: %d)", getClass().getSimpleName(), length,
+                                    dest != null? dest : "all", queue.bytes, max_queue_size, max_credits)));
+                    return future;
+                }
+                queue.add(future.entry=new QueuedMessage(msg, length, future));
+                num_queued.incrementAndGet();
+                return future;
+            }
+            queue.sending=true; // we're now the only thread sending messages to dest
+        }
+        try {
+            return send(msg);
+        }
+        finally {
+            drainQueue(queue);
+        }
+    }
+
+    /**
+     * Blocks a sender which didn't ask for a future (e.g. JChannel.send()) until its queued message has been sent, so
+     * the message is never dropped silently. Throws the exception of a rejected message
+     */
+    protected static Object waitUntilSent(Object retval) {
+        if(!(retval instanceof SendFuture))
+            return retval;
+        try {
+            ((SendFuture)retval).get();
+            return null;
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt(); // the message stays queued and is sent later
+            return null;
+        }
+        catch(ExecutionException e) {
+            Throwable cause=e.getCause();
+            throw cause instanceof RuntimeException? (RuntimeException)cause : new RuntimeException(cause);
+        }
+    }
+
+    protected SendQueue getSendQueue(Address dest) {
+        SendQueue queue=dest == null? mcast_queue : send_queues.get(dest);
+        if(queue == null) {
+            SendQueue tmp=send_queues.putIfAbsent(dest, queue=new SendQueue(dest));
+            if(tmp != null)
+                queue=tmp;
+        }
+        return queue;
+    }
+
+    /** Sends the messages queued for dest if no other thread is currently sending them */
+    protected void drain(SendQueue queue) {
+        if(queue == null)
+            return;
+        synchronized(queue) {
+            if(queue.sending || queue.isEmpty())
+                return;
+            queue.sending=true;
+        }
+        drainQueue(queue);
+    }
+
+    /** Retries all queues, e.g. after a view change (messages to members which left are sent without credits) */
+    protected void drainQueues() {
+        drain(mcast_queue);
+        for(SendQueue queue: send_queues.values())
+            drain(queue);
+    }
+
+    /** Removes the (empty) queues of members which are not in mbrs */
+    protected void removeQueues(List<Address> mbrs) {
+        for(Iterator<Map.Entry<Address,SendQueue>> it=send_queues.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Address,SendQueue> entry=it.next();
+            SendQueue queue=entry.getValue();
+            if(mbrs.contains(entry.getKey()))
+                continue;
+            synchronized(queue) {
+                if(queue.isEmpty() && !queue.sending)
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * Sends queued messages for as long as credits are available (or regardless of credits when not running).
+     * Must only be called by the thread which set queue.sending
+     */
+    protected void drainQueue(SendQueue queue) {
+        for(;;) {
+            QueuedMessage entry;
+            synchronized(queue) {
+                entry=queue.peek();
+                if(entry == null || (running && entry.length > 0 && !tryAcquireCredits(queue.dest, entry.length))) {
+                    queue.sending=false;
+                    return;
+                }
+                queue.remove();
+            }
+            try {
+                send(entry.msg);
+                entry.future.set(null);
+            }
+            catch(Throwable t) {
+                entry.future.setException(t);
+            }
+        }
+    }
+
+    protected Object send(Object msg) {
+        return msg instanceof MessageBatch? down_prot.down((MessageBatch)msg) : down_prot.down((Event)msg);
+    }
+
 
 
     /**
@@ -635,4 +957,81 @@ public abstract class FlowControl extends Protocol {
     }
 
 
+
+
+    /** A message (or batch of messages) queued in non-blocking mode */
+    protected static class QueuedMessage {
+        protected final Object               msg;    // an Event or a MessageBatch
+        protected final int                  length; // the credits needed
+        protected final SettableFuture<Void> future;
+
+        protected QueuedMessage(Object msg, int length, SettableFuture<Void> future) {
+            this.msg=msg;
+            this.length=length;
+            this.future=future;
+        }
+    }
+
+    /**
+     * The future returned for a message queued (or rejected) in non-blocking mode. Cancelling it removes the message
+     * from its queue; this fails if the message is already being sent, or not in a queue (rejected, or a batch)
+     */
+    protected static class SendFuture extends SettableFuture<Void> {
+        protected final SendQueue queue;
+        protected QueuedMessage   entry; // guarded by queue
+
+        protected SendFuture(SendQueue queue) {
+            this.queue=queue;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if(queue == null)
+                return false;
+            synchronized(queue) {
+                if(entry == null || !queue.remove(entry))
+                    return false;
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    /** The messages queued for a destination in non-blocking mode. Access is synchronized on the queue */
+    protected static class SendQueue {
+        protected final Address                    dest;
+        protected final ArrayDeque<QueuedMessage>  msgs=new ArrayDeque<QueuedMessage>();
+        protected long                             bytes;   // the sum of the lengths of the queued messages
+        protected boolean                          sending; // set while a thread sends messages to dest
+
+        protected SendQueue(Address dest) {
+            this.dest=dest;
+        }
+
+        protected synchronized long    bytes()   {return bytes;}
+        protected synchronized int     size()    {return msgs.size();}
+        protected synchronized boolean isEmpty() {return msgs.isEmpty();}
+        protected QueuedMessage        peek()    {return msgs.peek();}
+
+        protected void add(QueuedMessage msg) {
+            msgs.add(msg);
+            bytes+=msg.length;
+        }
+
+        protected boolean remove(QueuedMessage msg) {
+            if(!msgs.remove(msg))
+                return false;
+            bytes-=msg.length;
+            return true;
+        }
+
+        protected QueuedMessage remove() {
+            QueuedMessage msg=msgs.poll();
+            if(msg != null)
+                bytes-=msg.length;
+            return msg;
+        }
+
+        public synchronized String toString() {
+            return (dest != null? dest : "all") + ": " + msgs.size() + " msgs, " + Util.printBytes(bytes);
+        }
+    }
 }
@@ -7,12 +7,22 @@ import org.jgroups.util.Util;
 import java.io.*;
 
 /**
+ * Header of a fragment. Has the same wire format as in previous versions; {@link ExtendedFragHeader} is used when
+ * the receiver needs the length of the message and the offset of the fragment (zero-copy reassembly, streaming)
  * @author Bela Ban
  */
 public class FragHeader extends Header {
+    /** The fragment is part of a stream (of unknown size) sent by {@link org.jgroups.JChannel#sendStream} */
+    public static final byte STREAM=1;
+    /** The fragment is the last fragment of a stream */
+    public static final byte LAST=2;
+
     public long id;
     public int  frag_id;
     public int  num_frags;
+    public int  original_length; // length of the fragmented message (ExtendedFragHeader only)
+    public int  offset;           // offset of this fragment in the fragmented message (ExtendedFragHeader only)
+    public byte flags;            // STREAM and LAST (ExtendedFragHeader only)
 
 
     public FragHeader() {
@@ -24,7 +34,24 @@ public class FragHeader extends Header {
         this.num_frags=num_frags;
     }
 
+    /** Creates the header of a stream fragment. The length of the stream is -1 if not known */
+    public static FragHeader createStreamHeader(long id, int frag_id, int stream_length, boolean last) {
+        FragHeader hdr=new ExtendedFragHeader(id, frag_id, last? frag_id+1 : 0, stream_length, 0);
+        hdr.flags=last? STREAM | LAST : STREAM;
+        return hdr;
+    }
+
+    /** True if original_length and offset were sent with the fragment */
+    public boolean hasOffsets() {return false;}
+    public boolean isStream()   {return (flags & STREAM) == STREAM;}
+    public boolean isLast()   {return (flags & LAST) == LAST;}
+
     public String toString() {
+        if(isStream())
+            return "[id=" + id + ", frag_id=" + frag_id + ", stream" + (isLast()? ", last" : "") + ']';
+        if(hasOffsets())
+            return "[id=" + id + ", frag_id=" + frag_id + ", num_frags=" + num_frags + ", offset=" + offset +
+              ", original_length=" + original_length + ']';
         return "[id=" + id + ", frag_id=" + frag_id + ", num_frags=" + num_frags + ']';
     }
 
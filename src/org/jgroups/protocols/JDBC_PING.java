@@ -1,15 +1,19 @@
 package org.jgroups.protocols;
 
 import org.jgroups.Address;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>Discovery protocol using a JDBC connection to a shared database.
@@ -27,6 +31,9 @@ import java.util.List;
  * operation are not considered critical. Set the <code>initialize_sql</code>
  * to an empty value to prevent this initial table creation, or change it to
  * create a customized table.</p>
+ *
+ * <p>Connections opened via the connection_* properties are kept in a small pool (connection_pool_size) and reused,
+ * together with their prepared statements. A DataSource from JNDI is expected to do its own pooling.</p>
  * 
  * @author Sanne Grinovero
  * @since 2.12
@@ -76,16 +83,37 @@ public class JDBC_PING extends FILE_PING {
         "properties must be empty.")
     protected String datasource_jndi_name;
 
+    @Property(description = "Max number of idle connections kept for reuse, together with their prepared statements. " +
+        "Only used with the connection_* properties, not with a DataSource from JNDI. 0 disables pooling")
+    protected int connection_pool_size = 2;
+
     /* --------------------------------------------- Fields ------------------------------------------------------ */
 
     private DataSource dataSourceFromJNDI = null;
 
+    /** Idle connections, null if pooling is disabled */
+    protected BlockingQueue<Connection> pool;
+
+    /** The prepared statements of the pooled connections, keyed by connection and SQL */
+    protected final ConcurrentMap<Connection,Map<String,PreparedStatement>> statements =
+        new ConcurrentHashMap<Connection,Map<String,PreparedStatement>>();
+
+    protected final AtomicInteger num_connections_opened = new AtomicInteger();
+
+    @ManagedAttribute(description = "Number of connections opened to the database")
+    public int getNumConnectionsOpened() {return num_connections_opened.get();}
+
+    @ManagedAttribute(description = "Number of idle connections in the pool")
+    public int getNumIdleConnections() {return pool != null? pool.size() : 0;}
+
     @Override
     public void init() throws Exception {
         super.init();
         verifyconfigurationParameters();
         if (stringIsEmpty(datasource_jndi_name)) {
             loadDriver();
+            if (connection_pool_size > 0)
+                pool = new ArrayBlockingQueue<Connection>(connection_pool_size);
         }
         else {
             dataSourceFromJNDI = getDataSourceFromJNDI(datasource_jndi_name.trim());
@@ -103,6 +131,12 @@ public class JDBC_PING extends FILE_PING {
         super.stop();
     }
 
+    @Override
+    public void destroy() {
+        closeIdleConnections();
+        super.destroy();
+    }
+
     protected void attemptSchemaInitialization() {
         if (stringIsEmpty(initialize_sql)) {
             log.debug("Table creation step skipped: initialize_sql property is missing");
@@ -154,6 +188,11 @@ public class JDBC_PING extends FILE_PING {
     protected Connection getConnection() {
         if (dataSourceFromJNDI == null) {
             Connection connection;
+            while (pool != null && (connection = pool.poll()) != null) {
+                if (!isClosed(connection))
+                    return connection;
+                closeConnection(connection, false);
+            }
             try {
                 connection = DriverManager.getConnection(
                             connection_url, connection_username, connection_password);
@@ -164,6 +203,8 @@ public class JDBC_PING extends FILE_PING {
             if (connection == null) {
                 log.error("Received null connection from the DriverManager!");
             }
+            else
+                num_connections_opened.incrementAndGet();
             return connection;
         }
         else {
@@ -193,17 +234,51 @@ public class JDBC_PING extends FILE_PING {
         }
     }
 
+    /** Removes all given members with a single batch of delete statements */
+    @Override
+    protected void removeAll(String clustername, Collection<Address> addrs) {
+        final Connection connection = getConnection();
+        if (connection != null) {
+            boolean reuse = false;
+            try {
+                PreparedStatement ps = prepareStatement(connection, delete_single_sql);
+                try {
+                    for (Address addr : addrs) {
+                        ps.setString(1, addressAsString(addr));
+                        ps.setString(2, clustername);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                } finally {
+                    closeStatement(ps);
+                }
+                reuse = true;
+                if (log.isDebugEnabled())
+                    log.debug("Removed " + addrs + " for clustername " + clustername + " from database.");
+            } catch (SQLException e) {
+                log.error("Error updating JDBC_PING table", e);
+            } finally {
+                closeConnection(connection, reuse);
+            }
+        } else {
+            log.error("Failed to delete PingData in database");
+        }
+    }
+
     @Override
     protected List<PingData> readAll(String clustername) {
         final Connection connection = getConnection();
         if (connection != null) {
+            boolean reuse = false;
             try {
-                return readAll(connection, clustername);
+                List<PingData> retval = readAll(connection, clustername);
+                reuse = true;
+                return retval;
             } catch (SQLException e) {
                 log.error("Error reading JDBC_PING table", e);
                 return Collections.emptyList();
             } finally {
-                closeConnection(connection);
+                closeConnection(connection, reuse);
             }
         } else {
             return Collections.emptyList();
@@ -211,19 +286,23 @@ public class JDBC_PING extends FILE_PING {
     }
 
     protected List<PingData> readAll(Connection connection, String clustername) throws SQLException {
-        PreparedStatement ps = connection.prepareStatement(select_all_pingdata_sql);
+        PreparedStatement ps = prepareStatement(connection, select_all_pingdata_sql);
         try {
             ps.setString(1, clustername);
             ResultSet resultSet = ps.executeQuery();
-            ArrayList<PingData> results = new ArrayList<PingData>();
-            while (resultSet.next()) {
-                byte[] bytes = resultSet.getBytes(1);
-                PingData pingData = deserialize(bytes);
-                results.add(pingData);
+            try {
+                ArrayList<PingData> results = new ArrayList<PingData>();
+                while (resultSet.next()) {
+                    byte[] bytes = resultSet.getBytes(1);
+                    PingData pingData = deserialize(bytes);
+                    results.add(pingData);
+                }
+                return results;
+            } finally {
+                resultSet.close();
             }
-            return results;
         } finally {
-            ps.close();
+            closeStatement(ps);
         }
     }
 
@@ -239,13 +318,15 @@ public class JDBC_PING extends FILE_PING {
         final String ownAddress = addressAsString(data.getAddress());
         final Connection connection = getConnection();
         if (connection != null) {
+            boolean reuse = false;
             try {
                 delete(connection, clustername, ownAddress);
                 insert(connection, data, clustername, ownAddress);
+                reuse = true;
             } catch (SQLException e) {
                 log.error("Error updating JDBC_PING table", e);
             } finally {
-                closeConnection(connection);
+                closeConnection(connection, reuse);
             }
         }
         else {
@@ -255,7 +336,7 @@ public class JDBC_PING extends FILE_PING {
 
     protected synchronized void insert(Connection connection, PingData data, String clustername, String address) throws SQLException {
         final byte[] serializedPingData = serializeWithoutView(data);
-        PreparedStatement ps = connection.prepareStatement(insert_single_sql);
+        PreparedStatement ps = prepareStatement(connection, insert_single_sql);
         try {
             ps.setString(1, address);
             ps.setString(2, clustername);
@@ -264,12 +345,12 @@ public class JDBC_PING extends FILE_PING {
             if (log.isDebugEnabled())
                 log.debug("Registered " + address + " for clustername " + clustername + " into database.");
         } finally {
-            ps.close();
+            closeStatement(ps);
         }
     }
 
     protected synchronized void delete(Connection connection, String clustername, String addressToDelete) throws SQLException {
-        PreparedStatement ps = connection.prepareStatement(delete_single_sql);
+        PreparedStatement ps = prepareStatement(connection, delete_single_sql);
         try {
             ps.setString(1, addressToDelete);
             ps.setString(2, clustername);
@@ -277,19 +358,21 @@ public class JDBC_PING extends FILE_PING {
             if (log.isDebugEnabled())
                 log.debug("Removed " + addressToDelete + " for clustername " + clustername + " from database.");
         } finally {
-            ps.close();
+            closeStatement(ps);
         }
     }
     
     protected void delete(String clustername, String addressToDelete) throws SQLException {
         final Connection connection = getConnection();
         if (connection != null) {
+            boolean reuse = false;
             try {
                 delete(connection, clustername, addressToDelete);
+                reuse = true;
             } catch (SQLException e) {
                 log.error("Error updating JDBC_PING table", e);
             } finally {
-                closeConnection(connection);
+                closeConnection(connection, reuse);
             }
         } else {
             log.error("Failed to delete PingData in database");
@@ -303,12 +386,70 @@ public class JDBC_PING extends FILE_PING {
 
     
     protected void closeConnection(final Connection connection) {
+        closeConnection(connection, true);
+    }
+
+    /**
+     * Returns the connection to the pool if reuse is true and the pool isn't full, or closes it (and its prepared
+     * statements) otherwise. A connection on which an operation failed is not reused
+     */
+    protected void closeConnection(final Connection connection, boolean reuse) {
+        if (reuse && pool != null && !isClosed(connection) && pool.offer(connection))
+            return;
+        Map<String,PreparedStatement> stmts = statements.remove(connection);
+        if (stmts != null) {
+            for (PreparedStatement ps : stmts.values()) {
+                try {
+                    ps.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
         try {
             connection.close();
         } catch (SQLException e) {
             log.error("Error closing connection to JDBC_PING database", e);
         }
     }
+
+    protected void closeIdleConnections() {
+        Connection connection;
+        while (pool != null && (connection = pool.poll()) != null)
+            closeConnection(connection, false);
+    }
+
+    /** Returns the prepared statement for sql, which is reused as long as the (pooled) connection is open */
+    protected PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+        if (pool == null)
+            return connection.prepareStatement(sql);
+        Map<String,PreparedStatement> stmts = statements.get(connection);
+        if (stmts == null) {
+            // a connection is only used by one thread at a time, so there are no concurrent puts for it
+            stmts = new HashMap<String,PreparedStatement>();
+            statements.put(connection, stmts);
+        }
+        PreparedStatement ps = stmts.get(sql);
+        if (ps == null) {
+            ps = connection.prepareStatement(sql);
+            stmts.put(sql, ps);
+        }
+        return ps;
+    }
+
+    protected void closeStatement(PreparedStatement ps) throws SQLException {
+        if (pool == null)
+            ps.close();
+        else
+            ps.clearParameters();
+    }
+
+    protected static boolean isClosed(Connection connection) {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
     
     protected DataSource getDataSourceFromJNDI(String name) {
         final DataSource dataSource;
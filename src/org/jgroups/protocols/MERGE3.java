@@ -30,7 +30,12 @@ import java.util.concurrent.Future;
  * The others do nothing.<p/>
  * The advantage compared to {@link MERGE2} is that there are no merge collisions caused by multiple merges going on.
  * Also, the INFO traffic is spread out over max_interval, and every member sends its physical address with INFO, so
- * we don't need to fetch the physical address first.
+ * we don't need to fetch the physical address first.<p/>
+ * In large clusters, the INFO traffic can be reduced by setting max_info_senders: only the first max_info_senders
+ * members of a view (the coordinator and its backups) then send an INFO message every interval, and the other members
+ * take turns, so that every member still sends an INFO message every N intervals (N = view size / max_info_senders).
+ * As the coordinator of every subgroup always sends INFO messages, a partition is still detected within
+ * {@link #getMaxDetectionTime()}. Only coordinators cache the ViewIds received in this mode.
  *
  * @author Bela Ban, Nov 2011
  * @since 3.1
@@ -47,6 +52,11 @@ public class MERGE3 extends Protocol {
     @Property(description="The max number of merge participants to be involved in a merge. 0 sets this to unlimited.")
     protected int max_participants_in_merge=100;
 
+    @Property(description="Number of members (starting with the coordinator) which send an INFO message every interval. " +
+      "The other members send an INFO message only every (view size / max_info_senders) intervals. " +
+      "0 disables this and all members send an INFO message every interval")
+    protected int max_info_senders=0;
+
     /* ---------------------------------------------- JMX -------------------------------------------------------- */
     @ManagedAttribute(description="Interval (in ms) after which we check for view inconsistencies",writable=true)
     protected long check_interval=0;
@@ -54,6 +64,14 @@ public class MERGE3 extends Protocol {
     @ManagedAttribute(description="Number of cached ViewIds")
     public int getViews() {return views.size();}
 
+    @ManagedAttribute(description="Percentiles of the time (ms) between receiving the first INFO message with a " +
+      "different ViewId and sending up the MERGE event (merge leader only)")
+    public String getMergeDetectionLatency() {return merge_detection_latency.toString();}
+
+    @ManagedAttribute(description="Max time (ms) for the merge leader to detect a subgroup: the max interval between " +
+      "2 INFO messages sent by a coordinator plus check_interval")
+    public long getMaxDetectionTime() {return Math.max(min_interval, max_interval + max_interval/2) + check_interval;}
+
     /* --------------------------------------------- Fields ------------------------------------------------------ */
 
     protected Address        local_addr=null;
@@ -69,6 +87,11 @@ public class MERGE3 extends Protocol {
     // hashmap to keep track of view-id sent in INFO messages
     protected final ConcurrentMap<ViewId,SortedSet<Address>> views=new ConcurrentHashMap<ViewId,SortedSet<Address>>(view != null? view.size() : 16);
 
+    // the time at which the first INFO message with a ViewId different from ours was received (coordinator only)
+    protected final ConcurrentMap<ViewId,Long> first_seen=new ConcurrentHashMap<ViewId,Long>();
+
+    protected final Percentiles merge_detection_latency=new Percentiles(100);
+
     protected final ResponseCollector<View> view_rsps=new ResponseCollector<View>();
 
     protected boolean        transport_supports_multicasting=true;
@@ -83,6 +106,9 @@ public class MERGE3 extends Protocol {
     @ManagedAttribute(description="Number of times a MERGE event was sent up the stack")
     protected int           num_merge_events=0;
 
+    @ManagedAttribute(description="Number of INFO messages sent")
+    protected int           num_info_msgs_sent=0;
+
     @ManagedAttribute(description="Is the view consistency checker task running")
     public synchronized boolean isViewConsistencyCheckerRunning() {
         return view_consistency_checker != null && !view_consistency_checker.isDone();
@@ -107,6 +133,12 @@ public class MERGE3 extends Protocol {
     @ManagedOperation(description="Clears the views cache")
     public void clearViews() {views.clear();}
 
+    public void resetStats() {
+        super.resetStats();
+        num_merge_events=num_info_msgs_sent=0;
+        merge_detection_latency.clear();
+    }
+
 
 
     public void init() throws Exception {
@@ -150,6 +182,12 @@ public class MERGE3 extends Protocol {
         return max_interval;
     }
 
+    public int    getMaxInfoSenders()      {return max_info_senders;}
+    public MERGE3 setMaxInfoSenders(int n) {this.max_info_senders=n; return this;}
+    public int    getNumInfoMsgsSent()     {return num_info_msgs_sent;}
+    public int    getNumMergeEvents()      {return num_merge_events;}
+    public long   getNumMergeDetections()  {return merge_detection_latency.count();}
+
 
     @Property(description="Interval (in milliseconds) when the next info " +
       "message will be sent. A random value is picked from range [1..max_interval]")
@@ -165,6 +203,18 @@ public class MERGE3 extends Protocol {
         return (long)(max_interval * 1.6);
     }
 
+    /**
+     * Returns true if the member at the given rank in a view of the given size sends an INFO message in the given
+     * round. The first max_info_senders members send in every round; the others take turns, so that every member sends
+     * at least once every (size / max_info_senders) rounds.
+     */
+    protected boolean isInfoSender(int rank, int size, long round) {
+        if(max_info_senders <= 0 || size <= max_info_senders || rank < max_info_senders) // rank -1: not in the view
+            return true;
+        int num_rounds=(size + max_info_senders - 1) / max_info_senders;
+        return (round + rank) % num_rounds == 0;
+    }
+
     protected boolean isMergeRunning() {
         Object retval=up_prot.up(new Event(Event.IS_MERGE_IN_PROGRESS));
         return retval instanceof Boolean && (Boolean)retval;
@@ -216,6 +266,7 @@ public class MERGE3 extends Protocol {
                 Object ret=down_prot.down(evt);
                 view=(View)evt.getArg();
                 clearViews();
+                first_seen.clear();
 
                 if(ergonomics && max_participants_in_merge > 0)
                     max_participants_in_merge=Math.max(100, view.size() / 3);
@@ -260,6 +311,13 @@ public class MERGE3 extends Protocol {
                                 down(new Event(Event.SET_PHYSICAL_ADDRESS,
                                                new Tuple<Address,PhysicalAddress>(sender, physical_addr)));
                         }
+                        if(max_info_senders > 0 && !is_coord) // only coordinators check for inconsistent views
+                            break;
+                        if(is_coord && hdr.view_id != null) {
+                            View cur_view=view;
+                            if(cur_view != null && !hdr.view_id.equals(cur_view.getViewId()) && !first_seen.containsKey(hdr.view_id))
+                                first_seen.putIfAbsent(hdr.view_id, System.currentTimeMillis());
+                        }
                         SortedSet<Address> existing=views.get(hdr.view_id);
                         if(existing == null) {
                             existing=new ConcurrentSkipListSet<Address>();
@@ -304,21 +362,26 @@ public class MERGE3 extends Protocol {
 
 
     protected class InfoSender implements TimeScheduler.Task {
+        protected long round;
 
         public void run() {
-            if(view == null) {
+            View tmp_view=view;
+            if(tmp_view == null) {
                 log.warn("view is null, cannot send INFO message");
                 return;
             }
+            if(!isInfoSender(tmp_view.getMembers().indexOf(local_addr), tmp_view.size(), round++))
+                return;
             PhysicalAddress physical_addr=local_addr != null?
               (PhysicalAddress)down_prot.down(new Event(Event.GET_PHYSICAL_ADDRESS, local_addr)) : null;
             String logical_name=UUID.get(local_addr);
-            ViewId view_id=view.getViewId();
+            ViewId view_id=tmp_view.getViewId();
             MergeHeader hdr=MergeHeader.createInfo(view_id, logical_name, Arrays.asList(physical_addr));
 
             if(transport_supports_multicasting) {
                 Message msg=new Message().setFlag(Message.Flag.INTERNAL).putHeader(getId(), hdr);
                 down_prot.down(new Event(Event.MSG, msg));
+                num_info_msgs_sent++;
                 return;
             }
 
@@ -340,6 +403,7 @@ public class MERGE3 extends Protocol {
                 Message info=new Message(addr).setFlag(Message.Flag.INTERNAL).putHeader(getId(), hdr);
                 down_prot.down(new Event(Event.MSG, info));
             }
+            num_info_msgs_sent++;
         }
 
         public long nextInterval() {
@@ -438,6 +502,12 @@ public class MERGE3 extends Protocol {
                     merge_views.put(entry.getKey(), entry.getValue());
 
             if(merge_views.size() >= 2) {
+                long oldest=0;
+                for(long time: first_seen.values())
+                    if(oldest == 0 || time < oldest)
+                        oldest=time;
+                if(oldest > 0)
+                    merge_detection_latency.add(System.currentTimeMillis() - oldest);
                 up_prot.up(new Event(Event.MERGE, merge_views));
                 num_merge_events++;
             }
@@ -99,6 +99,13 @@ public class MFC extends FlowControl {
             return down_prot.down(evt);
         }
 
+        waitForCredits(dest, length);
+
+        // send message - either after regular processing, or after blocking (when enough credits are available again)
+        return down_prot.down(evt);
+    }
+
+    protected void waitForCredits(Address dest, int length) {
         long block_time=max_block_times != null? getMaxBlockTime(length) : max_block_time;
         while(running) {
             boolean rc=credits.decrement(length, block_time);
@@ -111,14 +118,23 @@ public class MFC extends FlowControl {
                     sendCreditRequest(tuple.getVal1(), Math.min(max_credits, max_credits - tuple.getVal2()));
             }
         }
-        
-        // send message - either after regular processing, or after blocking (when enough credits are available again)
-        return down_prot.down(evt);
     }
 
 
 
 
+    protected boolean tryAcquireCredits(Address dest, int length) {
+        if(credits.decrement(length, 0))
+            return true;
+        if(needToSendCreditRequest()) {
+            List<Tuple<Address,Long>> targets=credits.getMembersWithCreditsLessThan(min_credits);
+            for(Tuple<Address,Long> tuple: targets)
+                sendCreditRequest(tuple.getVal1(), Math.min(max_credits, max_credits - tuple.getVal2()));
+        }
+        return false;
+    }
+
+
     protected synchronized boolean needToSendCreditRequest() {
         long curr_time=System.currentTimeMillis();
         long wait_time=curr_time - last_credit_request;
@@ -5,6 +5,7 @@ import org.jgroups.Event;
 import org.jgroups.PhysicalAddress;
 import org.jgroups.View;
 import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
@@ -14,7 +15,6 @@ import org.jgroups.util.UUID;
 import org.jgroups.util.Util;
 
 import java.io.*;
-import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -23,7 +23,11 @@ import java.util.concurrent.ConcurrentMap;
  * Persistent Discovery Cache. Caches mapping between logical and physical addresses on disk, merges them with the
  * results of the get physical address(es) events.
  * This is done by intercepting the get and set physical address(es) event. Needs to be placed between the transport and
- * the discovery protocol. The disk cache stores each mapping in a separate file, named by the logical address.
+ * the discovery protocol.<p/>
+ * The disk cache stores all mappings plus the last view (and therefore the last coordinator) of a cluster in a single
+ * file, named by the cluster name. On a restart, the discovery protocol uses the cached view to contact the last
+ * known coordinator directly (see {@link Discovery}). Files of older versions, which stored each mapping in a separate
+ * file, are read and compacted into the single file.
  *
  * @author Bela Ban
  * @since  3.3
@@ -33,17 +37,21 @@ public class PDC extends Protocol {
     protected final ConcurrentMap<Address,PhysicalAddress> cache=new ConcurrentHashMap<Address,PhysicalAddress>();
 
     /* -----------------------------------------    Properties     ----------------------------------------------- */
-    @Property(description="The absolute path of the directory for the disk cache. The mappings will be stored as " +
-      "individual files in this directory")
+    @Property(description="The absolute path of the directory for the disk cache. The mappings and the last view " +
+      "of a cluster will be stored in a file named after the cluster in this directory")
     protected String              cache_dir=File.separator + "tmp" + File.separator + "jgroups";
 
 
 
     /* --------------------------------------------- Fields ------------------------------------------------------ */
-    protected static final String SUFFIX=".node";
+    protected static final String SUFFIX=".node"; // suffix of the per-mapping files of older versions
+    protected static final String CACHE_SUFFIX=".pdc";
     protected File                root_dir;
     protected FilenameFilter      filter;
     protected Address             local_addr;
+    protected String              cluster_name;
+    /** The last view installed, read from disk on connect. Used by Discovery to contact the last coordinator */
+    protected volatile View       view;
 
 
 
@@ -58,11 +66,17 @@ public class PDC extends Protocol {
         return sb.toString();
     }
 
+    @ManagedAttribute(description="The last view, persisted to disk")
+    public String getCachedView() {
+        View tmp=view;
+        return tmp != null? tmp.toString() : "n/a";
+    }
+
 
     public void init() throws Exception {
         super.init();
         createDiskCacheFile();
-        readCacheFromDisk(); // populates the cache from disk (if the file is present found)
+        readCacheFromDisk(); // populates the cache from the files of older versions (if present)
     }
 
 
@@ -88,26 +102,37 @@ public class PDC extends Protocol {
             case Event.SET_PHYSICAL_ADDRESS:
                 Tuple<Address,PhysicalAddress> new_val=(Tuple<Address, PhysicalAddress>)evt.getArg();
                 if(new_val != null) {
-                    cache.put(new_val.getVal1(), new_val.getVal2());
-                    writeNodeToDisk(new_val.getVal1(), new_val.getVal2());
+                    PhysicalAddress old_val=cache.put(new_val.getVal1(), new_val.getVal2());
+                    if(!new_val.getVal2().equals(old_val))
+                        writeCacheToDisk();
                 }
                 break;
             case Event.REMOVE_ADDRESS:
                 Address tmp_addr=(Address)evt.getArg();
                 if(cache.remove(tmp_addr) != null)
-                    removeNodeFromDisk(tmp_addr);
+                    writeCacheToDisk();
                 break;
             case Event.SET_LOCAL_ADDRESS:
                 local_addr=(Address)evt.getArg();
                 break;
+            case Event.CONNECT:
+            case Event.CONNECT_WITH_STATE_TRANSFER:
+            case Event.CONNECT_USE_FLUSH:
+            case Event.CONNECT_WITH_STATE_TRANSFER_USE_FLUSH:
+                cluster_name=(String)evt.getArg();
+                readCacheFileFromDisk();
+                break;
+            case Event.GET_CACHED_VIEW:
+                return view;
             case Event.VIEW_CHANGE:
-                List<Address> members=((View)evt.getArg()).getMembers();
+                View new_view=(View)evt.getArg();
+                List<Address> members=new_view.getMembers();
                 for(Address mbr: cache.keySet()) {
-                    if(!members.contains(mbr)) {
+                    if(!members.contains(mbr))
                         cache.remove(mbr);
-                        removeNodeFromDisk(mbr);
-                    }
                 }
+                view=new_view;
+                writeCacheToDisk();
                 break;
         }
         return down_prot.down(evt);
@@ -134,7 +159,7 @@ public class PDC extends Protocol {
         };
     }
 
-    /** Reads all mappings from disk */
+    /** Reads the mappings stored as separate files by older versions; they're written to the cache file on connect */
     protected synchronized void readCacheFromDisk() {
         if(log.isDebugEnabled())
             log.debug("reading all mappings from disk cache " + root_dir);
@@ -166,10 +191,42 @@ public class PDC extends Protocol {
                     if(data.getLogicalName() != null && UUID.get(data.getLogicalAddr()) == null)
                         UUID.add(data.getLogicalAddr(), data.getLogicalName());
                 }
+                deleteFile(file);
             }
         }
     }
 
+    /** Reads the mappings and the last view of the cluster we're connecting to from the cache file */
+    protected synchronized void readCacheFileFromDisk() {
+        File file=new File(root_dir, cluster_name + CACHE_SUFFIX);
+        if(!file.exists())
+            return;
+        DataInputStream in=null;
+        try {
+            in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int num=in.readInt();
+            for(int i=0; i < num; i++) {
+                Mapping data=new Mapping();
+                data.readFrom(in);
+                if(data.getLogicalAddr() == null || data.getPhysicalAddr() == null)
+                    continue;
+                cache.putIfAbsent(data.getLogicalAddr(), (PhysicalAddress)data.getPhysicalAddr());
+                if(data.getLogicalName() != null && UUID.get(data.getLogicalAddr()) == null)
+                    UUID.add(data.getLogicalAddr(), data.getLogicalName());
+            }
+            view=Util.readView(in);
+            if(log.isDebugEnabled())
+                log.debug("read " + num + " mappings and view " + view + " from " + file.getAbsolutePath());
+        }
+        catch(Exception e) {
+            log.warn("failed parsing content in " + file.getAbsolutePath() + ": removing it", e);
+            deleteFile(file);
+        }
+        finally {
+            Util.close(in);
+        }
+    }
+
     private synchronized Mapping readAddressMapping(File file) {
         DataInputStream in=null;
         try {
@@ -188,86 +245,46 @@ public class PDC extends Protocol {
     }
 
 
-    protected synchronized void writeNodeToDisk(Address logical_addr, PhysicalAddress physical_addr) {
-        String filename=addressAsString(logical_addr);
-
-        // first write all data to a temporary file
-        // this is because the writing can be very slow under some circumstances
-        File tmpFile=null, destination=null;
-        try {
-            tmpFile=writeToTempFile(root_dir, logical_addr, physical_addr, UUID.get(logical_addr));
-            if(tmpFile == null)
-                return;
-
-            destination=new File(root_dir, filename + SUFFIX);
-
-            //do a file move, this is much faster and could be considered atomic on most operating systems
-            FileChannel src_ch=new FileInputStream(tmpFile).getChannel();
-            FileChannel dest_ch=new FileOutputStream(destination).getChannel();
-            src_ch.transferTo(0,src_ch.size(),dest_ch);
-            src_ch.close();
-            dest_ch.close();
-            if(log.isTraceEnabled())
-                log.trace("Moved: " + tmpFile.getName() + "->" + destination.getName());
-        }
-        catch(Exception ioe) {
-            log.error("attempt to move failed at: " + tmpFile.getName() + "->" + destination.getName(), ioe);
-        }
-        finally {
-            deleteFile(tmpFile);
-        }
-    }
-
     /**
-     * Writes the data to a temporary file.<br>
-     * The file is stored in the same directory as the other cluster files but is given the <tt>.tmp</tmp> suffix
-     * @param dir The disk cache root dir
-     * @param logical_addr The logical address
-     * @param physical_addr The physical address
-     * @return
+     * Writes all mappings and the last view to the cache file. The data is written to a temporary file first, which is
+     * then renamed, so that a concurrent reader (e.g. a restarting member sharing the cache dir) never sees a partial file
      */
-    protected File writeToTempFile(File dir, Address logical_addr, Address physical_addr, String logical_name) throws Exception {
+    protected synchronized void writeCacheToDisk() {
+        if(cluster_name == null || root_dir == null)
+            return;
+        File tmp_file=null, destination=new File(root_dir, cluster_name + CACHE_SUFFIX);
         DataOutputStream out=null;
-
-        File file=null;
-        String filename=null;
         try {
-            file=File.createTempFile("temp", null, dir);
-            filename=file.getName();
-            out=new DataOutputStream(new FileOutputStream(file));
-            Util.writeAddress(logical_addr, out);
-            Util.writeAddress(physical_addr, out);
-            Util.writeString(logical_name, out);
+            tmp_file=File.createTempFile("temp", null, root_dir);
+            out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp_file)));
+            Map<Address,PhysicalAddress> mappings=new HashMap<Address,PhysicalAddress>(cache);
+            out.writeInt(mappings.size());
+            for(Map.Entry<Address,PhysicalAddress> entry: mappings.entrySet()) {
+                Address logical_addr=entry.getKey();
+                new Mapping(logical_addr, entry.getValue(), UUID.get(logical_addr)).writeTo(out);
+            }
+            Util.writeView(view, out);
             Util.close(out);
+            out=null;
+            if(!tmp_file.renameTo(destination)) { // rename fails on some systems if the destination exists
+                deleteFile(destination);
+                if(!tmp_file.renameTo(destination))
+                    throw new IOException("failed renaming " + tmp_file.getName() + " to " + destination.getName());
+            }
             if(log.isTraceEnabled())
-                log.trace("Stored temporary file: " + file.getAbsolutePath());
+                log.trace("wrote " + mappings.size() + " mappings and view " + view + " to " + destination.getName());
         }
-        catch(Exception e) {
+        catch(Exception ex) {
+            log.error("failed writing cache file " + destination.getAbsolutePath(), ex);
+        }
+        finally {
             Util.close(out);
-            log.error("Failed to write temporary file: " + filename, e);
-            deleteFile(file);
-            return null;
+            if(tmp_file != null && tmp_file.exists())
+                deleteFile(tmp_file);
         }
-        return file;
     }
 
 
-    protected synchronized void removeNodeFromDisk(Address logical_addr) {
-        String filename=addressAsString(logical_addr);
-        deleteFile(new File(root_dir, filename + SUFFIX));
-    }
-
-
-    protected static String addressAsString(Address address) {
-        if(address == null)
-            return "";
-        if(address instanceof UUID)
-            return ((UUID) address).toStringLong();
-        return address.toString();
-    }
-
-
-
     /**
      * Attempts to delete the provided file.<br>
      * Logging is performed on the result
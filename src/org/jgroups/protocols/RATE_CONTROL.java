@@ -0,0 +1,264 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Message;
+import org.jgroups.annotations.*;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.BoundedList;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.Tuple;
+import org.jgroups.util.Util;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Congestion control for multicast messages: limits the sending rate (bytes/sec) and adjusts it with AIMD (additive
+ * increase, multiplicative decrease). Every adjust_interval ms, the rate is decreased by decrease_factor if a
+ * receiver asked for retransmission of more than loss_threshold of the messages we sent (as reported by NAKACK2 with
+ * {@link Event#XMIT_REQ_RECEIVED}), or increased by increment if there was no loss and the senders were limited by
+ * the current rate. The loss is that of the receiver reporting the most missing messages, so a message lost by all
+ * members counts once, and not once per member.<p/>
+ * Can be used instead of, or in addition to, MFC (same position in the stack). Contrary to {@link RATE_LIMITER},
+ * the rate is not static. Unicast messages are not throttled.
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Experimental
+@MBean(description="Adjusts the multicast sending rate additively/multiplicatively, based on retransmission requests")
+public class RATE_CONTROL extends Protocol {
+
+    /* -----------------------------------------    Properties     -------------------------------------------------- */
+    @Property(description="Initial sending rate (bytes/sec)")
+    protected long   initial_rate=10000000;
+
+    @Property(description="Min sending rate (bytes/sec). The rate is never decreased below this value")
+    protected long   min_rate=100000;
+
+    @Property(description="Max sending rate (bytes/sec). The rate is never increased above this value")
+    protected long   max_rate=100000000;
+
+    @Property(description="Number of bytes/sec by which the rate is increased every adjust_interval ms, if no loss " +
+      "was detected and the senders were limited by the current rate")
+    protected long   increment=500000;
+
+    @Property(description="Factor by which the rate is multiplied when loss is detected")
+    protected double decrease_factor=0.5;
+
+    @Property(description="Ratio of missing messages (reported by the retransmission requests of a single receiver) " +
+      "to sent messages in an adjust interval above which the rate is decreased")
+    protected double loss_threshold=0.01;
+
+    @Property(description="Weight of the last interval in the loss estimate (exponentially weighted moving average)")
+    protected double loss_weight=0.2;
+
+    @Property(description="Interval (ms) at which the rate is adjusted")
+    protected long   adjust_interval=100;
+
+    @Property(description="Max time (ms) for which unused bandwidth is saved up, determines the max burst size")
+    protected long   time_period=10;
+
+
+    /* --------------------------------------------- JMX      ------------------------------------------------------ */
+    @ManagedAttribute(description="Estimated ratio of lost multicast messages (moving average)")
+    protected volatile double loss_rate;
+
+    @ManagedAttribute(description="Number of times the rate was decreased")
+    protected int             num_backoffs;
+
+    @ManagedAttribute(description="Number of times the rate was increased")
+    protected int             num_increases;
+
+    @ManagedAttribute(description="Number of times a sender was blocked because the rate was exceeded")
+    protected int             num_blockings;
+
+    @ManagedAttribute(description="Number of retransmission requests for our own messages")
+    protected final AtomicLong num_xmit_reqs_received=new AtomicLong(0);
+
+    protected long            total_block_time; // ns
+
+
+    /* --------------------------------------------- Fields    ------------------------------------------------------ */
+    protected volatile long   rate;
+
+    protected final Lock      lock=new ReentrantLock();
+
+    /** The number of bytes which can be sent without blocking, may be negative after sending a large message */
+    @GuardedBy("lock")
+    protected long            tokens;
+
+    @GuardedBy("lock")
+    protected long            last_refill; // ns
+
+    /** Set when a sender blocked in the current adjust interval */
+    protected volatile boolean limited;
+
+    /** Multicast messages sent in the current adjust interval */
+    protected final AtomicLong msgs_sent=new AtomicLong(0);
+
+    /** Missing messages reported by each receiver in the current adjust interval */
+    protected final ConcurrentMap<Address,AtomicLong> msgs_missing=new ConcurrentHashMap<Address,AtomicLong>();
+
+    protected final BoundedList<String> backoffs=new BoundedList<String>(20);
+
+    protected TimeScheduler   timer;
+
+    protected Future<?>       adjust_task;
+
+
+    @ManagedAttribute(description="Current sending rate (bytes/sec)")
+    public long getRate()           {return rate;}
+    public void setRate(long rate)  {this.rate=rate;}
+    public double getLossRate()     {return loss_rate;}
+    public int  getNumBackoffs()    {return num_backoffs;}
+    public int  getNumIncreases()   {return num_increases;}
+
+    @ManagedAttribute(description="Total block time in milliseconds")
+    public long getTotalBlockTime() {
+        return TimeUnit.MILLISECONDS.convert(total_block_time, TimeUnit.NANOSECONDS);
+    }
+
+    @ManagedOperation(description="Prints the last decreases of the rate")
+    public String printBackoffs() {
+        StringBuilder sb=new StringBuilder();
+        for(String backoff: backoffs)
+            sb.append(backoff).append("\n");
+        return sb.toString();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_backoffs=num_increases=num_blockings=0;
+        total_block_time=0;
+        num_xmit_reqs_received.set(0);
+        backoffs.clear();
+    }
+
+    public void init() throws Exception {
+        super.init();
+        if(min_rate <= 0 || min_rate > max_rate)
+            throw new IllegalArgumentException("min_rate (" + min_rate + ") needs to be positive and <= max_rate (" + max_rate + ")");
+        if(initial_rate < min_rate || initial_rate > max_rate)
+            throw new IllegalArgumentException("initial_rate (" + initial_rate + ") needs to be in range [" +
+                                                 min_rate + " .. " + max_rate + "]");
+        if(decrease_factor <= 0 || decrease_factor >= 1)
+            throw new IllegalArgumentException("decrease_factor (" + decrease_factor + ") needs to be in range (0 .. 1)");
+        if(time_period <= 0 || adjust_interval <= 0)
+            throw new IllegalArgumentException("time_period and adjust_interval need to be positive");
+        rate=initial_rate;
+        tokens=rate * time_period / 1000;
+        last_refill=System.nanoTime();
+    }
+
+    public void start() throws Exception {
+        super.start();
+        timer=getTransport().getTimer();
+        adjust_task=timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {adjust();}
+            public String toString() {return RATE_CONTROL.class.getSimpleName() + ": AdjustTask (interval=" + adjust_interval + " ms)";}
+        }, adjust_interval, adjust_interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if(adjust_task != null) {
+            adjust_task.cancel(false);
+            adjust_task=null;
+        }
+        super.stop();
+    }
+
+    public Object down(Event evt) {
+        if(evt.getType() == Event.MSG) {
+            Message msg=(Message)evt.getArg();
+            if(msg.getDest() == null && !msg.isFlagSet(Message.Flag.NO_FC)) {
+                msgs_sent.incrementAndGet();
+                throttle(msg.getLength());
+            }
+        }
+        return down_prot.down(evt);
+    }
+
+    public Object up(Event evt) {
+        if(evt.getType() == Event.XMIT_REQ_RECEIVED) {
+            Tuple<?,?> tuple=(Tuple<?,?>)evt.getArg();
+            num_xmit_reqs_received.incrementAndGet();
+            Address requester=(Address)tuple.getVal1();
+            AtomicLong missing=msgs_missing.get(requester);
+            if(missing == null) {
+                AtomicLong tmp=msgs_missing.putIfAbsent(requester, missing=new AtomicLong(0));
+                if(tmp != null)
+                    missing=tmp;
+            }
+            missing.addAndGet((Integer)tuple.getVal2());
+        }
+        return up_prot.up(evt);
+    }
+
+
+    /** Blocks the sender until the tokens (bytes) accumulated at the current rate are positive, then consumes length */
+    protected void throttle(int length) {
+        lock.lock();
+        try {
+            long current_rate=rate;
+            refill(current_rate);
+            while(tokens <= 0) {
+                long block_time=(long)((1 - tokens) * 1000000000.0 / current_rate);
+                LockSupport.parkNanos(block_time);
+                num_blockings++;
+                total_block_time+=block_time;
+                limited=true;
+                refill(current_rate);
+            }
+            tokens-=length;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    protected void refill(long current_rate) {
+        long current_time=System.nanoTime(), max_tokens=Math.max(1, current_rate * time_period / 1000);
+        double new_tokens=(current_time - last_refill) * (current_rate / 1000000000.0);
+        tokens=(long)Math.min(max_tokens, tokens + new_tokens);
+        last_refill=current_time;
+    }
+
+    /** Called every adjust_interval ms: decreases the rate multiplicatively on loss, or increases it additively */
+    protected void adjust() {
+        long sent=msgs_sent.getAndSet(0), missing=0;
+        for(Address requester: msgs_missing.keySet()) { // max over all receivers
+            AtomicLong num=msgs_missing.remove(requester);
+            if(num != null)
+                missing=Math.max(missing, num.get());
+        }
+        boolean was_limited=limited;
+        limited=false;
+
+        double loss=missing == 0? 0 : Math.min(1.0, missing / (double)Math.max(1, sent));
+        loss_rate=loss_weight * loss + (1 - loss_weight) * loss_rate;
+
+        long old_rate=rate;
+        if(missing > 0 && loss >= loss_threshold) {
+            rate=Math.max(min_rate, (long)(old_rate * decrease_factor));
+            num_backoffs++;
+            String backoff=new Date() + ": " + Util.printBytes(old_rate) + "/s --> " + Util.printBytes(rate) +
+              "/s (sent=" + sent + ", missing=" + missing + ")";
+            backoffs.add(backoff);
+            if(log.isDebugEnabled())
+                log.debug("decreased rate: " + backoff);
+        }
+        else if(missing == 0 && was_limited && old_rate < max_rate) {
+            rate=Math.min(max_rate, old_rate + increment);
+            num_increases++;
+        }
+    }
+}
@@ -12,6 +12,7 @@ import org.jgroups.util.*;
 import org.jgroups.util.ThreadFactory;
 import org.jgroups.util.UUID;
 
+import javax.crypto.SecretKey;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.InterruptedIOException;
@@ -21,6 +22,8 @@ import java.net.NetworkInterface;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -54,6 +57,10 @@ public abstract class TP extends Protocol {
 
     protected static final byte LIST=1; // we have a list of messages rather than a single message when set
     protected static final byte MULTICAST=2; // message is a multicast (versus a unicast) message when set
+    protected static final byte ENCRYPTED=4; // everything after the flags is encrypted (bundle encryption) when set
+    protected static final byte COMPRESSED=8; // everything after the flags is compressed (bundle compression) when set
+    protected static final int  DATAGRAM_HDR_SIZE=Global.SHORT_SIZE + Global.BYTE_SIZE; // version and flags
+    protected static final int  BUNDLE_HDR_SLACK=1024; // serialized message list headers not counted in max_bundle_size
 
     protected static final boolean can_bind_to_mcast_addr; // are we running on Linux ?
 
@@ -325,6 +332,45 @@ public abstract class TP extends Protocol {
     @Property(description="The max number of elements in a bundler if the bundler supports size limitations")
     protected int bundler_capacity=20000;
 
+    @Property(description="Compresses every datagram (a message or a bundle of messages) larger than " +
+      "min_bundle_compression_size. A bundle of many small, similar messages compresses much better than the " +
+      "individual messages (see COMPRESS). Compressed datagrams are dropped by members which don't set compress_bundles, " +
+      "but datagrams compressed with any built-in codec are uncompressed by members using a different codec")
+    protected boolean compress_bundles=false;
+
+    @Property(description="The codec used to compress datagrams: \"lz\" (fast), \"deflate\" " +
+      "(java.util.zip.Deflater with best speed) or the fully qualified name of a class implementing org.jgroups.util.Compressor")
+    protected String bundle_compression_codec="lz";
+
+    @Property(description="Min size (in bytes) of a datagram to be compressed")
+    protected int min_bundle_compression_size=500;
+
+    @Property(description="Encrypts every datagram (a message or a bundle of messages) with AES/GCM, so the cipher " +
+      "runs once per datagram rather than once per message (as with ENCRYPT). Datagrams which are not encrypted, or " +
+      "encrypted with a different key, are dropped. Requires either bundle_encryption_secret or " +
+      "bundle_encryption_key_store, and Java 7 or higher")
+    protected boolean encrypt_bundles=false;
+
+    @Property(description="Shared secret from which the key for bundle encryption is derived",exposeAsManagedAttribute=false)
+    protected String bundle_encryption_secret;
+
+    @Property(description="Size (in bits) of the key derived from bundle_encryption_secret")
+    protected int bundle_encryption_key_size=128;
+
+    @Property(description="JCEKS keystore (on the classpath or in the file system) containing the secret key for " +
+      "bundle encryption. Used instead of bundle_encryption_secret if set")
+    protected String bundle_encryption_key_store;
+
+    @Property(description="Password of the keystore for bundle encryption",exposeAsManagedAttribute=false)
+    protected String bundle_encryption_store_password="changeit";
+
+    @Property(description="Alias of the secret key in the keystore for bundle encryption")
+    protected String bundle_encryption_alias="mykey";
+
+    @Property(description="Password of the secret key in the keystore for bundle encryption. The store password " +
+      "is used if not set",exposeAsManagedAttribute=false)
+    protected String bundle_encryption_key_password;
+
 
     @Property(name="max_bundle_size", description="Maximum number of bytes for messages to be queued until they are sent")
     public void setMaxBundleSize(int size) {
@@ -488,6 +534,37 @@ public abstract class TP extends Protocol {
     @ManagedAttribute(description="Number of messages rejected by the thread pool")
     protected int num_rejected_msgs=0;
 
+    @ManagedAttribute(description="Number of datagrams compressed (compress_bundles=true)")
+    protected final AtomicLong num_datagrams_compressed=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of datagrams uncompressed")
+    protected final AtomicLong num_datagrams_uncompressed=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of bytes of all compressed datagrams before compression")
+    protected final AtomicLong bytes_before_compression=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of bytes of all compressed datagrams after compression")
+    protected final AtomicLong bytes_after_compression=new AtomicLong(0);
+
+    /** Total time (ns) spent compressing datagrams, including those which didn't get smaller */
+    protected final AtomicLong compression_time=new AtomicLong(0);
+
+    /** Number of datagrams on which compression was attempted */
+    protected final AtomicLong num_compression_attempts=new AtomicLong(0);
+
+    /** Total time (ns) spent uncompressing datagrams */
+    protected final AtomicLong uncompression_time=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of datagrams encrypted (encrypt_bundles=true)")
+    protected final AtomicLong num_datagrams_encrypted=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of datagrams decrypted (encrypt_bundles=true)")
+    protected final AtomicLong num_datagrams_decrypted=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of datagrams dropped because they were not encrypted, could not be decrypted, " +
+      "were compressed although compress_bundles is false, or could not be uncompressed")
+    protected final AtomicLong num_datagrams_dropped=new AtomicLong(0);
+
     /** The name of the group to which this member is connected. With a shared transport, the channel name is
      * in TP.ProtocolAdapter (cluster_name), and this field is not used */
     @ManagedAttribute(description="Channel (cluster) name")
@@ -597,6 +674,15 @@ public abstract class TP extends Protocol {
 
     protected Bundler bundler;
 
+    /** Encrypts and decrypts entire datagrams; null unless encrypt_bundles is true */
+    protected BundleCipher bundle_cipher;
+
+    /** Compresses entire datagrams; null unless compress_bundles is true */
+    protected Compressor bundle_compressor;
+
+    /** Codecs used to uncompress datagrams, indexed by codec ID. Built-in codecs are created on demand */
+    protected final Compressor[] bundle_codecs=new Compressor[256];
+
     protected DiagnosticsHandler diag_handler=null;
     protected final List<DiagnosticsHandler.ProbeHandler> preregistered_probe_handlers=new LinkedList<DiagnosticsHandler.ProbeHandler>();
 
@@ -674,9 +760,37 @@ public abstract class TP extends Protocol {
             return name + " (singleton=" + singleton_name + ")";
     }
 
+    @ManagedAttribute(description="Ratio between the compressed and uncompressed sizes of compressed datagrams")
+    public double getBundleCompressionRatio() {
+        long before=bytes_before_compression.get();
+        return before > 0? bytes_after_compression.get() / (double)before : 0;
+    }
+
+    @ManagedAttribute(description="Average time (in us) to compress a datagram")
+    public double getAvgBundleCompressionTime() {
+        long num=num_compression_attempts.get();
+        return num > 0? compression_time.get() / (num * 1000.0) : 0;
+    }
+
+    @ManagedAttribute(description="Average time (in us) to uncompress a datagram")
+    public double getAvgBundleUncompressionTime() {
+        long num=num_datagrams_uncompressed.get();
+        return num > 0? uncompression_time.get() / (num * 1000.0) : 0;
+    }
+
     public void resetStats() {
         num_msgs_sent=num_msgs_received=num_bytes_sent=num_bytes_received=0;
         num_oob_msgs_received=num_incoming_msgs_received=num_internal_msgs_received=0;
+        num_datagrams_compressed.set(0);
+        num_datagrams_uncompressed.set(0);
+        bytes_before_compression.set(0);
+        bytes_after_compression.set(0);
+        compression_time.set(0);
+        num_compression_attempts.set(0);
+        uncompression_time.set(0);
+        num_datagrams_encrypted.set(0);
+        num_datagrams_decrypted.set(0);
+        num_datagrams_dropped.set(0);
     }
 
     public void registerProbeHandler(DiagnosticsHandler.ProbeHandler handler) {
@@ -983,6 +1097,31 @@ public abstract class TP extends Protocol {
         if(physical_addr_max_fetch_attempts < 1)
             throw new IllegalArgumentException("Property \"physical_addr_max_fetch_attempts\" cannot be less than 1");
 
+        if(encrypt_bundles && bundle_cipher == null) {
+            SecretKey key;
+            if(bundle_encryption_key_store != null)
+                key=BundleCipher.readKey(bundle_encryption_key_store, bundle_encryption_store_password,
+                                         bundle_encryption_alias, bundle_encryption_key_password);
+            else if(bundle_encryption_secret != null)
+                key=BundleCipher.createKey(bundle_encryption_secret, bundle_encryption_key_size);
+            else
+                throw new IllegalArgumentException("encrypt_bundles requires bundle_encryption_secret or bundle_encryption_key_store");
+            bundle_cipher=new BundleCipher(key);
+        }
+
+        if(compress_bundles && bundle_compressor == null) {
+            if(bundle_compression_codec.equalsIgnoreCase("lz"))
+                bundle_compressor=getBundleCodec(Compressor.LZ);
+            else if(bundle_compression_codec.equalsIgnoreCase("deflate"))
+                bundle_compressor=getBundleCodec(Compressor.DEFLATE);
+            else {
+                Compressor codec=(Compressor)Util.loadClass(bundle_compression_codec, getClass()).newInstance();
+                codec.init();
+                bundle_codecs[codec.getId() & 0xff]=codec;
+                bundle_compressor=codec;
+            }
+        }
+
         // Create the default thread factory
         if(global_thread_factory == null)
             global_thread_factory=new DefaultThreadFactory("", false);
@@ -1137,6 +1276,14 @@ public abstract class TP extends Protocol {
 
         if(internal_thread_pool instanceof ThreadPoolExecutor)
             shutdownThreadPool(internal_thread_pool);
+
+        bundle_compressor=null;
+        for(int i=0; i < bundle_codecs.length; i++) {
+            if(bundle_codecs[i] != null) {
+                bundle_codecs[i].destroy();
+                bundle_codecs[i]=null;
+            }
+        }
     }
 
     /**
@@ -1456,6 +1603,10 @@ public abstract class TP extends Protocol {
             }
 
             byte flags=dis.readByte();
+            if(bundle_cipher != null || (flags & (ENCRYPTED | COMPRESSED)) != 0) {
+                if((dis=unwrap(sender, data, offset, length, flags)) == null)
+                    return;
+            }
             boolean is_message_list=(flags & LIST) == LIST;
             final boolean multicast=(flags & MULTICAST) == MULTICAST;
 
@@ -1617,6 +1768,10 @@ public abstract class TP extends Protocol {
 
 
     protected void doSend(Buffer buf, Address dest, boolean multicast) throws Exception {
+        if(bundle_compressor != null)
+            buf=compress(buf);
+        if(bundle_cipher != null)
+            buf=encrypt(buf);
         if(stats) {
             num_msgs_sent++;
             num_bytes_sent+=buf.getLength();
@@ -1630,6 +1785,151 @@ public abstract class TP extends Protocol {
     }
 
 
+    /** Encrypts everything after the version and flags of a serialized message or message list */
+    protected Buffer encrypt(Buffer buf) throws Exception {
+        byte[] tmp=buf.getBuf();
+        int offset=buf.getOffset();
+        tmp[offset + Global.SHORT_SIZE]|=ENCRYPTED; // the flags are authenticated, too
+        byte[] encrypted=bundle_cipher.encrypt(tmp, offset, buf.getLength(), DATAGRAM_HDR_SIZE);
+        num_datagrams_encrypted.incrementAndGet();
+        return new Buffer(encrypted);
+    }
+
+    /**
+     * Compresses everything after the version and flags of a serialized message or message list. The compressed
+     * datagram is | version | flags | codec ID | original length | compressed data |
+     * @return The compressed datagram, or buf if buf is too small or doesn't get smaller
+     */
+    protected Buffer compress(Buffer buf) throws Exception {
+        int length=buf.getLength(), body_length=length - DATAGRAM_HDR_SIZE;
+        if(length < min_bundle_compression_size || body_length > maxUncompressedLength())
+            return buf; // receivers drop compressed datagrams which are larger than this when uncompressed
+        byte[] tmp=buf.getBuf(), compressed=new byte[length];
+        int offset=buf.getOffset(), pos=DATAGRAM_HDR_SIZE;
+        long start=System.nanoTime();
+        System.arraycopy(tmp, offset, compressed, 0, DATAGRAM_HDR_SIZE);
+        compressed[Global.SHORT_SIZE]|=COMPRESSED;
+        compressed[pos++]=bundle_compressor.getId();
+        for(int i=24; i >= 0; i-=8)
+            compressed[pos++]=(byte)(body_length >>> i);
+        int size=bundle_compressor.compress(tmp, offset + DATAGRAM_HDR_SIZE, body_length, compressed, pos, length - pos);
+        if(stats) {
+            compression_time.addAndGet(System.nanoTime() - start);
+            num_compression_attempts.incrementAndGet();
+        }
+        if(size < 0)
+            return buf;
+        num_datagrams_compressed.incrementAndGet();
+        bytes_before_compression.addAndGet(length);
+        bytes_after_compression.addAndGet(pos + size);
+        return new Buffer(compressed, 0, pos + size);
+    }
+
+    /**
+     * Decrypts and/or uncompresses a datagram whose version and flags have already been read
+     * @return A stream positioned at the start of the serialized message or message list, or null if the datagram
+     * is to be dropped
+     */
+    protected DataInputStream unwrap(Address sender, byte[] data, int offset, int length, byte flags) {
+        byte[] body=data;
+        int body_offset=offset + DATAGRAM_HDR_SIZE, body_length=length - DATAGRAM_HDR_SIZE;
+        if(bundle_cipher != null || (flags & ENCRYPTED) == ENCRYPTED) {
+            if((body=decrypt(sender, data, offset, length, flags)) == null)
+                return null;
+            body_offset=0;
+            body_length=body.length;
+        }
+        if((flags & COMPRESSED) == COMPRESSED) {
+            if((body=uncompress(sender, body, body_offset, body_length)) == null)
+                return null;
+            body_offset=0;
+            body_length=body.length;
+        }
+        return new DataInputStream(new ExposedByteArrayInputStream(body, body_offset, body_length));
+    }
+
+    /** Decrypts a datagram; returns everything after version and flags, or null if the datagram is to be dropped */
+    protected byte[] decrypt(Address sender, byte[] data, int offset, int length, byte flags) {
+        if(bundle_cipher == null || (flags & ENCRYPTED) != ENCRYPTED) {
+            num_datagrams_dropped.incrementAndGet();
+            if(log.isWarnEnabled())
+                log.warn(local_addr + ": dropping " + ((flags & ENCRYPTED) == ENCRYPTED? "encrypted" : "unencrypted") +
+                           " datagram from " + sender + " (encrypt_bundles=" + encrypt_bundles + ")");
+            return null;
+        }
+        try {
+            byte[] decrypted=bundle_cipher.decrypt(data, offset, length, DATAGRAM_HDR_SIZE);
+            num_datagrams_decrypted.incrementAndGet();
+            return decrypted;
+        }
+        catch(Exception ex) {
+            num_datagrams_dropped.incrementAndGet();
+            if(log.isWarnEnabled())
+                log.warn(local_addr + ": dropping datagram from " + sender + " which could not be decrypted: " + ex);
+            return null;
+        }
+    }
+
+    /** The max length of an uncompressed datagram body */
+    protected int maxUncompressedLength() {return max_bundle_size + BUNDLE_HDR_SLACK;}
+
+    /**
+     * Uncompresses | codec ID | original length | compressed data |; returns null if the datagram is to be dropped.
+     * Compressed datagrams are only accepted if compress_bundles is true, and their original length must not exceed
+     * {@link #maxUncompressedLength()}, so a forged length cannot make us allocate huge buffers
+     */
+    protected byte[] uncompress(Address sender, byte[] data, int offset, int length) {
+        if(!compress_bundles) {
+            num_datagrams_dropped.incrementAndGet();
+            if(log.isWarnEnabled())
+                log.warn(local_addr + ": dropping compressed datagram from " + sender + " (compress_bundles=false)");
+            return null;
+        }
+        try {
+            long start=stats? System.nanoTime() : 0;
+            Compressor codec=getBundleCodec(data[offset]);
+            if(codec == null)
+                throw new IllegalArgumentException("codec " + data[offset] + " not found");
+            int pos=Global.BYTE_SIZE, original_length=0;
+            for(int i=0; i < Global.INT_SIZE; i++)
+                original_length=original_length << 8 | (data[offset + pos++] & 0xff);
+            if(original_length < 0 || original_length > maxUncompressedLength())
+                throw new IllegalArgumentException("invalid original length " + original_length + " (max: " +
+                                                     maxUncompressedLength() + ")");
+            byte[] uncompressed=new byte[original_length];
+            codec.uncompress(data, offset + pos, length - pos, uncompressed, 0, original_length);
+            num_datagrams_uncompressed.incrementAndGet();
+            if(stats)
+                uncompression_time.addAndGet(System.nanoTime() - start);
+            return uncompressed;
+        }
+        catch(Exception ex) {
+            num_datagrams_dropped.incrementAndGet();
+            if(log.isWarnEnabled())
+                log.warn(local_addr + ": dropping datagram from " + sender + " which could not be uncompressed: " + ex);
+            return null;
+        }
+    }
+
+    /** Returns the codec with the given ID, creating built-in codecs on demand, or null if not found */
+    protected Compressor getBundleCodec(byte codec_id) throws Exception {
+        Compressor codec=bundle_codecs[codec_id & 0xff];
+        if(codec != null)
+            return codec;
+        synchronized(bundle_codecs) {
+            if((codec=bundle_codecs[codec_id & 0xff]) != null)
+                return codec;
+            switch(codec_id) {
+                case Compressor.LZ:      codec=new LZCompressor(); break;
+                case Compressor.DEFLATE: codec=new DeflateCompressor(Deflater.BEST_SPEED, 4); break;
+                default:                 return null;
+            }
+            codec.init();
+            return bundle_codecs[codec_id & 0xff]=codec;
+        }
+    }
+
+
     protected void sendToSingleMember(Address dest, byte[] buf, int offset, int length) throws Exception {
         if(dest instanceof PhysicalAddress) {
             sendUnicast((PhysicalAddress)dest, buf, offset, length);
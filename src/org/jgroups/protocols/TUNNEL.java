@@ -254,6 +254,10 @@ public class TUNNEL extends TP {
 
         writeMessage(msg, dos, multicast);
         Buffer buf=new Buffer(out_stream.getRawBuffer(), 0, out_stream.size());
+        if(bundle_compressor != null)
+            buf=compress(buf);
+        if(bundle_cipher != null)
+            buf=encrypt(buf);
 
         if(stats) {
             num_msgs_sent++;
@@ -111,9 +111,16 @@ public class UFC extends FlowControl {
             return down_prot.down(evt);
         }
 
+        waitForCredits(dest, length);
+
+        // send message - either after regular processing, or after blocking (when enough credits available again)
+        return down_prot.down(evt);
+    }
+
+    protected void waitForCredits(Address dest, int length) {
         Credit cred=sent.get(dest);
         if(cred == null)
-            return down_prot.down(evt);
+            return;
 
         long block_time=max_block_times != null? getMaxBlockTime(length) : max_block_time;
         
@@ -125,9 +132,16 @@ public class UFC extends FlowControl {
             if(cred.needToSendCreditRequest())
                 sendCreditRequest(dest, Math.max(0, max_credits - cred.get()));
         }
+    }
 
-        // send message - either after regular processing, or after blocking (when enough credits available again)
-        return down_prot.down(evt);
+
+    protected boolean tryAcquireCredits(Address dest, int length) {
+        Credit cred=sent.get(dest);
+        if(cred == null || cred.decrementIfEnoughCredits(length, 0))
+            return true;
+        if(cred.needToSendCreditRequest())
+            sendCreditRequest(dest, Math.max(0, max_credits - cred.get()));
+        return false;
     }
 
 
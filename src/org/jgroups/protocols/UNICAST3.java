@@ -74,11 +74,20 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
       "Otherwise send delayed acks. If 1, ack single messages (similar to UNICAST)")
     protected int ack_threshold=5;
 
+    @Property(description="If true, a pending ack for a member is attached to the next data message sent to that " +
+      "member. A separate ack is only sent when no message to the member is sent within ack_deadline ms")
+    protected boolean piggyback_acks=false;
+
+    @Property(description="Max time (in ms) a pending ack waits for a data message to piggyback on before it is " +
+      "sent separately. Only used when piggyback_acks is true")
+    protected long ack_deadline=20;
+
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
 
     protected long   num_msgs_sent=0, num_msgs_received=0;
     protected long   num_acks_sent=0, num_acks_received=0, num_xmits=0;
+    protected long   num_acks_piggybacked=0;
 
     @ManagedAttribute(description="Number of retransmit requests received")
     protected final AtomicLong xmit_reqs_received=new AtomicLong(0);
@@ -178,6 +187,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     @ManagedAttribute
     public long getNumXmits() {return num_xmits;}
 
+    @ManagedAttribute(description="Number of acks sent as part of a data message (included in num_acks_sent)")
+    public long getNumAcksPiggybacked() {return num_acks_piggybacked;}
+
     public long getMaxRetransmitTime() {return max_retransmit_time;}
 
     @Property(description="Max number of milliseconds we try to retransmit a message to any given member. After that, " +
@@ -334,7 +346,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
     public void resetStats() {
         num_msgs_sent=num_msgs_received=num_acks_sent=num_acks_received=0;
-        num_xmits=0;
+        num_xmits=num_acks_piggybacked=0;
     }
 
 
@@ -377,6 +389,10 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                     break;
                 Address sender=msg.getSrc();
                 switch(hdr.type) {
+                    case Header.DATA_ACK:  // received regular message with a piggybacked ack
+                        handleAckReceived(sender, hdr.ack_seqno, hdr.ack_conn_id);
+                        handleDataReceived(sender, hdr.seqno, hdr.conn_id, hdr.first, msg, evt);
+                        break;
                     case Header.DATA:      // received regular message
                         handleDataReceived(sender, hdr.seqno, hdr.conn_id, hdr.first, msg, evt);
                         break; // we pass the deliverable message up in handleDataReceived()
@@ -393,7 +409,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     protected void handleUpEvent(Address sender, Message msg, Header hdr) {
         switch(hdr.type) {
             case Header.DATA:  // received regular message
-                throw new IllegalStateException("header of type DATA is not supposed to be handled by this method");
+            case Header.DATA_ACK:
+                throw new IllegalStateException("header of type " + Header.type2Str(hdr.type) +
+                                                  " is not supposed to be handled by this method");
             case Header.ACK:   // received ACK for previously sent message
                 handleAckReceived(sender, hdr.seqno, hdr.conn_id);
                 break;
@@ -438,7 +456,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                 continue;
             batch.remove(msg); // remove the message from the batch, so it won't be passed up the stack
 
-            if(hdr.type != Header.DATA) {
+            if(hdr.type == Header.DATA_ACK)
+                handleAckReceived(msg.getSrc(), hdr.ack_seqno, hdr.ack_conn_id);
+            else if(hdr.type != Header.DATA) {
                 try {
                     handleUpEvent(msg.getSrc(), msg, hdr);
                 }
@@ -492,31 +512,14 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                     return null;
                 }
 
-                SenderEntry entry=send_table.get(dst);
-                if(entry == null || entry.state() == State.CLOSED) {
-                    if(entry != null)
-                        send_table.remove(dst, entry);
-                    entry=new SenderEntry(getNewConnectionId());
-                    SenderEntry existing=send_table.putIfAbsent(dst, entry);
-                    if(existing != null)
-                        entry=existing;
-                    else {
-                        if(log.isTraceEnabled())
-                            log.trace(local_addr + ": created sender window for " + dst + " (conn-id=" + entry.connId() + ")");
-                        if(cache != null && !members.contains(dst))
-                            cache.add(dst);
-                    }
-                }
-
-                if(entry.state() == State.CLOSING)
-                    entry.state(State.OPEN);
-
+                SenderEntry entry=getSenderEntry(dst);
                 short send_conn_id=entry.connId();
                 long seqno=entry.sent_msgs_seqno.getAndIncrement();
+                Header hdr=createDataHeader(dst, seqno, send_conn_id);
                 long sleep=10;
                 while(running) {
                     try {
-                        msg.putHeader(this.id,Header.createDataHeader(seqno,send_conn_id,seqno == DEFAULT_FIRST_SEQNO));
+                        msg.putHeader(this.id,hdr);
                         entry.sent_msgs.add(seqno,msg);  // add *including* UnicastHeader, adds to retransmitter
                         if(conn_expiry_timeout > 0)
                             entry.update();
@@ -535,6 +538,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                     sb.append(local_addr).append(" --> DATA(").append(dst).append(": #").append(seqno).
                             append(", conn_id=").append(send_conn_id);
                     if(seqno == DEFAULT_FIRST_SEQNO) sb.append(", first");
+                    if(hdr.type == Header.DATA_ACK) sb.append(", ack=#").append(hdr.ack_seqno);
                     sb.append(')');
                     log.trace(sb);
                 }
@@ -580,6 +584,97 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         return down_prot.down(evt);          // Pass on to the layer below us
     }
 
+    /**
+     * Sends all messages of a batch to the same destination (e.g. the fragments of a message): a range of seqnos is
+     * reserved and the messages are added to the send window with one lock acquisition
+     */
+    public Object down(MessageBatch batch) {
+        Address dst=batch.dest();
+        if(dst == null) // multicast messages are passed down unchanged
+            return down_prot.down(batch);
+        for(Message msg: batch) {
+            if(msg.isFlagSet(Message.Flag.NO_RELIABILITY))
+                return super.down(batch);
+        }
+        if(!running) {
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": discarded " + batch.size() + " messages as start() has not yet been called");
+            return null;
+        }
+
+        SenderEntry entry=getSenderEntry(dst);
+        short send_conn_id=entry.connId();
+        int size=batch.size();
+        long first=entry.sent_msgs_seqno.getAndAdd(size), seqno=first;
+        List<Tuple<Long,Message>> msgs=new ArrayList<Tuple<Long,Message>>(size);
+        for(Message msg: batch) {
+            msg.putHeader(this.id, createDataHeader(dst, seqno, send_conn_id));
+            msgs.add(new Tuple<Long,Message>(seqno++, msg));
+        }
+
+        long sleep=10;
+        while(running) {
+            try {
+                entry.sent_msgs.add(msgs);  // add *including* UnicastHeader, adds to retransmitter
+                if(conn_expiry_timeout > 0)
+                    entry.update();
+                break;
+            }
+            catch(Throwable t) {
+                if(!running)
+                    break;
+                Util.sleep(sleep);
+                sleep=Math.min(5000, sleep*2);
+            }
+        }
+
+        if(log.isTraceEnabled())
+            log.trace(local_addr + " --> DATA(" + dst + ": #" + first + "-" + (seqno-1) + ", conn_id=" + send_conn_id + ")");
+        num_msgs_sent+=size;
+        for(Tuple<Long,Message> tuple: msgs)
+            down_prot.down(new Event(Event.MSG, tuple.getVal2()));
+        return null;
+    }
+
+    /** Returns the sender entry for dst, creating a new one if there is none or the existing one is closed */
+    protected SenderEntry getSenderEntry(Address dst) {
+        SenderEntry entry=send_table.get(dst);
+        if(entry == null || entry.state() == State.CLOSED) {
+            if(entry != null)
+                send_table.remove(dst, entry);
+            entry=new SenderEntry(getNewConnectionId());
+            SenderEntry existing=send_table.putIfAbsent(dst, entry);
+            if(existing != null)
+                entry=existing;
+            else {
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": created sender window for " + dst + " (conn-id=" + entry.connId() + ")");
+                if(cache != null && !members.contains(dst))
+                    cache.add(dst);
+            }
+        }
+
+        if(entry.state() == State.CLOSING)
+            entry.state(State.OPEN);
+        return entry;
+    }
+
+
+
+    /**
+     * Creates the header for a data message to dest. If piggyback_acks is true and an ack for dest is pending, the ack
+     * is added to the header and the pending flag is cleared, so the ack won't be sent separately
+     */
+    protected Header createDataHeader(Address dest, long seqno, short conn_id) {
+        boolean first=seqno == DEFAULT_FIRST_SEQNO;
+        ReceiverEntry entry=piggyback_acks? recv_table.get(dest) : null;
+        if(entry != null && entry.sendAck()) { // sendAck() resets send_ack to false
+            num_acks_sent++;
+            num_acks_piggybacked++;
+            return Header.createDataAckHeader(seqno, conn_id, first, entry.received_msgs.getHighestDeliverable(), entry.connId());
+        }
+        return Header.createDataHeader(seqno, conn_id, first);
+    }
 
 
     /**
@@ -689,7 +784,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         boolean added=win.add(seqno, msg); // win is guaranteed to be non-null if we get here
         num_msgs_received++;
 
-        if(ack_threshold <= 1)
+        if(piggyback_acks)
+            deferAck(sender, entry);
+        else if(ack_threshold <= 1)
             sendAck(sender, win.getHighestDeliverable(), entry.connId());
         else
             entry.sendAck(true); // will be sent delayed (on the next xmit_interval)
@@ -734,7 +831,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         if(entry.state() == State.CLOSING)
             entry.state(State.OPEN);
 
-        if(batch_size >= ack_threshold)
+        if(piggyback_acks)
+            deferAck(sender, entry);
+        else if(batch_size >= ack_threshold)
             sendAck(sender, win.getHighestDeliverable(), entry.connId());
         else
             entry.sendAck(true);
@@ -904,7 +1003,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
         Table<Message> win=entry != null? entry.sent_msgs : null;
         if(win != null) {
-            win.purge(seqno, true); // removes all messages <= seqno (forced purge)
+            // acks are cumulative: an older ack (e.g. piggybacked on a retransmitted message) must not move hd back
+            if(seqno > win.getHighestDelivered())
+                win.purge(seqno, true); // removes all messages <= seqno (forced purge)
             num_acks_received++;
         }
     }
@@ -1002,6 +1103,33 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     }
 
 
+    /**
+     * Marks an ack for sender as pending, so that it can be piggybacked on the next data message to sender. If no such
+     * message is sent within ack_deadline ms, the ack is sent as a separate message
+     */
+    protected void deferAck(final Address sender, final ReceiverEntry entry) {
+        entry.sendAck(true);
+        if(!entry.ack_task_scheduled.compareAndSet(false, true))
+            return;
+        try {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    entry.ack_task_scheduled.set(false);
+                    if(entry.sendAck()) // sendAck() resets send_ack to false
+                        sendAck(sender, entry.received_msgs.getHighestDeliverable(), entry.connId());
+                }
+
+                public String toString() {
+                    return UNICAST3.class.getSimpleName() + ": AckTask (deadline=" + ack_deadline + " ms)";
+                }
+            }, ack_deadline, TimeUnit.MILLISECONDS);
+        }
+        catch(Throwable t) { // the ack will be sent by the next run of the retransmit task
+            entry.ack_task_scheduled.set(false);
+        }
+    }
+
+
     protected synchronized short getNewConnectionId() {
         short retval=last_conn_id;
         if(last_conn_id >= Short.MAX_VALUE || last_conn_id < 0)
@@ -1097,6 +1225,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
      * The following types and fields are serialized:
      * <pre>
      * | DATA | seqno | conn_id | first |
+     * | DATA_ACK | seqno | conn_id | first | ack_seqno | ack_conn_id |
      * | ACK  | seqno |
      * | SEND_FIRST_SEQNO |
      * | CLOSE | conn_id |
@@ -1108,11 +1237,14 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         public static final byte SEND_FIRST_SEQNO = 2;
         public static final byte XMIT_REQ         = 3; // SeqnoList of missing message is in the message's payload
         public static final byte CLOSE            = 4;
+        public static final byte DATA_ACK         = 5; // DATA with a piggybacked ACK
 
         byte    type;
-        long    seqno;    // DATA and ACK
-        short   conn_id;  // DATA and CLOSE
-        boolean first;    // DATA
+        long    seqno;       // DATA and ACK
+        short   conn_id;     // DATA and CLOSE
+        boolean first;       // DATA
+        long    ack_seqno;   // DATA_ACK
+        short   ack_conn_id; // DATA_ACK
 
 
         public Header() {} // used for externalization
@@ -1137,6 +1269,13 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
             return new Header(DATA, seqno, conn_id, first);
         }
 
+        public static Header createDataAckHeader(long seqno, short conn_id, boolean first, long ack_seqno, short ack_conn_id) {
+            Header hdr=new Header(DATA_ACK, seqno, conn_id, first);
+            hdr.ack_seqno=ack_seqno;
+            hdr.ack_conn_id=ack_conn_id;
+            return hdr;
+        }
+
         public static Header createAckHeader(long seqno, short conn_id) {
             return new Header(ACK, seqno, conn_id, false);
         }
@@ -1161,6 +1300,10 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
             sb.append(type2Str(type)).append(", seqno=").append(seqno);
             if(conn_id != 0) sb.append(", conn_id=").append(conn_id);
             if(first) sb.append(", first");
+            if(type == DATA_ACK) {
+                sb.append(", ack_seqno=").append(ack_seqno);
+                if(ack_conn_id != 0) sb.append(", ack_conn_id=").append(ack_conn_id);
+            }
             return sb.toString();
         }
 
@@ -1171,6 +1314,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                 case SEND_FIRST_SEQNO: return "SEND_FIRST_SEQNO";
                 case XMIT_REQ:         return "XMIT_REQ";
                 case CLOSE:            return "CLOSE";
+                case DATA_ACK:         return "DATA_ACK";
                 default:               return "<unknown>";
             }
         }
@@ -1183,6 +1327,13 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                       + Global.SHORT_SIZE    // conn_id
                       + Global.BYTE_SIZE;    // first
                     break;
+                case DATA_ACK:
+                    retval+=Util.size(seqno) // seqno
+                      + Global.SHORT_SIZE    // conn_id
+                      + Global.BYTE_SIZE     // first
+                      + Util.size(ack_seqno) // ack_seqno
+                      + Global.SHORT_SIZE;   // ack_conn_id
+                    break;
                 case ACK:
                     retval+=Util.size(seqno) + Global.SHORT_SIZE; // conn_id
                     break;
@@ -1197,7 +1348,10 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         }
 
         public Header copy() {
-            return new Header(type, seqno, conn_id, first);
+            Header hdr=new Header(type, seqno, conn_id, first);
+            hdr.ack_seqno=ack_seqno;
+            hdr.ack_conn_id=ack_conn_id;
+            return hdr;
         }
 
 
@@ -1209,6 +1363,13 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                     out.writeShort(conn_id);
                     out.writeBoolean(first);
                     break;
+                case DATA_ACK:
+                    Util.writeLong(seqno, out);
+                    out.writeShort(conn_id);
+                    out.writeBoolean(first);
+                    Util.writeLong(ack_seqno, out);
+                    out.writeShort(ack_conn_id);
+                    break;
                 case ACK:
                     Util.writeLong(seqno, out);
                     out.writeShort(conn_id);
@@ -1230,6 +1391,13 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                     conn_id=in.readShort();
                     first=in.readBoolean();
                     break;
+                case DATA_ACK:
+                    seqno=Util.readLong(in);
+                    conn_id=in.readShort();
+                    first=in.readBoolean();
+                    ack_seqno=Util.readLong(in);
+                    ack_conn_id=in.readShort();
+                    break;
                 case ACK:
                     seqno=Util.readLong(in);
                     conn_id=in.readShort();
@@ -1287,6 +1455,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     protected final class ReceiverEntry extends Entry {
         protected final Table<Message>  received_msgs;  // stores all msgs rcvd by a certain peer in seqno-order
         protected volatile boolean      send_ack;
+        protected final AtomicBoolean   ack_task_scheduled=new AtomicBoolean(false); // used with piggyback_acks
 
         
         public ReceiverEntry(Table<Message> received_msgs, short recv_conn_id) {
@@ -2,8 +2,10 @@
 package org.jgroups.protocols;
 
 import org.jgroups.*;
+import org.jgroups.annotations.GuardedBy;
 import org.jgroups.annotations.LocalAddress;
 import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.conf.PropertyConverters;
 import org.jgroups.stack.IpAddress;
@@ -22,7 +24,10 @@ import java.util.concurrent.TimeUnit;
 /**
  * Catches SUSPECT events traveling up the stack. Verifies that the suspected member is really dead. If yes,
  * passes SUSPECT event up the stack, otherwise discards it. Has to be placed somewhere above the FD layer and
- * below the GMS layer (receiver of the SUSPECT event). Note that SUSPECT events may be reordered by this protocol.
+ * below the GMS layer (receiver of the SUSPECT event). Note that SUSPECT events may be reordered by this protocol.<p/>
+ * Suspects received within bundling_time ms of each other are verified together: they all get the same deadline, and
+ * the ones which didn't respond by then are passed up in a single SUSPECT event (with a collection of addresses),
+ * so that GMS can exclude all of them in one view.
  * @author Bela Ban
  */
 @MBean(description="Double-checks suspicions reports")
@@ -36,6 +41,10 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
     @Property(description="Number of verify heartbeats sent to a suspected member")
     protected int         num_msgs=1;
     
+    @Property(description="Suspects received within this time (ms) of the first suspect are verified together, and " +
+      "the dead ones are passed up in a single SUSPECT event. 0 verifies every suspect separately")
+    protected long        bundling_time=50;
+
     @Property(description="Use InetAddress.isReachable() to verify suspected member instead of regular messages")
     protected boolean     use_icmp=false;
 
@@ -65,12 +74,26 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
     protected final DelayQueue<Entry> suspects=new DelayQueue<Entry>();
     
     protected Thread timer=null;
-    
+
+    /** The end of the current bundling window; suspects added before it share the same deadline */
+    @GuardedBy("suspects")
+    protected long window_end;
+
+    @ManagedAttribute(description="Number of SUSPECT events passed up")
+    protected int num_suspect_events;
+
+    @ManagedAttribute(description="Number of members passed up in SUSPECT events")
+    protected int num_suspected_mbrs;
     
     
     public VERIFY_SUSPECT() {       
     }
 
+    public void resetStats() {
+        super.resetStats();
+        num_suspect_events=num_suspected_mbrs=0;
+    }
+
     public Object down(Event evt) {
         switch(evt.getType()) {
             case Event.SET_LOCAL_ADDRESS:
@@ -88,22 +111,36 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
         switch(evt.getType()) {
 
             case Event.SUSPECT:  // it all starts here ...
-                Address suspected_mbr=(Address)evt.getArg();
-                if(suspected_mbr == null) {
+                Object arg=evt.getArg(); // a single address or a collection of addresses
+                Collection<Address> suspected_mbrs=null;
+                if(arg instanceof Address)
+                    suspected_mbrs=Collections.singletonList((Address)arg);
+                else if(arg instanceof Collection<?>) {
+                    suspected_mbrs=new ArrayList<Address>(((Collection<?>)arg).size());
+                    for(Object obj: (Collection<?>)arg)
+                        suspected_mbrs.add((Address)obj);
+                }
+                if(suspected_mbrs == null) {
                     if(log.isErrorEnabled()) log.error("suspected member is null");
                     return null;
                 }
-
-                if(local_addr != null && local_addr.equals(suspected_mbr)) {
-                    if(log.isTraceEnabled())
-                        log.trace("I was suspected; ignoring SUSPECT message");
-                    return null;
+                for(Address suspected_mbr: suspected_mbrs) {
+                    if(suspected_mbr == null) {
+                        if(log.isErrorEnabled()) log.error("suspected member is null");
+                        continue;
+                    }
+
+                    if(local_addr != null && local_addr.equals(suspected_mbr)) {
+                        if(log.isTraceEnabled())
+                            log.trace("I was suspected; ignoring SUSPECT message");
+                        continue;
+                    }
+
+                    if(!use_icmp)
+                        verifySuspect(suspected_mbr);
+                    else
+                        verifySuspectWithICMP(suspected_mbr);
                 }
-
-                if(!use_icmp)
-                    verifySuspect(suspected_mbr);
-                else
-                    verifySuspectWithICMP(suspected_mbr);
                 return null;  // don't pass up; we will decide later (after verification) whether to pass it up
 
 
@@ -163,17 +200,29 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
 
     /**
      * Started when a suspected member is added to suspects. Iterates over the queue as long as there are suspects in
-     * it and removes a suspect when the timeout for it has elapsed. Sends up a SUSPECT event for every removed suspect.
+     * it and removes a suspect when the timeout for it has elapsed. All suspects whose timeouts have elapsed are sent
+     * up in a single SUSPECT event (with an address if there's only one suspect, or a collection of addresses).
      * When a suspected member is un-suspected, the member is removed from the queue.
      */
     public void run() {
+        List<Address> dead=new ArrayList<Address>();
+        List<Entry> expired=new ArrayList<Entry>();
         while(!suspects.isEmpty() && timer != null) {
             try {
                 Entry entry=suspects.poll(timeout * 2,TimeUnit.MILLISECONDS);
                 if(entry != null) {
+                    expired.add(entry);
+                    suspects.drainTo(expired); // only drains entries whose timeout has elapsed
+                    for(Entry e: expired)
+                        if(!dead.contains(e.suspect))
+                            dead.add(e.suspect);
                     if(log.isTraceEnabled())
-                        log.trace(entry.suspect + " is dead (passing up SUSPECT event)");
-                    up_prot.up(new Event(Event.SUSPECT, entry.suspect));
+                        log.trace(dead + " dead (passing up SUSPECT event)");
+                    num_suspect_events++;
+                    num_suspected_mbrs+=dead.size();
+                    up_prot.up(new Event(Event.SUSPECT, dead.size() == 1? dead.get(0) : new ArrayList<Address>(dead)));
+                    dead.clear();
+                    expired.clear();
                 }
             }
             catch(InterruptedException e) {
@@ -243,7 +292,10 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
             for(Entry entry: suspects) // check for duplicates
                 if(entry.suspect.equals(suspect))
                     return false;
-            suspects.add(new Entry(suspect, System.currentTimeMillis() + timeout));
+            long now=System.currentTimeMillis();
+            if(now > window_end) // starts a new bundling window
+                window_end=now + bundling_time;
+            suspects.add(new Entry(suspect, window_end + timeout));
             return true;
         }
     }
@@ -225,6 +225,8 @@ public class CoordGmsImpl extends ServerGmsImpl {
 
             sendLeaveResponses(leaving_mbrs); // no-op if no leaving members                            
             gms.castViewChange(new_view,join_rsp != null? join_rsp.getDigest() : null,join_rsp,new_mbrs);
+            if(hasJoiningMembers)
+                gms.recordJoinLatencies(requests, new_mbrs);
         }
         finally {
             if(hasJoiningMembers)
@@ -72,6 +72,23 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     @Property(description="Max view bundling timeout if view bundling is turned on. Default is 50 msec")
     protected long max_bundling_time=50; // 50ms max to wait for other JOIN, LEAVE or SUSPECT requests
 
+    /**
+     * Startup mode for large clusters: when many members join at the same time, the coordinator bundles JOIN requests
+     * for as long as new ones keep arriving (up to max_join_bundling_time ms), installs a single view for all of them
+     * and multicasts a single JoinRsp
+     */
+    @Property(description="Bundles JOIN requests over an adaptive window: the window is extended as long as new JOIN " +
+      "requests arrive within join_bundling_quiet_time ms, up to max_join_bundling_time ms. All joiners of a bundle " +
+      "are added in one view and receive the same (multicast) JoinRsp. Requires view_bundling")
+    protected boolean mass_join=false;
+
+    @Property(description="Max time (ms) to bundle JOIN requests if mass_join is enabled")
+    protected long max_join_bundling_time=5000;
+
+    @Property(description="The JOIN bundle is closed when no JOIN request was received for this number of ms " +
+      "(if mass_join is enabled)")
+    protected long join_bundling_quiet_time=500;
+
     @Property(description="Max number of old members to keep in history. Default is 50")
     protected int num_prev_mbrs=50;
 
@@ -93,15 +110,35 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     @Property(description="Logs warnings for reception of views less than the current, and for views which don't include self")
     protected boolean log_view_warnings=true;
 
+    @Property(description="If true, only the members which joined and left relative to the previous view are " +
+      "multicast on a view change (DeltaView). MergeViews are always sent in full. Members which don't support " +
+      "DeltaViews (older versions) cannot read these views, so this must only be enabled when all members do")
+    protected boolean use_delta_views=false;
+
 
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
 
     protected int num_views;
 
+    /** Number of views multicast as DeltaViews */
+    protected int num_delta_views_sent;
+
+    /** Number of times the full view was fetched because a DeltaView didn't match the current view */
+    protected int num_full_view_requests;
+
+    /** Members which requested the current view, and the ViewId of the view they need (at least) */
+    protected final Map<Address,ViewId> view_requests=new HashMap<Address,ViewId>();
+
+    /** The ViewId of a DeltaView we couldn't apply: no VIEW_ACK is sent until a view at least as new is installed */
+    protected volatile ViewId fetching_view;
+
     /** Stores the last 20 views */
     protected BoundedList<Tuple<View,Long>> prev_views;
 
+    /** Time (ms) from the reception of a JOIN request to the installation of the view including the joiner */
+    protected final Percentiles join_latencies=new Percentiles(1000);
+
 
     /* --------------------------------------------- Fields ------------------------------------------------ */
 
@@ -168,6 +205,12 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     public String getView() {return view != null? view.getViewId().toString() : "null";}
     @ManagedAttribute
     public int getNumberOfViews() {return num_views;}
+    @ManagedAttribute(description="Number of views multicast as delta views")
+    public int getNumDeltaViewsSent() {return num_delta_views_sent;}
+    @ManagedAttribute(description="Number of times the full view was fetched because a delta view didn't match the current view")
+    public int getNumFullViewRequests() {return num_full_view_requests;}
+    @ManagedAttribute(description="Percentiles of the join latency (ms) of the last 1000 members which joined via this coordinator")
+    public String getJoinLatencies() {return join_latencies.toString();}
     @ManagedAttribute
     public String getLocalAddress() {return local_addr != null? local_addr.toString() : "null";}
     @ManagedAttribute
@@ -329,7 +372,8 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
     public void resetStats() {
         super.resetStats();
-        num_views=0;
+        num_views=num_delta_views_sent=num_full_view_requests=0;
+        join_latencies.clear();
         prev_views.clear();
     }
 
@@ -579,6 +623,15 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
         GmsHeader hdr=new GmsHeader(GmsHeader.VIEW, new_view);
         hdr.my_digest=digest;
+        if(use_delta_views && !(new_view instanceof MergeView)) {
+            DeltaView delta_view=DeltaView.create(view, new_view);
+            if(delta_view != null) {
+                // existing members only need the digest entries of the new members
+                hdr.view=delta_view;
+                hdr.my_digest=digest != null? filter(digest, delta_view.getNewMembers()) : null;
+                num_delta_views_sent++;
+            }
+        }
         view_change_msg.putHeader(this.id,hdr);
 
         if(!ackMembers.isEmpty())
@@ -603,8 +656,11 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
         if(jr != null && (newMembers != null && !newMembers.isEmpty())) {
             ack_collector.reset(new ArrayList<Address>(newMembers));
-            for(Address joiner: newMembers) {
-                sendJoinResponse(jr, joiner);
+            if(mass_join && newMembers.size() > 1)
+                sendJoinResponse(jr, null); // all joiners get the same JoinRsp
+            else {
+                for(Address joiner: newMembers)
+                    sendJoinResponse(jr, joiner);
             }
             try {
                 ack_collector.waitForAllAcks(view_ack_collection_timeout);
@@ -622,8 +678,97 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         }
     }
 
+    /**
+     * Sends the current (full) view and digest to a member which couldn't create a view from a DeltaView. If our
+     * view is older than the requested view (e.g. because we haven't yet received our own view multicast), the
+     * request is answered when a view at least as new as the requested one has been installed
+     */
+    protected void sendCurrentView(Address dest, ViewId requested_view) {
+        View current_view;
+        synchronized(view_requests) {
+            current_view=view;
+            if(current_view == null || (requested_view != null && current_view.getViewId().compareToIDs(requested_view) < 0)) {
+                view_requests.put(dest, requested_view);
+                return;
+            }
+        }
+        GmsHeader hdr=new GmsHeader(GmsHeader.VIEW, current_view);
+        hdr.my_digest=getDigest();
+        Message msg=new Message(dest).setFlag(Message.Flag.INTERNAL).putHeader(this.id, hdr);
+        down_prot.down(new Event(Event.MSG, msg));
+    }
+
+    /** Sends the installed view to the members which requested it, unless they need a newer view */
+    protected void answerViewRequests(View new_view) {
+        List<Address> dests=null;
+        synchronized(view_requests) {
+            for(Iterator<Map.Entry<Address,ViewId>> it=view_requests.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Address,ViewId> entry=it.next();
+                if(!new_view.containsMember(entry.getKey()))
+                    it.remove();
+                else if(entry.getValue() == null || entry.getValue().compareToIDs(new_view.getViewId()) <= 0) {
+                    it.remove();
+                    if(dests == null)
+                        dests=new ArrayList<Address>();
+                    dests.add(entry.getKey());
+                }
+            }
+        }
+        if(dests != null)
+            for(Address dest: dests)
+                sendCurrentView(dest, null);
+    }
+
+    /**
+     * Returns true if a VIEW_ACK can be sent for a view with the given ViewId: false if we requested the full view
+     * because we couldn't apply a DeltaView, and vid is older than that DeltaView
+     */
+    protected boolean canAckView(ViewId vid) {
+        ViewId expected=fetching_view;
+        if(expected == null)
+            return true;
+        if(vid == null || vid.compareToIDs(expected) < 0)
+            return false;
+        fetching_view=null;
+        return true;
+    }
+
+    /**
+     * Creates the full view from a DeltaView and our current view. Returns the current view if it is the same as or
+     * newer than the DeltaView, or null if the current view is older than the reference view of the DeltaView
+     */
+    protected static View createViewFromDeltaView(View current_view, DeltaView delta_view) {
+        if(current_view != null && delta_view.getViewId().compareToIDs(current_view.getViewId()) <= 0)
+            return current_view;
+        return delta_view.createView(current_view);
+    }
+
+    protected static Digest filter(Digest digest, Collection<Address> mbrs) {
+        Set<Address> tmp=new HashSet<Address>(mbrs);
+        MutableDigest retval=new MutableDigest(mbrs.size());
+        for(Digest.DigestEntry entry: digest)
+            if(tmp.contains(entry.getMember()))
+                retval.add(entry.getMember(), entry.getHighestDeliveredSeqno(), entry.getHighestReceivedSeqno());
+        return retval;
+    }
+
+    /** Records the join latencies of the members which were added by a view change */
+    protected void recordJoinLatencies(Collection<Request> requests, Collection<Address> joiners) {
+        long current_time=System.nanoTime();
+        for(Request req: requests) {
+            if(req.isJoin() && joiners.contains(req.mbr))
+                join_latencies.add(TimeUnit.MILLISECONDS.convert(current_time - req.start_time, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * Sends a JoinRsp to a joiner, or multicasts it if dest is null. The multicast bypasses NAKACK2 as the joiners
+     * are not yet members; joiners which don't receive it re-send their JOIN request and get a unicast JoinRsp
+     */
     public void sendJoinResponse(JoinRsp rsp, Address dest) {
         Message m=new Message(dest).putHeader(this.id, new GMS.GmsHeader(GMS.GmsHeader.JOIN_RSP, rsp));
+        if(dest == null)
+            m.setFlag(Message.Flag.OOB, Message.Flag.NO_RELIABILITY, Message.Flag.INTERNAL);
         getDownProtocol().down(new Event(Event.MSG,m));
     }
 
@@ -712,6 +857,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         // - Moved sending up view_event out of the synchronized block (bela Nov 2011)
         down_prot.down(view_event); // needed e.g. by failure detector or UDP
         up_prot.up(view_event);
+        answerViewRequests(new_view);
 
         List<Address> tmp_mbrs=new_view.getMembers();
         ack_collector.retainAll(tmp_mbrs);
@@ -851,7 +997,12 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                         view_handler.add(new Request(Request.JOIN_WITH_STATE_TRANSFER, hdr.mbr, false, null, hdr.useFlushIfPresent));
                         break;
                     case GmsHeader.JOIN_RSP:
-                        impl.handleJoinResponse(hdr.join_rsp);
+                        JoinRsp join_rsp=hdr.join_rsp;
+                        // a multicast JoinRsp is received by all joiners: discard it if we're not in its view
+                        if(msg.getDest() == null && (join_rsp == null || join_rsp.getView() == null
+                          || !join_rsp.getView().containsMember(local_addr)))
+                            return null;
+                        impl.handleJoinResponse(join_rsp);
                         break;
                     case GmsHeader.LEAVE_REQ:
                         if(hdr.mbr == null)
@@ -867,13 +1018,32 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                             return null;
 
                         Address coord=msg.getSrc();
+                        if(new_view instanceof DeltaView) {
+                            View tmp_view=createViewFromDeltaView(view, (DeltaView)new_view);
+                            if(tmp_view == null) { // we don't have the reference view: fetch the full view
+                                if(log.isDebugEnabled())
+                                    log.debug(local_addr + ": cannot create view from " + new_view + " (current view: " +
+                                                view + "); fetching full view from " + coord);
+                                num_full_view_requests++;
+                                fetching_view=new_view.getViewId();
+                                // the DeltaView is sent back so that the coordinator knows which view we need
+                                Message get_view=new Message(coord).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+                                  .putHeader(this.id, new GmsHeader(GmsHeader.GET_CURRENT_VIEW, new_view));
+                                down_prot.down(new Event(Event.MSG, get_view));
+                                return null;
+                            }
+                            new_view=tmp_view;
+                        }
                         if(!new_view.containsMember(coord)) {
-                            sendViewAck(coord); // we need to send the ack first, otherwise the connection is removed
+                            if(canAckView(new_view.getViewId()))
+                                sendViewAck(coord); // we need to send the ack first, otherwise the connection is removed
                             impl.handleViewChange(new_view, hdr.my_digest);
                         }
                         else {
                             impl.handleViewChange(new_view, hdr.my_digest);
-                            sendViewAck(coord); // send VIEW_ACK to sender of view
+                            View installed_view=view;
+                            if(canAckView(installed_view != null? installed_view.getViewId() : null))
+                                sendViewAck(coord); // send VIEW_ACK to sender of view
                         }
                         break;
 
@@ -882,6 +1052,10 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                         ack_collector.ack(sender);
                         return null; // don't pass further up
 
+                    case GmsHeader.GET_CURRENT_VIEW:
+                        sendCurrentView(msg.getSrc(), hdr.view != null? hdr.view.getViewId() : null);
+                        return null;
+
                     case GmsHeader.MERGE_REQ:
                         impl.handleMergeRequest(msg.getSrc(), hdr.merge_id, hdr.mbrs);
                         break;
@@ -950,12 +1124,34 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                 return null;  // don't pass up
 
             case Event.SUSPECT:
-                Object retval=up_prot.up(evt);
-                Address suspected=(Address)evt.getArg();
-                view_handler.add(new Request(Request.SUSPECT, suspected, true));
-                ack_collector.suspect(suspected);
-                merge_ack_collector.suspect(suspected);
-                return retval;
+                Object arg=evt.getArg();
+                if(arg instanceof Address) {
+                    Object retval=up_prot.up(evt);
+                    Address suspected=(Address)arg;
+                    view_handler.add(new Request(Request.SUSPECT, suspected, true));
+                    ack_collector.suspect(suspected);
+                    merge_ack_collector.suspect(suspected);
+                    return retval;
+                }
+                // multiple suspects (e.g. from VERIFY_SUSPECT): the layers above get one SUSPECT event per member,
+                // but the requests are queued together, so that all suspects are excluded in a single view
+                if(!(arg instanceof Collection<?>))
+                    return null;
+                List<Address> suspects=new ArrayList<Address>(((Collection<?>)arg).size());
+                for(Object obj: (Collection<?>)arg)
+                    if(obj != null)
+                        suspects.add((Address)obj);
+                List<Request> suspect_reqs=new ArrayList<Request>(suspects.size());
+                for(Address suspected: suspects) {
+                    up_prot.up(new Event(Event.SUSPECT, suspected));
+                    suspect_reqs.add(new Request(Request.SUSPECT, suspected, true));
+                }
+                view_handler.add(suspect_reqs);
+                for(Address suspected: suspects) {
+                    ack_collector.suspect(suspected);
+                    merge_ack_collector.suspect(suspected);
+                }
+                return null;
 
             case Event.UNSUSPECT:
                 impl.unsuspect((Address)evt.getArg());
@@ -1036,6 +1232,11 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         return down_prot.down(evt);
     }
 
+    /** Regular messages are not handled by GMS, so a batch is passed down unchanged */
+    public Object down(MessageBatch batch) {
+        return down_prot.down(batch);
+    }
+
 
     public Map<String, String> handleProbe(String... keys) {
         for(String key: keys) {
@@ -1149,6 +1350,9 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         public static final byte GET_DIGEST_REQ=13;
         public static final byte GET_DIGEST_RSP=14;
         public static final byte INSTALL_DIGEST=15;
+        public static final byte GET_CURRENT_VIEW=16;
+
+        protected static final byte VIEW_TYPE=0, MERGE_VIEW_TYPE=1, DELTA_VIEW_TYPE=2;
 
 
         byte type=0;
@@ -1239,6 +1443,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
                 case VIEW:
                 case VIEW_ACK:
+                case GET_CURRENT_VIEW:
                     sb.append(": view=" + view);
                     break;
 
@@ -1282,6 +1487,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                 case GET_DIGEST_REQ: return "GET_DIGEST_REQ";
                 case GET_DIGEST_RSP: return "GET_DIGEST_RSP";
                 case INSTALL_DIGEST: return "INSTALL_DIGEST";
+                case GET_CURRENT_VIEW: return "GET_CURRENT_VIEW";
                 default: return "<unknown>";
             }
         }
@@ -1289,8 +1495,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
         public void writeTo(DataOutput out) throws Exception {
             out.writeByte(type);
-            boolean isMergeView=view != null && view instanceof MergeView;
-            out.writeBoolean(isMergeView);
+            out.writeByte(view instanceof MergeView? MERGE_VIEW_TYPE : view instanceof DeltaView? DELTA_VIEW_TYPE : VIEW_TYPE);
             Util.writeStreamable(view, out);
             Util.writeAddress(mbr, out);
             Util.writeAddresses(mbrs, out);
@@ -1303,11 +1508,17 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
         public void readFrom(DataInput in) throws Exception {
             type=in.readByte();
-            boolean isMergeView=in.readBoolean();
-            if(isMergeView)
-                view=(View)Util.readStreamable(MergeView.class, in);
-            else
-                view=(View)Util.readStreamable(View.class, in);
+            switch(in.readByte()) {
+                case MERGE_VIEW_TYPE:
+                    view=(View)Util.readStreamable(MergeView.class, in);
+                    break;
+                case DELTA_VIEW_TYPE:
+                    view=(View)Util.readStreamable(DeltaView.class, in);
+                    break;
+                default:
+                    view=(View)Util.readStreamable(View.class, in);
+                    break;
+            }
             mbr=Util.readAddress(in);
             mbrs=Util.readAddresses(in, ArrayList.class);
             join_rsp=(JoinRsp)Util.readStreamable(JoinRsp.class, in);
@@ -1321,7 +1532,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
             int retval=Global.BYTE_SIZE *2; // type + merge_rejected
 
             retval+=Global.BYTE_SIZE; // presence view
-            retval+=Global.BYTE_SIZE; // MergeView or View
+            retval+=Global.BYTE_SIZE; // View, MergeView or DeltaView
             if(view != null)
                 retval+=view.serializedSize();
 
@@ -1390,6 +1601,25 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         }
 
 
+        /** Adds all requests atomically, so they can be processed together */
+        synchronized void add(Collection<Request> reqs) {
+            if(suspended) {
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": queue is suspended; requests " + reqs + " are discarded");
+                return;
+            }
+            start();
+            try {
+                queue.addAll(reqs);
+                for(Request req: reqs)
+                    history.add(new Date() + ": " + req.toString());
+            }
+            catch(QueueClosedException e) {
+                if(log.isTraceEnabled())
+                    log.trace("queue is closed; requests " + reqs + " are discarded");
+            }
+        }
+
         void waitUntilCompleted(long timeout) {
             waitUntilCompleted(timeout, false);
         }
@@ -1469,12 +1699,17 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                         requests.add(firstRequest);
                         if(!view_bundling)
                             break;
+                        boolean bundle_joins=mass_join && firstRequest.isJoin();
+                        if(requests.size() == 1) // the bundling window starts when the first request is received
+                            end_time=System.currentTimeMillis() + (bundle_joins? max_join_bundling_time : max_bundling_time);
                         if(queue.size() > 0) {
                             Request nextReq=(Request)queue.peek();
                             keepGoing=view_bundling && firstRequest.canBeProcessedTogether(nextReq);
                         }
                         else {
                             wait_time=end_time - System.currentTimeMillis();
+                            if(bundle_joins) // adaptive window: stop bundling when no JOIN arrives for some time
+                                wait_time=Math.min(wait_time, join_bundling_quiet_time);
                             if(wait_time > 0 && firstRequest.canBeProcessedTogether(firstRequest)) // JGRP-1438
                                 queue.waitUntilClosed(wait_time); // misnomer: waits until element has been added or q closed
                             keepGoing=queue.size() > 0 && firstRequest.canBeProcessedTogether((Request)queue.peek());
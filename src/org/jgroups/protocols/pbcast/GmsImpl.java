@@ -87,6 +87,7 @@ public abstract class GmsImpl {
         boolean           suspected;
         Map<Address,View> views; // different view on MERGE
         boolean           useFlushIfPresent;
+        final long        start_time=System.nanoTime(); // used to compute the join latency
 
 
         Request(int type, Address mbr, boolean suspected) {
@@ -109,6 +110,10 @@ public abstract class GmsImpl {
             return type;
         }
 
+        public boolean isJoin() {
+            return type == JOIN || type == JOIN_WITH_STATE_TRANSFER;
+        }
+
         public String toString() {
             switch(type) {
                 case JOIN:    return "JOIN(" + mbr + ")";
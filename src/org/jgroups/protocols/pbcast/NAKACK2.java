@@ -123,6 +123,19 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       "0 disables this (every warning will be logged). Setting the log level to ERROR also disables this.")
     protected long suppress_time_non_member_warnings=60000;
 
+    @Property(description="Max number of sent messages kept in the heap by the sender's retransmission table. Older " +
+      "messages which have been delivered but are not yet stable are moved to an off-heap spill store, and read back " +
+      "when a retransmission is requested. 0 disables the spill store",writable=false)
+    protected int xmit_table_max_in_heap=0;
+
+    @Property(description="Max number of bytes of the spill store. When full, sent messages are kept in the heap " +
+      "until STABLE purges the spill store",writable=false)
+    protected int xmit_spill_capacity=64 * 1024 * 1024;
+
+    @Property(description="Name of the file the spill store is memory-mapped to. If null, direct (off-heap) " +
+      "memory is used",writable=false)
+    protected String xmit_spill_file;
+
     /* -------------------------------------------------- JMX ---------------------------------------------------------- */
 
 
@@ -153,6 +166,26 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         return suppress_log_non_member != null? suppress_log_non_member.getCache().size() : 0;
     }
 
+    @ManagedAttribute(description="Number of sent messages in the spill store")
+    public int getSpillStoreSize() {
+        return spill_store != null? spill_store.size() : 0;
+    }
+
+    @ManagedAttribute(description="Number of bytes used by the spill store")
+    public long getSpillStoreBytesUsed() {
+        return spill_store != null? spill_store.bytesUsed() : 0;
+    }
+
+    @ManagedAttribute(description="Number of messages read back from the spill store to be retransmitted")
+    public int getSpillStoreReads() {
+        return spill_store != null? spill_store.getNumGets() : 0;
+    }
+
+    @ManagedAttribute(description="Number of messages which could not be added to the spill store because it was full")
+    public int getSpillStoreRejections() {
+        return spill_store != null? spill_store.getNumRejected() : 0;
+    }
+
     @ManagedOperation(description="Clears the cache for messages from non-members")
     public void clearNonMemberCache() {
         if(suppress_log_non_member != null)
@@ -199,6 +232,33 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
      /** Log to suppress identical warnings for messages from non-members */
     protected SuppressLog<Address>      suppress_log_non_member;
 
+    /** Stores old sent messages outside of the heap, null if xmit_table_max_in_heap is 0 */
+    protected SpillStore                spill_store;
+
+    /** Set when spilling, so that only 1 sender thread at a time moves messages to the spill store */
+    protected final AtomicBoolean       spilling=new AtomicBoolean(false);
+
+    /** The highest seqno moved from our own retransmission table to the spill store */
+    protected volatile long             spilled_up_to;
+
+    /** Set when the spill store rejected a message, cleared when it is purged */
+    protected volatile boolean          spill_store_full;
+
+    /** Moves messages into the spill store, stops at the first message the spill store doesn't accept */
+    protected final Table.Visitor<Message> spiller=new Table.Visitor<Message>() {
+        public boolean visit(long seqno, Message msg, int row, int column) {
+            try {
+                if(spill_store.add(seqno, msg))
+                    return true;
+                spill_store_full=true;
+            }
+            catch(Throwable t) {
+                log.error(local_addr + ": failed adding message #" + seqno + " to spill store", t);
+            }
+            return false;
+        }
+    };
+
 
     public long    getXmitRequestsReceived()  {return xmit_reqs_received.get();}
     public long    getXmitRequestsSent()      {return xmit_reqs_sent.get();}
@@ -313,6 +373,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             Table<Message> buf=entry.getValue();
             ret.append(addr).append(": ").append(buf.toString()).append('\n');
         }
+        if(spill_store != null)
+            ret.append("spill store: ").append(spill_store).append('\n');
         return ret.toString();
     }
 
@@ -353,6 +415,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     @ManagedOperation(description="Resets all statistics")
     public void resetStats() {
         num_messages_sent=num_messages_received=0;
+        if(spill_store != null)
+            spill_store.resetStats();
         xmit_reqs_received.set(0);
         xmit_reqs_sent.set(0);
         xmit_rsps_received.set(0);
@@ -394,6 +458,16 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
         if(suppress_time_non_member_warnings > 0)
             suppress_log_non_member=new SuppressLog<Address>(log, "MsgDroppedNak", "SuppressMsg");
+
+        if(xmit_table_max_in_heap > 0)
+            spill_store=xmit_spill_file != null? new SpillStore(xmit_spill_capacity, xmit_spill_file)
+              : new SpillStore(xmit_spill_capacity);
+    }
+
+    public void destroy() {
+        super.destroy();
+        if(spill_store != null)
+            spill_store.close();
     }
 
 
@@ -539,6 +613,17 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         return down_prot.down(evt);
     }
 
+    public Object down(MessageBatch batch) {
+        if(batch.dest() != null) // unicast messages are passed down unchanged
+            return down_prot.down(batch);
+        for(Message msg: batch) {
+            if(msg.isFlagSet(Message.Flag.NO_RELIABILITY))
+                return super.down(batch);
+        }
+        send(batch);
+        return null;
+    }
+
 
 
 
@@ -745,6 +830,82 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             log.trace(local_addr + " sending " + local_addr + "#" + msg_id);
         down_prot.down(evt); // if this fails, since msg is in sent_msgs, it can be retransmitted
         num_messages_sent++;
+        if(spill_store != null && !spill_store_full)
+            spill(buf);
+    }
+
+    /**
+     * Sends all messages of a batch (e.g. the fragments of a message): a range of seqnos is reserved and the messages
+     * are added to the retransmission table with one lock acquisition, then they are passed down individually
+     */
+    protected void send(MessageBatch batch) {
+        if(!running) {
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": discarded " + batch.size() + " messages as we're not in the 'running' state");
+            return;
+        }
+
+        Table<Message> buf=xmit_table.get(local_addr);
+        if(buf == null) // discard messages if there is no entry for local_addr
+            return;
+
+        int size=batch.size();
+        long first=seqno.addAndGet(size) - size + 1, msg_id=first;
+        List<Tuple<Long,Message>> msgs=new ArrayList<Tuple<Long,Message>>(size);
+        for(Message msg: batch) {
+            if(msg.getSrc() == null)
+                msg.setSrc(local_addr);
+            msg.putHeader(this.id, NakAckHeader2.createMessageHeader(msg_id));
+            msgs.add(new Tuple<Long,Message>(msg_id++, msg));
+        }
+
+        long sleep=10;
+        while(running) {
+            try {
+                buf.add(msgs);
+                break;
+            }
+            catch(Throwable t) {
+                if(!running)
+                    break;
+                Util.sleep(sleep);
+                sleep=Math.min(5000, sleep*2);
+            }
+        }
+
+        if(log.isTraceEnabled())
+            log.trace(local_addr + " sending " + local_addr + "#" + first + "-" + (msg_id-1));
+        for(Tuple<Long,Message> tuple: msgs)
+            down_prot.down(new Event(Event.MSG, tuple.getVal2()));
+        num_messages_sent+=size;
+        if(spill_store != null && !spill_store_full)
+            spill(buf);
+    }
+
+    /**
+     * Moves delivered messages older than the last xmit_table_max_in_heap messages from our own retransmission
+     * table to the spill store. Only 1 thread at a time does this; others return immediately
+     */
+    protected void spill(Table<Message> buf) {
+        long to=buf.getHighestReceived() - xmit_table_max_in_heap;
+        if(to <= spilled_up_to || !spilling.compareAndSet(false, true))
+            return;
+        try {
+            spilled_up_to=buf.evict(spilled_up_to +1, to, spiller);
+        }
+        finally {
+            spilling.set(false);
+        }
+    }
+
+    protected Message getSpilledMessage(long seqno) {
+        try {
+            return spill_store.get(seqno);
+        }
+        catch(Throwable t) {
+            log.error(local_addr + ": failed reading message #" + seqno + " from spill store", t);
+            return null;
+        }
     }
 
 
@@ -925,6 +1086,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         if(stats)
             xmit_reqs_received.addAndGet(missing_msgs.size());
 
+        // a loss signal for our own messages: lets a protocol above (e.g. RATE_CONTROL) adjust the sending rate
+        if(local_addr != null && local_addr.equals(original_sender) && !local_addr.equals(xmit_requester))
+            up_prot.up(new Event(Event.XMIT_REQ_RECEIVED, new Tuple<Address,Integer>(xmit_requester, missing_msgs.size())));
+
         Table<Message> buf=xmit_table.get(original_sender);
         if(buf == null) {
             if(log.isErrorEnabled()) {
@@ -943,8 +1108,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             return;
         }
 
+        boolean check_spill_store=spill_store != null && local_addr.equals(original_sender);
         for(long i: missing_msgs) {
             Message msg=buf.get(i);
+            if(msg == null && check_spill_store)
+                msg=getSpilledMessage(i);
             if(msg == null) {
                 if(log.isWarnEnabled() && log_not_found_msgs && !local_addr.equals(xmit_requester) && i > buf.getLow()) {
                     StringBuilder sb=new StringBuilder();
@@ -1371,8 +1539,13 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 log.trace(local_addr + ": deleting msgs <= " + hd + " from " + member);
 
             // delete *delivered* msgs that are stable
-            if(buf != null)
+            if(buf != null) {
                 buf.purge(hd);  // delete all messages with seqnos <= seqno
+                if(spill_store != null && member.equals(local_addr)) {
+                    spill_store.purge(Math.min(hd, buf.getHighestDelivered()));
+                    spill_store_full=false;
+                }
+            }
         }
     }
 
@@ -1421,6 +1594,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     protected void reset() {
         seqno.set(0);
         xmit_table.clear();
+        if(spill_store != null) {
+            spill_store.clear();
+            spilled_up_to=0;
+            spill_store_full=false;
+        }
     }
 
 
@@ -7,6 +7,7 @@ import org.jgroups.stack.Protocol;
 import org.jgroups.util.*;
 
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.util.*;
 import java.util.concurrent.Future;
@@ -29,6 +30,12 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * When send_stable_msgs_to_coord_only is true, far fewer messages are exchanged, as members don't multicast
  * STABLE messages, but instead send them only to the coordinator.
+ * <p>
+ * When tree_fanout is greater than 0, the members are arranged in a tree (ordered by view position, with the
+ * coordinator at the root) and a member sends its STABLE message to its parent only. An inner node merges the digests
+ * of all of its children with its own digest and sends the result to its parent, so the coordinator only receives
+ * tree_fanout digests per round. The coordinator then multicasts the STABILITY message, or sends it down the tree if the
+ * transport doesn't support IP multicasting.
  * @author Bela Ban
  */
 @MBean(description="Computes the broadcast messages that are stable")
@@ -71,6 +78,16 @@ public class STABLE extends Protocol {
       "on the coordinator")
     protected boolean send_stable_msgs_to_coord_only=true;
 
+    @Property(description="Number of children of a member in the tree over which STABLE messages are sent and merged " +
+      "on their way to the coordinator. 0 disables the tree; send_stable_msgs_to_coord_only is ignored if > 0",
+              writable=false)
+    protected int     tree_fanout=0;
+
+    @Property(description="Sends the digest in a STABLE message as a delta to the last STABILITY digest (if the " +
+      "receiver has it). Falls back to the full digest otherwise. Members which don't support delta digests (older " +
+      "versions) cannot read these messages, so this must be enabled in all members")
+    protected boolean use_delta_digests=false;
+
     
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
@@ -78,6 +95,11 @@ public class STABLE extends Protocol {
     protected int    num_stable_msgs_received;
     protected int    num_stability_msgs_sent;
     protected int    num_stability_msgs_received;
+    protected long   num_stable_bytes_sent;
+    protected long   num_stable_bytes_received;
+    protected long   num_stability_bytes_sent;
+    protected int    num_delta_digests_sent;
+    protected int    num_delta_digests_dropped;
 
     
     /* --------------------------------------------- Fields ------------------------------------------------------ */
@@ -128,6 +150,27 @@ public class STABLE extends Protocol {
 
     protected volatile Address    coordinator;
 
+    /** The member to send our (merged) digest to, null if we're the root of the tree. Only used if tree_fanout > 0 */
+    protected volatile Address    parent;
+
+    /** The members whose (merged) digests we wait for. Only used if tree_fanout > 0 */
+    protected volatile Set<Address> children=Collections.emptySet();
+
+    /** If true, STABILITY messages are sent down the tree instead of being multicast */
+    protected boolean             send_stability_down_tree;
+
+    /** The last STABILITY digests, keyed by checksum. Used to encode and decode delta digests */
+    @GuardedBy("bases")
+    protected final BoundedHashMap<Long,Digest> bases=new BoundedHashMap<Long,Digest>(5);
+
+    /** The checksum of the last STABILITY digest, 0 if none is available */
+    protected volatile long       latest_base;
+
+    /** Set when a delta digest was sent relative to latest_base. If no new STABILITY digest has been received by the
+     * next send (the round didn't complete, e.g. because the receiver couldn't decode our delta), we send the full
+     * digest */
+    protected volatile boolean    latest_base_used;
+
     
     
     public STABLE() {             
@@ -159,6 +202,20 @@ public class STABLE extends Protocol {
     public int getStabilitySent() {return num_stability_msgs_sent;}
     @ManagedAttribute
     public int getStabilityReceived() {return num_stability_msgs_received;}
+    @ManagedAttribute(description="Number of bytes of digests sent in STABLE messages")
+    public long getStableBytesSent() {return num_stable_bytes_sent;}
+    @ManagedAttribute(description="Number of bytes of digests received in STABLE messages")
+    public long getStableBytesReceived() {return num_stable_bytes_received;}
+    @ManagedAttribute(description="Number of bytes of digests sent in STABILITY messages")
+    public long getStabilityBytesSent() {return num_stability_bytes_sent;}
+    @ManagedAttribute(description="Number of STABLE messages sent with a delta digest")
+    public int getDeltaDigestsSent() {return num_delta_digests_sent;}
+    @ManagedAttribute(description="Number of STABLE messages with a delta digest dropped because the base was unknown")
+    public int getDeltaDigestsDropped() {return num_delta_digests_dropped;}
+    @ManagedAttribute(description="The parent in the STABLE tree (null if root or tree_fanout is 0)")
+    public String getParent() {return parent != null? parent.toString() : "null";}
+    @ManagedAttribute(description="The children in the STABLE tree")
+    public String getChildren() {return children.toString();}
 
     @ManagedAttribute
     public boolean getStableTaskRunning() {
@@ -174,6 +231,8 @@ public class STABLE extends Protocol {
     public void resetStats() {
         super.resetStats();
         num_stability_msgs_received=num_stability_msgs_sent=num_stable_msgs_sent=num_stable_msgs_received=0;
+        num_stable_bytes_sent=num_stable_bytes_received=num_stability_bytes_sent=0;
+        num_delta_digests_sent=num_delta_digests_dropped=0;
     }
 
 
@@ -219,8 +278,9 @@ public class STABLE extends Protocol {
             startStableTask();
 
         // we're the only one who sends out STABILITY messages; no need to wait for others to send it (as they won't)
-        if(send_stable_msgs_to_coord_only)
+        if(send_stable_msgs_to_coord_only || tree_fanout > 0)
             stability_delay=0;
+        send_stability_down_tree=tree_fanout > 0 && !getTransport().supportsMulticasting();
     }
 
     public void stop() {
@@ -253,7 +313,11 @@ public class STABLE extends Protocol {
     protected void handleUpEvent(StableHeader hdr, Address sender) {
         switch(hdr.type) {
             case StableHeader.STABLE_GOSSIP:
-                handleStableMessage(hdr.stableDigest, sender);
+            case StableHeader.STABLE_GOSSIP_DELTA:
+                num_stable_bytes_received+=hdr.size();
+                Digest d=hdr.type == StableHeader.STABLE_GOSSIP_DELTA? readDelta(hdr, sender) : hdr.stableDigest;
+                if(d != null)
+                    handleStableMessage(d, sender);
                 break;
             case StableHeader.STABILITY:
                 handleStabilityMessage(hdr.stableDigest, sender);
@@ -365,6 +429,11 @@ public class STABLE extends Protocol {
         return down_prot.down(evt);
     }
 
+    /** Regular messages are not handled by STABLE, so a batch is passed down unchanged */
+    public Object down(MessageBatch batch) {
+        return down_prot.down(batch);
+    }
+
 
     @ManagedOperation
     public void runMessageGarbageCollection() {
@@ -387,6 +456,9 @@ public class STABLE extends Protocol {
             mbrs.clear();
             mbrs.addAll(tmp);
         }
+        if(tree_fanout > 0)
+            computeTree(tmp);
+        clearBases();
         lock.lock();
         try {
             coordinator=tmp.get(0);
@@ -402,6 +474,22 @@ public class STABLE extends Protocol {
 
 
 
+    /**
+     * Computes parent and children of the local member in a tree with tree_fanout children per node: the member at
+     * index i in the view has the member at (i-1)/tree_fanout as parent
+     */
+    protected void computeTree(List<Address> members) {
+        int index=members.indexOf(local_addr);
+        if(index < 0)
+            return;
+        Set<Address> tmp=new HashSet<Address>(tree_fanout);
+        for(int i=index * tree_fanout +1; i <= index * tree_fanout + tree_fanout && i < members.size(); i++)
+            tmp.add(members.get(i));
+        parent=index > 0? members.get((index-1) / tree_fanout) : null;
+        children=tmp;
+    }
+
+
     /** Update my own digest from a digest received by somebody else. Returns whether the update was successful.
      *  Needs to be called with a lock on digest */
     @GuardedBy("lock")
@@ -474,6 +562,8 @@ public class STABLE extends Protocol {
 
     /** Votes is already locked and guaranteed to be non-null */
     protected boolean allVotesReceived(Set<Address> votes) {
+        if(tree_fanout > 0)
+            return votes.equals(children); // the digests of our children include those of their subtrees
         synchronized(mbrs) {
             return votes.equals(mbrs); // compares identity, size and element-wise (if needed)
         }
@@ -591,6 +681,13 @@ public class STABLE extends Protocol {
             return;
         }
 
+        if(tree_fanout > 0 && !children.contains(sender)) {
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": discarded STABLE message from " + sender + " as it is not a child (children: " +
+                            children + ")");
+            return;
+        }
+
         Digest copy=null;
         lock.lock();
         try {
@@ -614,6 +711,11 @@ public class STABLE extends Protocol {
         // we don't yet reset digest: new STABLE messages will be discarded anyway as we have already
         // received votes from their senders
         if(copy != null) {
+            Address tmp_parent=parent;
+            if(tree_fanout > 0 && tmp_parent != null) { // inner node: send the merged digest of our subtree up the tree
+                sendStableMessage(copy, tmp_parent);
+                return;
+            }
             resetNumBytes();
             sendStabilityMessage(copy);
             // we discard our own STABILITY message, so pass it down now
@@ -658,6 +760,11 @@ public class STABLE extends Protocol {
             return;
         }
 
+        if(send_stability_down_tree) {
+            for(Address child: children)
+                sendStabilityMessage(stable_digest, child);
+        }
+
         if(log.isTraceEnabled())
             log.trace(new StringBuilder(local_addr + ": received stability msg from ").append(sender).append(": ").append(stable_digest.printHighestDeliveredSeqnos()));
         stopStabilityTask();
@@ -676,6 +783,7 @@ public class STABLE extends Protocol {
             }
             num_stability_msgs_received++;
             resetDigest();
+            addBase(stable_digest);
         }
         finally {
             lock.unlock();
@@ -700,27 +808,63 @@ public class STABLE extends Protocol {
                 log.trace("will not send STABLE message as I'm suspended");
             return;
         }
+        if(d == null || d.size() == 0)
+            return;
 
-        if(d != null && d.size() > 0) {
-            Address dest=send_stable_msgs_to_coord_only? coordinator : null;
-            if(log.isTraceEnabled())
-                log.trace(local_addr + ": sending stable msg to " + (send_stable_msgs_to_coord_only? coordinator : "cluster") +
-                            ": " + d.printHighestDeliveredSeqnos());
-            num_stable_msgs_sent++;
-            final Message msg=new Message(dest).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.NO_RELIABILITY)
-              .putHeader(this.id,new StableHeader(StableHeader.STABLE_GOSSIP,d));
-
-            Runnable r=new Runnable() {
-                public void run() {
-                    down_prot.down(new Event(Event.MSG, msg));
-                }
+        if(tree_fanout > 0) {
+            if(!initialized || !children.isEmpty()) // an inner node sends its digest when all children have reported
+                return;
+            Address tmp_parent=parent;
+            if(tmp_parent != null)
+                sendStableMessage(d, tmp_parent);
+            else { // we're the only member
+                resetNumBytes();
+                down_prot.down(new Event(Event.STABLE, d));
+            }
+            return;
+        }
+        sendStableMessage(d, send_stable_msgs_to_coord_only? coordinator : null);
+    }
 
-                public String toString() {return STABLE.class.getSimpleName() + ": STABLE-GOSSIP";}
-            };
+    /** Sends a STABLE message with digest d to dest (null sends it to the cluster) */
+    protected void sendStableMessage(Digest d, Address dest) {
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": sending stable msg to " + (dest != null? dest : "cluster") +
+                        ": " + d.printHighestDeliveredSeqnos());
+        num_stable_msgs_sent++;
+        StableHeader hdr=use_delta_digests? createDeltaHeader(d) : null;
+        if(hdr == null)
+            hdr=new StableHeader(StableHeader.STABLE_GOSSIP,d);
+        num_stable_bytes_sent+=hdr.size();
+        final Message msg=new Message(dest).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.NO_RELIABILITY)
+          .putHeader(this.id,hdr);
+
+        Runnable r=new Runnable() {
+            public void run() {
+                down_prot.down(new Event(Event.MSG, msg));
+            }
 
-            // Run in a separate thread so we don't potentially block (http://jira.jboss.com/jira/browse/JGRP-532)
-            timer.execute(r);
-        }
+            public String toString() {return STABLE.class.getSimpleName() + ": STABLE-GOSSIP";}
+        };
+
+        // Run in a separate thread so we don't potentially block (http://jira.jboss.com/jira/browse/JGRP-532)
+        timer.execute(r);
+    }
+
+    /** Sends a STABILITY message with digest d to dest (null sends it to the cluster) */
+    protected void sendStabilityMessage(Digest d, Address dest) {
+        // https://issues.jboss.org/browse/JGRP-1638: we reverted to sending the STABILITY message *unreliably*,
+        // but clear votes *before* sending it
+        Message msg=new Message(dest).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.NO_RELIABILITY);
+        StableHeader hdr=new StableHeader(StableHeader.STABILITY, d);
+        msg.putHeader(id, hdr);
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": sending stability msg to " + (dest != null? dest : "cluster") + ": " +
+                        d.printHighestDeliveredSeqnos());
+        num_stability_msgs_sent++;
+        num_stability_bytes_sent+=hdr.size();
+        addBase(d);
+        down_prot.down(new Event(Event.MSG, msg));
     }
 
 
@@ -750,6 +894,73 @@ public class STABLE extends Protocol {
     }
 
 
+    /**
+     * Creates a STABLE_GOSSIP header with d encoded as a delta to the last STABILITY digest, or returns null if no
+     * suitable base is available, or a delta digest has already been sent since the last STABILITY digest
+     */
+    protected StableHeader createDeltaHeader(Digest d) {
+        long checksum=latest_base;
+        Digest base=getBase(checksum);
+        if(base == null || latest_base_used || !d.sameSenders(base))
+            return null;
+        try {
+            ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(d.size() * 2 + 8);
+            d.writeDeltaTo(base, new ExposedDataOutputStream(out_stream));
+            latest_base_used=true;
+            num_delta_digests_sent++;
+            return new StableHeader(StableHeader.STABLE_GOSSIP_DELTA, checksum,
+                                    Arrays.copyOf(out_stream.getRawBuffer(), out_stream.size()));
+        }
+        catch(Exception ex) {
+            log.error("failed creating delta digest", ex);
+            return null;
+        }
+    }
+
+    /** Decodes the delta digest in hdr, or returns null if we don't have its base */
+    protected Digest readDelta(StableHeader hdr, Address sender) {
+        Digest base=getBase(hdr.base);
+        if(base == null) {
+            num_delta_digests_dropped++;
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": dropped STABLE message from " + sender + " as base " + hdr.base + " is unknown");
+            return null;
+        }
+        try {
+            Digest retval=new Digest();
+            retval.readDeltaFrom(base, new DataInputStream(new ExposedByteArrayInputStream(hdr.delta)));
+            return retval;
+        }
+        catch(Exception ex) {
+            log.error("failed reading delta digest from " + sender, ex);
+            return null;
+        }
+    }
+
+    protected void addBase(Digest d) {
+        long checksum=d.checksum();
+        synchronized(bases) {
+            bases.put(checksum, d);
+        }
+        latest_base=checksum;
+        latest_base_used=false;
+    }
+
+    protected Digest getBase(long checksum) {
+        synchronized(bases) {
+            return bases.get(checksum);
+        }
+    }
+
+    protected void clearBases() {
+        synchronized(bases) {
+            bases.clear();
+        }
+        latest_base=0;
+        latest_base_used=false;
+    }
+
+
     protected Digest getDigest() {
         return (Digest)down_prot.down(Event.GET_DIGEST_EVT);
     }
@@ -766,9 +977,14 @@ public class STABLE extends Protocol {
     public static class StableHeader extends Header {
         public static final int STABLE_GOSSIP=1;
         public static final int STABILITY=2;
+        /** STABLE_GOSSIP with a delta digest. A separate type so that the other types have the same wire format as
+         * in previous versions */
+        public static final int STABLE_GOSSIP_DELTA=3;
 
         protected int    type;
         protected Digest stableDigest; // changed by Bela April 4 2004
+        protected long   base;         // the checksum of the base digest of delta
+        protected byte[] delta;        // the digest, encoded relative to the base digest (stableDigest is null)
 
         public StableHeader() {
         }
@@ -779,6 +995,13 @@ public class STABLE extends Protocol {
             this.stableDigest=digest;
         }
 
+        /** Used for STABLE_GOSSIP_DELTA headers */
+        public StableHeader(int type, long base, byte[] delta) {
+            this.type=type;
+            this.base=base;
+            this.delta=delta;
+        }
+
 
         static String type2String(int t) {
             switch(t) {
@@ -786,6 +1009,8 @@ public class STABLE extends Protocol {
                     return "STABLE_GOSSIP";
                 case STABILITY:
                     return "STABILITY";
+                case STABLE_GOSSIP_DELTA:
+                    return "STABLE_GOSSIP_DELTA";
                 default:
                     return "<unknown>";
             }
@@ -795,13 +1020,18 @@ public class STABLE extends Protocol {
             StringBuilder sb=new StringBuilder();
             sb.append('[');
             sb.append(type2String(type));
-            sb.append("]: digest is ");
-            sb.append(stableDigest);
+            if(type == STABLE_GOSSIP_DELTA)
+                sb.append("]: delta digest (").append(delta.length).append(" bytes, base=").append(base).append(")");
+            else
+                sb.append("]: digest is ").append(stableDigest);
             return sb.toString();
         }
 
         public int size() {
-            int retval=Global.INT_SIZE + Global.BYTE_SIZE; // type + presence for digest
+            int retval=Global.INT_SIZE; // type
+            if(type == STABLE_GOSSIP_DELTA)
+                return retval + Global.LONG_SIZE + Global.INT_SIZE + delta.length;
+            retval+=Global.BYTE_SIZE; // presence for digest
             if(stableDigest != null)
                 retval+=stableDigest.serializedSize();
             return retval;
@@ -809,12 +1039,24 @@ public class STABLE extends Protocol {
 
         public void writeTo(DataOutput out) throws Exception {
             out.writeInt(type);
-            Util.writeStreamable(stableDigest, out);
+            if(type == STABLE_GOSSIP_DELTA) {
+                out.writeLong(base);
+                out.writeInt(delta.length);
+                out.write(delta);
+            }
+            else
+                Util.writeStreamable(stableDigest, out);
         }
 
         public void readFrom(DataInput in) throws Exception {
             type=in.readInt();
-            stableDigest=(Digest)Util.readStreamable(Digest.class, in);
+            if(type == STABLE_GOSSIP_DELTA) {
+                base=in.readLong();
+                delta=new byte[in.readInt()];
+                in.readFully(delta);
+            }
+            else
+                stableDigest=(Digest)Util.readStreamable(Digest.class, in);
         }
     }
 
@@ -887,14 +1129,12 @@ public class STABLE extends Protocol {
             }
 
             if(stability_digest != null) {
-                // https://issues.jboss.org/browse/JGRP-1638: we reverted to sending the STABILITY message *unreliably*,
-                // but clear votes *before* sending it
-                Message msg=new Message().setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.NO_RELIABILITY);
-                StableHeader hdr=new StableHeader(StableHeader.STABILITY, stability_digest);
-                msg.putHeader(id, hdr);
-                if(log.isTraceEnabled()) log.trace(local_addr + ": sending stability msg " + stability_digest.printHighestDeliveredSeqnos());
-                num_stability_msgs_sent++;
-                down_prot.down(new Event(Event.MSG, msg));
+                if(send_stability_down_tree) {
+                    for(Address child: children)
+                        sendStabilityMessage(stability_digest, child);
+                }
+                else
+                    sendStabilityMessage(stability_digest, null);
             }
         }
 
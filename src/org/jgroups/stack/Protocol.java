@@ -407,6 +407,26 @@ public abstract class Protocol {
     }
 
 
+    /**
+     * Sends down multiple messages to the same destination (null == multicast messages) in a {@link MessageBatch},
+     * e.g. all fragments of a message. This allows protocols to process the messages once rather than per message,
+     * e.g. to assign a range of seqnos or to acquire credits for all messages.<p/>
+     * The default processing below sends the messages down individually by calling {@link #down(org.jgroups.Event)}
+     * for each message, so protocols which don't override this method handle the messages as before.<p/>
+     * Subclasses which don't modify regular messages can pass the batch down unchanged; subclasses which do should
+     * process all messages and then pass the batch (or the individual messages) down.
+     * @param batch The message batch
+     * @return The result of passing down the last message of the batch, e.g. a future which completes when the last
+     *         message has been sent (the messages of a batch are sent in order)
+     */
+    public Object down(MessageBatch batch) {
+        Object retval=null;
+        for(Message msg: batch)
+            retval=down(new Event(Event.MSG, msg));
+        return retval;
+    }
+
+
     /**
      * An event is to be sent down the stack. The layer may want to examine its type and perform
      * some action on it, depending on the event's type. If the event is a message MSG, then
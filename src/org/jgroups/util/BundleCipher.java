@@ -0,0 +1,151 @@
+package org.jgroups.util;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encrypts and decrypts entire datagrams (e.g. a bundle of messages written by
+ * {@link org.jgroups.protocols.TP#writeMessageList(org.jgroups.Address,org.jgroups.Address,String,java.util.List,java.io.DataOutputStream,boolean,short)})
+ * with AES in GCM mode, so the cipher runs once per datagram rather than once per message. The first
+ * {@code hdr_length} bytes of a datagram are sent in the clear, but are authenticated. An encrypted datagram looks
+ * like this:
+ * <pre>
+ * | header (hdr_length bytes) | IV (12 bytes) | ciphertext | tag (16 bytes) |
+ * </pre>
+ * The IV consists of 4 random bytes and an 8 byte counter. Ciphers are pooled, so multiple threads can encrypt or
+ * decrypt concurrently. GCM requires Java 7 or higher.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class BundleCipher {
+    public static final String    ALGORITHM="AES/GCM/NoPadding";
+    public static final int       IV_LENGTH=12;
+    public static final int       TAG_LENGTH=16; // in bytes
+    protected static final byte[] SALT="org.jgroups.util.BundleCipher".getBytes();
+
+    protected final SecretKey                     key;
+    protected final byte[]                        iv_salt=new byte[4];
+    protected final AtomicLong                    iv_counter=new AtomicLong(0);
+    protected final ConcurrentLinkedQueue<Cipher> ciphers=new ConcurrentLinkedQueue<Cipher>();
+
+
+    public BundleCipher(SecretKey key) throws Exception {
+        if(!Util.isGCMSupported())
+            throw new IllegalStateException("encryption of datagrams with " + ALGORITHM + " requires Java 7 or higher");
+        this.key=key;
+        SecureRandom random=new SecureRandom();
+        random.nextBytes(iv_salt);
+        iv_counter.set(random.nextLong());
+        release(take()); // fails early if AES/GCM is not available
+    }
+
+    public SecretKey getKey() {return key;}
+
+    /** Returns the number of bytes added to a datagram by {@link #encrypt(byte[],int,int,int)} */
+    public static int overhead() {return IV_LENGTH + TAG_LENGTH;}
+
+
+    /**
+     * Encrypts a datagram
+     * @param buf The buffer
+     * @param offset The offset at which the datagram starts
+     * @param length The length of the datagram
+     * @param hdr_length The number of bytes at the start of the datagram which are copied unencrypted, but authenticated
+     * @return A new buffer with the header, the IV and the encrypted rest of the datagram
+     */
+    public byte[] encrypt(byte[] buf, int offset, int length, int hdr_length) throws Exception {
+        byte[] iv=nextIV();
+        Cipher cipher=take();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, Util.createGCMParameterSpec(TAG_LENGTH * 8, iv, 0, iv.length));
+            cipher.updateAAD(buf, offset, hdr_length);
+            byte[] retval=new byte[hdr_length + IV_LENGTH + cipher.getOutputSize(length - hdr_length)];
+            System.arraycopy(buf, offset, retval, 0, hdr_length);
+            System.arraycopy(iv, 0, retval, hdr_length, IV_LENGTH);
+            cipher.doFinal(buf, offset + hdr_length, length - hdr_length, retval, hdr_length + IV_LENGTH);
+            return retval;
+        }
+        finally {
+            release(cipher);
+        }
+    }
+
+    /**
+     * Decrypts a datagram created by {@link #encrypt(byte[],int,int,int)}
+     * @return The decrypted datagram, without the header
+     * @throws Exception If the datagram was not encrypted with the same key, or was modified
+     */
+    public byte[] decrypt(byte[] buf, int offset, int length, int hdr_length) throws Exception {
+        if(length < hdr_length + IV_LENGTH + TAG_LENGTH)
+            throw new IllegalArgumentException("encrypted datagram is too short (" + length + " bytes)");
+        Cipher cipher=take();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, Util.createGCMParameterSpec(TAG_LENGTH * 8, buf, offset + hdr_length, IV_LENGTH));
+            cipher.updateAAD(buf, offset, hdr_length);
+            int start=offset + hdr_length + IV_LENGTH;
+            return cipher.doFinal(buf, start, length - hdr_length - IV_LENGTH);
+        }
+        finally {
+            release(cipher);
+        }
+    }
+
+
+    /** Creates an AES key of key_size bits from a shared secret (PBKDF2) */
+    public static SecretKey createKey(String secret, int key_size) throws Exception {
+        SecretKeyFactory factory=SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        byte[] encoded=factory.generateSecret(new PBEKeySpec(secret.toCharArray(), SALT, 10000, key_size)).getEncoded();
+        return new SecretKeySpec(encoded, "AES");
+    }
+
+    /**
+     * Reads a secret key from a JCEKS keystore (as generated by {@link org.jgroups.demos.KeyStoreGenerator}). The
+     * keystore is looked up on the classpath first, then in the file system
+     */
+    public static SecretKey readKey(String keystore_name, String store_password, String alias,
+                                    String key_password) throws Exception {
+        InputStream input=Thread.currentThread().getContextClassLoader().getResourceAsStream(keystore_name);
+        if(input == null)
+            input=new FileInputStream(keystore_name);
+        try {
+            KeyStore store=KeyStore.getInstance("JCEKS");
+            store.load(input, store_password.toCharArray());
+            SecretKey key=(SecretKey)store.getKey(alias, (key_password != null? key_password : store_password).toCharArray());
+            if(key == null)
+                throw new Exception("key '" + alias + "' not found in keystore " + keystore_name);
+            return key;
+        }
+        finally {
+            Util.close(input);
+        }
+    }
+
+
+    /** An IV must never be used twice with the same key */
+    protected byte[] nextIV() {
+        byte[] iv=new byte[IV_LENGTH];
+        System.arraycopy(iv_salt, 0, iv, 0, iv_salt.length);
+        long counter=iv_counter.incrementAndGet();
+        for(int i=0; i < 8; i++)
+            iv[iv_salt.length + i]=(byte)(counter >>> (i * 8));
+        return iv;
+    }
+
+    protected Cipher take() throws Exception {
+        Cipher cipher=ciphers.poll();
+        return cipher != null? cipher : Cipher.getInstance(ALGORITHM);
+    }
+
+    protected void release(Cipher cipher) {
+        ciphers.offer(cipher);
+    }
+}
@@ -0,0 +1,46 @@
+package org.jgroups.util;
+
+/**
+ * A compression codec, used by {@link org.jgroups.protocols.COMPRESS}. Every codec has a unique ID, which is sent
+ * with every compressed message, so that a receiver can pick the codec to uncompress the message. IDs 0-15 are
+ * reserved for JGroups. Implementations need to be thread safe, and need to have a public no-arg constructor.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public interface Compressor {
+    byte DEFLATE=1;
+    byte LZ=2;
+
+    /** The ID which identifies this codec in the header of a compressed message */
+    byte getId();
+
+    /** Called once before the codec is used, e.g. to create pools of native compressors */
+    void init() throws Exception;
+
+    /** Called when the codec is not needed anymore */
+    void destroy();
+
+    /**
+     * Compresses a buffer
+     * @param in The uncompressed data
+     * @param offset The offset into in
+     * @param length The number of bytes to be compressed
+     * @param out The buffer into which the compressed data is written
+     * @param out_offset The offset into out
+     * @param out_length The max number of bytes to be written to out
+     * @return The size of the compressed data, or -1 if the compressed data doesn't fit into out_length bytes
+     */
+    int compress(byte[] in, int offset, int length, byte[] out, int out_offset, int out_length) throws Exception;
+
+    /**
+     * Uncompresses a buffer
+     * @param in The compressed data
+     * @param offset The offset into in
+     * @param length The number of compressed bytes
+     * @param out The buffer into which the uncompressed data is written
+     * @param out_offset The offset into out
+     * @param original_length The size of the data before compression
+     * @throws Exception If the data is corrupt, or doesn't uncompress to exactly original_length bytes
+     */
+    void uncompress(byte[] in, int offset, int length, byte[] out, int out_offset, int original_length) throws Exception;
+}
@@ -5,12 +5,18 @@ import org.jgroups.annotations.GuardedBy;
 
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Maintains credits for senders, when credits fall below 0, a sender blocks until new credits have been received.
+ * <p/>
+ * Decrementing credits doesn't acquire the lock as long as there are enough credits: min_credits (the lowest credit
+ * minus the accumulated credits) is decremented with a CAS and the credits are added to accumulated_credits, which are
+ * subtracted from all members when the lock is held the next time. Only when min_credits is insufficient does a
+ * sender acquire the lock and block until credits have been replenished.
  * @author Bela Ban
  */
 public class CreditMap {
@@ -18,8 +24,8 @@ public class CreditMap {
 
     @GuardedBy("lock")
     protected final Map<Address,Long> credits=new HashMap<Address,Long>();
-    protected long                    min_credits;
-    protected long                    accumulated_credits=0;
+    protected final AtomicLong        min_credits;
+    protected final AtomicLong        accumulated_credits=new AtomicLong(0);
     protected final Lock              lock=new ReentrantLock();
     protected final Condition         credits_available=lock.newCondition();
     protected int                     num_blockings=0;
@@ -28,15 +34,15 @@ public class CreditMap {
 
     public CreditMap(long max_credits) {
         this.max_credits=max_credits;
-        min_credits=max_credits;
+        min_credits=new AtomicLong(max_credits);
     }
 
     public long getAccumulatedCredits() {
-        return accumulated_credits;
+        return accumulated_credits.get();
     }
 
     public long getMinCredits() {
-        return min_credits;
+        return min_credits.get();
     }
 
     public int getNumBlockings() {
@@ -72,11 +78,8 @@ public class CreditMap {
         try {
             Long retval=credits.remove(key);
             flushAccumulatedCredits();
-            long new_min=computeLowestCredit();
-            if(new_min > min_credits) {
-                min_credits=new_min;
+            if(updateMinCredits(true))
                 credits_available.signalAll();
-            }
             return retval;
         }
         finally {
@@ -102,7 +105,7 @@ public class CreditMap {
 
         lock.lock();
         try {
-            if(credit_needed > min_credits) {
+            if(credit_needed > min_credits.get()) {
                 flushAccumulatedCredits();
                 for(Map.Entry<Address,Long> entry: credits.entrySet()) {
                     if(entry.getValue().longValue() < credit_needed)
@@ -144,14 +147,16 @@ public class CreditMap {
      * @return True if decrementing credits bytes succeeded, false otherwise 
      */
     public boolean decrement(long credits, long timeout) {
+        if(decrement(credits)) // fast path, doesn't acquire the lock
+            return true;
+        if(timeout <= 0)
+            return false;
+
         lock.lock();
         try {
             if(decrement(credits))
                 return true;
 
-            if(timeout <= 0)
-                return false;
-
             long start=System.nanoTime();
             try {
                 credits_available.await(timeout, TimeUnit.MILLISECONDS);
@@ -181,15 +186,10 @@ public class CreditMap {
             if(val == null)
                 return;
 
-            boolean potential_update=val.longValue() - accumulated_credits <= min_credits;
+            boolean potential_update=val.longValue() - accumulated_credits.get() <= min_credits.get();
             decrementAndAdd(sender, new_credits);
-            if(potential_update) {
-                long new_min=computeLowestCredit();
-                if(new_min > min_credits) {
-                    min_credits=new_min;
-                    credits_available.signalAll();
-                }
-            }
+            if(potential_update && updateMinCredits(true))
+                credits_available.signalAll();
         }
         finally {
             lock.unlock();
@@ -203,7 +203,7 @@ public class CreditMap {
             flushAccumulatedCredits();
             for(Map.Entry<Address,Long> entry: credits.entrySet())
                 entry.setValue(max_credits);
-            min_credits=computeLowestCredit();
+            updateMinCredits(false);
             credits_available.signalAll();
         }
         finally {
@@ -240,14 +240,38 @@ public class CreditMap {
         return sb.toString();
     }
 
-    // need to be called with lock held
+    /**
+     * Decrements min_credits by credits if enough credits are available. Doesn't need the lock. The credits are added
+     * to accumulated_credits <em>before</em> min_credits is changed, so {@link #updateMinCredits(boolean)} never
+     * computes a min_credits which misses a successful decrement
+     */
     protected boolean decrement(long credits) {
-        if(credits <= min_credits) {
-            accumulated_credits+=credits;
-            min_credits-=credits;
-            return true;
+        for(;;) {
+            long min=min_credits.get();
+            if(credits > min)
+                return false;
+            accumulated_credits.addAndGet(credits);
+            if(min_credits.compareAndSet(min, min - credits))
+                return true;
+            accumulated_credits.addAndGet(-credits); // lost the race: undo and retry
+        }
+    }
+
+    /**
+     * Sets min_credits to the lowest credit minus the accumulated credits. Needs to be called with lock held
+     * @param only_if_higher Only changes min_credits if the new value is higher
+     * @return True if min_credits was changed
+     */
+    protected boolean updateMinCredits(boolean only_if_higher) {
+        long lowest=computeLowestCredit();
+        for(;;) {
+            long min=min_credits.get();
+            long new_min=lowest - accumulated_credits.get();
+            if(only_if_higher && new_min <= min)
+                return false;
+            if(min_credits.compareAndSet(min, new_min))
+                return true;
         }
-        return false;
     }
 
     /** Needs to be called with lock held */
@@ -259,10 +283,13 @@ public class CreditMap {
     }
 
     public long computeLowestCreditWithAccumulated() {
-        long lowest=max_credits;
-        for(long cred: credits.values())
-            lowest=Math.min(cred, lowest);
-        return lowest - accumulated_credits;
+        lock.lock();
+        try {
+            return computeLowestCredit() - accumulated_credits.get();
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -274,16 +301,16 @@ public class CreditMap {
     protected void decrementAndAdd(Address member, long new_credits) {
         boolean replenish=member != null && new_credits > 0;
 
-        if(accumulated_credits > 0) {
+        long accumulated=accumulated_credits.getAndSet(0);
+        if(accumulated != 0) {
             for(Map.Entry<Address,Long> entry: this.credits.entrySet()) {
-                entry.setValue(Math.max(0, entry.getValue().longValue() - accumulated_credits));
+                entry.setValue(entry.getValue().longValue() - accumulated);
                 if(replenish) {
                     Address tmp=entry.getKey();
                     if(tmp.equals(member))
                         entry.setValue(Math.min(max_credits, entry.getValue().longValue() + new_credits));
                 }
             }
-            accumulated_credits=0;
         }
         else {
             if(replenish) {
@@ -294,13 +321,15 @@ public class CreditMap {
         }
     }
 
-    // Called with lock held
+    /**
+     * Subtracts the accumulated credits from all members. Called with lock held. The accumulated credits can
+     * temporarily be negative when a concurrent {@link #decrement(long)} undoes its addition after they were flushed
+     */
     protected void flushAccumulatedCredits() {
-        if(accumulated_credits > 0) {
-            for(Map.Entry<Address,Long> entry: this.credits.entrySet()) {
-                entry.setValue(Math.max(0, entry.getValue().longValue() - accumulated_credits));
-            }
-            accumulated_credits=0;
+        long accumulated=accumulated_credits.getAndSet(0);
+        if(accumulated != 0) {
+            for(Map.Entry<Address,Long> entry: this.credits.entrySet())
+                entry.setValue(entry.getValue().longValue() - accumulated);
         }
     }
 
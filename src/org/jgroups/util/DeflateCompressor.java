@@ -0,0 +1,96 @@
+package org.jgroups.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses data with {@link java.util.zip.Deflater}. Deflaters and inflaters are taken from a pool. Supports
+ * preset dictionaries
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class DeflateCompressor implements DictionaryCompressor {
+    protected int                     compression_level=Deflater.BEST_SPEED;
+    protected int                     pool_size=2;
+    protected BlockingQueue<Deflater> deflater_pool;
+    protected BlockingQueue<Inflater> inflater_pool;
+
+    public DeflateCompressor() {
+    }
+
+    public DeflateCompressor(int compression_level, int pool_size) {
+        this.compression_level=compression_level;
+        this.pool_size=pool_size;
+    }
+
+    public byte getId() {return DEFLATE;}
+
+    public void init() throws Exception {
+        deflater_pool=new ArrayBlockingQueue<Deflater>(pool_size);
+        for(int i=0; i < pool_size; i++)
+            deflater_pool.add(new Deflater(compression_level));
+        inflater_pool=new ArrayBlockingQueue<Inflater>(pool_size);
+        for(int i=0; i < pool_size; i++)
+            inflater_pool.add(new Inflater());
+    }
+
+    public void destroy() {
+        for(Deflater deflater: deflater_pool)
+            deflater.end();
+        for(Inflater inflater: inflater_pool)
+            inflater.end();
+    }
+
+    public int compress(byte[] in, int offset, int length, byte[] out, int out_offset, int out_length) throws Exception {
+        return compress(in, offset, length, out, out_offset, out_length, null);
+    }
+
+    public int compress(byte[] in, int offset, int length, byte[] out, int out_offset, int out_length,
+                        byte[] dictionary) throws Exception {
+        Deflater deflater=deflater_pool.take();
+        try {
+            deflater.reset();
+            if(dictionary != null)
+                deflater.setDictionary(dictionary);
+            deflater.setInput(in, offset, length);
+            deflater.finish();
+            int size=deflater.deflate(out, out_offset, out_length);
+            return deflater.finished()? size : -1;
+        }
+        finally {
+            deflater_pool.offer(deflater);
+        }
+    }
+
+    public void uncompress(byte[] in, int offset, int length, byte[] out, int out_offset, int original_length) throws Exception {
+        uncompress(in, offset, length, out, out_offset, original_length, null);
+    }
+
+    public void uncompress(byte[] in, int offset, int length, byte[] out, int out_offset, int original_length,
+                           byte[] dictionary) throws Exception {
+        Inflater inflater=inflater_pool.take();
+        try {
+            inflater.reset();
+            inflater.setInput(in, offset, length);
+            int size=inflater.inflate(out, out_offset, original_length);
+            if(size == 0 && inflater.needsDictionary()) {
+                if(dictionary == null)
+                    throw new DataFormatException("data was compressed with a dictionary, but no dictionary was given");
+                inflater.setDictionary(dictionary); // throws IllegalArgumentException if it is the wrong dictionary
+                size=inflater.inflate(out, out_offset, original_length);
+            }
+            if(size != original_length)
+                throw new DataFormatException("uncompressed " + size + " bytes, but expected " + original_length);
+        }
+        finally {
+            inflater_pool.offer(inflater);
+        }
+    }
+
+    public String toString() {
+        return "deflate (level=" + compression_level + ")";
+    }
+}
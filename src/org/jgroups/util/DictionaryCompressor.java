@@ -0,0 +1,18 @@
+package org.jgroups.util;
+
+/**
+ * A {@link Compressor} which can be primed with a dictionary: data which is similar to the data to be compressed.
+ * This improves the compression of small buffers (e.g. RPCs) which share a lot of structure. Data compressed with a
+ * dictionary has to be uncompressed with the same dictionary.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public interface DictionaryCompressor extends Compressor {
+
+    /** Same as {@link #compress(byte[],int,int,byte[],int,int)}, but uses a dictionary (if not null) */
+    int compress(byte[] in, int offset, int length, byte[] out, int out_offset, int out_length, byte[] dictionary) throws Exception;
+
+    /** Same as {@link #uncompress(byte[],int,int,byte[],int,int)}, but uses a dictionary (if not null) */
+    void uncompress(byte[] in, int offset, int length, byte[] out, int out_offset, int original_length,
+                    byte[] dictionary) throws Exception;
+}
@@ -395,6 +395,65 @@ public class Digest implements Streamable, Iterable<Digest.DigestEntry> {
     }
 
 
+    /**
+     * Writes the seqnos of this digest relative to a base digest the receiver already has, in the member order of the
+     * base. Only the differences to the base's seqnos are written, as variable-length longs, so an entry that didn't
+     * change takes 2 bytes. The members are not written at all.
+     * @param base The base digest, needs to have the same senders as this digest
+     */
+    public void writeDeltaTo(Digest base, DataOutput out) throws Exception {
+        if(!sameSenders(base))
+            throw new IllegalArgumentException("base " + base + " doesn't have the same senders as " + this);
+        for(int i=0; i < base.size(); i++) {
+            int index=indexOf(base.members[i], i);
+            Util.writeLong(zigzag(seqnos[index * 2]    - base.seqnos[i * 2]), out);
+            Util.writeLong(zigzag(seqnos[index * 2 +1] - base.seqnos[i * 2 +1]), out);
+        }
+    }
+
+    /** Reads a digest written by {@link #writeDeltaTo(Digest,java.io.DataOutput)} with the same base */
+    public void readDeltaFrom(Digest base, DataInput in) throws Exception {
+        createArrays(base.size());
+        System.arraycopy(base.members, 0, members, 0, base.size());
+        for(int i=0; i < base.size() * 2; i++)
+            seqnos[i]=base.seqnos[i] + unzigzag(Util.readLong(in));
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash over members and seqnos. Used to identify the base of a delta digest; 2 digests
+     * with the same members (in the same order) and seqnos have the same checksum
+     */
+    public long checksum() {
+        long hash=0xcbf29ce484222325L;
+        for(int i=0; i < size(); i++) {
+            Address mbr=members[i];
+            hash=fnv(hash, mbr != null? mbr.hashCode() : 0);
+            hash=fnv(hash, seqnos[i * 2]);
+            hash=fnv(hash, seqnos[i * 2 +1]);
+        }
+        return hash;
+    }
+
+
+    protected static long fnv(long hash, long val) {
+        for(int i=0; i < 8; i++) {
+            hash^=(val >>> (i * 8)) & 0xff;
+            hash*=0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** Maps signed to unsigned values (0 -> 0, -1 -> 1, 1 -> 2, ...), so small negative deltas are encoded compactly */
+    protected static long zigzag(long num)   {return (num << 1) ^ (num >> 63);}
+    protected static long unzigzag(long num) {return (num >>> 1) ^ -(num & 1);}
+
+    /** Returns the index of member, checking index hint first (members are usually in the same order) */
+    protected int indexOf(Address member, int hint) {
+        if(hint < size() && member.equals(members[hint]))
+            return hint;
+        return find(member);
+    }
+
     protected int find(Address member) {
         for(int i=0; i < size(); i++) {
             Address addr=members[i];
@@ -0,0 +1,122 @@
+package org.jgroups.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An input stream over a buffer which is filled by fragments, possibly out of order. A read blocks until the bytes
+ * at the current position have been received, the stream has been completely received, or it has been aborted.
+ * Used by FRAG2 to pass up a large message before all of its fragments have been received.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class FragmentInputStream extends InputStream {
+    protected final byte[]                     buf;
+    protected int                              pos;       // the next byte to be read
+    protected int                              readable;  // all bytes up to (excluding) readable have been received
+    protected final TreeMap<Integer,Integer>   pending=new TreeMap<Integer,Integer>(); // received ranges after readable
+    protected String                           abort_reason;
+    protected boolean                          closed;
+
+
+    public FragmentInputStream(byte[] buf) {
+        this.buf=buf;
+    }
+
+    public byte[] getBuffer() {return buf;}
+
+    /** Marks the bytes from offset to offset+length as received. The bytes must have been written to buf before */
+    public synchronized void add(int offset, int length) {
+        int end=offset + length;
+        if(offset <= readable)
+            readable=Math.max(readable, end);
+        else {
+            Integer existing=pending.get(offset);
+            if(existing == null || existing < end)
+                pending.put(offset, end);
+        }
+        Map.Entry<Integer,Integer> entry;
+        while((entry=pending.firstEntry()) != null && entry.getKey() <= readable) {
+            readable=Math.max(readable, entry.getValue());
+            pending.remove(entry.getKey());
+        }
+        notifyAll();
+    }
+
+    /** Causes blocked and subsequent reads to throw an IOException, e.g. when the sender left */
+    public synchronized void abort(String reason) {
+        abort_reason=reason;
+        notifyAll();
+    }
+
+    public synchronized boolean isComplete() {
+        return readable == buf.length;
+    }
+
+    public int read() throws IOException {
+        synchronized(this) {
+            if(!waitForData())
+                return -1;
+            return buf[pos++] & 0xff;
+        }
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0)
+            return 0;
+        synchronized(this) {
+            if(!waitForData())
+                return -1;
+            int num=Math.min(len, readable - pos);
+            System.arraycopy(buf, pos, b, off, num);
+            pos+=num;
+            return num;
+        }
+    }
+
+    public synchronized long skip(long n) throws IOException {
+        long skipped=0;
+        while(skipped < n && waitForData()) {
+            int num=(int)Math.min(n - skipped, readable - pos);
+            pos+=num;
+            skipped+=num;
+        }
+        return skipped;
+    }
+
+    public synchronized int available() throws IOException {
+        return readable - pos;
+    }
+
+    public synchronized void close() throws IOException {
+        closed=true;
+        notifyAll();
+    }
+
+    /** Blocks until data is available. Returns false at the end of the stream. Called with the lock held */
+    protected boolean waitForData() throws IOException {
+        for(;;) {
+            if(closed)
+                throw new IOException("stream is closed");
+            if(pos < readable)
+                return true;
+            if(pos >= buf.length)
+                return false;
+            if(abort_reason != null)
+                throw new IOException(abort_reason);
+            try {
+                wait();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for data");
+            }
+        }
+    }
+
+    public synchronized String toString() {
+        return "pos=" + pos + ", readable=" + readable + ", length=" + buf.length;
+    }
+}
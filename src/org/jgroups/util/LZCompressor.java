@@ -0,0 +1,170 @@
+package org.jgroups.util;
+
+/**
+ * A fast pure Java compressor of the LZ77 family, using the LZ4 block format. It trades compression ratio for speed:
+ * it is typically an order of magnitude faster than {@link java.util.zip.Deflater} at the default compression level,
+ * and compresses structured data (e.g. serialized objects) reasonably well.
+ * <p/>
+ * The compressed data consists of sequences. A sequence is a token, followed by a number of literals (copied
+ * verbatim), followed by a match: a 2 byte offset back into the uncompressed data and the length of the match:
+ * <pre>
+ * | token (4 bits literal length, 4 bits match length - 4) | [more literal length] | literals | offset | [more match length] |
+ * </pre>
+ * The last sequence has only literals.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class LZCompressor implements Compressor {
+    protected static final int MIN_MATCH=4;
+    protected static final int HASH_LOG=12;
+    protected static final int MAX_OFFSET=65535;
+    protected static final int LAST_LITERALS=5;  // the last 5 bytes are always literals
+    protected static final int MF_LIMIT=12;      // a match has to start at least 12 bytes before the end
+    protected static final int SKIP_TRIGGER=6;   // the longer no match is found, the more bytes are skipped
+
+    /** Maps the hash of 4 bytes to their last position. Stale entries are harmless, as every match is verified */
+    protected static final ThreadLocal<int[]> hash_table=new ThreadLocal<int[]>() {
+        protected int[] initialValue() {
+            return new int[1 << HASH_LOG];
+        }
+    };
+
+    public byte getId()   {return LZ;}
+    public void init()    {}
+    public void destroy() {}
+
+    /** The max size of the compressed data (for uncompressible data) */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    public int compress(byte[] in, int offset, int length, byte[] out, int out_offset, int out_length) {
+        final int end=offset + length, out_end=out_offset + out_length;
+        int src=offset, anchor=offset, dst=out_offset;
+
+        if(length >= MF_LIMIT + 1) {
+            final int[] table=hash_table.get();
+            final int limit=end - MF_LIMIT, match_limit=end - LAST_LITERALS;
+            int misses=1 << SKIP_TRIGGER;
+
+            while(src < limit) {
+                int seq=readInt(in, src), h=hash(seq);
+                int ref=table[h];
+                table[h]=src;
+                if(ref < offset || ref >= src || src - ref > MAX_OFFSET || readInt(in, ref) != seq) {
+                    src+=misses++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                misses=1 << SKIP_TRIGGER;
+
+                while(src > anchor && ref > offset && in[src - 1] == in[ref - 1]) { // extend the match backwards
+                    src--; ref--;
+                }
+                int match_len=MIN_MATCH;
+                while(src + match_len < match_limit && in[src + match_len] == in[ref + match_len])
+                    match_len++;
+
+                if((dst=writeSequence(in, anchor, src - anchor, src - ref, match_len, out, dst, out_end)) < 0)
+                    return -1;
+                src+=match_len;
+                anchor=src;
+                if(src < limit) // the position right before the next one might start a match
+                    table[hash(readInt(in, src - 2))]=src - 2;
+            }
+        }
+        dst=writeSequence(in, anchor, end - anchor, 0, 0, out, dst, out_end);
+        return dst < 0? -1 : dst - out_offset;
+    }
+
+
+    public void uncompress(byte[] in, int offset, int length, byte[] out, int out_offset, int original_length) throws Exception {
+        final int end=offset + length, out_end=out_offset + original_length;
+        int src=offset, dst=out_offset;
+        try {
+            while(src < end) {
+                int token=in[src++] & 0xff;
+                int literals=token >>> 4;
+                if(literals == 15) {
+                    int b;
+                    do {literals+=(b=in[src++] & 0xff);} while(b == 255);
+                }
+                if(dst + literals > out_end || src + literals > end)
+                    throw new IllegalArgumentException("literals exceed the buffer at position " + (src - offset));
+                System.arraycopy(in, src, out, dst, literals);
+                src+=literals;
+                dst+=literals;
+                if(src >= end) // the last sequence has no match
+                    break;
+
+                int match_offset=(in[src] & 0xff) | (in[src + 1] & 0xff) << 8;
+                src+=2;
+                int match_len=token & 0x0f;
+                if(match_len == 15) {
+                    int b;
+                    do {match_len+=(b=in[src++] & 0xff);} while(b == 255);
+                }
+                match_len+=MIN_MATCH;
+                int ref=dst - match_offset;
+                if(match_offset == 0 || ref < out_offset || dst + match_len > out_end)
+                    throw new IllegalArgumentException("invalid match at position " + (src - offset));
+                if(match_offset >= match_len)
+                    System.arraycopy(out, ref, out, dst, match_len);
+                else { // overlapping match, e.g. a run of the same byte
+                    for(int i=0; i < match_len; i++)
+                        out[dst + i]=out[ref + i];
+                }
+                dst+=match_len;
+            }
+        }
+        catch(ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("compressed data is corrupt: " + ex);
+        }
+        if(dst != out_end)
+            throw new IllegalArgumentException("uncompressed " + (dst - out_offset) + " bytes, but expected " + original_length);
+    }
+
+
+    /** Writes a sequence of literals and a match (if match_len > 0). Returns the new position, or -1 if out is too small */
+    protected static int writeSequence(byte[] in, int literal_pos, int literals, int match_offset, int match_len,
+                                       byte[] out, int dst, int out_end) {
+        if(dst + 1 + literals + literals / 255 + 1 + (match_len > 0? 2 + match_len / 255 + 1 : 0) > out_end)
+            return -1;
+        int token_pos=dst++;
+        int token=(literals >= 15? 15 : literals) << 4;
+        if(literals >= 15)
+            dst=writeLength(literals - 15, out, dst);
+        System.arraycopy(in, literal_pos, out, dst, literals);
+        dst+=literals;
+        if(match_len > 0) {
+            out[dst++]=(byte)match_offset;
+            out[dst++]=(byte)(match_offset >>> 8);
+            int len=match_len - MIN_MATCH;
+            token|=len >= 15? 15 : len;
+            if(len >= 15)
+                dst=writeLength(len - 15, out, dst);
+        }
+        out[token_pos]=(byte)token;
+        return dst;
+    }
+
+    protected static int writeLength(int len, byte[] out, int dst) {
+        while(len >= 255) {
+            out[dst++]=(byte)255;
+            len-=255;
+        }
+        out[dst++]=(byte)len;
+        return dst;
+    }
+
+    protected static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8 | (buf[pos + 2] & 0xff) << 16 | (buf[pos + 3] & 0xff) << 24;
+    }
+
+    protected static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    public String toString() {
+        return "lz";
+    }
+}
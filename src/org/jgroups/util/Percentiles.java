@@ -0,0 +1,68 @@
+package org.jgroups.util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the last N samples (e.g. latencies) in a ring buffer and computes percentiles over them. Percentiles are
+ * computed on demand by sorting a copy of the samples, so this is meant for stats which are read rarely, e.g. via JMX.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class Percentiles {
+    protected final long[] samples;
+    protected int          index;  // next index to write to
+    protected long         count;  // total number of samples added
+
+    public Percentiles() {
+        this(1000);
+    }
+
+    public Percentiles(int size) {
+        samples=new long[size];
+    }
+
+    public synchronized void add(long sample) {
+        samples[index]=sample;
+        index=(index + 1) % samples.length;
+        count++;
+    }
+
+    /** The total number of samples added, may be greater than the number of samples kept */
+    public synchronized long count() {return count;}
+
+    public synchronized void clear() {
+        index=0;
+        count=0;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the samples fall (nearest rank), or -1 if there are no samples
+     * @param percentile The percentile, in range [0 .. 100]
+     */
+    public long percentile(double percentile) {
+        return percentile(sortedSamples(), percentile);
+    }
+
+    /** Prints min, median, 90th and 99th percentile and max */
+    public String toString() {
+        long[] sorted=sortedSamples();
+        if(sorted.length == 0)
+            return "n/a";
+        return String.format("min=%d, p50=%d, p90=%d, p99=%d, max=%d (%d samples)",
+                             sorted[0], percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                             sorted[sorted.length-1], sorted.length);
+    }
+
+    protected synchronized long[] sortedSamples() {
+        long[] retval=Arrays.copyOf(samples, (int)Math.min(count, samples.length));
+        Arrays.sort(retval);
+        return retval;
+    }
+
+    protected static long percentile(long[] sorted, double percentile) {
+        if(sorted.length == 0)
+            return -1;
+        int rank=(int)Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+}
@@ -0,0 +1,93 @@
+package org.jgroups.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link NotifyingFuture} which is completed by calling {@link #set(Object)} or {@link #setException(Throwable)}.
+ * The listener is invoked by the thread completing the future, or by the thread setting the listener if the future
+ * is already done.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class SettableFuture<T> implements NotifyingFuture<T> {
+    protected T                 result;
+    protected Throwable         exception;
+    protected boolean           done, cancelled;
+    protected FutureListener<T> listener;
+
+
+    /** Completes the future with a result. Returns false if the future was already done */
+    public boolean set(T result) {
+        return complete(result, null, false);
+    }
+
+    /** Completes the future with an exception, which is thrown by {@link #get()}. Returns false if already done */
+    public boolean setException(Throwable t) {
+        return complete(null, t, false);
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, null, true);
+    }
+
+    public synchronized boolean isCancelled() {return cancelled;}
+    public synchronized boolean isDone()      {return done;}
+
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while(!done)
+            wait();
+        return result();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long target=System.nanoTime() + unit.toNanos(timeout), wait_time;
+        while(!done && (wait_time=target - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.timedWait(this, wait_time);
+        if(!done)
+            throw new TimeoutException();
+        return result();
+    }
+
+    public NotifyingFuture<T> setListener(FutureListener<T> listener) {
+        boolean notify;
+        synchronized(this) {
+            this.listener=listener;
+            notify=done;
+        }
+        if(notify && listener != null)
+            listener.futureDone(this);
+        return this;
+    }
+
+    public synchronized String toString() {
+        return done? (cancelled? "cancelled" : exception != null? "failed: " + exception : "done: " + result) : "pending";
+    }
+
+    protected boolean complete(T result, Throwable t, boolean cancel) {
+        FutureListener<T> l;
+        synchronized(this) {
+            if(done)
+                return false;
+            this.result=result;
+            this.exception=t;
+            this.cancelled=cancel;
+            done=true;
+            l=listener;
+            notifyAll();
+        }
+        if(l != null)
+            l.futureDone(this);
+        return true;
+    }
+
+    protected T result() throws ExecutionException {
+        if(cancelled)
+            throw new CancellationException();
+        if(exception != null)
+            throw new ExecutionException(exception);
+        return result;
+    }
+}
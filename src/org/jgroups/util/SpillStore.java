@@ -0,0 +1,243 @@
+package org.jgroups.util;
+
+import org.jgroups.Message;
+import org.jgroups.annotations.GuardedBy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores marshalled messages outside of the heap, keyed by seqno. Used by NAKACK2 to move old (delivered, but not yet
+ * stable) messages out of the sender's retransmission table, and to read them back when an XMIT_REQ asks for them.
+ * <p/>
+ * The storage is a fixed-capacity ring of bytes, which is either allocated as a direct {@link ByteBuffer} or mapped
+ * from a file. Messages have to be added in ascending seqno order and are removed in the same order by
+ * {@link #purge(long)}, so the space freed at the head of the ring can be reused at the tail. When there is not
+ * enough space left, {@link #add(long,org.jgroups.Message)} returns false and the caller has to keep the message.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class SpillStore {
+    protected final ByteBuffer                 buf;
+    protected final int                        capacity;
+    protected final RandomAccessFile           file;
+
+    /** Maps seqnos to their (absolute) position in the ring and their length */
+    protected final NavigableMap<Long,long[]>  index=new TreeMap<Long,long[]>();
+
+    /** Absolute positions of the first and next free byte; tail - head is the number of bytes used */
+    protected long                             head, tail;
+
+    protected final Lock                       lock=new ReentrantLock();
+
+    protected int                              num_adds, num_gets, num_rejected;
+
+
+    /**
+     * Creates a store in direct (off-heap) memory
+     * @param capacity The max number of bytes
+     */
+    public SpillStore(int capacity) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity (" + capacity + ") needs to be > 0");
+        this.capacity=capacity;
+        this.buf=ByteBuffer.allocateDirect(capacity);
+        this.file=null;
+    }
+
+    /**
+     * Creates a store backed by a memory-mapped file. An existing file will be overwritten
+     * @param capacity The max number of bytes, and the size of the file
+     * @param filename The name of the file
+     */
+    public SpillStore(int capacity, String filename) throws IOException {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity (" + capacity + ") needs to be > 0");
+        this.capacity=capacity;
+        File f=new File(filename);
+        File parent=f.getParentFile();
+        if(parent != null && !parent.exists())
+            parent.mkdirs();
+        this.file=new RandomAccessFile(f, "rw");
+        this.file.setLength(capacity);
+        this.buf=file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+
+    public int  capacity()       {return capacity;}
+    public int  getNumAdds()     {return num_adds;}
+    public int  getNumGets()     {return num_gets;}
+    public int  getNumRejected() {return num_rejected;}
+
+    public int size() {
+        lock.lock();
+        try {
+            return index.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of bytes used */
+    public long bytesUsed() {
+        lock.lock();
+        try {
+            return tail - head;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Marshals a message and adds it to the store
+     * @param seqno The seqno of the message, needs to be higher than the highest seqno in the store
+     * @param msg The message
+     * @return True if the message was added, false if there was not enough space, or the seqno was not higher than
+     * the highest seqno in the store
+     */
+    public boolean add(long seqno, Message msg) throws Exception {
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream((int)(msg.size() + 16));
+        DataOutputStream out=new ExposedDataOutputStream(out_stream);
+        msg.writeTo(out);
+        byte[] data=out_stream.getRawBuffer();
+        int len=out_stream.size();
+
+        lock.lock();
+        try {
+            if(len > capacity - (tail - head) || (!index.isEmpty() && seqno <= index.lastKey())) {
+                num_rejected++;
+                return false;
+            }
+            write(tail, data, len);
+            index.put(seqno, new long[]{tail, len});
+            tail+=len;
+            num_adds++;
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Reads a message from the store, the message is <em>not</em> removed
+     * @param seqno The seqno
+     * @return The unmarshalled message, or null if not found
+     */
+    public Message get(long seqno) throws Exception {
+        byte[] data;
+        lock.lock();
+        try {
+            long[] entry=index.get(seqno);
+            if(entry == null)
+                return null;
+            data=new byte[(int)entry[1]];
+            read(entry[0], data);
+            num_gets++;
+        }
+        finally {
+            lock.unlock();
+        }
+        Message msg=new Message(false);
+        msg.readFrom(new DataInputStream(new ExposedByteArrayInputStream(data)));
+        return msg;
+    }
+
+
+    /**
+     * Removes all messages with a seqno lower than or equal to seqno
+     * @return The number of removed messages
+     */
+    public int purge(long seqno) {
+        lock.lock();
+        try {
+            NavigableMap<Long,long[]> purged=index.headMap(seqno, true);
+            int retval=purged.size();
+            purged.clear();
+            Map.Entry<Long,long[]> first=index.firstEntry();
+            head=first != null? first.getValue()[0] : tail;
+            return retval;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            index.clear();
+            head=tail=0;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Clears the store and closes the backing file (if any). Direct memory is released when the store is GC'ed */
+    public void close() {
+        clear();
+        if(file != null) {
+            try {
+                file.close();
+            }
+            catch(IOException e) {
+            }
+        }
+    }
+
+    public void resetStats() {
+        num_adds=num_gets=num_rejected=0;
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            return index.size() + " msgs (" + (tail - head) + " / " + capacity + " bytes" +
+              (index.isEmpty()? "" : ", seqnos " + index.firstKey() + " - " + index.lastKey()) + ")";
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /** Copies len bytes of data to the ring, wrapping around at the end */
+    @GuardedBy("lock")
+    protected void write(long pos, byte[] data, int len) {
+        int start=(int)(pos % capacity), first=Math.min(len, capacity - start);
+        ByteBuffer tmp=buf.duplicate();
+        tmp.position(start);
+        tmp.put(data, 0, first);
+        if(first < len) {
+            tmp.position(0);
+            tmp.put(data, first, len - first);
+        }
+    }
+
+    @GuardedBy("lock")
+    protected void read(long pos, byte[] data) {
+        int start=(int)(pos % capacity), first=Math.min(data.length, capacity - start);
+        ByteBuffer tmp=buf.duplicate();
+        tmp.position(start);
+        tmp.get(data, 0, first);
+        if(first < data.length) {
+            tmp.position(0);
+            tmp.get(data, first, data.length - first);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.jgroups.util;
+
+import org.jgroups.Header;
+import org.jgroups.Message;
+
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A message whose payload is read from an input stream rather than from a buffer. Passed up by FRAG2 (with
+ * streaming_threshold > 0) for large messages before all of their fragments have been received; the payload can be
+ * read while the remaining fragments are received. {@link #getBuffer()} returns null.<p/>
+ * A streaming message is delivered on a separate thread, so its stream can be read in receive(). It is therefore not
+ * ordered with respect to other messages from the same sender.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class StreamingMessage extends Message {
+    protected final InputStream input;
+    protected final int         stream_length;
+
+    /**
+     * Creates a streaming message with the destination, sender, flags and headers of msg
+     * @param msg The message whose destination, sender, flags and headers are copied (not the payload)
+     * @param input The stream from which the payload is read
+     * @param stream_length The length of the payload
+     */
+    public StreamingMessage(Message msg, InputStream input, int stream_length) {
+        super(msg.getDest(), msg.getSrc(), (byte[])null);
+        setFlag(msg.getFlags());
+        for(Map.Entry<Short,Header> entry: msg.getHeaders().entrySet())
+            putHeader(entry.getKey(), entry.getValue());
+        this.input=input;
+        this.stream_length=stream_length;
+    }
+
+    /** The stream from which the payload is read. Reads block until the data has been received */
+    public InputStream getInputStream() {return input;}
+
+    /** The length of the payload (not of the buffer, which is null) */
+    public int getStreamLength() {return stream_length;}
+
+    public String toString() {
+        return super.toString() + " (streaming, " + stream_length + " bytes)";
+    }
+}
@@ -420,6 +420,31 @@ public class Table<T> {
         }
     }
 
+    /**
+     * Hands delivered elements in range [from .. to] to a visitor and nulls them in the matrix, e.g. to move them to
+     * a different store. Contrary to {@link #purge(long)}, low, hd, hr and size are not changed, so the elements are
+     * considered part of the table until they're purged. The range is capped to [low+1 .. hd].
+     * @param from The first seqno
+     * @param to The last seqno
+     * @param visitor Gets every non-null element in the range. If it returns true, the element is nulled and the
+     *                iteration continues, if false, the element is left in the table and the iteration stops
+     * @return The highest seqno whose element (if any) was handed off, or from-1 if none
+     */
+    public long evict(long from, long to, Visitor<T> visitor) {
+        lock.lock();
+        try {
+            if(from <= low) from=low+1;
+            if(to > hd) to=hd;
+            Evicter evicter=new Evicter(visitor, from-1);
+            if(from <= to)
+                forEach(from, to, evicter);
+            return evicter.getResult();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
     public void compact() {
         lock.lock();
         try {
@@ -713,6 +738,29 @@ public class Table<T> {
         }
     }
 
+    protected class Evicter implements Visitor<T> {
+        protected final Visitor<T> visitor;
+        protected long             highest;
+
+        public Evicter(Visitor<T> visitor, long highest) {
+            this.visitor=visitor;
+            this.highest=highest;
+        }
+
+        public long getResult() {return highest;}
+
+        @GuardedBy("lock")
+        public boolean visit(long seqno, T element, int row, int column) {
+            if(element != null) {
+                if(!visitor.visit(seqno, element, row, column))
+                    return false;
+                matrix[row][column]=null;
+            }
+            highest=seqno;
+            return true;
+        }
+    }
+
     protected class Dump implements Visitor<T> {
         protected final StringBuilder sb=new StringBuilder();
         protected boolean             first=true;
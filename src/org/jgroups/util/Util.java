@@ -25,14 +25,18 @@ import java.lang.annotation.Annotation;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
+import java.nio.channels.Selector;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.*;
@@ -90,6 +94,11 @@ public class Util {
 
     private static StackType ip_stack_type=_getIpStackType();
 
+    private static final String GCM_PARAMETER_SPEC_CLASS="javax.crypto.spec.GCMParameterSpec";
+
+    /** The constructor GCMParameterSpec(int,byte[],int,int), or null before Java 7 (the build targets Java 6) */
+    private static final Constructor<?> GCM_PARAMETER_SPEC=findGCMParameterSpec();
+
 
     protected static ResourceBundle resource_bundle;
 
@@ -383,6 +392,12 @@ public class Util {
         }
     }
 
+    public static void close(RandomAccessFile file) {
+        if(file != null) {
+            try {file.close();} catch(IOException e) {}
+        }
+    }
+
     public static void close(Socket s) {
         if(s != null) {
             try {s.close();} catch(Exception ex) {}
@@ -395,6 +410,18 @@ public class Util {
         }
     }
 
+    public static void close(java.nio.channels.Channel ch) {
+        if(ch != null) {
+            try {ch.close();} catch(Exception ex) {}
+        }
+    }
+
+    public static void close(Selector sel) {
+        if(sel != null) {
+            try {sel.close();} catch(Exception ex) {}
+        }
+    }
+
     public static void close(DatagramSocket my_sock) {
         if(my_sock != null) {
             try {my_sock.close();} catch(Throwable t) {}
@@ -4565,6 +4592,41 @@ public class Util {
         }
     }
 
+    /** Returns true if the JDK supports the parameters of ciphers in GCM mode (Java 7 or higher) */
+    public static boolean isGCMSupported() {
+        return GCM_PARAMETER_SPEC != null;
+    }
+
+    /**
+     * Creates a javax.crypto.spec.GCMParameterSpec. As the class was added in Java 7, it is created reflectively
+     * @param tag_length The length of the authentication tag in bits
+     * @param iv The buffer containing the IV
+     * @param offset The offset of the IV in iv
+     * @param length The length of the IV
+     * @throws UnsupportedOperationException If the JDK doesn't support GCM (before Java 7)
+     */
+    public static AlgorithmParameterSpec createGCMParameterSpec(int tag_length, byte[] iv, int offset, int length) throws Exception {
+        if(GCM_PARAMETER_SPEC == null)
+            throw new UnsupportedOperationException("GCM mode requires Java 7 or higher (" + GCM_PARAMETER_SPEC_CLASS +
+                                                      " was not found)");
+        try {
+            return (AlgorithmParameterSpec)GCM_PARAMETER_SPEC.newInstance(tag_length, iv, offset, length);
+        }
+        catch(InvocationTargetException ex) {
+            Throwable cause=ex.getCause();
+            throw cause instanceof Exception? (Exception)cause : ex;
+        }
+    }
+
+    private static Constructor<?> findGCMParameterSpec() {
+        try {
+            return Class.forName(GCM_PARAMETER_SPEC_CLASS).getConstructor(int.class, byte[].class, int.class, int.class);
+        }
+        catch(Throwable t) {
+            return null;
+        }
+    }
+
     /**
      * Converts a method name to an attribute name, e.g. getFooBar() --> foo_bar, isFlag --> flag.
      * @param methodName
@@ -0,0 +1,384 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests the compression codecs and COMPRESS
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class COMPRESS_Test {
+
+    @DataProvider
+    static Object[][] createCodecs() throws Exception {
+        return new Object[][] {
+          {init(new DeflateCompressor(1, 2))},
+          {init(new DeflateCompressor(9, 2))},
+          {init(new LZCompressor())}
+        };
+    }
+
+    @Test(dataProvider="createCodecs")
+    public void testRoundtrip(Compressor codec) throws Exception {
+        Random random=new Random(1);
+        for(int size: new int[]{0, 1, 5, 12, 13, 16, 100, 1000, 65535, 70000, 200000}) {
+            byte[] text=createText(size, random);
+            check(codec, text, true);
+            byte[] zeros=new byte[size];
+            check(codec, zeros, true);
+            byte[] rnd=new byte[size];
+            random.nextBytes(rnd);
+            check(codec, rnd, false);
+        }
+    }
+
+    /** Compression with an offset, and into a buffer which is too small */
+    @Test(dataProvider="createCodecs")
+    public void testOffsetAndTooSmallBuffer(Compressor codec) throws Exception {
+        byte[] text=createText(5000, new Random(2));
+        byte[] out=new byte[10 + text.length];
+        int size=codec.compress(text, 1000, 3000, out, 10, out.length - 10);
+        assert size > 0 && size < 3000;
+        byte[] uncompressed=new byte[3010];
+        codec.uncompress(out, 10, size, uncompressed, 10, 3000);
+        assert Arrays.equals(Arrays.copyOfRange(uncompressed, 10, 3010), Arrays.copyOfRange(text, 1000, 4000));
+
+        byte[] rnd=new byte[5000];
+        new Random(3).nextBytes(rnd);
+        assert codec.compress(rnd, 0, rnd.length, new byte[rnd.length], 0, rnd.length) == -1;
+    }
+
+    @Test(dataProvider="createCodecs")
+    public void testCorruptData(Compressor codec) throws Exception {
+        byte[] text=createText(5000, new Random(4));
+        byte[] out=new byte[text.length];
+        int size=codec.compress(text, 0, text.length, out, 0, out.length);
+        try {
+            codec.uncompress(out, 0, size / 2, new byte[text.length], 0, text.length);
+            assert false : "truncated data should have been detected";
+        }
+        catch(Exception ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+    }
+
+    /** Messages compressed with one codec are uncompressed by a member using another codec */
+    public void testDifferentCodecs() throws Exception {
+        for(String[] codecs: new String[][]{{"lz", "deflate"}, {"deflate", "lz"}}) {
+            MockProtocol sender=new MockProtocol(), receiver=new MockProtocol();
+            COMPRESS a=create(codecs[0], sender), b=create(codecs[1], receiver);
+            byte[] payload=createText(2000, new Random(5));
+            a.down(new Event(Event.MSG, new Message(null, null, payload)));
+            Message msg=sender.msgs.get(0);
+            COMPRESS.CompressHeader hdr=(COMPRESS.CompressHeader)msg.getHeader(a.getId());
+            System.out.println(codecs[0] + ": compressed " + payload.length + " bytes to " + msg.getLength() + " (" + hdr + ")");
+            assert hdr.codec == a.getCompressor().getId();
+            assert msg.getLength() < payload.length;
+            assert a.getCompressionRatio() < 1;
+
+            b.up(new Event(Event.MSG, msg));
+            assert Arrays.equals(receiver.msgs.get(0).getBuffer(), payload);
+
+            MessageBatch batch=new MessageBatch(10);
+            batch.add(msg);
+            b.up(batch);
+            assert Arrays.equals(receiver.msgs.get(1).getBuffer(), payload);
+            a.destroy(); b.destroy();
+        }
+    }
+
+
+    /**
+     * Messages compressed with deflate and without a dictionary have the same header as in previous versions; other
+     * messages use ExtendedCompressHeader. Both survive marshalling
+     */
+    public void testHeaderFormat() throws Exception {
+        for(String codec: new String[]{"deflate", "lz"}) {
+            MockProtocol sender=new MockProtocol(), receiver=new MockProtocol();
+            COMPRESS a=create(codec, sender), b=create(codec, receiver);
+            byte[] payload=createText(2000, new Random(7));
+            a.down(new Event(Event.MSG, new Message(null, Util.createRandomAddress("A"), payload)));
+            Message msg=sender.msgs.get(0);
+            Header hdr=msg.getHeader(a.getId());
+            System.out.println(codec + ": " + hdr.getClass().getSimpleName() + " (" + hdr.size() + " bytes)");
+            assert (hdr.getClass() == COMPRESS.CompressHeader.class) == codec.equals("deflate");
+            if(codec.equals("deflate"))
+                assert hdr.size() == Global.INT_SIZE;
+
+            Message copy=(Message)Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(msg));
+            assert copy.getHeader(a.getId()).getClass() == hdr.getClass();
+            b.up(new Event(Event.MSG, copy));
+            assert Arrays.equals(receiver.msgs.get(0).getBuffer(), payload);
+            a.destroy(); b.destroy();
+        }
+    }
+
+
+    public void testDictionary() throws Exception {
+        DeflateCompressor codec=(DeflateCompressor)init(new DeflateCompressor(9, 2));
+        byte[] dict=createRpc(1000), rpc=createRpc(1);
+        byte[] out=new byte[rpc.length];
+        int size=codec.compress(rpc, 0, rpc.length, out, 0, out.length);
+        int dict_size=codec.compress(rpc, 0, rpc.length, out, 0, out.length, dict);
+        System.out.println("compressed " + rpc.length + " bytes to " + size + " bytes without and " + dict_size +
+                             " bytes with dictionary");
+        assert dict_size > 0 && dict_size < size / 2;
+
+        byte[] uncompressed=new byte[rpc.length];
+        codec.uncompress(out, 0, dict_size, uncompressed, 0, rpc.length, dict);
+        assert Arrays.equals(uncompressed, rpc);
+        try {
+            codec.uncompress(out, 0, dict_size, uncompressed, 0, rpc.length);
+            assert false : "uncompressing without the dictionary should fail";
+        }
+        catch(Exception ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+    }
+
+    /** A member which doesn't know the dictionary of a message fetches it from the sender */
+    public void testFetchDictionary() throws Exception {
+        final COMPRESS[] compress=new COMPRESS[2];
+        final Address[] addrs={Util.createRandomAddress("A"), Util.createRandomAddress("B")};
+        final List<Message> received=new ArrayList<Message>();
+        for(int i=0; i < compress.length; i++) {
+            final int index=i;
+            compress[i]=create("deflate", new MockProtocol() { // delivers messages to the other member
+                public Object down(Event evt) {
+                    if(evt.getType() == Event.MSG) {
+                        Message msg=(Message)evt.getArg();
+                        msg.setSrc(addrs[index]);
+                        compress[1 - index].up(new Event(Event.MSG, msg));
+                    }
+                    return null;
+                }
+
+                public Object up(Event evt) {
+                    if(evt.getType() == Event.MSG)
+                        received.add((Message)evt.getArg());
+                    return null;
+                }
+            });
+            compress[i].down(new Event(Event.SET_LOCAL_ADDRESS, addrs[i]));
+        }
+        byte[] dict=createRpc(100);
+        int dict_id=COMPRESS.dictionaryId(dict);
+        compress[0].addDictionary(dict_id, dict, true);
+        byte[] rpc=createRpc(1);
+        compress[0].down(new Event(Event.MSG, new Message(addrs[1], null, rpc)));
+        assert compress[0].num_compressed_with_dictionary == 1;
+        assert received.size() == 1 && Arrays.equals(received.get(0).getBuffer(), rpc);
+        assert compress[1].getDictionaryId() == dict_id;
+    }
+
+    /** Different dictionaries (e.g. created by the coordinators of different partitions) have different IDs */
+    public void testDictionariesFromDifferentCoordinators() throws Exception {
+        MockProtocol pa=new MockProtocol(), pb=new MockProtocol(), pc=new MockProtocol();
+        COMPRESS a=create("deflate", pa), b=create("deflate", pb), c=create("deflate", pc);
+        Address addr_a=Util.createRandomAddress("A"), addr_b=Util.createRandomAddress("B");
+        byte[] dict_a=createRpc(100), dict_b=createText(5000, new Random(6));
+        a.addDictionary(COMPRESS.dictionaryId(dict_a), dict_a, true);
+        b.addDictionary(COMPRESS.dictionaryId(dict_b), dict_b, true);
+        System.out.println("dictionary IDs: A=" + a.getDictionaryId() + ", B=" + b.getDictionaryId());
+        assert a.getDictionaryId() != 0 && b.getDictionaryId() != 0;
+        assert a.getDictionaryId() != b.getDictionaryId();
+
+        a.sendDictionary(null, a.getDictionaryId(), dict_a);
+        b.sendDictionary(null, b.getDictionaryId(), dict_b);
+        a.down(new Event(Event.MSG, new Message(null, null, createRpc(1))));
+        b.down(new Event(Event.MSG, new Message(null, null, createRpc(1))));
+        for(Message msg: pa.msgs) {
+            msg.setSrc(addr_a);
+            c.up(new Event(Event.MSG, msg));
+        }
+        for(Message msg: pb.msgs) {
+            msg.setSrc(addr_b);
+            c.up(new Event(Event.MSG, msg));
+        }
+        assert pc.msgs.size() == 2 : "received " + pc.msgs;
+        for(Message msg: pc.msgs)
+            assert Arrays.equals(msg.getBuffer(), createRpc(1));
+    }
+
+    /**
+     * A message with an unknown dictionary is queued (rather than blocking the delivery thread), together with all
+     * subsequent messages from the same sender, until the dictionary has been received
+     */
+    public void testMessagesQueuedUntilDictionaryIsReceived() throws Exception {
+        MockProtocol pa=new MockProtocol(), pb=new MockProtocol();
+        COMPRESS a=create("deflate", pa), b=create("deflate", pb);
+        Address addr_a=Util.createRandomAddress("A"), addr_c=Util.createRandomAddress("C");
+        byte[] dict=createRpc(100);
+        a.addDictionary(COMPRESS.dictionaryId(dict), dict, true);
+        a.down(new Event(Event.MSG, new Message(null, null, createRpc(1))));
+        Message compressed=pa.msgs.remove(0);
+        compressed.setSrc(addr_a);
+
+        long start=System.currentTimeMillis();
+        b.up(new Event(Event.MSG, compressed));
+        MessageBatch batch=new MessageBatch(null, addr_a, null, true, MessageBatch.Mode.REG, 2);
+        batch.add(new Message(null, addr_a, "hello".getBytes()));
+        b.up(batch);
+        b.up(new Event(Event.MSG, new Message(null, addr_c, "from C".getBytes())));
+        long time=System.currentTimeMillis() - start;
+        System.out.println("received " + pb.msgs + " in " + time + " ms");
+        assert time < 1000 : "delivery thread was blocked for " + time + " ms";
+
+        // B asked A for the dictionary; only the message from C has been delivered so far
+        assert pb.msgs.size() == 2 : "received " + pb.msgs;
+        COMPRESS.CompressHeader hdr=(COMPRESS.CompressHeader)pb.msgs.get(0).getHeader(b.getId());
+        assert hdr.type == COMPRESS.CompressHeader.GET_DICT && hdr.dict == a.getDictionaryId();
+        assert new String(pb.msgs.get(1).getBuffer()).equals("from C");
+        pb.msgs.clear();
+
+        a.sendDictionary(addr_a, a.getDictionaryId(), dict);
+        Message dict_msg=pa.msgs.remove(0);
+        dict_msg.setSrc(addr_a);
+        b.up(new Event(Event.MSG, dict_msg));
+        assert pb.msgs.size() == 2 : "received " + pb.msgs;
+        assert Arrays.equals(pb.msgs.get(0).getBuffer(), createRpc(1));
+        assert new String(pb.msgs.get(1).getBuffer()).equals("hello");
+    }
+
+    /** The coordinator creates a dictionary from samples and sends it to all members, including joiners */
+    public void testSampledDictionary() throws Exception {
+        JChannel a=null, b=null, c=null;
+        try {
+            a=createChannel("A");
+            b=createChannel("B");
+            a.connect("COMPRESS_Test");
+            b.connect("COMPRESS_Test");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+            COMPRESS ca=(COMPRESS)a.getProtocolStack().findProtocol(COMPRESS.class),
+              cb=(COMPRESS)b.getProtocolStack().findProtocol(COMPRESS.class);
+            for(int i=0; i < 20; i++)
+                a.send(null, createRpc(1));
+            for(int i=0; i < 20 && cb.getDictionaryId() == 0; i++)
+                Util.sleep(100);
+            System.out.println("dictionary IDs: A=" + ca.getDictionaryId() + ", B=" + cb.getDictionaryId());
+            assert ca.getDictionaryId() != 0 && cb.getDictionaryId() == ca.getDictionaryId();
+
+            c=createChannel("C");
+            MyReceiver receiver=new MyReceiver();
+            c.setReceiver(receiver);
+            c.connect("COMPRESS_Test");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+            COMPRESS cc=(COMPRESS)c.getProtocolStack().findProtocol(COMPRESS.class);
+            for(int i=0; i < 20 && cc.getDictionaryId() == 0; i++)
+                Util.sleep(100);
+            assert cc.getDictionaryId() == ca.getDictionaryId();
+
+            cb.resetStats();
+            for(int i=0; i < 10; i++)
+                b.send(null, createRpc(1));
+            for(int i=0; i < 20 && receiver.msgs.size() < 10; i++)
+                Util.sleep(100);
+            assert receiver.msgs.size() == 10;
+            System.out.println("B: compressed " + cb.num_compressed_with_dictionary + " messages with a dictionary, ratio=" +
+                                 cb.getCompressionRatio());
+            assert cb.num_compressed_with_dictionary == 10;
+            for(Message msg: receiver.msgs)
+                assert Arrays.equals(msg.getBuffer(), createRpc(1));
+        }
+        finally {
+            Util.close(c, b, a);
+        }
+    }
+
+
+    protected static void check(Compressor codec, byte[] data, boolean compressible) throws Exception {
+        byte[] out=new byte[LZCompressor.maxCompressedLength(data.length) + 100];
+        int size=codec.compress(data, 0, data.length, out, 0, out.length);
+        assert size >= 0;
+        if(compressible && data.length >= 1000)
+            assert size < data.length / 2 : codec + ": compressed " + data.length + " bytes to " + size;
+        byte[] uncompressed=new byte[data.length];
+        codec.uncompress(out, 0, size, uncompressed, 0, data.length);
+        assert Arrays.equals(data, uncompressed) : codec + ": uncompressed data differs (size=" + data.length + ")";
+    }
+
+    /** Creates text made of a few words, which is similar to serialized objects */
+    protected static byte[] createText(int size, Random random) {
+        String[] words={"org.jgroups.", "Address", "UUID", "hello", " ", "world", "Message", "0123", "cluster", "\n"};
+        StringBuilder sb=new StringBuilder(size);
+        while(sb.length() < size)
+            sb.append(words[random.nextInt(words.length)]);
+        return sb.substring(0, size).getBytes();
+    }
+
+    /** Creates a buffer similar to a serialized RPC */
+    protected static byte[] createRpc(int num) {
+        StringBuilder sb=new StringBuilder();
+        for(int i=0; i < num; i++)
+            sb.append("org.jgroups.blocks.MethodCall: method=put, args=[java.lang.String key-").append(i)
+              .append(", org.jgroups.demos.Value value=").append(i * 31).append("], types=[java.lang.String, java.lang.Object]");
+        return sb.toString().getBytes();
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new PING().setValue("timeout", 300),
+          new NAKACK2(),
+          new UNICAST3(),
+          new GMS(),
+          new COMPRESS().setValue("dictionary_samples", 20)
+        }).name(name);
+    }
+
+    protected static Compressor init(Compressor codec) throws Exception {
+        codec.init();
+        return codec;
+    }
+
+    protected static COMPRESS create(String codec, Protocol mock) throws Exception {
+        COMPRESS compress=(COMPRESS)new COMPRESS().setValue("codec", codec);
+        compress.setUpProtocol(mock);
+        compress.setDownProtocol(mock);
+        compress.init();
+        return compress;
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Message> msgs=new ArrayList<Message>();
+
+        public void receive(Message msg) {
+            synchronized(msgs) {
+                msgs.add(msg);
+            }
+        }
+    }
+
+    protected static class MockProtocol extends Protocol {
+        protected final List<Message> msgs=new ArrayList<Message>();
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG)
+                msgs.add((Message)evt.getArg());
+            return null;
+        }
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                msgs.add((Message)evt.getArg());
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            for(Message msg: batch)
+                msgs.add(msg);
+        }
+    }
+}
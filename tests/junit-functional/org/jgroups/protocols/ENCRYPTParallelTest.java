@@ -0,0 +1,192 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests ENCRYPT with GCM mode and the decryption of message batches by multiple threads
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class ENCRYPTParallelTest {
+    protected static final String  GCM="AES/GCM/NoPadding";
+    protected static final Address A=Util.createRandomAddress("A");
+
+    protected ENCRYPT       encrypt;
+    protected MockTransport transport;
+    protected Receiver      receiver;
+    protected ProtocolStack stack;
+
+    @AfterMethod
+    protected void destroy() {
+        stack.destroy();
+        transport.pool.shutdownNow();
+    }
+
+
+    public void testGCMRoundtrip() throws Exception {
+        create(GCM);
+        for(int i=1; i <= 10; i++)
+            encrypt.down(new Event(Event.MSG, new Message(null, A, "hello-" + i)));
+        assert transport.sent.size() == 10;
+        for(Message msg: transport.sent)
+            encrypt.up(new Event(Event.MSG, msg));
+        checkReceived(receiver.received, 10);
+    }
+
+    /** The same plaintext is encrypted to different ciphertexts, as every message has its own IV */
+    public void testGCMUniqueIVs() throws Exception {
+        create(GCM);
+        encrypt.down(new Event(Event.MSG, new Message(null, A, "hello")));
+        encrypt.down(new Event(Event.MSG, new Message(null, A, "hello")));
+        assert !Arrays.equals(transport.sent.get(0).getBuffer(), transport.sent.get(1).getBuffer());
+    }
+
+    /** Two members whose random salts are the same still don't use the same IVs */
+    public void testGCMNoOverlappingIVs() throws Exception {
+        create(GCM);
+        ENCRYPT first=encrypt;
+        ProtocolStack first_stack=stack;
+        transport.pool.shutdownNow();
+        create(GCM);
+        try {
+            System.arraycopy(first.iv_salt, 0, encrypt.iv_salt, 0, encrypt.iv_salt.length);
+            Set<String> ivs=new HashSet<String>();
+            for(int i=0; i < 10000; i++)
+                ivs.add(Arrays.toString(first.nextIV()));
+            for(int i=0; i < 10000; i++)
+                assert !ivs.contains(Arrays.toString(encrypt.nextIV())) : "IV was used by both members";
+        }
+        finally {
+            first_stack.destroy();
+        }
+    }
+
+    public void testGCMTamperedMessageIsDropped() throws Exception {
+        create(GCM);
+        encrypt.down(new Event(Event.MSG, new Message(null, A, "hello")));
+        Message msg=transport.sent.get(0);
+        byte[] buf=msg.getBuffer();
+        buf[buf.length -1]^=1;
+        msg.setBuffer(buf);
+        encrypt.up(new Event(Event.MSG, msg));
+        assert receiver.received.isEmpty();
+    }
+
+    public void testParallelBatchDecryption() throws Exception {
+        _testParallelBatchDecryption("AES");
+    }
+
+    public void testParallelBatchDecryptionWithGCM() throws Exception {
+        _testParallelBatchDecryption(GCM);
+    }
+
+    public void testConcurrentEncryption() throws Exception {
+        create(GCM);
+        final int NUM_THREADS=10, NUM=100;
+        Thread[] senders=new Thread[NUM_THREADS];
+        for(int i=0; i < senders.length; i++) {
+            final int offset=i * NUM;
+            senders[i]=new Thread() {
+                public void run() {
+                    for(int j=1; j <= NUM; j++)
+                        encrypt.down(new Event(Event.MSG, new Message(null, A, "hello-" + (offset + j))));
+                }
+            };
+            senders[i].start();
+        }
+        for(Thread sender: senders)
+            sender.join();
+        assert transport.sent.size() == NUM_THREADS * NUM;
+        MessageBatch batch=new MessageBatch(null, A, "cluster", true, transport.sent);
+        encrypt.up(batch);
+        List<String> payloads=new ArrayList<String>();
+        for(Message msg: receiver.batch)
+            payloads.add((String)msg.getObject());
+        for(int i=1; i <= NUM_THREADS * NUM; i++)
+            assert payloads.contains("hello-" + i);
+    }
+
+
+    protected void _testParallelBatchDecryption(String algorithm) throws Exception {
+        create(algorithm);
+        encrypt.num_cpus=4; // the test machine might have only 1 core
+        for(int i=1; i <= 200; i++)
+            encrypt.down(new Event(Event.MSG, new Message(null, A, "hello-" + i)));
+        MessageBatch batch=new MessageBatch(null, A, "cluster", true, transport.sent);
+        encrypt.up(batch);
+        assert encrypt.num_parallel_decryptions == 1;
+        List<Message> list=new ArrayList<Message>();
+        for(Message msg: receiver.batch)
+            list.add(msg);
+        checkReceived(list, 200);
+    }
+
+    protected static void checkReceived(List<Message> list, int expected) throws Exception {
+        System.out.println("received " + list.size() + " messages");
+        assert list.size() == expected;
+        for(int i=0; i < expected; i++) // order is preserved
+            assert list.get(i).getObject().equals("hello-" + (i+1));
+    }
+
+    protected void create(String algorithm) throws Exception {
+        encrypt=(ENCRYPT)new ENCRYPT().setValue("symAlgorithm", algorithm);
+        transport=new MockTransport();
+        receiver=new Receiver();
+        stack=new ProtocolStack();
+        stack.addProtocols(transport, encrypt, receiver);
+        stack.init();
+        encrypt.down(new Event(Event.SET_LOCAL_ADDRESS, A));
+        encrypt.up(new Event(Event.VIEW_CHANGE, new View(A, 1, Arrays.asList(A)))); // we're the key server
+    }
+
+
+    protected static class Receiver extends Protocol {
+        protected final List<Message> received=new ArrayList<Message>();
+        protected MessageBatch        batch;
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                received.add((Message)evt.getArg());
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            this.batch=batch;
+        }
+    }
+
+    /** Records sent messages and provides an OOB thread pool */
+    protected static class MockTransport extends TP {
+        protected final List<Message>   sent=new ArrayList<Message>();
+        protected final ExecutorService pool=Executors.newFixedThreadPool(4);
+
+        public void               init() throws Exception {setOOBThreadPool(pool);}
+        public void               start() throws Exception {}
+        public void               stop() {}
+        public boolean            supportsMulticasting() {return true;}
+        public void               sendMulticast(byte[] data, int offset, int length) throws Exception {}
+        public void               sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {}
+        public String             getInfo() {return null;}
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG) {
+                synchronized(sent) {
+                    sent.add((Message)evt.getArg());
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.View;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link FD_ALL2}: array-based timestamps and expiry checks with a timing wheel
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class FD_ALL2_Test {
+    protected static final String CLUSTER="FD_ALL2_Test";
+    protected JChannel a, b, c;
+
+    @AfterMethod protected void destroy() {Util.close(c, b, a);}
+
+
+    /** Expiry checks only touch the members whose timestamps expire, not all members on every tick */
+    public void testTimingWheel() throws Exception {
+        FD_ALL2 fd=new FD_ALL2().setTimeout(1000).setTimeoutCheckInterval(100);
+        List<Address> mbrs=new ArrayList<Address>();
+        for(int i=0; i < 100; i++)
+            mbrs.add(Util.createRandomAddress(String.valueOf(i)));
+        long now=System.currentTimeMillis();
+        fd.table=new FD_ALL2.Table(mbrs, null, now);
+        synchronized(fd) {
+            fd.createWheel(now);
+        }
+        assert fd.getWheelSize() == 12;
+
+        for(long time=now; time <= now + 900; time+=100) // nobody expires before the timeout
+            assert fd.advance(time) == null;
+        long checks=fd.getNumChecks();
+        System.out.println("checks after 10 ticks: " + checks);
+        assert checks == 0 : "no members should have been checked before their expiry, but checked " + checks;
+
+        for(int i=0; i < 50; i++) // half of the members are alive
+            fd.update(mbrs.get(i), now + 900);
+        List<Address> suspects=fd.advance(now + 1200);
+        System.out.println("suspects: " + suspects + "\nwheel:\n" + fd.printWheel());
+        assert suspects != null && suspects.equals(mbrs.subList(50, 100));
+        assert fd.getNumChecks() == 100;
+    }
+
+    /** Members which are not in the view are ignored, and timestamps survive a view change */
+    public void testUpdateAndViewChange() throws Exception {
+        FD_ALL2 fd=new FD_ALL2();
+        Address x=Util.createRandomAddress("X"), y=Util.createRandomAddress("Y"), z=Util.createRandomAddress("Z");
+        fd.table=new FD_ALL2.Table(Arrays.asList(x, y), null, 0);
+        fd.update(x, 500);
+        fd.update(x, 400); // older timestamps are ignored
+        fd.update(z, 500); // not a member
+        assert fd.table.timestamps.get(0) == 500 && fd.table.timestamps.get(1) == 0;
+
+        fd.table=new FD_ALL2.Table(Arrays.asList(y, z, x), fd.table, 1000);
+        assert fd.table.timestamps.get(0) == 0;    // y
+        assert fd.table.timestamps.get(1) == 1000; // z is new
+        assert fd.table.timestamps.get(2) == 500;  // x
+    }
+
+    public void testNoSuspicions() throws Exception {
+        createChannels(false);
+        Util.sleep(3000);
+        for(JChannel ch: Arrays.asList(a, b, c)) {
+            FD_ALL2 fd=fd(ch);
+            System.out.println(ch.getName() + ": heartbeats received=" + fd.getHeartbeatsReceived() + ", checks=" +
+                                 fd.getNumChecks() + "\n" + fd.printTimestamps());
+            assert fd.getSuspectEventsSent() == 0;
+            assert fd.getHeartbeatsReceived() > 0;
+        }
+        assert a.getView().size() == 3;
+    }
+
+    public void testCrashedMemberIsExcluded() throws Exception {
+        createChannels(true);
+        ((DISCARD)c.getProtocolStack().findProtocol(DISCARD.class)).setDiscardAll(true);
+        for(int i=0; i < 20; i++) {
+            if(a.getView().size() == 2 && b.getView().size() == 2)
+                break;
+            Util.sleep(500);
+        }
+        View view=a.getView();
+        System.out.println("view of A: " + view + ", suspect history:\n" + fd(a).printSuspectHistory());
+        assert view.size() == 2 && !view.containsMember(c.getAddress());
+        assert fd(a).getSuspectEventsSent() > 0;
+    }
+
+
+    protected void createChannels(boolean discard) throws Exception {
+        a=createChannel("A", discard);
+        a.connect(CLUSTER);
+        b=createChannel("B", discard);
+        b.connect(CLUSTER);
+        c=createChannel("C", discard);
+        c.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    protected static FD_ALL2 fd(JChannel ch) {
+        return (FD_ALL2)ch.getProtocolStack().findProtocol(FD_ALL2.class);
+    }
+
+    protected static JChannel createChannel(String name, boolean discard) throws Exception {
+        List<Protocol> prots=new ArrayList<Protocol>();
+        prots.add(new SHARED_LOOPBACK());
+        if(discard)
+            prots.add(new DISCARD());
+        prots.add(new PING().timeout(500).numInitialMembers(10));
+        prots.add(new FD_ALL2().setInterval(200).setTimeout(1000).setTimeoutCheckInterval(100));
+        prots.add(new NAKACK2());
+        prots.add(new UNICAST3());
+        prots.add(new STABLE());
+        prots.add(new GMS().setValue("join_timeout", 1000L).setValue("print_local_addr", false));
+        return new JChannel(prots.toArray(new Protocol[prots.size()])).name(name);
+    }
+}
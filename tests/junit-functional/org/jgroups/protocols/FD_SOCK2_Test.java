@@ -0,0 +1,130 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.View;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+
+/**
+ * Tests {@link FD_SOCK2}: a single thread per member handles the server socket, all client connections and the
+ * connection to the monitored member
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class FD_SOCK2_Test {
+    protected static final String CLUSTER="FD_SOCK2_Test";
+    protected static final int    NUM=5;
+    protected JChannel[]          channels;
+
+    @BeforeMethod protected void setup() throws Exception {
+        channels=new JChannel[NUM];
+        for(int i=0; i < NUM; i++) {
+            channels[i]=createChannel(String.valueOf((char)('A' + i)));
+            channels[i].connect(CLUSTER);
+        }
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+        for(int i=0; i < 20; i++) {
+            if(allConnected())
+                break;
+            Util.sleep(500);
+        }
+    }
+
+    @AfterMethod protected void destroy() {
+        for(int i=channels.length-1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    /** Every member monitors its neighbor and is monitored by one member, using a single thread */
+    public void testRing() throws Exception {
+        assert allConnected();
+        for(JChannel ch: channels) {
+            FD_SOCK2 fd=fd(ch);
+            System.out.println(ch.getName() + ": ping_dest=" + fd.getPingDest() + ", clients=" + fd.getNumClients());
+            assert fd.isNodeCrashMonitorRunning();
+        }
+        assert fd(channels[0]).getPingDest().equals(channels[1].getAddress().toString());
+        assert countThreads() == NUM : "expected one monitor thread per member, but found " + countThreads();
+    }
+
+    /** A member whose connections break without a termination signal is suspected and excluded */
+    public void testCrashedMemberIsExcluded() throws Exception {
+        JChannel b=channels[1], c=channels[2];
+        fd(c).stopServerSocket(false); // simulates a crash: B's connection to C breaks
+        for(int i=0; i < 20; i++) {
+            if(channels[0].getView().size() == NUM-1)
+                break;
+            Util.sleep(500);
+        }
+        View view=channels[0].getView();
+        System.out.println("view of A: " + view + ", suspect history of B:\n" + fd(b).printSuspectHistory());
+        assert view.size() == NUM-1 && !view.containsMember(c.getAddress());
+        assert fd(b).getNumSuspectEventsGenerated() > 0;
+        for(int i=0; i < 20; i++) {
+            if(fd(b).getPingDest().equals(channels[3].getAddress().toString()))
+                break;
+            Util.sleep(500);
+        }
+        assert fd(b).getPingDest().equals(channels[3].getAddress().toString()) : "B should monitor D, but monitors " +
+          fd(b).getPingDest();
+    }
+
+    /** A member which leaves gracefully is not suspected */
+    public void testGracefulLeave() throws Exception {
+        JChannel b=channels[1], c=channels[2];
+        Util.close(c);
+        for(int i=0; i < 20; i++) {
+            if(fd(b).getPingDest().equals(channels[3].getAddress().toString()) && fd(channels[3]).getNumClients() == 1)
+                break;
+            Util.sleep(500);
+        }
+        assert fd(b).getNumSuspectEventsGenerated() == 0;
+        assert fd(b).getPingDest().equals(channels[3].getAddress().toString());
+        assert fd(channels[3]).getNumClients() == 1;
+    }
+
+
+    protected boolean allConnected() {
+        for(JChannel ch: channels) {
+            FD_SOCK2 fd=fd(ch);
+            if(fd.getNumClients() != 1 || fd.getNumPingConnects() < 1)
+                return false;
+        }
+        return true;
+    }
+
+    protected static int countThreads() {
+        int count=0;
+        for(Thread thread: Thread.getAllStackTraces().keySet())
+            if(thread.isAlive() && thread.getName() != null && thread.getName().startsWith("FD_SOCK"))
+                count++;
+        return count;
+    }
+
+    protected static FD_SOCK2 fd(JChannel ch) {
+        return (FD_SOCK2)ch.getProtocolStack().findProtocol(FD_SOCK2.class);
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new PING().timeout(500).numInitialMembers(10),
+          new FD_SOCK2().setValue("bind_addr", InetAddress.getByName("127.0.0.1")),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setValue("join_timeout", 1000L).setValue("print_local_addr", false)
+        }).name(name);
+    }
+}
@@ -0,0 +1,132 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests {@link FD_SWIM}: direct and indirect probes, suspicion and refutation, and detection of crashed members
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class FD_SWIM_Test {
+    protected static final String CLUSTER="FD_SWIM_Test";
+    protected static final long   PERIOD=200, SUSPECT_TIMEOUT=1000;
+    protected JChannel a, b, c, d;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=createChannel("A");
+        a.connect(CLUSTER);
+        b=createChannel("B");
+        b.connect(CLUSTER);
+        c=createChannel("C");
+        c.connect(CLUSTER);
+        d=createChannel("D");
+        d.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c, d);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(d, c, b, a);}
+
+
+    /** Every member sends one probe per period, regardless of the cluster size, and nobody is suspected */
+    public void testNoFalseSuspicions() throws Exception {
+        long periods=3000 / PERIOD;
+        Util.sleep(3000);
+        for(JChannel ch: Arrays.asList(a, b, c, d)) {
+            FD_SWIM swim=swim(ch);
+            System.out.println(ch.getName() + ": probes=" + swim.getNumProbesSent() + ", acks=" +
+                                 swim.getNumAcksReceived() + ", suspicions=" + swim.getNumSuspicions());
+            assert swim.getNumProbesSent() > 0 && swim.getNumProbesSent() <= periods + 1;
+            assert swim.getNumSuspicions() == 0;
+            assert swim.getNumProbeRequestsSent() == 0;
+        }
+        assert a.getView().size() == 4;
+    }
+
+    public void testCrashedMemberIsExcluded() throws Exception {
+        discard(d).setDiscardAll(true);
+        for(int i=0; i < 20; i++) {
+            if(a.getView().size() == 3 && b.getView().size() == 3 && c.getView().size() == 3)
+                break;
+            Util.sleep(500);
+        }
+        System.out.println("view of A: " + a.getView());
+        assert a.getView().size() == 3 && !a.getView().containsMember(d.getAddress());
+        int declared_dead=0;
+        for(JChannel ch: Arrays.asList(a, b, c)) {
+            FD_SWIM swim=swim(ch);
+            System.out.println(ch.getName() + ": declared dead=" + swim.getNumDeclaredDead() + ", detection times: " +
+                                 swim.getDetectionTimes());
+            declared_dead+=swim.getNumDeclaredDead();
+        }
+        assert declared_dead > 0;
+        assert swim(a).detection_times.count() > 0 || swim(b).detection_times.count() > 0
+          || swim(c).detection_times.count() > 0;
+    }
+
+    /** A suspected member which is alive refutes the suspicion by incrementing its incarnation */
+    public void testRefutation() throws Exception {
+        FD_SWIM swim_a=swim(a), swim_b=swim(b);
+        swim_a.handleUpdates(null, Arrays.asList(new FD_SWIM.Update(b.getAddress(), FD_SWIM.SUSPECT, 0)));
+        assert swim_a.getNumSuspicions() == 1;
+        for(int i=0; i < 20; i++) {
+            if(swim_a.getNumRefutedSuspicions() > 0)
+                break;
+            Util.sleep(500);
+        }
+        System.out.println("B's incarnation: " + swim_b.getIncarnation() + ", states of A:\n" + swim_a.printStates());
+        assert swim_b.getIncarnation() == 1 && swim_b.getNumRefutations() == 1;
+        assert swim_a.getNumRefutedSuspicions() == 1;
+        assert swim_a.getFalsePositiveRate() > 0;
+        Util.sleep(SUSPECT_TIMEOUT + PERIOD * 2);
+        assert a.getView().size() == 4 && a.getView().containsMember(b.getAddress());
+    }
+
+    /** B drops A's messages, so A's direct probes of B fail, but the indirect ones through C and D succeed */
+    public void testIndirectProbes() throws Exception {
+        discard(b).addIgnoreMember(a.getAddress());
+        Util.sleep(4000);
+        FD_SWIM swim_a=swim(a);
+        System.out.println("A: probes=" + swim_a.getNumProbesSent() + ", probe requests=" +
+                             swim_a.getNumProbeRequestsSent() + ", acks=" + swim_a.getNumAcksReceived() +
+                             ", failed probes=" + swim_a.getNumFailedProbes());
+        assert swim_a.getNumProbeRequestsSent() > 0;
+        assert swim_a.getNumFailedProbes() == 0;
+        assert swim_a.getNumDeclaredDead() == 0;
+        assert a.getView().size() == 4;
+    }
+
+
+    protected static FD_SWIM swim(JChannel ch) {
+        return (FD_SWIM)ch.getProtocolStack().findProtocol(FD_SWIM.class);
+    }
+
+    protected static DISCARD discard(JChannel ch) {
+        return (DISCARD)ch.getProtocolStack().findProtocol(DISCARD.class);
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new DISCARD(),
+          new PING().timeout(500).numInitialMembers(10),
+          new FD_SWIM().setValue("protocol_period", PERIOD).setValue("ack_timeout", 50L)
+            .setValue("suspect_timeout", SUSPECT_TIMEOUT),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setValue("join_timeout", 1000L).setValue("print_local_addr", false)
+        }).name(name);
+    }
+}
@@ -0,0 +1,163 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests FILE_PING with single_file=true: all members are stored in fixed-size slots of one file per cluster
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class FILE_PING_SingleFileTest {
+    protected static final String CLUSTER="FILE_PING_SingleFileTest";
+    protected static final String ROOT=System.getProperty("java.io.tmpdir") + File.separator + "FILE_PING_SingleFileTest";
+    protected static final int    SLOT_SIZE=256;
+
+    @BeforeMethod protected void setup()   {delete(new File(ROOT));}
+    @AfterMethod  protected void destroy() {delete(new File(ROOT));}
+
+
+    public void testWriteAndRead() throws Exception {
+        List<Member> mbrs=createMembers(10);
+        for(Member mbr: mbrs)
+            mbr.write(7800);
+        List<PingData> list=mbrs.get(0).ping.readAll(CLUSTER);
+        System.out.println("read " + list.size() + " members: " + list);
+        assert list.size() == 10;
+        assert addresses(list).equals(addresses(mbrs));
+        assert file().length() == 10 * SLOT_SIZE;
+        assert !new File(ROOT, CLUSTER).exists() : "no directory with per-member files should have been created";
+    }
+
+    /** A member updates its slot in place */
+    public void testUpdate() throws Exception {
+        List<Member> mbrs=createMembers(5);
+        for(Member mbr: mbrs)
+            mbr.write(7800);
+        mbrs.get(2).write(9000);
+        List<PingData> list=mbrs.get(0).ping.readAll(CLUSTER);
+        assert list.size() == 5;
+        assert file().length() == 5 * SLOT_SIZE;
+        for(PingData data: list) {
+            PhysicalAddress physical_addr=data.getPhysicalAddrs().iterator().next();
+            int expected_port=data.getAddress().equals(mbrs.get(2).addr)? 9000 : 7800;
+            assert ((IpAddress)physical_addr).getPort() == expected_port : data;
+        }
+    }
+
+    /** The coordinator frees the slots of members which left; free slots are reused by new members */
+    public void testClearAndReuseSlots() throws Exception {
+        List<Member> mbrs=createMembers(6);
+        for(Member mbr: mbrs)
+            mbr.write(7800);
+        List<Address> remaining=new ArrayList<Address>();
+        for(int i=0; i < 3; i++)
+            remaining.add(mbrs.get(i).addr);
+        mbrs.get(0).ping.clearSlots(CLUSTER, remaining);
+        List<PingData> list=mbrs.get(0).ping.readAll(CLUSTER);
+        assert addresses(list).equals(new HashSet<Address>(remaining));
+
+        List<Member> new_mbrs=createMembers(3);
+        for(Member mbr: new_mbrs)
+            mbr.write(7900);
+        assert mbrs.get(0).ping.readAll(CLUSTER).size() == 6;
+        assert file().length() == 6 * SLOT_SIZE : "free slots should have been reused";
+    }
+
+    /** A member whose slot was freed and taken by someone else claims a new slot */
+    public void testSlotTakenByOtherMember() throws Exception {
+        List<Member> mbrs=createMembers(2);
+        for(Member mbr: mbrs)
+            mbr.write(7800);
+        Member a=mbrs.get(0), b=mbrs.get(1);
+        a.ping.clearSlots(CLUSTER, Arrays.asList(b.addr));
+        Member c=createMembers(1).get(0);
+        c.write(7800); // takes A's old slot
+        a.write(7800);
+        List<PingData> list=b.ping.readAll(CLUSTER);
+        assert addresses(list).equals(new HashSet<Address>(Arrays.asList(a.addr, b.addr, c.addr)));
+    }
+
+    public void testConcurrentWrites() throws Exception {
+        final List<Member> mbrs=createMembers(20);
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[mbrs.size()];
+        for(int i=0; i < threads.length; i++) {
+            final Member mbr=mbrs.get(i);
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=0; j < 5; j++)
+                            mbr.write(7800 + j);
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join(10000);
+        List<PingData> list=mbrs.get(0).ping.readAll(CLUSTER);
+        assert addresses(list).equals(addresses(mbrs)) : "read " + list.size() + " members";
+        assert file().length() == mbrs.size() * SLOT_SIZE;
+    }
+
+
+    protected static File file() {
+        return new File(ROOT, CLUSTER + FILE_PING.LIST_SUFFIX);
+    }
+
+    protected static List<Member> createMembers(int num) throws Exception {
+        List<Member> retval=new ArrayList<Member>(num);
+        for(int i=0; i < num; i++)
+            retval.add(new Member());
+        return retval;
+    }
+
+    protected static Set<Address> addresses(Collection<?> list) {
+        Set<Address> retval=new HashSet<Address>();
+        for(Object obj: list)
+            retval.add(obj instanceof Member? ((Member)obj).addr : ((PingData)obj).getAddress());
+        return retval;
+    }
+
+    protected static void delete(File file) {
+        File[] files=file.listFiles();
+        if(files != null)
+            for(File f: files)
+                delete(f);
+        file.delete();
+    }
+
+
+    protected static class Member {
+        protected final Address   addr=Util.createRandomAddress();
+        protected final FILE_PING ping;
+
+        public Member() throws Exception {
+            ping=(FILE_PING)new FILE_PING().setValue("location", ROOT).setValue("single_file", true)
+              .setValue("slot_size", SLOT_SIZE);
+            ping.createRootDir();
+        }
+
+        public void write(int port) throws Exception {
+            PhysicalAddress physical_addr=new IpAddress("127.0.0.1", port);
+            ping.writeToFile(new PingData(addr, null, false, addr.toString(), Arrays.asList(physical_addr)), CLUSTER);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.StreamingMessage;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests that FRAG2 passes all fragments of a message down as one {@link MessageBatch}, and that the protocols below
+ * handle such batches correctly
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class FRAG2_BatchTest {
+    protected static final String CLUSTER="FRAG2_BatchTest";
+    protected JChannel a, b;
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+
+    public void testFragmentsPassedDownAsBatch() throws Exception {
+        BatchProtocol mock=new BatchProtocol();
+        FRAG2 frag=create(mock);
+        frag.down(new Event(Event.MSG, new Message(null, null, new byte[5500])));
+        assert mock.batches.size() == 1;
+        MessageBatch batch=mock.batches.get(0);
+        assert batch.size() == 6 && batch.dest() == null;
+        long id=-1;
+        int frag_id=0;
+        for(Message msg: batch) {
+            FragHeader hdr=(FragHeader)msg.getHeader(frag.getId());
+            if(id < 0)
+                id=hdr.id;
+            assert hdr.id == id && hdr.frag_id == frag_id++;
+        }
+    }
+
+    /** Concurrent senders get unique fragment IDs */
+    public void testConcurrentFragmentIds() throws Exception {
+        final BatchProtocol mock=new BatchProtocol();
+        final FRAG2 frag=create(mock);
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[5];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=0; j < 100; j++)
+                            frag.down(new Event(Event.MSG, new Message(null, null, new byte[2500])));
+                    }
+                    catch(InterruptedException e) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join();
+
+        Set<Long> ids=new HashSet<Long>();
+        synchronized(mock.batches) {
+            assert mock.batches.size() == 500;
+            for(MessageBatch batch: mock.batches)
+                ids.add(((FragHeader)batch.first().getHeader(frag.getId())).id);
+        }
+        assert ids.size() == 500 : "fragment IDs are not unique: " + ids.size();
+    }
+
+    /**
+     * A batch with the fragments of a regular message, followed by the fragments of a stream and a regular message:
+     * the reassembled message must be passed up only once, and not be treated as a fragment again
+     */
+    public void testRegularAndStreamFragmentsInSameBatch() throws Exception {
+        Address sender=Util.createRandomAddress("A");
+        BatchProtocol mock=new BatchProtocol();
+        FRAG2 frag=create(mock);
+        byte[] payload=new byte[2500];
+        new Random(2).nextBytes(payload);
+        frag.down(new Event(Event.MSG, new Message(null, sender, payload)));
+        List<Message> msgs=new ArrayList<Message>();
+        for(Message msg: mock.batches.get(0))
+            msgs.add(msg);
+        assert msgs.size() == 3;
+
+        byte[] stream_data=new byte[1000];
+        new Random(3).nextBytes(stream_data);
+        for(int i=0; i < 2; i++) {
+            Message stream_frag=new Message(null, sender, Arrays.copyOfRange(stream_data, i * 500, (i+1) * 500));
+            stream_frag.putHeader(frag.getId(), FragHeader.createStreamHeader(1000, i, stream_data.length, i == 1));
+            msgs.add(stream_frag);
+        }
+        msgs.add(new Message(null, sender, "hello"));
+
+        frag.up(new MessageBatch(null, sender, null, true, msgs));
+        for(int i=0; i < 100 && mock.received.size() < 3; i++)
+            Util.sleep(50); // the streaming message is passed up on a separate thread
+
+        List<Message> received=new ArrayList<Message>(mock.received);
+        System.out.println("received " + received);
+        assert received.size() == 3 : "received " + received.size() + " messages";
+        StreamingMessage stream_msg=null;
+        int num_regular=0;
+        for(Message msg: received) {
+            if(msg instanceof StreamingMessage) {
+                stream_msg=(StreamingMessage)msg;
+                continue;
+            }
+            if(msg.getLength() == payload.length) {
+                assert Arrays.equals(msg.getBuffer(), payload);
+                num_regular++;
+            }
+            else
+                assert msg.getObject().equals("hello");
+        }
+        assert num_regular == 1;
+        assert stream_msg != null;
+        byte[] tmp=new byte[stream_data.length];
+        new DataInputStream(stream_msg.getInputStream()).readFully(tmp);
+        assert Arrays.equals(tmp, stream_data);
+        assert frag.fragment_list.get(sender).isEmpty() : "fragments are left: " + frag.fragment_list.get(sender);
+    }
+
+    /** Batches of fragments go through flow control (with less credits than the size of a message) and retransmission */
+    public void testFragmentedMessages() throws Exception {
+        a=createChannel("A");
+        b=createChannel("B");
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        MyReceiver receiver=new MyReceiver();
+        b.setReceiver(receiver);
+        byte[] payload=new byte[100000];
+        new Random(1).nextBytes(payload);
+        long start=System.currentTimeMillis();
+        for(int i=0; i < 5; i++) {
+            a.send(new Message(null, null, payload));
+            a.send(new Message(b.getAddress(), null, payload));
+        }
+        receiver.waitFor(10, 10000);
+        long time=System.currentTimeMillis() - start;
+        System.out.println("received " + receiver.size() + " messages in " + time + " ms");
+        assert receiver.size() == 10;
+        for(Message msg: receiver.msgs)
+            assert Arrays.equals(msg.getBuffer(), payload);
+        assert time < 5000 : "sending blocked on flow control for " + time + " ms";
+
+        NAKACK2 nak=(NAKACK2)a.getProtocolStack().findProtocol(NAKACK2.class);
+        assert nak.getCurrentSeqno() >= 5 * 100;
+    }
+
+
+    protected static FRAG2 create(Protocol mock) throws Exception {
+        FRAG2 frag=(FRAG2)new FRAG2().setValue("frag_size", 1000);
+        frag.setUpProtocol(mock);
+        frag.setDownProtocol(mock);
+        frag.start();
+        return frag;
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new PING().setValue("timeout", 300),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setValue("join_timeout", 500L),
+          new UFC().setValue("max_credits", 20000L),
+          new MFC().setValue("max_credits", 20000L),
+          new FRAG2().setValue("frag_size", 1000)
+        }).name(name);
+    }
+
+
+    protected static class BatchProtocol extends Protocol {
+        protected final List<MessageBatch> batches=new ArrayList<MessageBatch>();
+        protected final List<Message>      received=Collections.synchronizedList(new ArrayList<Message>());
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                received.add((Message)evt.getArg());
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            for(Message msg: batch)
+                received.add(msg);
+        }
+
+        public Object down(Event evt) {
+            return null;
+        }
+
+        public Object down(MessageBatch batch) {
+            synchronized(batches) {
+                batches.add(batch);
+            }
+            return null;
+        }
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Message> msgs=new ArrayList<Message>();
+
+        public void receive(Message msg) {
+            synchronized(msgs) {
+                msgs.add(msg);
+            }
+        }
+
+        public int size() {
+            synchronized(msgs) {
+                return msgs.size();
+            }
+        }
+
+        public void waitFor(int expected, long timeout) {
+            long target=System.currentTimeMillis() + timeout;
+            while(size() < expected && System.currentTimeMillis() < target)
+                Util.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.StreamingMessage;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests sending of streams with {@link JChannel#sendStream(Address,java.io.InputStream,int)}
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class FRAG2_StreamTest {
+    protected static final String CLUSTER="FRAG2_StreamTest";
+    protected JChannel     a, b;
+    protected StreamReader ra, rb;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=createChannel("A");
+        b=createChannel("B");
+        a.setReceiver(ra=new StreamReader());
+        b.setReceiver(rb=new StreamReader());
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+
+    public void testUnicastStream() throws Exception {
+        byte[] data=createData(200000);
+        a.sendStream(b.getAddress(), new ByteArrayInputStream(data), data.length);
+        rb.waitFor(1, 10000);
+        assert rb.size() == 1 && ra.size() == 0;
+        assert rb.lengths.get(0) == data.length;
+        assert Arrays.equals(rb.streams.get(0), data);
+        FRAG2 frag=(FRAG2)a.getProtocolStack().findProtocol(FRAG2.class);
+        assert frag.num_streams_sent.get() == 1;
+    }
+
+    /** A multicast stream is received by all members, including the sender */
+    public void testMulticastStream() throws Exception {
+        byte[] data=createData(100000);
+        a.sendStream(null, new ByteArrayInputStream(data), -1);
+        ra.waitFor(1, 10000);
+        rb.waitFor(1, 10000);
+        for(StreamReader reader: Arrays.asList(ra, rb)) {
+            assert reader.size() == 1;
+            assert reader.lengths.get(0) == -1;
+            assert Arrays.equals(reader.streams.get(0), data);
+        }
+    }
+
+    public void testEmptyStream() throws Exception {
+        a.sendStream(b.getAddress(), new ByteArrayInputStream(new byte[0]), 0);
+        rb.waitFor(1, 10000);
+        assert rb.size() == 1 && rb.streams.get(0).length == 0;
+    }
+
+    /** The sender blocks (on flow control) while the receiver doesn't read the stream */
+    public void testBackpressure() throws Exception {
+        rb.blockReading();
+        final byte[] data=createData(200000);
+        final CountDownLatch sent=new CountDownLatch(1);
+        new Thread() {
+            public void run() {
+                try {
+                    a.sendStream(b.getAddress(), new ByteArrayInputStream(data), data.length);
+                    sent.countDown();
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }.start();
+
+        Util.sleep(1000);
+        assert sent.getCount() == 1 : "the sender should be blocked as the receiver doesn't read the stream";
+        rb.unblockReading();
+        rb.waitFor(1, 10000);
+        assert sent.getCount() == 0;
+        assert Arrays.equals(rb.streams.get(0), data);
+    }
+
+    public void testSendFileChannel() throws Exception {
+        byte[] data=createData(50000);
+        File file=File.createTempFile("FRAG2_StreamTest", ".dat");
+        try {
+            FileOutputStream out=new FileOutputStream(file);
+            try {
+                out.write(data);
+            }
+            finally {
+                Util.close(out);
+            }
+            FileInputStream in=new FileInputStream(file);
+            try {
+                FileChannel channel=in.getChannel();
+                channel.position(1000);
+                a.sendStream(b.getAddress(), channel);
+            }
+            finally {
+                Util.close(in);
+            }
+            rb.waitFor(1, 10000);
+            assert rb.lengths.get(0) == data.length - 1000;
+            assert Arrays.equals(rb.streams.get(0), Arrays.copyOfRange(data, 1000, data.length));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+
+    protected static byte[] createData(int size) {
+        byte[] retval=new byte[size];
+        new Random(size).nextBytes(retval);
+        return retval;
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new PING().setValue("timeout", 300),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setValue("join_timeout", 500L),
+          new UFC().setValue("max_credits", 20000L),
+          new MFC().setValue("max_credits", 20000L),
+          new FRAG2().setValue("frag_size", 1000).setValue("stream_buffer_size", 5000)
+        }).name(name);
+    }
+
+
+    /** Reads every received stream on a separate thread */
+    protected static class StreamReader extends ReceiverAdapter {
+        protected final List<byte[]>  streams=new ArrayList<byte[]>();
+        protected final List<Integer> lengths=new ArrayList<Integer>();
+        protected volatile CountDownLatch blocked=new CountDownLatch(0);
+
+        public void blockReading()   {blocked=new CountDownLatch(1);}
+        public void unblockReading() {blocked.countDown();}
+
+        public void receive(Message msg) {
+            if(!(msg instanceof StreamingMessage))
+                return;
+            final StreamingMessage stream_msg=(StreamingMessage)msg;
+            new Thread() {
+                public void run() {
+                    try {
+                        blocked.await();
+                        ByteArrayOutputStream out=new ByteArrayOutputStream();
+                        InputStream input=stream_msg.getInputStream();
+                        byte[] buf=new byte[1024];
+                        int num;
+                        while((num=input.read(buf)) >= 0)
+                            out.write(buf, 0, num);
+                        synchronized(streams) {
+                            lengths.add(stream_msg.getStreamLength());
+                            streams.add(out.toByteArray());
+                        }
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }.start();
+        }
+
+        public int size() {
+            synchronized(streams) {
+                return streams.size();
+            }
+        }
+
+        public void waitFor(int expected, long timeout) {
+            long target=System.currentTimeMillis() + timeout;
+            while(size() < expected && System.currentTimeMillis() < target)
+                Util.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.StreamingMessage;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests zero-copy reassembly and streaming of fragmented messages in FRAG2
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class FRAG2_ZeroCopyTest {
+    protected static final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B");
+    protected static final int     FRAG_SIZE=1000;
+
+
+    public void testZeroCopyReassembly() throws Exception {
+        MockProtocol mock=new MockProtocol();
+        FRAG2 frag=create(mock, true, 0);
+        byte[] payload=createPayload(10500, 1);
+        frag.down(new Event(Event.MSG, new Message(null, A, payload)));
+        assert mock.msgs.size() == 11;
+
+        List<Message> fragments=new ArrayList<Message>(mock.msgs);
+        mock.msgs.clear();
+        Collections.shuffle(fragments, new Random(1));
+        for(Message msg: fragments)
+            frag.up(new Event(Event.MSG, msg));
+        assert mock.msgs.size() == 1;
+        Message msg=mock.msgs.get(0);
+        assert Arrays.equals(msg.getBuffer(), payload);
+        assert A.equals(msg.getSrc());
+        assert frag.getNumberOfReceivedFragments() == 11;
+    }
+
+    /**
+     * Without zero-copy reassembly and streaming, fragments have the same header as in previous versions. A receiver
+     * with zero-copy reassembly reassembles them the regular way
+     */
+    public void testDefaultHeaderFormat() throws Exception {
+        MockProtocol mock=new MockProtocol();
+        FRAG2 sender=create(mock, false, 0);
+        byte[] payload=createPayload(2500, 9);
+        sender.down(new Event(Event.MSG, new Message(null, A, payload)));
+        assert mock.msgs.size() == 3;
+        for(Message msg: mock.msgs) {
+            FragHeader hdr=(FragHeader)msg.getHeader(sender.getId());
+            assert hdr.getClass() == FragHeader.class && !hdr.hasOffsets();
+            assert hdr.size() == new FragHeader(hdr.id, 0, 0).size();
+        }
+
+        List<Message> fragments=new ArrayList<Message>(mock.msgs);
+        mock.msgs.clear();
+        FRAG2 receiver=create(mock, true, 0);
+        for(Message msg: fragments)
+            receiver.up(new Event(Event.MSG, msg));
+        assert mock.msgs.size() == 1;
+        assert Arrays.equals(mock.msgs.get(0).getBuffer(), payload);
+    }
+
+    /** A message with an offset and length is reassembled zero-copy, in a batch */
+    public void testZeroCopyReassemblyWithOffsetInBatch() throws Exception {
+        MockProtocol mock=new MockProtocol();
+        FRAG2 frag=create(mock, true, 0);
+        byte[] buf=createPayload(5000, 2);
+        frag.down(new Event(Event.MSG, new Message(null, A, buf, 500, 3500)));
+        List<Message> fragments=new ArrayList<Message>(mock.msgs);
+        mock.msgs.clear();
+        Collections.reverse(fragments);
+
+        MessageBatch batch=new MessageBatch(null, A, null, true, fragments);
+        frag.up(batch);
+        assert mock.msgs.size() == 1;
+        assert Arrays.equals(mock.msgs.get(0).getBuffer(), Arrays.copyOfRange(buf, 500, 4000));
+    }
+
+    /** Duplicate fragments are ignored */
+    public void testDuplicateFragments() throws Exception {
+        MockProtocol mock=new MockProtocol();
+        FRAG2 frag=create(mock, true, 0);
+        byte[] payload=createPayload(3000, 3);
+        frag.down(new Event(Event.MSG, new Message(null, A, payload)));
+        List<Message> fragments=new ArrayList<Message>(mock.msgs);
+        mock.msgs.clear();
+        frag.up(new Event(Event.MSG, fragments.get(0)));
+        frag.up(new Event(Event.MSG, fragments.get(0)));
+        frag.up(new Event(Event.MSG, fragments.get(1)));
+        assert mock.msgs.isEmpty();
+        frag.up(new Event(Event.MSG, fragments.get(2)));
+        assert mock.msgs.size() == 1;
+        assert Arrays.equals(mock.msgs.get(0).getBuffer(), payload);
+    }
+
+    /** Messages below the streaming threshold are delivered as regular messages */
+    public void testBelowStreamingThreshold() throws Exception {
+        MockProtocol mock=new MockProtocol();
+        FRAG2 frag=create(mock, false, 5000);
+        byte[] payload=createPayload(4000, 4);
+        frag.down(new Event(Event.MSG, new Message(null, A, payload)));
+        List<Message> fragments=new ArrayList<Message>(mock.msgs);
+        mock.msgs.clear();
+        for(Message msg: fragments)
+            frag.up(new Event(Event.MSG, msg));
+        assert mock.msgs.size() == 1;
+        assert !(mock.msgs.get(0) instanceof StreamingMessage);
+        assert Arrays.equals(mock.msgs.get(0).getBuffer(), payload);
+    }
+
+    /** The streaming message is passed up with the first fragment and read while the other fragments are received */
+    public void testStreaming() throws Exception {
+        MockProtocol mock=new MockProtocol();
+        FRAG2 frag=create(mock, false, 5000);
+        final byte[] payload=createPayload(20000, 5);
+        frag.down(new Event(Event.MSG, new Message(null, A, payload)));
+        List<Message> fragments=new ArrayList<Message>(mock.msgs);
+        mock.msgs.clear();
+
+        // fragment 0 first, then the rest in reverse order, so the reader blocks until the last fragment is received
+        frag.up(new Event(Event.MSG, fragments.get(0)));
+        mock.waitFor(1, 10000);
+        assert mock.msgs.size() == 1;
+        final StreamingMessage msg=(StreamingMessage)mock.msgs.get(0);
+        assert msg.getStreamLength() == payload.length;
+        assert A.equals(msg.getSrc());
+        assert frag.num_streaming_msgs.get() == 1;
+
+        final AtomicReference<byte[]> result=new AtomicReference<byte[]>();
+        Thread reader=new Thread() {
+            public void run() {
+                byte[] tmp=new byte[msg.getStreamLength()];
+                try {
+                    new DataInputStream(msg.getInputStream()).readFully(tmp);
+                    assert msg.getInputStream().read() == -1;
+                    result.set(tmp);
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+
+        for(int i=fragments.size() -1; i > 0; i--) {
+            Util.sleep(10);
+            frag.up(new Event(Event.MSG, fragments.get(i)));
+        }
+        reader.join(10000);
+        assert Arrays.equals(result.get(), payload);
+        assert mock.msgs.size() == 1 : "the message must be passed up only once";
+    }
+
+    /** A reader blocked on a stream is unblocked with an exception when the sender leaves */
+    public void testStreamAbortedOnViewChange() throws Exception {
+        MockProtocol mock=new MockProtocol();
+        FRAG2 frag=create(mock, false, 5000);
+        frag.down(new Event(Event.VIEW_CHANGE, new View(A, 1, Arrays.asList(A, B))));
+        frag.down(new Event(Event.MSG, new Message(null, B, createPayload(10000, 6))));
+        List<Message> fragments=new ArrayList<Message>(mock.msgs);
+        mock.msgs.clear();
+        frag.up(new Event(Event.MSG, fragments.get(0)));
+        mock.waitFor(1, 10000);
+        InputStream input=((StreamingMessage)mock.msgs.get(0)).getInputStream();
+        assert input.skip(FRAG_SIZE) == FRAG_SIZE;
+
+        frag.down(new Event(Event.VIEW_CHANGE, new View(A, 2, Arrays.asList(A))));
+        try {
+            input.read();
+            assert false : "read() should have thrown an exception";
+        }
+        catch(IOException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+    }
+
+    /** A fragment whose offset and length don't fit into the message is dropped, together with the message */
+    public void testMalformedFragment() throws Exception {
+        MockProtocol mock=new MockProtocol();
+        FRAG2 frag=create(mock, true, 0);
+        frag.down(new Event(Event.MSG, new Message(null, A, createPayload(3000, 7))));
+        List<Message> fragments=new ArrayList<Message>(mock.msgs);
+        mock.msgs.clear();
+        frag.up(new Event(Event.MSG, fragments.get(0)));
+        FragHeader hdr=(FragHeader)fragments.get(1).getHeader(frag.getId());
+        hdr.offset=2500; // 2500 + 1000 > 3000
+        frag.up(new Event(Event.MSG, fragments.get(1)));
+        assert frag.fragment_list.get(A).isEmpty() : "the entry should have been removed";
+        frag.up(new Event(Event.MSG, fragments.get(2)));
+        assert mock.msgs.isEmpty();
+
+        Message msg=fragments.get(0).copy(false).setBuffer(new byte[10]);
+        msg.putHeader(frag.getId(), new ExtendedFragHeader(5, 7, 3, 3000, 0)); // frag_id >= num_frags
+        frag.up(new Event(Event.MSG, msg));
+        assert mock.msgs.isEmpty();
+
+        // lengths which don't match the number of fragments, or exceed max_reassembled_size, are not allocated
+        frag.setValue("max_reassembled_size", 100000);
+        for(FragHeader h: new FragHeader[]{new ExtendedFragHeader(6, 0, 3, Integer.MAX_VALUE, 0),
+          new ExtendedFragHeader(7, 0, 3, -1, 0), new ExtendedFragHeader(8, 0, 200, 200000, 0),
+          new ExtendedFragHeader(9, 0, Integer.MAX_VALUE, 3000, 0)}) {
+            msg=fragments.get(0).copy(false).setBuffer(new byte[10]);
+            msg.putHeader(frag.getId(), h);
+            frag.up(new Event(Event.MSG, msg));
+            assert !frag.fragment_list.get(A).containsKey(h.id) : "entry created for " + h;
+        }
+        assert mock.msgs.isEmpty();
+    }
+
+    /** When all max_streaming_threads are busy in receive(), further streaming messages are dropped */
+    public void testMaxStreamingThreads() throws Exception {
+        final CountDownLatch latch=new CountDownLatch(1);
+        MockProtocol mock=new MockProtocol() {
+            public Object up(Event evt) {
+                super.up(evt);
+                try {
+                    latch.await();
+                }
+                catch(InterruptedException e) {
+                }
+                return null;
+            }
+        };
+        FRAG2 frag=(FRAG2)create(mock, false, 5000).setValue("max_streaming_threads", 1);
+        frag.stop();
+        frag.start();
+        List<List<Message>> msgs=new ArrayList<List<Message>>();
+        for(int i=0; i < 3; i++) {
+            frag.down(new Event(Event.MSG, new Message(null, A, createPayload(6000, i))));
+            msgs.add(new ArrayList<Message>(mock.msgs));
+            mock.msgs.clear();
+        }
+
+        frag.up(new Event(Event.MSG, msgs.get(0).get(0)));
+        mock.waitFor(1, 10000);
+        assert mock.msgs.size() == 1;
+
+        frag.up(new Event(Event.MSG, msgs.get(1).get(0))); // the only thread is busy
+        long id=((FragHeader)msgs.get(1).get(0).getHeader(frag.getId())).id;
+        assert !frag.fragment_list.get(A).containsKey(id) : "the entry of the dropped message should have been removed";
+        Util.sleep(500);
+        assert mock.msgs.size() == 1;
+        assert frag.num_streaming_msgs.get() == 1;
+
+        latch.countDown();
+        for(int i=0; i < 10 && mock.msgs.size() < 2; i++) { // the thread might not be idle yet
+            frag.up(new Event(Event.MSG, msgs.get(2).get(0)));
+            mock.waitFor(2, 500);
+        }
+        assert mock.msgs.size() == 2;
+        assert frag.num_streaming_msgs.get() == 2;
+        frag.stop();
+    }
+
+    /**
+     * The application reads a streaming message in receive(): as the remaining fragments are delivered by the same
+     * thread which delivers all messages from the sender, the message must be passed up on a separate thread
+     */
+    public void testReadStreamInReceive() throws Exception {
+        JChannel a=null, b=null;
+        try {
+            a=createChannel("A");
+            b=createChannel("B");
+            a.connect("FRAG2_ZeroCopyTest");
+            b.connect("FRAG2_ZeroCopyTest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+            final List<byte[]> received=new ArrayList<byte[]>();
+            b.setReceiver(new ReceiverAdapter() {
+                public void receive(Message msg) {
+                    try {
+                        byte[] tmp=new byte[((StreamingMessage)msg).getStreamLength()];
+                        new DataInputStream(((StreamingMessage)msg).getInputStream()).readFully(tmp);
+                        synchronized(received) {
+                            received.add(tmp);
+                        }
+                    }
+                    catch(IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+
+            byte[] unicast=createPayload(50000, 8), multicast=createPayload(30000, 9);
+            a.send(b.getAddress(), unicast);
+            a.send(null, multicast);
+            for(int i=0; i < 100; i++) {
+                synchronized(received) {
+                    if(received.size() == 2)
+                        break;
+                }
+                Util.sleep(100);
+            }
+            assert received.size() == 2 : "received " + received.size() + " messages";
+            for(byte[] buf: received)
+                assert Arrays.equals(buf, unicast) || Arrays.equals(buf, multicast);
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new PING().setValue("timeout", 300),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setValue("join_timeout", 500L).setValue("print_local_addr", false),
+          new FRAG2().setValue("frag_size", FRAG_SIZE).setValue("streaming_threshold", 10000)
+        }).name(name);
+    }
+
+    protected static FRAG2 create(Protocol mock, boolean zero_copy, int streaming_threshold) throws Exception {
+        FRAG2 frag=(FRAG2)new FRAG2().setValue("frag_size", FRAG_SIZE).setValue("zero_copy_reassembly", zero_copy)
+          .setValue("streaming_threshold", streaming_threshold);
+        frag.setUpProtocol(mock);
+        frag.setDownProtocol(mock);
+        frag.start();
+        return frag;
+    }
+
+    protected static byte[] createPayload(int size, long seed) {
+        byte[] retval=new byte[size];
+        new Random(seed).nextBytes(retval);
+        return retval;
+    }
+
+
+    protected static class MockProtocol extends Protocol {
+        protected final List<Message> msgs=Collections.synchronizedList(new ArrayList<Message>());
+
+        /** Waits until the expected number of messages have been received (streaming messages are passed up async) */
+        public void waitFor(int expected, long timeout) {
+            long target=System.currentTimeMillis() + timeout;
+            while(msgs.size() < expected && System.currentTimeMillis() < target)
+                Util.sleep(10);
+        }
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG)
+                msgs.add((Message)evt.getArg());
+            return null;
+        }
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                msgs.add((Message)evt.getArg());
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            for(Message msg: batch)
+                msgs.add(msg);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.NotifyingFuture;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tests the non-blocking mode of UFC and MFC (non_blocking=true)
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class FlowControl_NonBlockingTest {
+    protected static final String CLUSTER="FlowControl_NonBlockingTest";
+    protected static final int    MAX_CREDITS=10000, MAX_QUEUE_SIZE=20000, NUM_MSGS=40, SIZE=1000;
+    protected JChannel        a, b;
+    protected BlockingReceiver receiver;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=createChannel("A");
+        b=createChannel("B");
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        b.setReceiver(receiver=new BlockingReceiver());
+    }
+
+    @AfterMethod protected void destroy() {
+        receiver.unblock();
+        Util.close(b, a);
+    }
+
+
+    public void testMulticast() throws Exception {
+        check(null, (FlowControl)a.getProtocolStack().findProtocol(MFC.class));
+    }
+
+    public void testUnicast() throws Exception {
+        check(b.getAddress(), (FlowControl)a.getProtocolStack().findProtocol(UFC.class));
+    }
+
+    /**
+     * The fragments of a message are queued or rejected as a whole: a message which doesn't fit into the queue is
+     * rejected entirely, and the future of an accepted message completes only when all of its fragments have been sent
+     */
+    public void testFragmentedMessageQueuedOrRejectedAtomically() throws Exception {
+        FlowControl fc=(FlowControl)a.getProtocolStack().findProtocol(UFC.class);
+        Address dest=b.getAddress();
+        List<Integer> expected=new ArrayList<Integer>();
+        for(int i=0; i < 15; i++) { // uses up all credits and queues 5000 bytes
+            byte[] buf=new byte[SIZE];
+            buf[0]=(byte)i;
+            a.sendAsync(new Message(dest, null, buf));
+            expected.add(i);
+        }
+        long queued=fc.getQueuedBytes();
+        assert queued == 5 * SIZE : "queued bytes: " + queued;
+
+        byte[] too_big=new byte[17000]; // 9 fragments, which would exceed max_queue_size
+        too_big[0]=100;
+        NotifyingFuture<Void> rejected=a.sendAsync(new Message(dest, null, too_big));
+        assert rejected.isDone() && rejected(rejected);
+        assert fc.getQueuedBytes() == queued : "no fragment must have been queued: " + fc.printQueues();
+
+        byte[] fits=new byte[12000];
+        fits[0]=101;
+        NotifyingFuture<Void> accepted=a.sendAsync(new Message(dest, null, fits));
+        expected.add(101);
+        assert !accepted.isDone();
+        assert fc.getQueuedBytes() == queued + fits.length;
+
+        receiver.unblock();
+        accepted.get(10000, java.util.concurrent.TimeUnit.MILLISECONDS);
+        receiver.waitFor(expected.size(), 10000);
+        Util.sleep(500);
+        System.out.println("B received " + receiver.received);
+        assert receiver.received.equals(expected) : "expected " + expected + ", but got " + receiver.received;
+    }
+
+
+    /**
+     * JChannel.send() doesn't get a future: it blocks while its message is queued, and throws an exception if the
+     * message is rejected, so a message is never dropped silently
+     */
+    public void testSendBlocksOrThrows() throws Exception {
+        FlowControl fc=(FlowControl)a.getProtocolStack().findProtocol(UFC.class);
+        final Address dest=b.getAddress();
+        final List<Integer> expected=new ArrayList<Integer>();
+        for(int i=0; i < 15; i++) { // uses up all credits and queues 5000 bytes
+            byte[] buf=new byte[SIZE];
+            buf[0]=(byte)i;
+            a.sendAsync(new Message(dest, null, buf));
+            expected.add(i);
+        }
+        try {
+            a.send(new Message(dest, null, new byte[MAX_QUEUE_SIZE]));
+            assert false : "send() should have thrown an exception as the message cannot be queued";
+        }
+        catch(IllegalStateException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+
+        final CountDownLatch sent=new CountDownLatch(1);
+        Thread sender=new Thread() {
+            public void run() {
+                try {
+                    byte[] buf=new byte[SIZE];
+                    buf[0]=50;
+                    a.send(new Message(dest, null, buf));
+                    sent.countDown();
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        sender.start();
+        expected.add(50);
+        assert !sent.await(500, java.util.concurrent.TimeUnit.MILLISECONDS) : "send() should block while the message is queued";
+        assert fc.getQueuedBytes() == 6 * SIZE;
+
+        receiver.unblock();
+        assert sent.await(10000, java.util.concurrent.TimeUnit.MILLISECONDS);
+        receiver.waitFor(expected.size(), 10000);
+        assert receiver.received.equals(expected) : "expected " + expected + ", but got " + receiver.received;
+    }
+
+    /** Cancelling the future of a queued message removes it from the queue, so it is never sent */
+    public void testCancel() throws Exception {
+        FlowControl fc=(FlowControl)a.getProtocolStack().findProtocol(UFC.class);
+        Address dest=b.getAddress();
+        List<Integer> expected=new ArrayList<Integer>();
+        List<NotifyingFuture<Void>> futures=new ArrayList<NotifyingFuture<Void>>();
+        for(int i=0; i < 13; i++) {
+            byte[] buf=new byte[SIZE];
+            buf[0]=(byte)i;
+            futures.add(a.sendAsync(new Message(dest, null, buf)));
+            expected.add(i);
+        }
+        assert !futures.get(0).cancel(false) : "a message which was sent cannot be cancelled";
+        assert futures.get(11).cancel(false);
+        expected.remove(Integer.valueOf(11));
+        assert futures.get(11).isCancelled();
+        assert fc.getQueuedBytes() == 2 * SIZE : "queued bytes: " + fc.getQueuedBytes();
+
+        receiver.unblock();
+        futures.get(12).get(10000, java.util.concurrent.TimeUnit.MILLISECONDS);
+        receiver.waitFor(expected.size(), 10000);
+        Util.sleep(500);
+        assert receiver.received.equals(expected) : "expected " + expected + ", but got " + receiver.received;
+    }
+
+
+    /**
+     * B blocks in receive(), so A runs out of credits: the sends must not block, but queue messages until the queue
+     * is full, then reject them. When B unblocks, the queued messages are sent.
+     */
+    protected void check(Address dest, FlowControl fc) throws Exception {
+        List<NotifyingFuture<Void>> futures=new ArrayList<NotifyingFuture<Void>>(NUM_MSGS);
+        long start=System.currentTimeMillis();
+        for(int i=0; i < NUM_MSGS; i++) {
+            byte[] buf=new byte[SIZE];
+            buf[0]=(byte)i;
+            futures.add(a.sendAsync(new Message(dest, null, buf)));
+        }
+        long time=System.currentTimeMillis() - start;
+        System.out.println("sent " + NUM_MSGS + " messages in " + time + " ms; queued: " + fc.printQueues() +
+                             "rejected=" + fc.num_rejected);
+        assert time < 2000 : "sending blocked for " + time + " ms";
+        assert fc.num_queued.get() > 0;
+        assert fc.num_rejected.get() > 0;
+        assert fc.getQueuedBytes() <= MAX_QUEUE_SIZE && fc.getQueuedBytes() > 0;
+        assert !futures.get(NUM_MSGS - 1).isDone() || rejected(futures.get(NUM_MSGS - 1));
+
+        receiver.unblock();
+        List<Integer> expected=new ArrayList<Integer>();
+        for(int i=0; i < futures.size(); i++) {
+            NotifyingFuture<Void> future=futures.get(i);
+            try {
+                future.get(10000, java.util.concurrent.TimeUnit.MILLISECONDS);
+                expected.add(i);
+            }
+            catch(ExecutionException ex) {
+            }
+        }
+        assert expected.size() == NUM_MSGS - fc.num_rejected.get();
+        assert fc.getQueuedMessages() == 0 && fc.getQueuedBytes() == 0;
+
+        receiver.waitFor(expected.size(), 10000);
+        System.out.println("B received " + receiver.size() + " messages");
+        assert receiver.received.equals(expected) : "expected " + expected + ", but got " + receiver.received;
+    }
+
+    protected static boolean rejected(NotifyingFuture<Void> future) throws InterruptedException {
+        try {
+            future.get();
+            return false;
+        }
+        catch(ExecutionException ex) {
+            return true;
+        }
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new PING().setValue("timeout", 300),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setValue("join_timeout", 500L),
+          new UFC().setValue("max_credits", (long)MAX_CREDITS).setValue("non_blocking", true)
+            .setValue("max_queue_size", (long)MAX_QUEUE_SIZE),
+          new MFC().setValue("max_credits", (long)MAX_CREDITS).setValue("non_blocking", true)
+            .setValue("max_queue_size", (long)MAX_QUEUE_SIZE),
+          new FRAG2().setValue("frag_size", 2000)
+        }).name(name);
+    }
+
+
+    /** Blocks in receive() until unblocked, so no credits are sent back */
+    protected static class BlockingReceiver extends ReceiverAdapter {
+        protected final CountDownLatch latch=new CountDownLatch(1);
+        protected final List<Integer>  received=new ArrayList<Integer>();
+
+        public void unblock() {latch.countDown();}
+
+        public void receive(Message msg) {
+            try {
+                latch.await();
+            }
+            catch(InterruptedException e) {
+            }
+            synchronized(received) {
+                received.add((int)msg.getRawBuffer()[msg.getOffset()]);
+            }
+        }
+
+        public int size() {
+            synchronized(received) {
+                return received.size();
+            }
+        }
+
+        public void waitFor(int expected, long timeout) {
+            long target=System.currentTimeMillis() + timeout;
+            while(size() < expected && System.currentTimeMillis() < target)
+                Util.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Tests installation of views multicast as {@link DeltaView}s by GMS
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class GMS_DeltaViewTest {
+    protected static final String CLUSTER="GMS_DeltaViewTest";
+    protected JChannel a, b, c, d;
+
+    @AfterMethod protected void destroy() {Util.close(d, c, b, a);}
+
+
+    public void testJoinAndLeave() throws Exception {
+        a=createChannel("A");
+        a.connect(CLUSTER);
+        b=createChannel("B");
+        b.connect(CLUSTER);
+        c=createChannel("C");
+        c.connect(CLUSTER);
+        d=createChannel("D");
+        d.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c, d);
+        checkViews(a, b, c, d);
+
+        b.close();
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, c, d);
+        checkViews(a, c, d);
+
+        GMS gms=(GMS)a.getProtocolStack().findProtocol(GMS.class);
+        System.out.println("delta views sent by A: " + gms.getNumDeltaViewsSent());
+        assert gms.getNumDeltaViewsSent() > 0;
+        for(JChannel ch: Arrays.asList(c, d))
+            assert ((GMS)ch.getProtocolStack().findProtocol(GMS.class)).getNumFullViewRequests() == 0;
+
+        // the coordinator leaves: C becomes coordinator and multicasts a delta view
+        a.close();
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, c, d);
+        checkViews(c, d);
+        assert c.getView().getMembers().get(0).equals(c.getAddress());
+    }
+
+    /**
+     * A member which cannot create the view from a DeltaView fetches the full view from the coordinator. The
+     * coordinator doesn't reply with a view older than the DeltaView, but waits until it has installed that view
+     */
+    public void testFallbackToFullView() throws Exception {
+        a=createChannel("A");
+        a.connect(CLUSTER);
+        b=createChannel("B");
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        View view=b.getView();
+        ViewId next_id=new ViewId(a.getAddress(), view.getViewId().getId() + 1);
+        ViewId bogus_ref_id=new ViewId(a.getAddress(), view.getViewId().getId() - 1);
+        DeltaView delta=new DeltaView(next_id, bogus_ref_id,
+                                      new ArrayList<Address>(), Collections.singletonList(Util.createRandomAddress("X")));
+        GMS gms=(GMS)b.getProtocolStack().findProtocol(GMS.class);
+        Message msg=new Message(null, a.getAddress(), null).putHeader(gms.getId(), new GMS.GmsHeader(GMS.GmsHeader.VIEW, delta));
+        gms.up(new Event(Event.MSG, msg));
+
+        assert gms.getNumFullViewRequests() == 1;
+        Util.sleep(500);
+        // A hasn't installed next_id yet, so B must not get (and install) A's current view again
+        assert b.getView().equals(view) && b.getView().getMembers().equals(a.getView().getMembers())
+          : "view of B: " + b.getView() + ", view of A: " + a.getView();
+
+        // A installs next_id when C joins, and B gets the new view
+        c=createChannel("C");
+        c.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+        checkViews(a, b, c);
+        assert b.getView().getViewId().compareToIDs(next_id) >= 0 : "view of B: " + b.getView();
+        assert gms.getNumFullViewRequests() == 1;
+    }
+
+
+    protected static void checkViews(JChannel ... channels) {
+        View first=channels[0].getView();
+        for(JChannel ch: channels) {
+            View view=ch.getView();
+            System.out.println(ch.getName() + ": " + view);
+            assert !(view instanceof DeltaView);
+            assert view.getViewId().equals(first.getViewId()) && view.getMembers().equals(first.getMembers());
+        }
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new PING().setValue("timeout", 300),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setValue("join_timeout", 500L).setValue("print_local_addr", false)
+            .setValue("use_delta_views", true)
+        }).name(name);
+    }
+}
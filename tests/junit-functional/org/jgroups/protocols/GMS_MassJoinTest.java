@@ -0,0 +1,98 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests the mass join mode of GMS (mass_join=true): concurrent joiners are added in a single view and get a
+ * multicast JoinRsp
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class GMS_MassJoinTest {
+    protected static final String CLUSTER="GMS_MassJoinTest";
+    protected static final int    NUM=6;
+    protected final JChannel[]    channels=new JChannel[NUM];
+
+    @AfterMethod protected void destroy() {
+        for(int i=channels.length-1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    public void testConcurrentJoins() throws Exception {
+        channels[0]=createChannel("A");
+        channels[0].connect(CLUSTER);
+        GMS gms=(GMS)channels[0].getProtocolStack().findProtocol(GMS.class);
+        int views_before=gms.getNumberOfViews();
+
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] joiners=new Thread[NUM-1];
+        for(int i=1; i < NUM; i++) {
+            final JChannel ch=channels[i]=createChannel(String.valueOf((char)('A' + i)));
+            joiners[i-1]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        ch.connect(CLUSTER);
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            joiners[i-1].start();
+        }
+        latch.countDown();
+        for(Thread joiner: joiners)
+            joiner.join(20000);
+
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+        for(JChannel ch: channels)
+            System.out.println(ch.getName() + ": " + ch.getView());
+
+        // the latencies are recorded after the coordinator has received the view ACKs of the joiners
+        for(int i=0; i < 20 && !gms.getJoinLatencies().contains("(" + (NUM-1) + " samples)"); i++)
+            Util.sleep(500);
+        int views=gms.getNumberOfViews() - views_before;
+        System.out.println("views installed by the coordinator: " + views + ", join latencies: " + gms.getJoinLatencies());
+        assert views <= 2 : "all joiners should have been added in 1 (or at most 2) views, but " + views + " views were installed";
+        assert gms.getJoinLatencies().contains("(" + (NUM-1) + " samples)");
+    }
+
+    /** A single joiner gets a unicast JoinRsp */
+    public void testSingleJoin() throws Exception {
+        channels[0]=createChannel("A");
+        channels[0].connect(CLUSTER);
+        channels[1]=createChannel("B");
+        long start=System.currentTimeMillis();
+        channels[1].connect(CLUSTER);
+        long time=System.currentTimeMillis() - start;
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels[0], channels[1]);
+        System.out.println("join took " + time + " ms");
+        assert time < 5000;
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new PING().setValue("timeout", 500),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setValue("join_timeout", 3000L).setValue("print_local_addr", false).setValue("mass_join", true)
+            .setValue("max_join_bundling_time", 2000L).setValue("join_bundling_quiet_time", 300L)
+        }).name(name);
+    }
+}
@@ -0,0 +1,331 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.View;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.TimeScheduler3;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Tests connection pooling and batched deletes of {@link JDBC_PING} against a simple in-memory database, which is
+ * accessed via its own JDBC driver (URL jdbc:jgroups-mem:)
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class JDBC_PING_Test {
+    protected static final String  CLUSTER="JDBC_PING_Test";
+    protected static final InMemoryDatabase db=new InMemoryDatabase();
+    protected TimeScheduler        timer;
+    protected JDBC_PING            ping;
+
+    @BeforeClass
+    protected static void registerDriver() throws SQLException {
+        DriverManager.registerDriver(db);
+    }
+
+    @BeforeMethod
+    protected void setup() {
+        timer=new TimeScheduler3();
+        db.clear();
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        if(ping != null)
+            ping.destroy();
+        timer.stop();
+    }
+
+
+    public void testConnectionsAreReused() throws Exception {
+        ping=create(2);
+        Address local=Util.createRandomAddress("A");
+        for(int i=0; i < 10; i++) {
+            ping.writeToFile(createPingData(local, 7800 + i), CLUSTER);
+            List<PingData> list=ping.readAll(CLUSTER);
+            assert list.size() == 1;
+            assert ((IpAddress)list.get(0).getPhysicalAddrs().iterator().next()).getPort() == 7800 + i;
+        }
+        System.out.println("connections opened: " + ping.getNumConnectionsOpened() + ", statements prepared: " +
+                             db.num_statements_prepared);
+        // 1 for the schema creation, 1 pooled connection for all reads and writes
+        assert ping.getNumConnectionsOpened() == 2;
+        assert db.num_connections_opened.get() == 2;
+        assert db.num_statements_prepared.get() == 4 : "expected CREATE, SELECT, DELETE and INSERT: " + db.num_statements_prepared;
+        assert ping.getNumIdleConnections() == 1;
+    }
+
+    public void testWithoutPooling() throws Exception {
+        ping=create(0);
+        Address local=Util.createRandomAddress("A");
+        for(int i=0; i < 5; i++) {
+            ping.writeToFile(createPingData(local, 7800), CLUSTER);
+            ping.readAll(CLUSTER);
+        }
+        assert ping.getNumConnectionsOpened() == 11;
+        assert db.num_open_connections.get() == 0 : "connections were not closed";
+    }
+
+    /** The coordinator removes all members which are not in the view with a single batch */
+    public void testBatchedRemoval() throws Exception {
+        ping=create(2);
+        List<Address> mbrs=new ArrayList<Address>();
+        for(int i=0; i < 10; i++) {
+            Address addr=Util.createRandomAddress(String.valueOf((char)('A' + i)));
+            mbrs.add(addr);
+            ping.writeToFile(createPingData(addr, 7800 + i), CLUSTER);
+        }
+        assert ping.readAll(CLUSTER).size() == 10;
+        int updates=db.num_updates.get();
+
+        ping.local_addr=mbrs.get(0);
+        ping.group_addr=CLUSTER;
+        ping.handleView(new View(mbrs.get(0), 2, mbrs.subList(0, 3)));
+        List<PingData> list=ping.readAll(CLUSTER);
+        assert list.size() == 3 : "members: " + list;
+        assert db.num_batches.get() == 1;
+        assert db.num_updates.get() == updates : "the deletes should have been batched";
+        assert ping.getNumConnectionsOpened() == 2;
+    }
+
+    /** A pooled connection which was closed (e.g. by a restart of the database) is replaced by a new one */
+    public void testClosedConnectionIsNotReused() throws Exception {
+        ping=create(2);
+        Address local=Util.createRandomAddress("A");
+        ping.writeToFile(createPingData(local, 7800), CLUSTER);
+        assert ping.getNumIdleConnections() == 1;
+        db.closeAllConnections();
+        ping.writeToFile(createPingData(local, 7801), CLUSTER);
+        List<PingData> list=ping.readAll(CLUSTER);
+        assert list.size() == 1;
+        assert ((IpAddress)list.get(0).getPhysicalAddrs().iterator().next()).getPort() == 7801;
+        assert ping.getNumConnectionsOpened() == 3;
+    }
+
+    /** A connection on which a statement failed is closed rather than returned to the pool */
+    public void testFailedConnectionIsNotReused() throws Exception {
+        ping=create(2);
+        db.fail_next_query=true;
+        assert ping.readAll(CLUSTER).isEmpty();
+        assert ping.getNumIdleConnections() == 0;
+        assert db.num_open_connections.get() == 0;
+        ping.readAll(CLUSTER);
+        assert ping.getNumIdleConnections() == 1;
+    }
+
+    public void testDestroyClosesIdleConnections() throws Exception {
+        ping=create(2);
+        ping.writeToFile(createPingData(Util.createRandomAddress("A"), 7800), CLUSTER);
+        assert db.num_open_connections.get() == 1;
+        ping.destroy();
+        ping=null;
+        assert db.num_open_connections.get() == 0;
+    }
+
+
+    protected JDBC_PING create(int pool_size) throws Exception {
+        SHARED_LOOPBACK transport=new SHARED_LOOPBACK();
+        transport.setTimer(timer);
+        JDBC_PING retval=(JDBC_PING)new JDBC_PING().setValue("connection_url", InMemoryDatabase.URL)
+          .setValue("connection_driver", InMemoryDatabase.class.getName()).setValue("connection_username", "sa")
+          .setValue("connection_password", "").setValue("connection_pool_size", pool_size);
+        retval.setDownProtocol(transport);
+        retval.init();
+        return retval;
+    }
+
+    protected static PingData createPingData(Address addr, int port) throws Exception {
+        PhysicalAddress physical_addr=new IpAddress("127.0.0.1", port);
+        return new PingData(addr, null, false, addr.toString(), Arrays.<PhysicalAddress>asList(physical_addr));
+    }
+
+
+    /**
+     * A minimal in-memory database with a JDBC driver, which understands the default statements of JDBC_PING and
+     * counts connections, prepared statements, updates and batches
+     */
+    public static class InMemoryDatabase implements Driver {
+        protected static final String             URL="jdbc:jgroups-mem:" + CLUSTER;
+        protected final Map<String,byte[]>        table=new ConcurrentHashMap<String,byte[]>(); // key: cluster:addr
+        protected final Set<Connection>           connections=Collections.synchronizedSet(new HashSet<Connection>());
+        protected final AtomicInteger             num_connections_opened=new AtomicInteger();
+        protected final AtomicInteger             num_open_connections=new AtomicInteger();
+        protected final AtomicInteger             num_statements_prepared=new AtomicInteger();
+        protected final AtomicInteger             num_updates=new AtomicInteger();
+        protected final AtomicInteger             num_batches=new AtomicInteger();
+        protected volatile boolean                fail_next_query;
+
+        public void clear() {
+            closeAllConnections();
+            table.clear();
+            for(AtomicInteger counter: Arrays.asList(num_connections_opened, num_open_connections, num_statements_prepared,
+                                                     num_updates, num_batches))
+                counter.set(0);
+            fail_next_query=false;
+        }
+
+        public void closeAllConnections() {
+            for(Connection conn: new ArrayList<Connection>(connections)) {
+                try {
+                    conn.close();
+                }
+                catch(SQLException e) {
+                }
+            }
+        }
+
+        public Connection connect(String url, Properties info) throws SQLException {
+            if(!acceptsURL(url))
+                return null;
+            Connection conn=(Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class},
+                                                              new ConnectionHandler());
+            connections.add(conn);
+            num_connections_opened.incrementAndGet();
+            num_open_connections.incrementAndGet();
+            return conn;
+        }
+
+        public boolean acceptsURL(String url) {return url != null && url.equals(URL);}
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {return new DriverPropertyInfo[0];}
+        public int getMajorVersion() {return 1;}
+        public int getMinorVersion() {return 0;}
+        public boolean jdbcCompliant() {return false;}
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {throw new SQLFeatureNotSupportedException();}
+
+        protected static Object defaultValue(Class<?> type) {
+            if(type == boolean.class) return false;
+            if(type == int.class)     return 0;
+            if(type == long.class)    return 0L;
+            return null;
+        }
+
+        protected class ConnectionHandler implements InvocationHandler {
+            protected volatile boolean closed;
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name=method.getName();
+                if(name.equals("equals"))   return proxy == args[0];
+                if(name.equals("hashCode")) return System.identityHashCode(proxy);
+                if(name.equals("toString")) return "connection-" + System.identityHashCode(proxy);
+                if(name.equals("isClosed")) return closed;
+                if(name.equals("close")) {
+                    if(!closed) {
+                        closed=true;
+                        connections.remove(proxy);
+                        num_open_connections.decrementAndGet();
+                    }
+                    return null;
+                }
+                if(closed)
+                    throw new SQLException("connection is closed");
+                if(name.equals("prepareStatement")) {
+                    num_statements_prepared.incrementAndGet();
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                                                  new StatementHandler(this, (String)args[0]));
+                }
+                return defaultValue(method.getReturnType());
+            }
+        }
+
+        protected class StatementHandler implements InvocationHandler {
+            protected final ConnectionHandler     conn;
+            protected final String                sql;
+            protected final Map<Integer,Object>   params=new HashMap<Integer,Object>();
+            protected final List<Map<Integer,Object>> batch=new ArrayList<Map<Integer,Object>>();
+
+            public StatementHandler(ConnectionHandler conn, String sql) {
+                this.conn=conn;
+                this.sql=sql.trim().toUpperCase();
+            }
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name=method.getName();
+                if(name.equals("equals"))   return proxy == args[0];
+                if(name.equals("hashCode")) return System.identityHashCode(proxy);
+                if(name.equals("toString")) return sql;
+                if(name.equals("close"))    return null;
+                if(conn.closed)
+                    throw new SQLException("connection is closed");
+                if(name.equals("setString") || name.equals("setBytes")) {
+                    params.put((Integer)args[0], args[1]);
+                    return null;
+                }
+                if(name.equals("clearParameters")) {
+                    params.clear();
+                    return null;
+                }
+                if(name.equals("execute"))
+                    return false; // CREATE TABLE
+                if(name.equals("executeUpdate")) {
+                    num_updates.incrementAndGet();
+                    return update(params);
+                }
+                if(name.equals("addBatch")) {
+                    batch.add(new HashMap<Integer,Object>(params));
+                    return null;
+                }
+                if(name.equals("executeBatch")) {
+                    num_batches.incrementAndGet();
+                    int[] retval=new int[batch.size()];
+                    for(int i=0; i < batch.size(); i++)
+                        retval[i]=update(batch.get(i));
+                    batch.clear();
+                    return retval;
+                }
+                if(name.equals("executeQuery")) {
+                    if(fail_next_query) {
+                        fail_next_query=false;
+                        throw new SQLException("query failed");
+                    }
+                    String prefix=params.get(1) + ":";
+                    final List<byte[]> rows=new ArrayList<byte[]>();
+                    for(Map.Entry<String,byte[]> entry: table.entrySet())
+                        if(entry.getKey().startsWith(prefix))
+                            rows.add(entry.getValue());
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ResultSet.class},
+                                                  new InvocationHandler() {
+                                                      int index=-1;
+                                                      public Object invoke(Object p, Method m, Object[] a) throws Throwable {
+                                                          if(m.getName().equals("next"))
+                                                              return ++index < rows.size();
+                                                          if(m.getName().equals("getBytes"))
+                                                              return rows.get(index);
+                                                          return defaultValue(m.getReturnType());
+                                                      }
+                                                  });
+                }
+                return defaultValue(method.getReturnType());
+            }
+
+            protected int update(Map<Integer,Object> values) throws SQLException {
+                if(sql.startsWith("INSERT")) { // own_addr, cluster_name, ping_data
+                    String key=values.get(2) + ":" + values.get(1);
+                    if(table.containsKey(key))
+                        throw new SQLException("duplicate key " + key);
+                    table.put(key, (byte[])values.get(3));
+                    return 1;
+                }
+                if(sql.startsWith("DELETE")) // own_addr, cluster_name
+                    return table.remove(values.get(2) + ":" + values.get(1)) != null? 1 : 0;
+                throw new SQLException("unsupported statement: " + sql);
+            }
+        }
+    }
+}
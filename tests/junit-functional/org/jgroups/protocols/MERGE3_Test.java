@@ -0,0 +1,139 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.View;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link MERGE3} with max_info_senders: only a few members send INFO messages every interval, but partitions
+ * are still detected and merged
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class MERGE3_Test {
+    protected static final String CLUSTER="MERGE3_Test";
+    protected static final int    NUM=6;
+    protected JChannel[]          channels;
+
+    @BeforeMethod protected void setup() throws Exception {
+        channels=new JChannel[NUM];
+        for(int i=0; i < NUM; i++) {
+            channels[i]=createChannel(String.valueOf((char)('A' + i)));
+            channels[i].connect(CLUSTER);
+        }
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+    }
+
+    @AfterMethod protected void destroy() {
+        for(int i=channels.length-1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    /** The first max_info_senders members send every round, and every other member sends at least once in N rounds */
+    public void testInfoSenders() {
+        MERGE3 merge=new MERGE3().setMaxInfoSenders(3);
+        final int size=10, num_rounds=4; // 10 / 3, rounded up
+        int[] sent=new int[size];
+        for(long round=0; round < num_rounds; round++) {
+            int senders=0;
+            for(int rank=0; rank < size; rank++) {
+                if(merge.isInfoSender(rank, size, round)) {
+                    sent[rank]++;
+                    senders++;
+                }
+            }
+            System.out.println("round " + round + ": " + senders + " senders");
+            assert senders <= 3 + 2 : "too many senders in round " + round + ": " + senders;
+        }
+        for(int rank=0; rank < size; rank++) {
+            if(rank < 3)
+                assert sent[rank] == num_rounds : "rank " + rank + " sent " + sent[rank] + " times";
+            else
+                assert sent[rank] >= 1 : "rank " + rank + " never sent an INFO message";
+        }
+        assert merge.isInfoSender(-1, size, 1); // not in the view
+        assert new MERGE3().isInfoSender(9, size, 1);
+    }
+
+    /** Only the coordinator caches ViewIds */
+    public void testOnlyCoordCachesViews() {
+        Util.sleep(2000);
+        for(JChannel ch: channels) {
+            MERGE3 merge=merge(ch);
+            System.out.println(ch.getName() + ": INFO msgs sent=" + merge.getNumInfoMsgsSent() + ", views=" + merge.getViews());
+            if(ch != channels[0])
+                assert merge.getViews() == 0 : ch.getName() + " cached " + merge.getViews() + " views";
+        }
+        assert merge(channels[0]).getNumInfoMsgsSent() > 0;
+    }
+
+    /** Splits the cluster into {A,B,C} and {D,E,F} and waits until MERGE3 detects the partition and it is merged */
+    public void testMergeAfterPartition() throws Exception {
+        List<Address> first=new ArrayList<Address>(), second=new ArrayList<Address>();
+        for(int i=0; i < NUM; i++)
+            (i < NUM/2? first : second).add(channels[i].getAddress());
+        for(JChannel ch: channels) {
+            DISCARD discard=(DISCARD)ch.getProtocolStack().findProtocol(DISCARD.class);
+            for(Address addr: first.contains(ch.getAddress())? second : first)
+                discard.addIgnoreMember(addr);
+        }
+        View v1=new View(first.get(0), 10, first), v2=new View(second.get(0), 10, second);
+        for(JChannel ch: channels) {
+            GMS gms=(GMS)ch.getProtocolStack().findProtocol(GMS.class);
+            gms.installView(first.contains(ch.getAddress())? v1 : v2);
+        }
+        for(JChannel ch: channels)
+            assert ch.getView().size() == NUM/2 : ch.getName() + ": " + ch.getView();
+
+        long start=System.currentTimeMillis();
+        for(JChannel ch: channels)
+            ((DISCARD)ch.getProtocolStack().findProtocol(DISCARD.class)).resetIgnoredMembers();
+        Util.waitUntilAllChannelsHaveSameSize(30000, 500, channels);
+        long time=System.currentTimeMillis() - start;
+
+        long detections=0;
+        for(JChannel ch: channels) {
+            MERGE3 merge=merge(ch);
+            if(merge.getNumMergeDetections() > 0)
+                System.out.println(ch.getName() + ": merge detection latency: " + merge.getMergeDetectionLatency() +
+                                     " (max detection time: " + merge.getMaxDetectionTime() + " ms)");
+            detections+=merge.getNumMergeDetections();
+        }
+        System.out.println("merge took " + time + " ms");
+        assert detections > 0 : "no merge detection latency was recorded";
+    }
+
+
+    protected static MERGE3 merge(JChannel ch) {
+        return (MERGE3)ch.getProtocolStack().findProtocol(MERGE3.class);
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new DISCARD(),
+          new PING().timeout(500).numInitialMembers(10),
+          new MERGE3().setMaxInfoSenders(2).setValue("min_interval", 100).setValue("max_interval", 1000),
+          new NAKACK2().setValue("use_mcast_xmit", false).setValue("log_discard_msgs", false)
+            .setValue("log_not_found_msgs", false),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setValue("join_timeout", 1000L).setValue("print_local_addr", false)
+            .setValue("log_view_warnings", false).setValue("log_collect_msgs", false)
+        }).name(name);
+    }
+}
@@ -0,0 +1,123 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.Digest;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.MutableDigest;
+import org.jgroups.util.SeqnoList;
+import org.jgroups.util.TimeScheduler3;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Tests that old sent messages are moved from NAKACK2's retransmission table to the spill store, and are read back
+ * on retransmission requests
+ * @author Bela Ban
+ * @since 3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class NAKACK2_SpillTest {
+    protected static final short   ID=ClassConfigurator.getProtocolId(NAKACK2.class);
+    protected static final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B");
+    protected static final int     MAX_IN_HEAP=10;
+
+    protected NAKACK2       nak;
+    protected MockTransport transport;
+    protected ProtocolStack stack;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        nak=(NAKACK2)new NAKACK2().setValue("use_mcast_xmit", false).setValue("xmit_table_max_in_heap", MAX_IN_HEAP);
+        transport=new MockTransport();
+        transport.setTimer(new TimeScheduler3());
+        stack=new ProtocolStack();
+        stack.addProtocols(transport, nak, new Protocol() {
+            public Object up(Event evt)         {return null;}
+            public void   up(MessageBatch batch) {}
+        });
+        stack.init();
+        nak.start();
+
+        nak.down(new Event(Event.SET_LOCAL_ADDRESS, A));
+        nak.down(new Event(Event.VIEW_CHANGE, new View(A, 1, Arrays.asList(A, B))));
+        MutableDigest digest=new MutableDigest(2);
+        digest.add(A, 0, 0);
+        digest.add(B, 0, 0);
+        nak.down(new Event(Event.SET_DIGEST, digest));
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        nak.stop();
+        stack.destroy();
+        transport.getTimer().stop();
+    }
+
+
+    public void testSpillAndRetransmit() {
+        for(int i=1; i <= 100; i++)
+            nak.down(new Event(Event.MSG, new Message(null, null, i)));
+
+        System.out.println("nak: " + nak.printMessages());
+        assert nak.getSpillStoreSize() == 100 - MAX_IN_HEAP;
+        assert nak.getWindow(A).get(5) == null; // moved to the spill store
+
+        // B asks for retransmission of 1-5 (spill store) and 95-96 (retransmission table)
+        SeqnoList missing=new SeqnoList(1, 5);
+        missing.add(95, 96);
+        Message xmit_req=new Message(A, B, missing).putHeader(ID, NakAckHeader2.createXmitRequestHeader(A));
+        nak.up(new Event(Event.MSG, xmit_req));
+
+        List<Long> xmit_rsps=transport.getXmitResponses();
+        System.out.println("xmit responses: " + xmit_rsps);
+        assert xmit_rsps.size() == 7;
+        for(long seqno: new long[]{1,2,3,4,5,95,96})
+            assert xmit_rsps.contains(seqno);
+        assert nak.getSpillStoreReads() == 5;
+
+        // stability purges both the retransmission table and the spill store
+        nak.down(new Event(Event.STABLE, new Digest(A, 50, 50)));
+        assert nak.getSpillStoreSize() == 100 - MAX_IN_HEAP - 50;
+    }
+
+
+    /** Loops back multicasts and records XMIT-RSPs */
+    protected class MockTransport extends TP {
+        protected final List<Long> xmit_rsps=new LinkedList<Long>();
+
+        public List<Long>         getXmitResponses() {return xmit_rsps;}
+        public void               init() throws Exception {}
+        public void               start() throws Exception {}
+        public void               stop() {}
+        public boolean            supportsMulticasting() {return true;}
+        public void               sendMulticast(byte[] data, int offset, int length) throws Exception {}
+        public void               sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {}
+        public String             getInfo() {return null;}
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+
+        public Object down(Event evt) {
+            if(evt.getType() != Event.MSG)
+                return null;
+            Message msg=(Message)evt.getArg();
+            NakAckHeader2 hdr=(NakAckHeader2)msg.getHeader(ID);
+            if(hdr == null)
+                return null;
+            if(hdr.getType() == NakAckHeader2.XMIT_RSP)
+                xmit_rsps.add(hdr.getSeqno());
+            else if(hdr.getType() == NakAckHeader2.MSG && msg.getDest() == null)
+                nak.up(new Event(Event.MSG, msg.copy()));
+            return null;
+        }
+    }
+}
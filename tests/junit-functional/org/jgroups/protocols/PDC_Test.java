@@ -0,0 +1,129 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests that PDC persists the mappings and the last view in a single file, and that Discovery contacts the cached
+ * coordinator first on a restart
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class PDC_Test {
+    protected static final String CLUSTER="PDC_Test";
+    protected static final String ROOT=System.getProperty("java.io.tmpdir") + File.separator + "PDC_Test";
+    protected JChannel a, b;
+
+    @BeforeMethod protected void setup()   {delete(new File(ROOT));}
+
+    @AfterMethod  protected void destroy() {
+        Util.close(b, a);
+        delete(new File(ROOT));
+    }
+
+
+    public void testViewIsPersisted() throws Exception {
+        a=createChannel("A", 1000);
+        a.connect(CLUSTER);
+        b=createChannel("B", 1000);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        File dir=new File(ROOT, "B");
+        assert new File(dir, CLUSTER + ".pdc").exists();
+        assert dir.listFiles().length == 1 : "cache dir should only contain the cache file: " + Arrays.toString(dir.list());
+        PDC pdc=(PDC)b.getProtocolStack().findProtocol(PDC.class);
+        System.out.println("cached view of B: " + pdc.getCachedView());
+        assert pdc.getCachedView().equals(b.getView().toString());
+    }
+
+    /** A restarted member joins via the coordinator of the cached view without waiting for the discovery timeout */
+    public void testRestartWithCachedCoordinator() throws Exception {
+        a=createChannel("A", 3000);
+        a.connect(CLUSTER);
+        b=createChannel("B", 3000);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        Util.close(b);
+
+        b=createChannel("B", 3000);
+        long start=System.currentTimeMillis();
+        b.connect(CLUSTER);
+        long time=System.currentTimeMillis() - start;
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        Discovery ping=(Discovery)b.getProtocolStack().findProtocol(PING.class);
+        System.out.println("restart took " + time + " ms, cached coord responses: " + ping.getNumCachedCoordResponses());
+        assert ping.getNumCachedCoordResponses() == 1;
+        assert time < 3000 : "the join should not have waited for the discovery timeout";
+        assert a.getView().getMembers().get(0).equals(a.getAddress());
+    }
+
+    /** If the cached coordinator is gone, regular discovery is run */
+    public void testRestartWithoutCachedCoordinator() throws Exception {
+        a=createChannel("A", 1000);
+        a.connect(CLUSTER);
+        b=createChannel("B", 1000);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        Util.close(b, a);
+
+        b=createChannel("B", 1000);
+        b.connect(CLUSTER);
+        Discovery ping=(Discovery)b.getProtocolStack().findProtocol(PING.class);
+        assert ping.getNumCachedCoordResponses() == 0;
+        assert b.getView().size() == 1 && b.getView().getMembers().get(0).equals(b.getAddress());
+    }
+
+    /** The files of older versions (one per mapping) are read and compacted into the single cache file */
+    public void testCompactionOfOldFiles() throws Exception {
+        File dir=new File(ROOT, "A");
+        dir.mkdirs();
+        Address addr=Util.createRandomAddress("X");
+        DataOutputStream out=new DataOutputStream(new FileOutputStream(new File(dir, "X.node")));
+        new PDC.Mapping(addr, new IpAddress("127.0.0.1", 7800), "X").writeTo(out);
+        out.close();
+
+        a=createChannel("A", 500);
+        PDC pdc=(PDC)a.getProtocolStack().findProtocol(PDC.class);
+        assert pdc.printCache().contains("127.0.0.1");
+        a.connect(CLUSTER);
+        assert !new File(dir, "X.node").exists();
+        assert new File(dir, CLUSTER + ".pdc").exists();
+    }
+
+
+    protected static JChannel createChannel(String name, long discovery_timeout) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new PDC().setValue("cache_dir", ROOT + File.separator + name),
+          new PING().timeout(discovery_timeout).numInitialMembers(10).breakOnCoordResponse(false).useDiskCache(true),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().setValue("join_timeout", 1000L).setValue("print_local_addr", false)
+        }).name(name);
+    }
+
+    protected static void delete(File file) {
+        File[] files=file.listFiles();
+        if(files != null)
+            for(File f: files)
+                delete(f);
+        file.delete();
+    }
+}
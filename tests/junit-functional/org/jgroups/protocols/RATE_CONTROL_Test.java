@@ -0,0 +1,132 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Tuple;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the AIMD rate adjustment of {@link RATE_CONTROL}
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class RATE_CONTROL_Test {
+    protected static final Address B=Util.createRandomAddress("B");
+
+    public void testBackoff() throws Exception {
+        RATE_CONTROL rc=create(1000000, 1000);
+        send(rc, null, 100, 100);
+        xmitRequest(rc, 10);
+        rc.adjust();
+        System.out.println("rate=" + rc.getRate() + ", loss rate=" + rc.getLossRate() + "\n" + rc.printBackoffs());
+        assert rc.getRate() == 500000;
+        assert rc.getNumBackoffs() == 1;
+        assert rc.getLossRate() > 0;
+        assert rc.num_xmit_reqs_received.get() == 1;
+
+        // no loss and not limited: the rate stays the same
+        rc.adjust();
+        assert rc.getRate() == 500000;
+        assert rc.getNumIncreases() == 0;
+    }
+
+    /** A few missing messages below loss_threshold don't decrease the rate */
+    public void testLossBelowThreshold() throws Exception {
+        RATE_CONTROL rc=create(1000000, 1000);
+        rc.setValue("loss_threshold", 0.05);
+        send(rc, null, 100, 100);
+        xmitRequest(rc, 2);
+        rc.adjust();
+        assert rc.getRate() == 1000000 && rc.getNumBackoffs() == 0;
+    }
+
+    /** A message lost by all receivers counts once, not once per receiver */
+    public void testLossNotMultipliedByNumberOfReceivers() throws Exception {
+        RATE_CONTROL rc=create(1000000, 1000);
+        rc.setValue("loss_threshold", 0.05);
+        send(rc, null, 100, 100);
+        for(int i=0; i < 10; i++) // each of 10 receivers misses the same 3 messages
+            xmitRequest(rc, Util.createRandomAddress("R" + i), 3);
+        rc.adjust();
+        System.out.println("rate=" + rc.getRate() + ", loss rate=" + rc.getLossRate());
+        assert rc.getRate() == 1000000 && rc.getNumBackoffs() == 0;
+        assert rc.getLossRate() > 0.005 && rc.getLossRate() < 0.007 : "loss rate is " + rc.getLossRate();
+
+        // a single receiver missing many messages does decrease the rate
+        send(rc, null, 100, 100);
+        xmitRequest(rc, 3);
+        xmitRequest(rc, 4);
+        rc.adjust();
+        assert rc.getRate() == 500000 && rc.getNumBackoffs() == 1;
+    }
+
+    public void testMinRate() throws Exception {
+        RATE_CONTROL rc=create(1000000, 1000);
+        for(int i=0; i < 20; i++) {
+            xmitRequest(rc, 1);
+            rc.adjust();
+        }
+        assert rc.getRate() == 100000 : "rate is " + rc.getRate();
+        assert rc.getNumBackoffs() == 20;
+    }
+
+    /** A sender limited by the rate increases it additively, up to max_rate */
+    public void testAdditiveIncrease() throws Exception {
+        RATE_CONTROL rc=create(100000, 1000);
+        rc.setValue("max_rate", 150000L);
+        long start=System.currentTimeMillis();
+        send(rc, null, 10, 1000); // 10'000 bytes at 100'000 bytes/sec
+        long time=System.currentTimeMillis() - start;
+        System.out.println("sending took " + time + " ms");
+        assert time >= 50 : "sending should have been throttled, but took only " + time + " ms";
+        assert rc.limited;
+        rc.adjust();
+        assert rc.getRate() == 101000 && rc.getNumIncreases() == 1;
+
+        for(int i=0; i < 100; i++) {
+            rc.limited=true;
+            rc.adjust();
+        }
+        assert rc.getRate() == 150000;
+    }
+
+    public void testUnicastsNotThrottled() throws Exception {
+        RATE_CONTROL rc=create(100000, 1000);
+        long start=System.currentTimeMillis();
+        send(rc, B, 100, 1000);
+        long time=System.currentTimeMillis() - start;
+        assert time < 500 : "unicasts should not be throttled (took " + time + " ms)";
+        assert !rc.limited && rc.msgs_sent.get() == 0;
+    }
+
+
+    protected static RATE_CONTROL create(long rate, long increment) throws Exception {
+        RATE_CONTROL rc=(RATE_CONTROL)new RATE_CONTROL().setValue("initial_rate", rate).setValue("increment", increment);
+        rc.setDownProtocol(new Protocol() {
+            public Object down(Event evt) {return null;}
+        });
+        rc.setUpProtocol(new Protocol() {
+            public Object up(Event evt) {return null;}
+        });
+        rc.init();
+        return rc;
+    }
+
+    protected static void send(RATE_CONTROL rc, Address dest, int num_msgs, int size) {
+        for(int i=0; i < num_msgs; i++)
+            rc.down(new Event(Event.MSG, new Message(dest, null, new byte[size])));
+    }
+
+    protected static void xmitRequest(RATE_CONTROL rc, int missing) {
+        xmitRequest(rc, B, missing);
+    }
+
+    protected static void xmitRequest(RATE_CONTROL rc, Address requester, int missing) {
+        rc.up(new Event(Event.XMIT_REQ_RECEIVED, new Tuple<Address,Integer>(requester, missing)));
+    }
+}
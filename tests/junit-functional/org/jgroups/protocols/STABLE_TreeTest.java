@@ -0,0 +1,283 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.Digest;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.MutableDigest;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.TimeScheduler3;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests STABLE with tree_fanout > 0: digests are merged on their way up the tree to the coordinator, and the
+ * resulting STABILITY message is multicast, or sent down the tree
+ * @author Bela Ban
+ * @since 3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class STABLE_TreeTest {
+    protected static final int NUM=25;
+
+    protected final Map<Address,Member> cluster=new ConcurrentHashMap<Address,Member>();
+    protected final List<Member>        members=new ArrayList<Member>(NUM);
+    protected final List<Address>       addrs=new ArrayList<Address>(NUM);
+    protected TimeScheduler             timer;
+
+    @BeforeMethod
+    protected void setup() {
+        timer=new TimeScheduler3();
+        for(int i=0; i < NUM; i++)
+            addrs.add(Util.createRandomAddress(String.valueOf((char)('A' + i))));
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        for(Member mbr: members)
+            mbr.destroy();
+        members.clear();
+        cluster.clear();
+        addrs.clear();
+        timer.stop();
+    }
+
+
+    public void testTreeWithMulticast() throws Exception {
+        create(4, true);
+        runGC();
+        assert members.get(0).stable.getStabilityBytesSent() > 0;
+        for(int i=1; i < NUM; i++)
+            assert members.get(i).stable.getStabilitySent() == 0;
+    }
+
+    public void testTreeWithoutMulticast() throws Exception {
+        create(4, false);
+        runGC();
+        for(Member mbr: members) // inner nodes forward STABILITY to their children
+            assert (mbr.stable.getStabilitySent() > 0) == mbr.hasChildren();
+    }
+
+    public void testTreeReducesLoadOnCoordinator() throws Exception {
+        create(0, true);
+        runGC();
+        long flat=members.get(0).stable.getStableBytesReceived();
+        int flat_msgs=members.get(0).stable.getStableReceived();
+        destroy();
+
+        setup();
+        create(4, true);
+        runGC();
+        long tree=members.get(0).stable.getStableBytesReceived();
+        int tree_msgs=members.get(0).stable.getStableReceived();
+        System.out.println("coordinator received " + flat_msgs + " STABLE msgs (" + Util.printBytes(flat) +
+                             ") without tree, " + tree_msgs + " STABLE msgs (" + Util.printBytes(tree) + ") with tree");
+        assert tree_msgs == 4;
+        assert tree < flat;
+    }
+
+    /** The STABLE messages of the second round are sent as deltas to the STABILITY digest of the first round */
+    public void testDeltaDigests() throws Exception {
+        for(int fanout: new int[]{0, 4}) {
+            create(fanout, true);
+            runGC();
+            Member coord=members.get(0);
+            long full=coord.stable.getStableBytesReceived();
+            coord.stable.resetStats();
+            runGC();
+            long delta=coord.stable.getStableBytesReceived();
+            System.out.println("fanout=" + fanout + ": coordinator received " + Util.printBytes(full) +
+                                 " with full digests, " + Util.printBytes(delta) + " with delta digests");
+            assert delta < full / 2;
+            for(Member mbr: members)
+                assert mbr.stable.getDeltaDigestsSent() > 0 == (mbr.index > 0 || fanout == 0);
+            destroy();
+            setup();
+        }
+    }
+
+    /** A member which doesn't have the base drops the delta digest; the next STABLE message carries the full digest */
+    public void testFallbackToFullDigest() throws Exception {
+        create(0, true);
+        runGC();
+        Member coord=members.get(0);
+        coord.stable.down(new Event(Event.VIEW_CHANGE, new View(coord.addr, 2, new ArrayList<Address>(addrs))));
+        clearStableDigests();
+        for(Member mbr: members)
+            mbr.stable.gc();
+        Util.sleep(500);
+        assert coord.stable.getDeltaDigestsDropped() == NUM - 1 : "dropped: " + coord.stable.getDeltaDigestsDropped();
+        assert coord.nak.stable_digest == null;
+        runGC();
+    }
+
+    public void testSingleMember() throws Exception {
+        Member mbr=new Member(addrs.get(0), 4, true);
+        members.add(mbr);
+        cluster.put(mbr.addr, mbr);
+        mbr.start(new View(mbr.addr, 1, new ArrayList<Address>(addrs.subList(0, 1))));
+        mbr.stable.gc();
+        Digest d=mbr.nak.stable_digest; // the root without children passes its own digest down right away
+        assert d != null && d.size() == NUM : "digest: " + d;
+    }
+
+
+    /** Runs STABLE on all members and checks that everyone got the same (merged) stability digest */
+    protected void runGC() throws Exception {
+        clearStableDigests();
+        for(Member mbr: members)
+            mbr.stable.gc();
+
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(Member mbr: members)
+                if(mbr.nak.stable_digest == null)
+                    done=false;
+            if(done)
+                break;
+            Util.sleep(500);
+        }
+
+        for(Member mbr: members) {
+            Digest d=mbr.nak.stable_digest;
+            assert d != null : mbr.addr + " didn't get a STABLE event";
+            for(int i=0; i < NUM; i++) {
+                long[] seqnos=d.get(addrs.get(i));
+                // min of the highest delivered and max of the highest received seqnos of all members
+                assert seqnos[0] == 100 + i : mbr.addr + ": " + d;
+                assert seqnos[1] == 200 + i + NUM - 1 : mbr.addr + ": " + d;
+            }
+        }
+    }
+
+    protected void clearStableDigests() {
+        for(Member mbr: members)
+            mbr.nak.stable_digest=null;
+    }
+
+    protected void create(int fanout, boolean multicast) throws Exception {
+        for(Address addr: addrs) {
+            Member mbr=new Member(addr, fanout, multicast);
+            members.add(mbr);
+            cluster.put(addr, mbr);
+        }
+        View view=new View(addrs.get(0), 1, new ArrayList<Address>(addrs));
+        for(Member mbr: members)
+            mbr.start(view);
+    }
+
+
+    protected class Member {
+        protected final Address       addr;
+        protected final int           index;
+        protected final MockTransport transport;
+        protected final MockNak       nak;
+        protected final STABLE        stable;
+        protected final ProtocolStack stack;
+
+        public Member(Address addr, int fanout, boolean multicast) throws Exception {
+            this.addr=addr;
+            this.index=addrs.indexOf(addr);
+            transport=new MockTransport(multicast);
+            transport.setTimer(timer);
+            nak=new MockNak(this);
+            stable=(STABLE)new STABLE().setValue("tree_fanout", fanout).setValue("desired_avg_gossip", 0L)
+              .setValue("max_bytes", 0L).setValue("send_stable_msgs_to_coord_only", true).setValue("use_delta_digests", true);
+            stack=new ProtocolStack();
+            stack.addProtocols(transport, nak, stable, new Protocol() {
+                public Object up(Event evt)         {return null;}
+                public void   up(MessageBatch batch) {}
+            });
+            stack.init();
+        }
+
+        public boolean hasChildren() {return index * 4 + 1 < NUM;}
+
+        public void start(View view) throws Exception {
+            stable.start();
+            stable.down(new Event(Event.SET_LOCAL_ADDRESS, addr));
+            stable.down(new Event(Event.VIEW_CHANGE, view));
+        }
+
+        public void destroy() {
+            stable.stop();
+            stack.destroy();
+        }
+    }
+
+
+    /** Returns a digest for GET_DIGEST and records the digest of the STABLE event */
+    protected class MockNak extends Protocol {
+        protected final Member     mbr;
+        protected volatile Digest  stable_digest;
+
+        public MockNak(Member mbr) {this.mbr=mbr;}
+
+        public List<Integer> providedUpServices() {
+            List<Integer> retval=new ArrayList<Integer>(1);
+            retval.add(Event.GET_DIGEST);
+            return retval;
+        }
+
+        public Object down(Event evt) {
+            switch(evt.getType()) {
+                case Event.GET_DIGEST:
+                    MutableDigest digest=new MutableDigest(NUM);
+                    for(int i=0; i < NUM; i++)
+                        digest.add(addrs.get(i), 100 + i + mbr.index, 200 + i + mbr.index);
+                    return digest;
+                case Event.STABLE:
+                    stable_digest=(Digest)evt.getArg();
+                    return null;
+            }
+            return down_prot.down(evt);
+        }
+    }
+
+
+    /** Delivers messages to the STABLE protocol of the destination (or all members), bypassing the wire */
+    protected class MockTransport extends TP {
+        protected final boolean multicast;
+
+        public MockTransport(boolean multicast) {this.multicast=multicast;}
+
+        public void               init() throws Exception {}
+        public void               start() throws Exception {}
+        public void               stop() {}
+        public boolean            supportsMulticasting() {return multicast;}
+        public void               sendMulticast(byte[] data, int offset, int length) throws Exception {}
+        public void               sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {}
+        public String             getInfo() {return null;}
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.SET_LOCAL_ADDRESS)
+                local_addr=(Address)evt.getArg();
+            if(evt.getType() != Event.MSG)
+                return null;
+            Message msg=(Message)evt.getArg();
+            Address dest=msg.getDest();
+            msg.setSrc(local_addr);
+            if(dest == null) {
+                assert multicast;
+                for(Member mbr: cluster.values())
+                    mbr.stable.up(new Event(Event.MSG, msg.copy()));
+            }
+            else {
+                Member mbr=cluster.get(dest);
+                if(mbr != null)
+                    mbr.stable.up(new Event(Event.MSG, msg.copy()));
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Compressor;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests compression of entire datagrams in the transport (compress_bundles=true)
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class TP_BundleCompressionTest {
+    protected static final String CLUSTER="TP_BundleCompressionTest";
+    protected static final int    NUM=200;
+    protected JChannel a, b;
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+
+    public void testLZ() throws Exception {
+        _test("lz", "lz", false);
+    }
+
+    public void testDeflate() throws Exception {
+        _test("deflate", "deflate", false);
+    }
+
+    /** B compresses with a different codec, but can uncompress A's datagrams */
+    public void testDifferentCodecs() throws Exception {
+        _test("lz", "deflate", false);
+    }
+
+    /** A member which doesn't set compress_bundles drops compressed datagrams */
+    public void testReceiverWithoutCompression() throws Exception {
+        TP transport=new SHARED_LOOPBACK();
+        byte[] data=compressedBody(100, 100);
+        assert transport.uncompress(null, data, 0, data.length) == null;
+        assert transport.num_datagrams_dropped.get() == 1;
+        assert transport.num_datagrams_uncompressed.get() == 0;
+    }
+
+    /** A forged original length larger than the max bundle size is rejected before the buffer is allocated */
+    public void testOriginalLengthTooBig() throws Exception {
+        TP transport=(TP)new SHARED_LOOPBACK().setValue("compress_bundles", true);
+        byte[] data=compressedBody(Integer.MAX_VALUE, 100);
+        assert transport.uncompress(null, data, 0, data.length) == null;
+        data=compressedBody(transport.getMaxBundleSize() * 2, 100);
+        assert transport.uncompress(null, data, 0, data.length) == null;
+        assert transport.num_datagrams_dropped.get() == 2;
+    }
+
+    public void testCompressionAndEncryption() throws Exception {
+        _test("lz", "lz", true);
+    }
+
+
+    protected void _test(String codec_a, String codec_b, boolean encrypt) throws Exception {
+        a=createChannel("A", codec_a, encrypt);
+        b=createChannel("B", codec_b, encrypt);
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        MyReceiver receiver=new MyReceiver();
+        b.setReceiver(receiver);
+        TP ta=a.getProtocolStack().getTransport(), tb=b.getProtocolStack().getTransport();
+        ta.resetStats(); tb.resetStats();
+
+        for(int i=1; i <= NUM; i++) // small messages, which are only compressed as part of a bundle
+            a.send(null, "hello world from A, message #" + i);
+        a.send(new Message(null, null, new byte[5000]).setFlag(Message.Flag.DONT_BUNDLE));
+
+        receiver.waitFor(NUM + 1, 10000);
+        assert receiver.size() == NUM + 1 : "received " + receiver.size() + " messages";
+
+        System.out.println("A: compressed datagrams=" + ta.num_datagrams_compressed + ", ratio=" +
+                             ta.getBundleCompressionRatio() + ", avg time=" + ta.getAvgBundleCompressionTime() +
+                             " us; B: uncompressed datagrams=" + tb.num_datagrams_uncompressed + ", avg time=" +
+                             tb.getAvgBundleUncompressionTime() + " us");
+        assert ta.num_datagrams_compressed.get() > 0;
+        assert tb.num_datagrams_uncompressed.get() > 0;
+        assert ta.getBundleCompressionRatio() < 0.5;
+        assert tb.num_datagrams_dropped.get() == 0;
+        if(encrypt)
+            assert tb.num_datagrams_decrypted.get() > 0;
+    }
+
+
+    /** Creates | codec ID | original length | compressed data | */
+    protected static byte[] compressedBody(int original_length, int length) {
+        byte[] data=new byte[Global.BYTE_SIZE + Global.INT_SIZE + length];
+        data[0]=Compressor.LZ;
+        for(int i=0, shift=24; shift >= 0; i++, shift-=8)
+            data[1+i]=(byte)(original_length >>> shift);
+        return data;
+    }
+
+    protected static JChannel createChannel(String name, String codec, boolean encrypt) throws Exception {
+        SHARED_LOOPBACK transport=new SHARED_LOOPBACK();
+        if(codec != null)
+            transport.setValue("compress_bundles", true).setValue("bundle_compression_codec", codec);
+        if(encrypt)
+            transport.setValue("encrypt_bundles", true).setValue("bundle_encryption_secret", "secret");
+        return new JChannel(new Protocol[] {
+          transport,
+          new PING().setValue("timeout", 300),
+          new NAKACK2(),
+          new UNICAST3(),
+          new GMS()
+        }).name(name);
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Message> list=new ArrayList<Message>();
+
+        public void receive(Message msg) {
+            synchronized(list) {
+                list.add(msg);
+            }
+        }
+
+        public int size() {
+            synchronized(list) {
+                return list.size();
+            }
+        }
+
+        public void waitFor(int expected, long timeout) {
+            long target=System.currentTimeMillis() + timeout;
+            while(size() < expected && System.currentTimeMillis() < target)
+                Util.sleep(100);
+        }
+    }
+}
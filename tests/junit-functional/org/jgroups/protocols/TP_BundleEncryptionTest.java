@@ -0,0 +1,139 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.BundleCipher;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests encryption of entire datagrams in the transport (encrypt_bundles=true)
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class TP_BundleEncryptionTest {
+    protected static final String CLUSTER="TP_BundleEncryptionTest";
+    protected JChannel a, b;
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+
+    public void testEncryptedCluster() throws Exception {
+        a=createChannel("A", "secret");
+        b=createChannel("B", "secret");
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        MyReceiver receiver=new MyReceiver();
+        b.setReceiver(receiver);
+        for(int i=1; i <= 50; i++)
+            a.send(null, i); // bundled
+        for(int i=51; i <= 100; i++)
+            a.send(new Message(null, null, i).setFlag(Message.Flag.DONT_BUNDLE));
+
+        receiver.waitFor(100, 10000);
+        assert receiver.size() == 100 : "received " + receiver.size() + " messages";
+
+        TP ta=a.getProtocolStack().getTransport(), tb=b.getProtocolStack().getTransport();
+        System.out.println("A: encrypted=" + ta.num_datagrams_encrypted + ", B: decrypted=" + tb.num_datagrams_decrypted);
+        assert ta.num_datagrams_encrypted.get() > 0;
+        assert tb.num_datagrams_decrypted.get() > 0;
+        assert tb.num_datagrams_dropped.get() == 0;
+    }
+
+    /** Members with different keys cannot decrypt each other's datagrams, and therefore don't form a cluster */
+    public void testDifferentKeys() throws Exception {
+        a=createChannel("A", "secret");
+        b=createChannel("B", "another secret");
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        Util.sleep(1000);
+        assert a.getView().size() == 1 && b.getView().size() == 1;
+        TP ta=a.getProtocolStack().getTransport(), tb=b.getProtocolStack().getTransport();
+        System.out.println("A: dropped=" + ta.num_datagrams_dropped + ", decrypted=" + ta.num_datagrams_decrypted +
+                             "; B: dropped=" + tb.num_datagrams_dropped + ", decrypted=" + tb.num_datagrams_decrypted);
+        // discovery with SHARED_LOOPBACK doesn't send datagrams, but A cannot decrypt the JOIN request of B
+        assert ta.num_datagrams_dropped.get() > 0;
+    }
+
+    /** An encrypting member drops unencrypted datagrams, and vice versa */
+    public void testUnencryptedMember() throws Exception {
+        a=createChannel("A", "secret");
+        b=createChannel("B", null);
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        Util.sleep(1000);
+        assert a.getView().size() == 1 && b.getView().size() == 1;
+        TP ta=a.getProtocolStack().getTransport(), tb=b.getProtocolStack().getTransport();
+        System.out.println("A: dropped=" + ta.num_datagrams_dropped + "; B: dropped=" + tb.num_datagrams_dropped);
+        assert ta.num_datagrams_dropped.get() > 0; // the unencrypted JOIN request of B
+    }
+
+    /** The header (version and flags) is sent in the clear, but a modified header is detected */
+    public void testTamperedDatagram() throws Exception {
+        BundleCipher cipher=new BundleCipher(BundleCipher.createKey("secret", 128));
+        byte[] datagram="hdrhello world".getBytes();
+        byte[] encrypted=cipher.encrypt(datagram, 0, datagram.length, 3);
+        assert encrypted.length == datagram.length + BundleCipher.overhead();
+        assert Arrays.equals(Arrays.copyOf(encrypted, 3), "hdr".getBytes());
+        assert new String(cipher.decrypt(encrypted, 0, encrypted.length, 3)).equals("hello world");
+
+        for(int index: new int[]{1, 5, encrypted.length -1}) {
+            byte[] tmp=encrypted.clone();
+            tmp[index]^=1;
+            try {
+                cipher.decrypt(tmp, 0, tmp.length, 3);
+                assert false : "modification at index " + index + " should have been detected";
+            }
+            catch(Exception ex) {
+                System.out.println("caught exception as expected: " + ex);
+            }
+        }
+    }
+
+
+    protected static JChannel createChannel(String name, String secret) throws Exception {
+        SHARED_LOOPBACK transport=new SHARED_LOOPBACK();
+        if(secret != null)
+            transport.setValue("encrypt_bundles", true).setValue("bundle_encryption_secret", secret);
+        return new JChannel(new Protocol[] {
+          transport,
+          new PING().setValue("timeout", 300),
+          new NAKACK2(),
+          new UNICAST3(),
+          new GMS().setValue("join_timeout", 500L).setValue("max_join_attempts", 1L)
+        }).name(name);
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Integer> list=new ArrayList<Integer>();
+
+        public void receive(Message msg) {
+            synchronized(list) {
+                list.add((Integer)msg.getObject());
+            }
+        }
+
+        public int size() {
+            synchronized(list) {
+                return list.size();
+            }
+        }
+
+        public void waitFor(int expected, long timeout) {
+            long target=System.currentTimeMillis() + timeout;
+            while(size() < expected && System.currentTimeMillis() < target)
+                Util.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests piggybacking of acks on data messages in UNICAST3
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class UNICAST3_PiggybackAckTest {
+    protected JChannel a, b;
+    protected UNICAST3 ua, ub;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A");
+        b=createChannel("B");
+        a.connect("UNICAST3_PiggybackAckTest");
+        b.connect("UNICAST3_PiggybackAckTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        ua=(UNICAST3)a.getProtocolStack().findProtocol(UNICAST3.class);
+        ub=(UNICAST3)b.getProtocolStack().findProtocol(UNICAST3.class);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+
+    /** B replies to every message from A, so B's acks are piggybacked on the replies */
+    public void testAckPiggybackedOnReply() throws Exception {
+        final Address addr_a=a.getAddress();
+        b.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                try {
+                    b.send(addr_a, "reply-" + msg.getObject());
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        ua.resetStats(); ub.resetStats();
+
+        for(int i=1; i <= 10; i++)
+            a.send(b.getAddress(), i);
+
+        waitForNoUnackedMessages(ua, 5000);
+        System.out.println("B: acks sent=" + ub.getNumAcksSent() + ", piggybacked=" + ub.getNumAcksPiggybacked());
+        assert ua.getNumUnackedMessages() == 0;
+        assert ub.getNumAcksPiggybacked() > 0;
+    }
+
+    /** Without reverse traffic, the ack is sent separately after ack_deadline */
+    public void testAckSentAfterDeadline() throws Exception {
+        ua.resetStats(); ub.resetStats();
+        a.send(b.getAddress(), "hello");
+        waitForNoUnackedMessages(ua, 5000);
+        assert ua.getNumUnackedMessages() == 0;
+        // num_acks_sent is incremented after the ack has been sent (and possibly received by A)
+        for(int i=0; i < 20 && ub.getNumAcksSent() == 0; i++)
+            Util.sleep(50);
+        assert ub.getNumAcksPiggybacked() == 0;
+        assert ub.getNumAcksSent() > 0;
+    }
+
+
+    protected static void waitForNoUnackedMessages(UNICAST3 unicast, long timeout) {
+        long target=System.currentTimeMillis() + timeout;
+        while(unicast.getNumUnackedMessages() > 0 && System.currentTimeMillis() < target)
+            Util.sleep(50);
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new Protocol[] {
+          new SHARED_LOOPBACK(),
+          new PING().setValue("timeout", 300),
+          new NAKACK2(),
+          new UNICAST3().setValue("piggyback_acks", true).setValue("ack_deadline", 200L)
+            .setValue("xmit_interval", 60000L), // make sure acks are not sent by the retransmit task
+          new GMS()
+        }).name(name);
+    }
+}
@@ -1,16 +1,16 @@
 package org.jgroups.protocols;
 
-import org.jgroups.Address;
-import org.jgroups.Event;
-import org.jgroups.Global;
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.DefaultThreadFactory;
 import org.jgroups.util.ThreadFactory;
 import org.jgroups.util.Util;
 import org.testng.annotations.Test;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
  * Tests https://issues.jboss.org/browse/JGRP-1429
@@ -101,18 +101,116 @@ public class VERIFY_SUSPECT_Test {
     }
 
 
+    /** Suspects received in a burst are verified together and passed up in a single SUSPECT event */
+    public void testBundling() {
+        VERIFY_SUSPECT ver=new VERIFY_SUSPECT();
+        ProtImpl impl=new ProtImpl();
+        ver.setUpProtocol(impl);
+        ver.setDownProtocol(new NoopProtocol());
+
+        start=System.currentTimeMillis();
+        List<Address> mbrs=new ArrayList<Address>();
+        for(int i=0; i < 10; i++) {
+            Address addr=Util.createRandomAddress(String.valueOf(i));
+            mbrs.add(addr);
+            ver.up(new Event(Event.SUSPECT, addr));
+        }
+        ver.unsuspect(mbrs.get(0));
+        ver.unsuspect(mbrs.get(1));
+
+        Map<Address,Long> map=impl.getMap();
+        for(int i=0; i < 20; i++) {
+            if(map.size() == 8)
+                break;
+            Util.sleep(500);
+        }
+        System.out.println("map = " + map);
+        assert map.size() == 8 && map.keySet().containsAll(mbrs.subList(2, 10));
+        assert impl.getNumEvents() == 1 : "expected a single SUSPECT event, but got " + impl.getNumEvents();
+        long timeout=map.get(mbrs.get(2));
+        assert timeout >= 2000 && timeout < 2500;
+    }
+
+    /** A SUSPECT event with multiple suspects leads to a single view excluding all of them */
+    public void testSingleViewForMultipleSuspects() throws Exception {
+        final int NUM=6;
+        JChannel[] channels=new JChannel[NUM];
+        try {
+            for(int i=0; i < NUM; i++) {
+                channels[i]=new JChannel(new Protocol[] {
+                  new SHARED_LOOPBACK(),
+                  new DISCARD(),
+                  new PING().timeout(500).numInitialMembers(NUM),
+                  new VERIFY_SUSPECT().setValue("timeout", 500L),
+                  new NAKACK2(),
+                  new UNICAST3(),
+                  new STABLE(),
+                  new GMS().setValue("join_timeout", 1000L).setValue("print_local_addr", false)
+                    .setValue("view_ack_collection_timeout", 500L)
+                }).name(String.valueOf((char)('A' + i)));
+                channels[i].connect("VERIFY_SUSPECT_Test");
+            }
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+            JChannel a=channels[0];
+            final List<View> views=new ArrayList<View>();
+            a.setReceiver(new ReceiverAdapter() {
+                public void viewAccepted(View view) {
+                    synchronized(views) {views.add(view);}
+                }
+            });
+
+            List<Address> suspects=new ArrayList<Address>();
+            for(int i=NUM/2; i < NUM; i++) {
+                ((DISCARD)channels[i].getProtocolStack().findProtocol(DISCARD.class)).setDiscardAll(true);
+                suspects.add(channels[i].getAddress());
+            }
+            VERIFY_SUSPECT ver=(VERIFY_SUSPECT)a.getProtocolStack().findProtocol(VERIFY_SUSPECT.class);
+            for(Address suspect: suspects) // as a failure detector would do it
+                ver.up(new Event(Event.SUSPECT, suspect));
+
+            for(int i=0; i < 20; i++) {
+                if(a.getView().size() == NUM/2)
+                    break;
+                Util.sleep(500);
+            }
+            Util.sleep(1000); // wait for additional (unexpected) views
+            System.out.println("views of A: " + views);
+            assert a.getView().size() == NUM/2;
+            assert views.size() == 1 : "expected a single view, but got " + views;
+            assert ver.num_suspect_events == 1 && ver.num_suspected_mbrs == suspects.size();
+        }
+        finally {
+            for(int i=NUM-1; i >= 0; i--)
+                Util.close(channels[i]);
+        }
+    }
+
+
     protected class ProtImpl extends Protocol {
         protected final Map<Address,Long> map=new HashMap<Address,Long>();
+        protected int                     num_events;
 
         public Map<Address,Long> getMap() {
             return map;
         }
 
+        public int getNumEvents() {
+            return num_events;
+        }
+
         public Object up(Event evt) {
             if(evt.getType() == Event.SUSPECT) {
-                Address suspect=(Address)evt.getArg();
+                Object arg=evt.getArg();
+                Collection<Address> suspects=new ArrayList<Address>();
+                if(arg instanceof Address)
+                    suspects.add((Address)arg);
+                else if(arg instanceof Collection<?>)
+                    for(Object obj: (Collection<?>)arg)
+                        suspects.add((Address)obj);
                 long diff=System.currentTimeMillis() - start;
-                map.put(suspect, diff);
+                num_events++;
+                for(Address suspect: suspects)
+                    map.put(suspect, diff);
                 System.out.println("[" + diff + "] evt = " + evt);
             }
             return null;
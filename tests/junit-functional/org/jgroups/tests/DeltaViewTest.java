@@ -0,0 +1,68 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests {@link DeltaView}
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class DeltaViewTest {
+    protected static final Address a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B"),
+      c=Util.createRandomAddress("C"), d=Util.createRandomAddress("D"), e=Util.createRandomAddress("E");
+
+
+    public void testCreate() throws Exception {
+        View v1=new View(a, 1, Arrays.asList(a, b, c, d));
+        View v2=new View(a, 2, Arrays.asList(a, c, d, e));
+        DeltaView delta=DeltaView.create(v1, v2);
+        System.out.println("delta = " + delta);
+        assert delta != null;
+        assert delta.getViewId().equals(v2.getViewId()) && delta.getRefViewId().equals(v1.getViewId());
+        assert delta.getLeftMembers().equals(Arrays.asList(b));
+        assert delta.getNewMembers().equals(Arrays.asList(e));
+
+        View view=delta.createView(v1);
+        assert view.getViewId().equals(v2.getViewId());
+        assert view.getMembers().equals(v2.getMembers());
+    }
+
+    public void testSerialization() throws Exception {
+        View v1=new View(a, 1, Arrays.asList(a, b, c));
+        View v2=new View(b, 2, Arrays.asList(b, c, d, e));
+        DeltaView delta=DeltaView.create(v1, v2);
+        byte[] buf=Util.streamableToByteBuffer(delta);
+        assert buf.length == delta.serializedSize();
+        DeltaView delta2=(DeltaView)Util.streamableFromByteBuffer(DeltaView.class, buf);
+        System.out.println("delta2 = " + delta2);
+        assert delta2.getViewId().equals(delta.getViewId()) && delta2.getRefViewId().equals(delta.getRefViewId());
+        assert delta2.getLeftMembers().equals(delta.getLeftMembers());
+        assert delta2.getNewMembers().equals(delta.getNewMembers());
+        assert delta2.createView(v1).getMembers().equals(v2.getMembers());
+        assert delta.serializedSize() < v2.serializedSize() || v2.size() < 5;
+    }
+
+    /** The new view can only be created from the reference view */
+    public void testWrongReferenceView() {
+        View v1=new View(a, 1, Arrays.asList(a, b));
+        View v2=new View(a, 2, Arrays.asList(a, b, c));
+        View v3=new View(a, 3, Arrays.asList(a, b, c, d));
+        DeltaView delta=DeltaView.create(v2, v3);
+        assert delta.createView(v1) == null;
+        assert delta.createView(null) == null;
+        assert delta.createView(v2).getMembers().equals(v3.getMembers());
+    }
+
+    /** A new view whose members are not the existing members (in the same order) plus the new ones cannot be a delta */
+    public void testReorderedMembers() {
+        View v1=new View(a, 1, Arrays.asList(a, b, c));
+        View v2=new View(a, 2, Arrays.asList(a, c, b, d));
+        assert DeltaView.create(v1, v2) == null;
+        assert DeltaView.create(null, v2) == null;
+    }
+}
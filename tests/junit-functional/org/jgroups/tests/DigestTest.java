@@ -558,5 +558,52 @@ public class DigestTest {
     }
 
 
+    public void testDelta() throws Exception {
+        MutableDigest base=new MutableDigest(d);
+        base.setHighestDeliveredAndSeenSeqnos(a1, 490, 495); // lower than d
+        base.setHighestDeliveredAndSeenSeqnos(a3, 30, 40);   // higher than d
+
+        ByteArrayOutputStream outstream=new ByteArrayOutputStream();
+        DataOutputStream dos=new DataOutputStream(outstream);
+        d.writeDeltaTo(base, dos);
+        dos.close();
+        byte[] buf=outstream.toByteArray();
+        System.out.println("full digest: " + d.serializedSize() + " bytes, delta: " + buf.length + " bytes");
+        assert buf.length < d.serializedSize();
+
+        Digest tmp=new Digest();
+        tmp.readDeltaFrom(base, new DataInputStream(new ByteArrayInputStream(buf)));
+        Assert.assertEquals(tmp, d);
+    }
+
+    public void testDeltaWithDifferentOrder() throws Exception {
+        Map<Address,long[]> map=new java.util.LinkedHashMap<Address,long[]>();
+        map.put(a3, new long[]{20, 20});
+        map.put(a2, new long[]{26, 26});
+        map.put(a1, new long[]{500, 501});
+        Digest base=new Digest(map);
+
+        ByteArrayOutputStream outstream=new ByteArrayOutputStream();
+        d.writeDeltaTo(base, new DataOutputStream(outstream));
+        Digest tmp=new Digest();
+        tmp.readDeltaFrom(base, new DataInputStream(new ByteArrayInputStream(outstream.toByteArray())));
+        Assert.assertEquals(tmp, d);
+    }
+
+    @Test(expectedExceptions=IllegalArgumentException.class)
+    public void testDeltaWithDifferentSenders() throws Exception {
+        Digest base=new Digest(a1, 5, 5);
+        d.writeDeltaTo(base, new DataOutputStream(new ByteArrayOutputStream()));
+    }
+
+    public void testChecksum() {
+        d2=d.copy();
+        assert d.checksum() == d2.checksum();
+        md=new MutableDigest(d);
+        md.setHighestDeliveredAndSeenSeqnos(a2, 27, 27);
+        assert d.checksum() != md.checksum();
+    }
+
+
 
 }
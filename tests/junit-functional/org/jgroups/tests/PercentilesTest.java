@@ -0,0 +1,46 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.Percentiles;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link Percentiles}
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class PercentilesTest {
+
+    public void testEmpty() {
+        Percentiles p=new Percentiles(10);
+        assert p.count() == 0;
+        assert p.percentile(50) == -1;
+        assert p.toString().equals("n/a");
+    }
+
+    public void testPercentiles() {
+        Percentiles p=new Percentiles(100);
+        for(int i=100; i >= 1; i--)
+            p.add(i);
+        System.out.println("p = " + p);
+        assert p.count() == 100;
+        assert p.percentile(0) == 1;
+        assert p.percentile(50) == 50;
+        assert p.percentile(90) == 90;
+        assert p.percentile(99) == 99;
+        assert p.percentile(100) == 100;
+    }
+
+    /** Only the last N samples are kept */
+    public void testOverwrite() {
+        Percentiles p=new Percentiles(10);
+        for(int i=1; i <= 25; i++)
+            p.add(i);
+        assert p.count() == 25;
+        assert p.percentile(0) == 16;
+        assert p.percentile(100) == 25;
+        p.clear();
+        assert p.count() == 0 && p.percentile(50) == -1;
+    }
+}
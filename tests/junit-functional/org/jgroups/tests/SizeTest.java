@@ -313,6 +313,9 @@ public class SizeTest {
 
         hdr=new STABLE.StableHeader(STABLE.StableHeader.STABILITY, null);
         _testSize(hdr);
+
+        hdr=new STABLE.StableHeader(STABLE.StableHeader.STABLE_GOSSIP_DELTA, 322649L, new byte[]{1, 2, 3});
+        _testSize(hdr);
     }
 
 
@@ -571,12 +574,23 @@ public class SizeTest {
     public static void testFragHeader() throws Exception {
         FragHeader hdr=new FragHeader(322649, 1, 10);
         _testSize(hdr);
+        hdr=new ExtendedFragHeader(322649, 1, 10, 100000, 20000);
+        _testSize(hdr);
+        hdr=FragHeader.createStreamHeader(322649, 5, -1, true);
+        _testSize(hdr);
     }
 
 
     public static void testCompressHeader() throws Exception {
         COMPRESS.CompressHeader hdr=new COMPRESS.CompressHeader(2002);
         _testSize(hdr);
+        assert hdr.size() == Global.INT_SIZE; // same format as in previous versions
+
+        hdr=COMPRESS.CompressHeader.create((byte)1, 322649, 2002);
+        assert hdr instanceof COMPRESS.ExtendedCompressHeader;
+        _testSize(hdr);
+        hdr=COMPRESS.CompressHeader.createDictionaryHeader(COMPRESS.CompressHeader.GET_DICT, 322649);
+        _testSize(hdr);
     }
 
 
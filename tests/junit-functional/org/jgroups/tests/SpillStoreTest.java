@@ -0,0 +1,94 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.util.SpillStore;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+/**
+ * Tests {@link org.jgroups.util.SpillStore}
+ * @author Bela Ban
+ * @since  3.4
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class SpillStoreTest {
+
+    public static void testAddAndGet() throws Exception {
+        SpillStore store=new SpillStore(1024);
+        for(int i=1; i <= 5; i++)
+            assert store.add(i, createMessage(i));
+        System.out.println("store = " + store);
+        assert store.size() == 5;
+        for(int i=1; i <= 5; i++) {
+            Message msg=store.get(i);
+            assert msg != null;
+            assert msg.getObject().equals(i);
+        }
+        assert store.get(6) == null;
+        assert store.getNumGets() == 5;
+    }
+
+    public static void testAddOutOfOrder() throws Exception {
+        SpillStore store=new SpillStore(1024);
+        assert store.add(5, createMessage(5));
+        assert !store.add(3, createMessage(3));
+        assert !store.add(5, createMessage(5));
+        assert store.size() == 1;
+    }
+
+    public static void testPurge() throws Exception {
+        SpillStore store=new SpillStore(1024);
+        for(int i=1; i <= 10; i++)
+            store.add(i, createMessage(i));
+        long used=store.bytesUsed();
+        int purged=store.purge(4);
+        System.out.println("store = " + store);
+        assert purged == 4;
+        assert store.size() == 6;
+        assert store.bytesUsed() < used;
+        assert store.get(4) == null;
+        assert store.get(5).getObject().equals(5);
+
+        store.purge(10);
+        assert store.size() == 0;
+        assert store.bytesUsed() == 0;
+    }
+
+    public static void testFullAndWrapAround() throws Exception {
+        int size=Util.streamableToByteBuffer(createMessage(1)).length;
+        SpillStore store=new SpillStore(size * 4 + size / 2);
+        for(int i=1; i <= 4; i++)
+            assert store.add(i, createMessage(i));
+        assert !store.add(5, createMessage(5));
+        assert store.getNumRejected() == 1;
+
+        store.purge(2); // frees space at the head; the next 2 messages wrap around the end of the ring
+        assert store.add(5, createMessage(5));
+        assert store.add(6, createMessage(6));
+        System.out.println("store = " + store);
+        for(int i=3; i <= 6; i++)
+            assert store.get(i).getObject().equals(i);
+    }
+
+    public static void testMemoryMappedFile() throws Exception {
+        File file=File.createTempFile("spill", ".dat");
+        file.deleteOnExit();
+        SpillStore store=new SpillStore(1024, file.getAbsolutePath());
+        try {
+            for(int i=1; i <= 5; i++)
+                assert store.add(i, createMessage(i));
+            for(int i=1; i <= 5; i++)
+                assert store.get(i).getObject().equals(i);
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    protected static Message createMessage(int num) {
+        return new Message(null, Util.createRandomAddress("A"), num);
+    }
+}
@@ -1052,6 +1052,36 @@ public class TableTest {
     }
 
 
+    public void testEvict() {
+        Table<Integer> table=new Table<Integer>(3, 10, 0);
+        for(int i=1; i <= 30; i++)
+            table.add(i, i);
+        table.removeMany(false, 20); // hd=20
+        final List<Integer> evicted=new ArrayList<Integer>();
+        long highest=table.evict(1, 25, new Table.Visitor<Integer>() {
+            public boolean visit(long seqno, Integer element, int row, int column) {
+                return element < 15 && evicted.add(element);
+            }
+        });
+        System.out.println("table = " + table + ", evicted: " + evicted);
+        assert highest == 14;
+        assert evicted.size() == 14;
+        assertIndices(table, 0, 20, 30);
+        for(int i=1; i <= 14; i++)
+            assert table.get(i) == null;
+        for(int i=15; i <= 30; i++)
+            assert table.get(i) == i;
+
+        // only delivered elements can be evicted
+        highest=table.evict(15, 30, new Table.Visitor<Integer>() {
+            public boolean visit(long seqno, Integer element, int row, int column) {return true;}
+        });
+        assert highest == 20;
+        assert table.get(20) == null && table.get(21) == 21;
+        assert table.size() == 10;
+    }
+
+
     public void testPurgeForce() {
         Table<Integer> table=new Table<Integer>(3, 10, 0);
         for(int i=1; i <= 30; i++)
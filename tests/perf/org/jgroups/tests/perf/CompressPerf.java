@@ -0,0 +1,142 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.Address;
+import org.jgroups.View;
+import org.jgroups.util.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures compression and uncompression throughput (MB/s) and the compression ratio of the codecs available to
+ * COMPRESS, for different payloads
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class CompressPerf {
+    protected int    size=1000;
+    protected long   time=2000; // ms per codec and payload
+    protected String codecs="lz,deflate:1,deflate:6,deflate:9";
+
+
+    public void start() throws Exception {
+        Map<String,byte[]> payloads=createPayloads(size);
+        System.out.println("size=" + Util.printBytes(size) + ", time=" + time + " ms per test\n");
+        System.out.println(String.format("%-12s %-12s %12s %12s %8s", "payload", "codec", "compress", "uncompress", "ratio"));
+        for(Map.Entry<String,byte[]> entry: payloads.entrySet()) {
+            for(String name: codecs.split(",")) {
+                Compressor codec=create(name);
+                try {
+                    run(entry.getKey(), name, codec, entry.getValue());
+                }
+                finally {
+                    codec.destroy();
+                }
+            }
+        }
+    }
+
+    protected void run(String payload_name, String codec_name, Compressor codec, byte[] payload) throws Exception {
+        byte[] compressed=new byte[LZCompressor.maxCompressedLength(payload.length) + 100];
+        byte[] uncompressed=new byte[payload.length];
+        int compressed_size=codec.compress(payload, 0, payload.length, compressed, 0, compressed.length);
+
+        long bytes=0, start=System.nanoTime(), end=start + time * 1000000L, now;
+        while((now=System.nanoTime()) < end) {
+            codec.compress(payload, 0, payload.length, compressed, 0, compressed.length);
+            bytes+=payload.length;
+        }
+        double compress_mb=bytes / ((now - start) / 1000.0) ; // bytes/us == MB/s
+
+        bytes=0; start=System.nanoTime(); end=start + time * 1000000L;
+        while((now=System.nanoTime()) < end) {
+            codec.uncompress(compressed, 0, compressed_size, uncompressed, 0, payload.length);
+            bytes+=payload.length;
+        }
+        double uncompress_mb=bytes / ((now - start) / 1000.0);
+        System.out.println(String.format("%-12s %-12s %7.0f MB/s %7.0f MB/s %8.2f", payload_name, codec_name,
+                                         compress_mb, uncompress_mb, compressed_size / (double)payload.length));
+    }
+
+    /** Creates a codec from "lz" or "deflate:level" */
+    protected static Compressor create(String name) throws Exception {
+        Compressor codec;
+        if(name.startsWith("deflate"))
+            codec=new DeflateCompressor(name.contains(":")? Integer.parseInt(name.substring(name.indexOf(':') + 1)) : 9, 1);
+        else if(name.equals("lz"))
+            codec=new LZCompressor();
+        else
+            codec=(Compressor)Util.loadClass(name, CompressPerf.class).newInstance();
+        codec.init();
+        return codec;
+    }
+
+    /** Payloads: serialized objects, a streamable view, text and random bytes */
+    protected static Map<String,byte[]> createPayloads(int size) throws Exception {
+        Map<String,byte[]> retval=new LinkedHashMap<String,byte[]>();
+        Random random=new Random(1);
+
+        List<Object> objects=new ArrayList<Object>();
+        byte[] tmp;
+        do {
+            Map<String,Object> map=new HashMap<String,Object>();
+            map.put("id", random.nextLong());
+            map.put("name", "name-" + random.nextInt(1000));
+            map.put("addr", Util.createRandomAddress());
+            objects.add(map);
+            tmp=Util.objectToByteBuffer(objects);
+        }
+        while(tmp.length < size);
+        retval.put("serialized", Util.objectToByteBuffer(objects));
+
+        List<Address> mbrs=new ArrayList<Address>();
+        do {
+            mbrs.add(Util.createRandomAddress("member-" + mbrs.size()));
+            tmp=Util.streamableToByteBuffer(new View(mbrs.get(0), 1, mbrs));
+        }
+        while(tmp.length < size);
+        retval.put("streamable", tmp);
+
+        StringBuilder sb=new StringBuilder();
+        String[] words={"the", "cluster", "member", "sends", "a", "message", "to", "all", "members", "of"};
+        while(sb.length() < size)
+            sb.append(words[random.nextInt(words.length)]).append(' ');
+        retval.put("text", sb.toString().getBytes());
+
+        tmp=new byte[size];
+        random.nextBytes(tmp);
+        retval.put("random", tmp);
+        return retval;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        CompressPerf test=new CompressPerf();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-size")) {
+                test.size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-time")) {
+                test.time=Long.parseLong(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-codecs")) {
+                test.codecs=args[++i];
+                continue;
+            }
+            help();
+            return;
+        }
+        test.start();
+    }
+
+    protected static void help() {
+        System.out.println("CompressPerf [-size <payload size>] [-time <ms per test>] " +
+                             "[-codecs <comma-separated list, e.g. lz,deflate:1,deflate:9,com.acme.MyCodec>]");
+    }
+}
@@ -0,0 +1,191 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.*;
+import org.jgroups.protocols.ENCRYPT;
+import org.jgroups.protocols.TP;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the encryption and decryption throughput of ENCRYPT with multiple threads, without any network. Every
+ * sender thread encrypts its messages; the encrypted messages are then decrypted by the same number of threads, as
+ * single messages or as message batches.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class EncryptPerf {
+    protected static final Address A=Util.createRandomAddress("A");
+
+    protected int     num_threads=8, num_msgs=100000, msg_size=1000, batch_size=100;
+    protected String  algorithm="AES";
+
+    protected ENCRYPT           encrypt;
+    protected ProtocolStack     stack;
+    protected CaptureTransport  transport;
+    protected final AtomicInteger received=new AtomicInteger(0);
+
+
+    public void start() throws Exception {
+        encrypt=(ENCRYPT)new ENCRYPT().setValue("symAlgorithm", algorithm);
+        transport=new CaptureTransport(num_msgs);
+        stack=new ProtocolStack();
+        stack.addProtocols(transport, encrypt, new Protocol() {
+            public Object up(Event evt) {
+                if(evt.getType() == Event.MSG)
+                    received.incrementAndGet();
+                return null;
+            }
+
+            public void up(MessageBatch batch) {
+                received.addAndGet(batch.size());
+            }
+        });
+        stack.init();
+        encrypt.down(new Event(Event.SET_LOCAL_ADDRESS, A));
+        encrypt.up(new Event(Event.VIEW_CHANGE, new View(A, 1, Arrays.asList(A)))); // we're the key server
+
+        try {
+            System.out.println("algorithm=" + algorithm + ", threads=" + num_threads + ", msgs=" + num_msgs +
+                                 ", size=" + Util.printBytes(msg_size) + ", batch_size=" + batch_size);
+            final byte[] payload=new byte[msg_size];
+            final AtomicInteger counter=new AtomicInteger(0);
+
+            long time=run(new Runnable() {
+                public void run() {
+                    while(counter.incrementAndGet() <= num_msgs)
+                        encrypt.down(new Event(Event.MSG, new Message(null, A, payload)));
+                }
+            });
+            print("encryption", time);
+
+            counter.set(0);
+            time=run(new Runnable() {
+                public void run() {
+                    int index;
+                    while((index=counter.getAndIncrement()) < num_msgs)
+                        encrypt.up(new Event(Event.MSG, transport.sent[index]));
+                }
+            });
+            print("decryption", time);
+
+            if(batch_size > 0) {
+                counter.set(0);
+                time=run(new Runnable() {
+                    public void run() {
+                        int index;
+                        while((index=counter.getAndAdd(batch_size)) < num_msgs) {
+                            int num=Math.min(batch_size, num_msgs - index);
+                            MessageBatch batch=new MessageBatch(null, A, null, true, Arrays.asList(transport.sent).subList(index, index+num));
+                            encrypt.up(batch);
+                        }
+                    }
+                });
+                print("batch decryption", time);
+            }
+        }
+        finally {
+            stack.destroy();
+            transport.pool.shutdownNow();
+        }
+    }
+
+    /** Runs task with num_threads threads and returns the time (ns) until all threads are done */
+    protected long run(Runnable task) throws Exception {
+        received.set(0);
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[num_threads];
+        for(int i=0; i < threads.length; i++) {
+            final Runnable r=task;
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        r.run();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long start=System.nanoTime();
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join();
+        return System.nanoTime() - start;
+    }
+
+    protected void print(String name, long time_ns) {
+        double secs=time_ns / 1000000000.0, msgs_sec=num_msgs / secs;
+        System.out.println(String.format("%-17s %,10.0f msgs/sec, %s/sec (%d ms)", name + ":", msgs_sec,
+                                         Util.printBytes(msgs_sec * msg_size), time_ns / 1000000));
+    }
+
+
+    /** Stores the encrypted messages and provides an OOB thread pool for the decryption of batches */
+    protected static class CaptureTransport extends TP {
+        protected final Message[]       sent;
+        protected final AtomicInteger   index=new AtomicInteger(0);
+        protected final ExecutorService pool=Executors.newCachedThreadPool();
+
+        public CaptureTransport(int num_msgs) {sent=new Message[num_msgs];}
+
+        public void               init() throws Exception {setOOBThreadPool(pool);}
+        public void               start() throws Exception {}
+        public void               stop() {}
+        public boolean            supportsMulticasting() {return true;}
+        public void               sendMulticast(byte[] data, int offset, int length) throws Exception {}
+        public void               sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {}
+        public String             getInfo() {return null;}
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG)
+                sent[index.getAndIncrement()]=(Message)evt.getArg();
+            return null;
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        EncryptPerf test=new EncryptPerf();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-threads")) {
+                test.num_threads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-num")) {
+                test.num_msgs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-size")) {
+                test.msg_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-batch_size")) {
+                test.batch_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-algorithm")) {
+                test.algorithm=args[++i];
+                continue;
+            }
+            help();
+            return;
+        }
+        test.start();
+    }
+
+    protected static void help() {
+        System.out.println("EncryptPerf [-threads <num threads>] [-num <num msgs>] [-size <msg size>] " +
+                             "[-batch_size <msgs per batch, 0 disables batches>] [-algorithm <e.g. AES/GCM/NoPadding>]");
+    }
+}
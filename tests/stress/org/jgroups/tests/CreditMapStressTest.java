@@ -0,0 +1,155 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.util.CreditMap;
+import org.jgroups.util.Util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of {@link CreditMap#decrement(long,long)} with an increasing number of sender threads. A
+ * replenisher thread per member plays the role of a receiver sending credits back. At the end, the number of bytes
+ * sent is checked against the credits that were available.
+ * @author Bela Ban
+ * @since  3.4
+ */
+public class CreditMapStressTest {
+    static int  NUM_MEMBERS=4;
+    static int  MAX_THREADS=64;
+    static int  NUM_MSGS=2000000;
+    static long MAX_CREDITS=2000000;
+    static int  MSG_SIZE=1000;
+
+    public static void main(String[] args) throws Exception {
+        for(int i=0; i < args.length; i++) {
+            if(args[i].startsWith("-h")) {
+                System.out.println("CreditMapStressTest [-num messages] [-threads <max number of sender threads>] " +
+                                     "[-members <number of members>] [-size <message size>]");
+                return;
+            }
+            if(args[i].equals("-num")) {
+                NUM_MSGS=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-threads")) {
+                MAX_THREADS=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-members")) {
+                NUM_MEMBERS=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-size")) {
+                MSG_SIZE=Integer.parseInt(args[++i]);
+            }
+        }
+
+        for(int num_threads=1; num_threads <= MAX_THREADS; num_threads*=2)
+            run(num_threads);
+    }
+
+
+    protected static void run(int num_threads) throws Exception {
+        CreditMap map=new CreditMap(MAX_CREDITS);
+        Address[] members=new Address[NUM_MEMBERS];
+        for(int i=0; i < members.length; i++) {
+            members[i]=Util.createRandomAddress(String.valueOf((char)('A' + i)));
+            map.putIfAbsent(members[i]);
+        }
+
+        final AtomicLong sent=new AtomicLong(0), num_msgs=new AtomicLong(0);
+        final CountDownLatch latch=new CountDownLatch(1);
+
+        Replenisher[] replenishers=new Replenisher[members.length];
+        for(int i=0; i < replenishers.length; i++) {
+            replenishers[i]=new Replenisher(map, members[i], sent);
+            replenishers[i].start();
+        }
+
+        Sender[] senders=new Sender[num_threads];
+        for(int i=0; i < senders.length; i++) {
+            senders[i]=new Sender(map, latch, sent, num_msgs);
+            senders[i].start();
+        }
+
+        long start=System.nanoTime();
+        latch.countDown();
+        for(Sender sender: senders)
+            sender.join();
+        long time=System.nanoTime() - start;
+
+        for(Replenisher replenisher: replenishers) {
+            replenisher.interrupt();
+            replenisher.join();
+        }
+
+        // a member never has more bytes in flight than max_credits
+        for(Replenisher replenisher: replenishers) {
+            long in_flight=sent.get() - replenisher.replenished;
+            if(in_flight > MAX_CREDITS)
+                throw new IllegalStateException(replenisher.member + ": " + in_flight + " bytes in flight, but only " +
+                                                  MAX_CREDITS + " credits");
+        }
+
+        double msgs_sec=NUM_MSGS / (time / 1000000000.0);
+        System.out.println(String.format("%3d threads: %,10.0f msgs/sec, blockings=%d (%d ms)",
+                                         num_threads, msgs_sec, map.getNumBlockings(), map.getTotalBlockTime()));
+    }
+
+
+    protected static class Sender extends Thread {
+        protected final CreditMap      map;
+        protected final CountDownLatch latch;
+        protected final AtomicLong     sent, num_msgs;
+
+        public Sender(CreditMap map, CountDownLatch latch, AtomicLong sent, AtomicLong num_msgs) {
+            this.map=map;
+            this.latch=latch;
+            this.sent=sent;
+            this.num_msgs=num_msgs;
+            setName("Sender");
+        }
+
+        public void run() {
+            try {
+                latch.await();
+            }
+            catch(InterruptedException e) {
+                e.printStackTrace();
+            }
+            while(num_msgs.incrementAndGet() <= NUM_MSGS) {
+                while(!map.decrement(MSG_SIZE, 100))
+                    ;
+                sent.addAndGet(MSG_SIZE);
+            }
+        }
+    }
+
+    /** Sends back credits for the bytes sent so far, like a receiver does when it has received max_credits/2 bytes */
+    protected static class Replenisher extends Thread {
+        protected final CreditMap  map;
+        protected final Address    member;
+        protected final AtomicLong sent;
+        protected long             replenished;
+
+        public Replenisher(CreditMap map, Address member, AtomicLong sent) {
+            this.map=map;
+            this.member=member;
+            this.sent=sent;
+            setName("Replenisher-" + member);
+        }
+
+        public void run() {
+            while(!isInterrupted()) {
+                long diff=sent.get() - replenished;
+                if(diff >= MAX_CREDITS / 2) {
+                    map.replenish(member, diff);
+                    replenished+=diff;
+                }
+                else
+                    Thread.yield();
+            }
+        }
+    }
+}